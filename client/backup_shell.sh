@@ -7,17 +7,25 @@
 CMD_NICE="/usr/bin/nice -n 19 /usr/bin/ionice -c3"
 CONFIG=$( dirname $0 )/backup.conf
 CMD_RSYNC=/usr/bin/rsync
+BACKUP_DIR=/backup
 
 if [ -f ${CONFIG} ]; then
   source ${CONFIG}
 fi
 
+# may be changed in backup.conf, e.g. for the load test (see tests.loadtest)
+export VOLUMES_DIR=${VOLUMES_DIR:-${BACKUP_DIR}/volumes}
+
 case  "$SSH_ORIGINAL_COMMAND" in
   NOOP)
     echo "OK"
   ;;
   PRE_BACKUP)
-    ${CMD_NICE} /backup/pre_backup.sh
+    ${CMD_NICE} ${BACKUP_DIR}/pre_backup.sh
+  ;;
+  DUMP_*)
+    DUMP_NAME=$( echo -n "${SSH_ORIGINAL_COMMAND#DUMP_}" | sed 's/[^a-zA-Z0-9_-]//g' )
+    ${CMD_NICE} ${BACKUP_DIR}/dump_database.sh "${DUMP_NAME}"
   ;;
   PROXY_*)
     PROXY_H="${SSH_ORIGINAL_COMMAND}_HOST"
@@ -30,10 +38,56 @@ case  "$SSH_ORIGINAL_COMMAND" in
     fi
     /bin/nc $PROXY_HOST $PROXY_PORT 2>/dev/null
   ;;
+  CHANGES_*)
+    read -r CHANGES_CMD CHANGES_SINCE CHANGES_MAX <<< "${SSH_ORIGINAL_COMMAND}"
+    CHANGES_VOLUME=$( echo -n "${CHANGES_CMD#CHANGES_}" | sed 's/[^a-zA-Z0-9_-]//g' )
+    CHANGES_SINCE=$( echo -n "${CHANGES_SINCE}" | sed 's/[^0-9-]//g' )
+    CHANGES_MAX=$( echo -n "${CHANGES_MAX}" | sed 's/[^0-9]//g' )
+    ${CMD_NICE} ${BACKUP_DIR}/list_changes.sh "${CHANGES_VOLUME}" "${CHANGES_SINCE:--1}" "${CHANGES_MAX:-0}"
+  ;;
+  rsync*--files-from=-*)
+    # change journal: transfer only the listed entries (see list_changes.sh)
+    RSYNC_PATH="${SSH_ORIGINAL_COMMAND##* }"
+    RSYNC_PATH=$( echo -n "${RSYNC_PATH}" | sed 's/[^a-zA-Z0-9_-]//g' )
+    # the same fixed flags as a full transfer, recursive only for the new directories (-r)
+    RSYNC_FLAGS=-vlogDtpRSe.iLsf
+    RSYNC_ARGS=()
+    for ARG in ${SSH_ORIGINAL_COMMAND}; do
+      case "${ARG}" in
+        --files-from=-|--from0|--ignore-missing-args)
+          RSYNC_ARGS+=( "${ARG}" )
+        ;;
+        --*) ;;
+        -*)
+          # only the client's flags (the first group) are looked at
+          if [ -z "${FLAGS_SEEN}" ]; then
+            case "${ARG%%.*}" in
+              *r*) RSYNC_FLAGS=-vlogDtprRSe.iLsf ;;
+            esac
+            FLAGS_SEEN=1
+          fi
+        ;;
+      esac
+    done
+    ${CMD_NICE} ${CMD_RSYNC} --server --sender ${RSYNC_FLAGS} --numeric-ids "${RSYNC_ARGS[@]}" . "${VOLUMES_DIR}/${RSYNC_PATH}/"
+  ;;
   rsync*)
     RSYNC_PATH="${SSH_ORIGINAL_COMMAND##* }"
     RSYNC_PATH=$( echo -n "${RSYNC_PATH}" | sed 's/[^a-zA-Z0-9_-]//g' )
-    ${CMD_NICE} ${CMD_RSYNC} --server --sender -vlogDtprSe.iLsf --numeric-ids . "/backup/volumes/${RSYNC_PATH}/"
+    RSYNC_FLAGS=-vlogDtprSe.iLsf
+    # checksum verification (--checksum on the server) requires the sender to compute checksums
+    for ARG in ${SSH_ORIGINAL_COMMAND}; do
+      case "${ARG}" in
+        --*) ;;
+        -*)
+          case "${ARG%%.*}" in
+            *c*) RSYNC_FLAGS=-vlogDtprcSe.iLsf ;;
+          esac
+          break
+        ;;
+      esac
+    done
+    ${CMD_NICE} ${CMD_RSYNC} --server --sender ${RSYNC_FLAGS} --numeric-ids . "${VOLUMES_DIR}/${RSYNC_PATH}/"
   ;;
   *)
     echo "Rejected -> '*' : $SSH_ORIGINAL_COMMAND" 1
@@ -0,0 +1,64 @@
+#!/bin/bash
+#
+# Streams compressed database dumps to stdout. Called by backup_shell.sh:
+#   DUMP_LIST      lists the names of all available dumps, one per line
+#   DUMP_<name>    writes the dump <name> to stdout, compressed with zstd
+#
+# The exit code is the one of the dump command (or zstd if the dump succeeded).
+
+CONFIG=$( dirname $0 )/backup.conf
+
+# Defaults (can be overwritten in the config)
+CMD_MYSQLSHOW=/usr/bin/mysqlshow
+CMD_MYSQLDUMP=/usr/bin/mysqldump
+CMD_PSQL=/usr/bin/psql
+CMD_PG_DUMP=/usr/bin/pg_dump
+CMD_ZSTD=/usr/bin/zstd
+MYSQL_ARGS="-uroot"
+MYSQLDUMP_ARGS="--single-transaction --max_allowed_packet=500M"
+POSTGRES_ARGS="-U root"
+ZSTD_ARGS="-3 -T0"
+DUMP_MYSQL=0
+DUMP_POSTGRES=0
+
+if [ -f ${CONFIG} ]; then
+  source ${CONFIG}
+fi
+
+set -o pipefail
+
+list_dumps() {
+  if [ "${DUMP_MYSQL}" -eq "1" ]; then
+    echo "MYSQL_ALL_DATABASES"
+    ${CMD_MYSQLSHOW} ${MYSQL_ARGS} | tail -n +4 | head -n -1 | awk '{ print $2 }' \
+      | grep -v -e '^information_schema$' -e '^performance_schema$' | sed 's/^/MYSQL_/'
+  fi
+  if [ "${DUMP_POSTGRES}" -eq "1" ]; then
+    ${CMD_PSQL} ${POSTGRES_ARGS} -A -t -c "SELECT datname FROM pg_database WHERE NOT datistemplate" postgres \
+      | sed 's/^/POSTGRES_/'
+  fi
+}
+
+DUMP="$1"
+
+if [ "${DUMP}" == "LIST" ]; then
+  list_dumps
+  exit $?
+fi
+
+if ! list_dumps | grep -q -x -F -e "${DUMP}"; then
+  echo "No such dump: ${DUMP}" >&2
+  exit 1
+fi
+
+case "${DUMP}" in
+  MYSQL_ALL_DATABASES)
+    ${CMD_MYSQLDUMP} ${MYSQL_ARGS} ${MYSQLDUMP_ARGS} -A --no-data --add-drop-database --no-create-info | ${CMD_ZSTD} ${ZSTD_ARGS} -c
+  ;;
+  MYSQL_*)
+    ${CMD_MYSQLDUMP} ${MYSQL_ARGS} ${MYSQLDUMP_ARGS} -c --add-drop-table --databases "${DUMP#MYSQL_}" | ${CMD_ZSTD} ${ZSTD_ARGS} -c
+  ;;
+  POSTGRES_*)
+    ${CMD_PG_DUMP} ${POSTGRES_ARGS} --format=p -b --inserts "${DUMP#POSTGRES_}" | ${CMD_ZSTD} ${ZSTD_ARGS} -c
+  ;;
+esac
@@ -0,0 +1,46 @@
+#!/bin/bash
+#
+# Lists the entries of a volume that changed since a given time. Called by backup_shell.sh:
+#   CHANGES_<volume> <since> <max>
+#
+# Output (NUL separated records):
+#   T<time>   the current time of this host (seconds), the next <since> for the server
+#   F<path>   changed file, symlink, ... (ctime newer than <since>)
+#   D<path>   changed directory, followed by C<name> for each of its entries
+#   O         more than <max> changed entries (the server falls back to a full scan)
+#   E         end of the list
+#
+# With <since> < 0 only the time is printed.
+#
+# Like the full rsync scan of the server, the list crosses the mount points below the volume, so the entries
+# of a submount are backed up the same way by both.
+
+VOLUME="$1"
+SINCE="$2"
+MAX="$3"
+
+echo -n "T$( date +%s )"
+printf '\0'
+
+cd -P "${VOLUMES_DIR:-/backup/volumes}/${VOLUME}" || exit 1
+
+if [ "${SINCE}" -ge 0 ]; then
+  COUNT=0
+  while IFS= read -r -d '' ENTRY; do
+    COUNT=$(( COUNT + 1 ))
+    if [ ${COUNT} -gt ${MAX} ]; then
+      printf 'O\0'
+      break
+    fi
+    TYPE="${ENTRY:0:1}"
+    ENTRY="${ENTRY:1}"
+    if [ "${TYPE}" = "d" ]; then
+      printf 'D%s\0' "${ENTRY:-.}"
+      find "./${ENTRY}" -mindepth 1 -maxdepth 1 -printf 'C%f\0' || exit 1
+    else
+      printf 'F%s\0' "${ENTRY}"
+    fi
+  done < <( find . -newerct "@${SINCE}" -printf '%y%P\0' )
+fi
+
+printf 'E\0'
@@ -0,0 +1,348 @@
+package org.github.rsyncbackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs up a volume without a full rsync scan, using the list of changed entries from the client
+ * (CHANGES_* command of backup_shell.sh, see client/list_changes.sh).
+ *
+ * The client lists all entries whose ctime is newer than a high-water mark (the client's time when the
+ * previous list was created) and the names in each changed directory. Like the full scan, the list crosses
+ * mount points below the volume. The server clones the previous backup with hardlinks, removes entries that
+ * no longer exist, unlinks changed files and runs rsync only for the changed entries (--files-from,
+ * --link-dest to re-link files whose content did not change).
+ * Directories that are new in the backup are transferred recursively, since moved directories keep the
+ * ctime of their contents.
+ *
+ * A full rsync scan is done for the first backup, periodically (fullScanDays), when more than
+ * changeJournalMaxEntries entries changed, when an unfinished backup is resumed and if the list fails.
+ * The high-water mark is stored in the backup (.journal-{volume}).
+ */
+public class ChangeJournal
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(ChangeJournal.class);
+    
+    protected static final String STATE_FILE_PREFIX=".journal-";
+    protected static final int DEFAULT_MAX_ENTRIES=100000;
+    protected static final int DEFAULT_FULL_SCAN_DAYS=7;
+    /**
+     * Safety margin (seconds) for changes during the previous listing and coarse ctime resolution
+     */
+    protected static final long SINCE_MARGIN=300;
+    
+    protected final RSyncBackup backup;
+    protected final ConfHost host;
+    protected final Map<String, String> env;
+    
+    public ChangeJournal(RSyncBackup backup, ConfHost host, Map<String, String> env)
+    {
+        this.backup=backup;
+        this.host=host;
+        this.env=env;
+    }
+    
+    /**
+     * @return the rsync exit code
+     */
+    public int backupVolume(ConfVolume volume, File currentBackupLink, File syncDir) throws Exception
+    {
+        File volumeSyncDir=new File(syncDir, volume.volume);
+        File baseDir=(currentBackupLink==null)?null:new File(currentBackupLink, volume.volume);
+        Properties previous=(currentBackupLink==null)?null:readState(new File(currentBackupLink, STATE_FILE_PREFIX+volume.volume));
+        int maxEntries=(volume.changeJournalMaxEntries!=null)?volume.changeJournalMaxEntries:DEFAULT_MAX_ENTRIES;
+        int fullScanDays=(volume.fullScanDays!=null)?volume.fullScanDays:DEFAULT_FULL_SCAN_DAYS;
+        
+        String fullScanReason=null;
+        if (previous==null || baseDir==null || !baseDir.isDirectory()) fullScanReason="no change journal in the previous backup";
+        else if (volumeSyncDir.exists()) fullScanReason="resuming an unfinished backup";
+        else if (LocalDateTime.parse(previous.getProperty("fullScan")).plusDays(fullScanDays).isBefore(new LocalDateTime())) fullScanReason="periodic full scan";
+        
+        if (fullScanReason==null)
+        {
+            long since=Long.parseLong(previous.getProperty("since"))-SINCE_MARGIN;
+            File changesFile=new File(syncDir, ".changes-"+volume.volume);
+            try
+            {
+                int exitCode=RSyncBackup.executeCommand("CHANGES", backup.createCmdSsh(host, "CHANGES_"+volume.volume+" "+since+" "+maxEntries), env, null, changesFile);
+                Changes changes=(exitCode==0)?Changes.read(changesFile, maxEntries):null;
+                if (changes==null) fullScanReason="listing changes failed (exit code "+exitCode+")";
+                else if (changes.overflow) fullScanReason="more than "+maxEntries+" changes";
+                else
+                {
+                    LOG.info("{}: {} changed entries since {}",volume.volume,changes.entries.size(),since);
+                    exitCode=applyChanges(volume, currentBackupLink, syncDir, baseDir, volumeSyncDir, changes);
+                    if (exitCode==0 || exitCode==24) writeState(new File(syncDir, STATE_FILE_PREFIX+volume.volume), changes.clientTime, previous.getProperty("fullScan"));
+                    return exitCode;
+                }
+            }
+            finally
+            {
+                changesFile.delete();
+            }
+        }
+        
+        return fullScan(volume, currentBackupLink, syncDir, fullScanReason, null, null);
+    }
+    
+    /**
+     * Runs a full rsync scan of the volume and starts a new change journal
+     * @param extraArgs additional rsync arguments or null
+     * @param outputConsumer consumer of the rsync output or null
+     * @return the rsync exit code
+     */
+    public int fullScan(ConfVolume volume, File currentBackupLink, File syncDir, String reason, List<String> extraArgs, RSyncBackup.CommandOutputConsumer outputConsumer) throws Exception
+    {
+        LOG.info("{}: full scan - {}",volume.volume,reason);
+        Long clientTime=getClientTime(volume, syncDir);
+        int exitCode=RSyncBackup.executeCommand("RSYNC", backup.createCmdRsync(host, volume, currentBackupLink, syncDir, extraArgs), env, outputConsumer);
+        if ((exitCode==0 || exitCode==24) && clientTime!=null)
+        {
+            writeState(new File(syncDir, STATE_FILE_PREFIX+volume.volume), clientTime, new LocalDateTime().toString());
+        }
+        return exitCode;
+    }
+    
+    protected int applyChanges(ConfVolume volume, File currentBackupLink, File syncDir, File baseDir, File volumeSyncDir, Changes changes) throws Exception
+    {
+        List<String> cmdClone=new ArrayList<>();
+        cmdClone.add("/bin/cp");
+        cmdClone.add("-al");
+        cmdClone.add(baseDir.getAbsolutePath());
+        cmdClone.add(volumeSyncDir.getAbsolutePath());
+        int exitCode=RSyncBackup.executeCommand("CLONE", cmdClone, null, null);
+        if (exitCode!=0) throw new IOException("Unable to clone the previous backup. Exit code "+exitCode);
+        
+        File changedList=new File(syncDir, ".changes-"+volume.volume+".files");
+        File newDirList=new File(syncDir, ".changes-"+volume.volume+".dirs");
+        try
+        {
+            int newDirs=0;
+            try (OutputStream changed=new BufferedOutputStream(new FileOutputStream(changedList));
+                 OutputStream created=new BufferedOutputStream(new FileOutputStream(newDirList)))
+            {
+                for (Entry entry: changes.entries)
+                {
+                    File file=new File(volumeSyncDir, entry.path);
+                    if (entry.children!=null)
+                    {
+                        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath()))
+                        {
+                            removeDeletedChildren(file, entry.children);
+                        }
+                        else
+                        {
+                            if (file.exists() || Files.isSymbolicLink(file.toPath())) delete(file);
+                            write(created, entry.path);
+                            newDirs++;
+                        }
+                    }
+                    else if (file.exists() || Files.isSymbolicLink(file.toPath()))
+                    {
+                        // break the hardlink to the previous backup, rsync re-links the file if it is unchanged
+                        delete(file);
+                    }
+                    write(changed, entry.path);
+                }
+            }
+            
+            List<String> args=new ArrayList<>();
+            args.add("--from0");
+            args.add("--files-from="+changedList.getAbsolutePath());
+            args.add("--ignore-missing-args");
+            exitCode=RSyncBackup.executeCommand("RSYNC", backup.createCmdRsync(host, volume, currentBackupLink, syncDir, args), env, null);
+            
+            if (newDirs>0 && (exitCode==0 || exitCode==24))
+            {
+                LOG.info("{}: transferring {} new directories",volume.volume,newDirs);
+                args=new ArrayList<>();
+                args.add("-r");
+                args.add("--from0");
+                args.add("--files-from="+newDirList.getAbsolutePath());
+                args.add("--ignore-missing-args");
+                int dirExitCode=RSyncBackup.executeCommand("RSYNC", backup.createCmdRsync(host, volume, currentBackupLink, syncDir, args), env, null);
+                if (dirExitCode!=0) exitCode=dirExitCode;
+            }
+            return exitCode;
+        }
+        finally
+        {
+            changedList.delete();
+            newDirList.delete();
+        }
+    }
+    
+    protected void removeDeletedChildren(File dir, Set<String> children) throws Exception
+    {
+        String[] names=dir.list();
+        if (names!=null) for (String name: names)
+        {
+            if (!children.contains(name)) delete(new File(dir, name));
+        }
+    }
+    
+    protected static void delete(File file) throws Exception
+    {
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) RSyncBackup.deleteDirectory(file);
+        else Files.delete(file.toPath());
+    }
+    
+    /**
+     * @return the client's current time (seconds) or null if the client does not support change lists
+     */
+    protected Long getClientTime(ConfVolume volume, File syncDir)
+    {
+        File changesFile=new File(syncDir, ".changes-"+volume.volume);
+        try
+        {
+            int exitCode=RSyncBackup.executeCommand("CHANGES", backup.createCmdSsh(host, "CHANGES_"+volume.volume+" -1 0"), env, null, changesFile);
+            Changes changes=(exitCode==0)?Changes.read(changesFile, 0):null;
+            if (changes!=null) return changes.clientTime;
+            LOG.warn("{}: unable to get the client's time for the change journal. Exit code {}",volume.volume,exitCode);
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("{}: unable to get the client's time for the change journal",volume.volume,ex);
+        }
+        finally
+        {
+            changesFile.delete();
+        }
+        return null;
+    }
+    
+    protected static Properties readState(File stateFile) throws IOException
+    {
+        if (!stateFile.isFile()) return null;
+        Properties state=new Properties();
+        try (InputStream in=new FileInputStream(stateFile))
+        {
+            state.load(in);
+        }
+        if (state.getProperty("since")==null || state.getProperty("fullScan")==null) return null;
+        return state;
+    }
+    
+    protected static void writeState(File stateFile, long since, String fullScan) throws IOException
+    {
+        Properties state=new Properties();
+        state.setProperty("since", String.valueOf(since));
+        state.setProperty("fullScan", fullScan);
+        try (OutputStream out=new FileOutputStream(stateFile))
+        {
+            state.store(out, "change journal high-water mark (client time)");
+        }
+    }
+    
+    protected static void write(OutputStream out, String path) throws IOException
+    {
+        out.write(path.getBytes("utf-8"));
+        out.write(0);
+    }
+    
+    protected static class Entry
+    {
+        protected final String path;
+        /**
+         * Names in a changed directory, null for other entries
+         */
+        protected Set<String> children;
+        
+        protected Entry(String path)
+        {
+            this.path=path;
+        }
+    }
+    
+    /**
+     * The output of list_changes.sh: NUL separated records, each starting with its type
+     * T{client time}, F{path} (changed entry), D{path} (changed directory) followed by C{name} for each of its entries,
+     * O (more than the given number of changes), E (end of the list)
+     */
+    protected static class Changes
+    {
+        protected long clientTime=-1;
+        protected boolean overflow;
+        protected final List<Entry> entries=new ArrayList<>();
+        
+        /**
+         * @return the changes or null if the list is incomplete or invalid
+         */
+        protected static Changes read(File file, int maxEntries) throws IOException
+        {
+            Changes changes=new Changes();
+            boolean complete=false;
+            try (InputStream in=new BufferedInputStream(new FileInputStream(file)))
+            {
+                Entry dir=null;
+                String record;
+                while ((record=readRecord(in))!=null)
+                {
+                    if (record.isEmpty()) continue;
+                    char type=record.charAt(0);
+                    String value=record.substring(1);
+                    if (type=='C' && dir!=null)
+                    {
+                        dir.children.add(value);
+                        continue;
+                    }
+                    dir=null;
+                    if (type=='T') changes.clientTime=Long.parseLong(value);
+                    else if (type=='O') changes.overflow=true;
+                    else if (type=='E') complete=true;
+                    else if (type=='F' || type=='D')
+                    {
+                        if (!isSafePath(value)) throw new IOException("Invalid path in change list: "+value);
+                        Entry entry=new Entry(value);
+                        if (type=='D')
+                        {
+                            entry.children=new HashSet<>();
+                            dir=entry;
+                        }
+                        changes.entries.add(entry);
+                        if (changes.entries.size()>maxEntries) changes.overflow=true;
+                    }
+                    else throw new IOException("Invalid record in change list: "+record);
+                }
+            }
+            if (!complete || changes.clientTime<0) return null;
+            return changes;
+        }
+        
+        protected static boolean isSafePath(String path)
+        {
+            if (path.isEmpty() || path.startsWith("/")) return false;
+            return !Arrays.asList(path.split("/")).contains("..");
+        }
+        
+        protected static String readRecord(InputStream in) throws IOException
+        {
+            ByteArrayOutputStream record=new ByteArrayOutputStream();
+            int b;
+            while ((b=in.read())>0) record.write(b);
+            if (b<0 && record.size()==0) return null;
+            return new String(record.toByteArray(),"utf-8");
+        }
+    }
+}
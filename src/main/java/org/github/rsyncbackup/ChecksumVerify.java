@@ -0,0 +1,136 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.RSyncBackup.BackupStatistics;
+import org.github.rsyncbackup.RSyncBackup.CommandOutputConsumer;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.scrub.VerifySchedule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs up a volume with rsync --checksum, when it is due according to the VerifySchedule. rsync normally skips files
+ * with unchanged size and mtime, so silent corruption (on the client or in the previous backup) and changes that
+ * preserve the mtime are never transferred. With --checksum, such a file is transferred again and itemized with a
+ * checksum difference but same size and time. These files are reported as discrepancies, the new backup contains the
+ * client's current content.
+ */
+public class ChecksumVerify
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(ChecksumVerify.class);
+    
+    protected static final String ITEMIZE_PREFIX="ITEM ";
+    /**
+     * Discrepancies of a volume that are logged and recorded, the others are only counted
+     */
+    protected static final int MAX_RECORDED_DISCREPANCIES=1000;
+    
+    protected final RSyncBackup backup;
+    protected final ConfHost host;
+    protected final Map<String, String> env;
+    protected final VerifySchedule schedule;
+    
+    public ChecksumVerify(RSyncBackup backup, ConfHost host, Map<String, String> env, VerifySchedule schedule)
+    {
+        this.backup=backup;
+        this.host=host;
+        this.env=env;
+        this.schedule=schedule;
+    }
+    
+    /**
+     * @return the rsync exit code or null if the volume is not verified in this backup
+     */
+    public Integer backupVolume(ConfVolume volume, File currentBackupLink, File syncDir, BackupStatistics statistics) throws Exception
+    {
+        if (currentBackupLink==null) return null; // nothing to verify
+        
+        long now=System.currentTimeMillis();
+        Long reserved=schedule.reserve(host, volume.volume, now);
+        if (reserved==null) return null;
+        
+        List<String> extraArgs=Arrays.asList("--checksum", "--stats", "--out-format="+ITEMIZE_PREFIX+"%i %n");
+        VerifyOutputConsumer consumer=new VerifyOutputConsumer();
+        int exitCode=-1;
+        try
+        {
+            if (volume.changeJournal!=null && volume.changeJournal)
+            {
+                exitCode=new ChangeJournal(backup, host, env).fullScan(volume, currentBackupLink, syncDir, "checksum verification", extraArgs, consumer);
+            }
+            else
+            {
+                LOG.info("{}: checksum verification",volume.volume);
+                exitCode=RSyncBackup.executeCommand("RSYNC-VERIFY", backup.createCmdRsync(host, volume, currentBackupLink, syncDir, extraArgs), env, consumer);
+            }
+        }
+        finally
+        {
+            boolean complete=(exitCode==0 || exitCode==24);
+            schedule.finish(host, volume.volume, now, reserved, consumer.totalFileSize, consumer.discrepancies, complete);
+            
+            statistics.verifyDiscrepancies+=consumer.discrepancyCount;
+            if (complete) statistics.verifiedVolumes++;
+        }
+        
+        if (consumer.discrepancyCount>0)
+        {
+            LOG.error("Checksum verification of {}: {} files differ from the previous backup with the same size and mtime (see {})",
+                    volume.volume,consumer.discrepancyCount,VerifySchedule.LOG_FILE_NAME);
+        }
+        else
+        {
+            LOG.info("Checksum verification of {}: no discrepancies in {} bytes",volume.volume,consumer.totalFileSize);
+        }
+        return exitCode;
+    }
+    
+    /**
+     * @return true if the itemized change (%i) is a transfer of a regular file with different checksum but same size and time
+     */
+    protected static boolean isDiscrepancy(String itemized)
+    {
+        return itemized.length()>=5 && itemized.startsWith(">fc") && itemized.charAt(3)=='.' && itemized.charAt(4)=='.';
+    }
+    
+    protected static class VerifyOutputConsumer implements CommandOutputConsumer
+    {
+        protected final List<String> discrepancies=new ArrayList<>();
+        protected int discrepancyCount;
+        protected long totalFileSize;
+        
+        @Override
+        public void consume(String line)
+        {
+            if (line.startsWith(ITEMIZE_PREFIX))
+            {
+                String item=line.substring(ITEMIZE_PREFIX.length());
+                int pos=item.indexOf(' ');
+                if (pos<0 || !isDiscrepancy(item.substring(0,pos))) return;
+                
+                discrepancyCount++;
+                if (discrepancies.size()<MAX_RECORDED_DISCREPANCIES)
+                {
+                    discrepancies.add(item.substring(pos+1));
+                    LOG.warn("Checksum discrepancy: {}",item.substring(pos+1));
+                }
+            }
+            else if (line.startsWith("Total file size:"))
+            {
+                // e.g. "Total file size: 1,234,567 bytes"
+                String digits=line.substring("Total file size:".length()).replaceAll("[^0-9]", "");
+                if (!digits.isEmpty()) totalFileSize=Long.parseLong(digits);
+            }
+            else
+            {
+                LOG.debug("RSYNC-VERIFY: {}",line);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.github.rsyncbackup.RSyncBackup.BackupStatistics;
+import org.github.rsyncbackup.RSyncBackup.CommandOutputConsumer;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.ProcessWatchdog;
+import org.github.rsyncbackup.logging.LogContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams database dumps from the client (DUMP_* commands of backup_shell.sh) directly into the backup.
+ * The dumps are compressed by zstd on the client and written to the dump directory in .sync without
+ * touching the client's disk. Several databases are dumped in parallel.
+ */
+public class DatabaseDumps
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(DatabaseDumps.class);
+    
+    protected static final String DUMP_SUFFIX=".sql.zst";
+    protected static final String TEMP_SUFFIX=".tmp";
+    
+    protected final RSyncBackup backup;
+    protected final ConfHost host;
+    protected final Map<String, String> env;
+    
+    public DatabaseDumps(RSyncBackup backup, ConfHost host, Map<String, String> env)
+    {
+        this.backup=backup;
+        this.host=host;
+        this.env=env;
+    }
+    
+    public void dumpAll(File dumpDir, BackupStatistics statistics)
+    {
+        List<String> dumps=new ArrayList<>();
+        try
+        {
+            int exitCode=RSyncBackup.executeCommand("DUMP_LIST", backup.createCmdSsh(host, "DUMP_LIST"), env, new DumpListConsumer(dumps));
+            if (exitCode!=0) throw new RuntimeException("Exit code "+exitCode);
+        }
+        catch (Exception ex)
+        {
+            statistics.backupOk=false;
+            statistics.backupErrors.add("Error when listing database dumps: "+ex);
+            LOG.warn("Error when listing database dumps - backup failed",ex);
+            return;
+        }
+        
+        LOG.info("Dumping {} databases to {}",dumps.size(),dumpDir);
+        dumpDir.mkdirs();
+        removeOutdatedDumps(dumpDir, dumps);
+        
+        ExecutorService dumpExecutor=Executors.newFixedThreadPool(host.dumpParallel);
+        try
+        {
+            List<Future<Long>> results=new ArrayList<>();
+            final ProcessWatchdog.Limits limits=ProcessWatchdog.getLimits();
+            for (final String dump: dumps)
+            {
+                final File dumpFile=new File(dumpDir, dump+DUMP_SUFFIX);
+                results.add(dumpExecutor.submit(LogContext.wrap(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws Exception
+                    {
+                        ProcessWatchdog.setLimits(limits);
+                        return dump(dump, dumpFile);
+                    }
+                })));
+            }
+            
+            for (int i=0;i<dumps.size();i++)
+            {
+                try
+                {
+                    statistics.dumpSize+=results.get(i).get();
+                    statistics.dumpCount++;
+                }
+                catch (Exception ex)
+                {
+                    Throwable cause=(ex.getCause()!=null)?ex.getCause():ex;
+                    statistics.dumpFailedCount++;
+                    statistics.backupOk=false;
+                    statistics.backupErrors.add("Error in database dump "+dumps.get(i)+": "+cause.getMessage());
+                    LOG.warn("Database dump {} failed - backup failed: {}",dumps.get(i),cause.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            dumpExecutor.shutdownNow();
+        }
+        
+        LOG.info("Database dumps: {} succeeded, {} failed, {} bytes",statistics.dumpCount,statistics.dumpFailedCount,statistics.dumpSize);
+    }
+    
+    /**
+     * Streams one dump into a temporary file, validates it and moves it to its final name
+     * @return the size of the dump
+     */
+    protected long dump(String dump, File dumpFile) throws Exception
+    {
+        File tempFile=new File(dumpFile.getParentFile(), dumpFile.getName()+TEMP_SUFFIX);
+        tempFile.delete();
+        try
+        {
+            int exitCode=RSyncBackup.executeCommand("DUMP "+dump, backup.createCmdSsh(host, "DUMP_"+dump), env, null, tempFile);
+            if (exitCode!=0) throw new RuntimeException("Remote dump exited with code "+exitCode);
+            
+            if (!tempFile.isFile() || tempFile.length()==0) throw new RuntimeException("Dump is empty");
+            
+            List<String> cmdTest=new ArrayList<>();
+            RSyncBackup.appendCommand(cmdTest, host.cmdZstd);
+            cmdTest.add("-t");
+            cmdTest.add("-q");
+            cmdTest.add(tempFile.getAbsolutePath());
+            exitCode=RSyncBackup.executeCommand("DUMP-VERIFY "+dump, cmdTest, null, null);
+            if (exitCode!=0) throw new RuntimeException("Dump is not a valid zstd file (truncated?). Exit code "+exitCode);
+            
+            long size=tempFile.length();
+            dumpFile.delete();
+            if (!tempFile.renameTo(dumpFile)) throw new RuntimeException("Unable to rename "+tempFile+" to "+dumpFile);
+            
+            LOG.info("Dumped {}: {} bytes",dump,size);
+            return size;
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * Removes dumps of databases that no longer exist (and temp files), e.g. when resuming a previous backup
+     */
+    protected void removeOutdatedDumps(File dumpDir, List<String> dumps)
+    {
+        Set<String> expected=new HashSet<>();
+        for (String dump: dumps)
+        {
+            expected.add(dump+DUMP_SUFFIX);
+        }
+        
+        File[] files=dumpDir.listFiles();
+        if (files!=null) for (File file: files)
+        {
+            if (expected.contains(file.getName())) continue;
+            LOG.debug("Removing outdated dump {}",file);
+            file.delete();
+        }
+    }
+    
+    protected static class DumpListConsumer implements CommandOutputConsumer
+    {
+        protected final List<String> dumps;
+        
+        protected DumpListConsumer(List<String> dumps)
+        {
+            this.dumps=dumps;
+        }
+        
+        @Override
+        public void consume(String line)
+        {
+            line=line.trim();
+            if (line.isEmpty()) return;
+            if (!line.matches("[a-zA-Z0-9_-]+"))
+            {
+                LOG.warn("Ignoring invalid dump name: {}",line);
+                return;
+            }
+            dumps.add(line);
+        }
+    }
+}
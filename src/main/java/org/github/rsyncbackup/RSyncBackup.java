@@ -4,23 +4,47 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileLock;
 import java.nio.file.Files;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
 
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.chunks.ChunkStore.ChunkResult;
 import org.github.rsyncbackup.impl.BackupConf;
 import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfPool;
 import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.impl.BackupJob;
 import org.github.rsyncbackup.impl.BackupScheduler;
+import org.github.rsyncbackup.impl.ClusterCoordinator;
+import org.github.rsyncbackup.impl.BackupSpool;
+import org.github.rsyncbackup.impl.CapacityHistory;
+import org.github.rsyncbackup.impl.LinkDestPrewarmer;
+import org.github.rsyncbackup.impl.MemoryHistory;
 import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.impl.CommandTimeoutException;
 import org.github.rsyncbackup.impl.IBackupExecutor;
+import org.github.rsyncbackup.impl.ProcessWatchdog;
+import org.github.rsyncbackup.impl.RetryPolicy;
+import org.github.rsyncbackup.impl.RetryPolicy.FailureClass;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.github.rsyncbackup.impl.SpaceAdmission;
+import org.github.rsyncbackup.impl.SshTunnelManager;
+import org.github.rsyncbackup.impl.StorageForecast.Forecast;
+import org.github.rsyncbackup.logging.LogContext;
 import org.github.rsyncbackup.notify.ZabbixNotifier;
+import org.github.rsyncbackup.prune.PrunePlanner;
+import org.github.rsyncbackup.prune.PrunePlanner.PrunePlan;
+import org.github.rsyncbackup.scrub.VerifySchedule;
 import org.joda.time.Duration;
 import org.joda.time.LocalDateTime;
 import org.joda.time.format.PeriodFormatter;
@@ -36,43 +60,82 @@ import ch.qos.logback.core.util.StatusPrinter;
 public class RSyncBackup implements IBackupExecutor
 {
     public static Logger LOG;
+    /**
+     * Partially transferred files of a failed attempt (relative to the transferred directory)
+     */
+    protected static final String PARTIAL_DIR=".rsync-partial";
+    /**
+     * Delay of a backup that waits for free space
+     */
+    protected static final long SPACE_RETRY_INTERVAL=10*60000L;
+    /**
+     * There's no global lock: each host is locked while it is backed up (see HostLock), so a single host can be
+     * backed up while an ALL run is in progress, and several ALL runs share the hosts. With clusterDir, the ALL runs of
+     * several nodes also share the resource limits (see ClusterCoordinator).
+     */
     public static void main(String[] args) throws Exception
     {
-        FileLock lock;
-        String lockFileName="RSyncBackup.lock";
+        RSyncBackup backup=null;
         try
         {
-            RandomAccessFile lockFile=new RandomAccessFile(lockFileName,"rw");
-            lock=lockFile.getChannel().tryLock(0,0,false);
-        }
-        catch (IOException ex)
-        {
-            lock=null;
-        }
-        
-        if (lock==null)
-        {
-            System.err.println("Unable to lock "+lockFileName+" - Backup already running?");
-            return;
-        }
-        
-        
-        // FIXME: LOCKING!
-        try
-        {
-            RSyncBackup backup=new RSyncBackup(args);
+            backup=new RSyncBackup(args);
             
             if (args.length == 0)
             {
-                System.err.println("Missing argument: hostname|ALL [maxParallel]");
+                System.err.println("Missing argument: hostname|ALL [maxParallel [maxParallelPreBackup]] or SUBMIT hostname [--wait] or PLACE hostname|ALL");
                 System.exit(1);
             }
             if (args[0].equalsIgnoreCase("ALL"))
             {
                 int maxParallel=(args.length==1)?1:Integer.parseInt(args[1]);
+                int maxParallelPreBackup=(args.length<=2)?maxParallel:Integer.parseInt(args[2]);
                 
-                BackupScheduler scheduler=new BackupScheduler(maxParallel, backup.conf.getAllHosts(), backup);
-                scheduler.executeBackups();
+                BackupScheduler scheduler=new BackupScheduler(maxParallel, maxParallelPreBackup, backup.conf.getAllHosts(), backup);
+                scheduler.setMemoryBudget(backup.conf.getMemoryBudgetBytes());
+                BackupSpool spool=new BackupSpool(backup.spoolDir, backup.conf);
+                if (spool.open()) scheduler.setSpool(spool);
+                else LOG.info("Another scheduler is running - priority backups are executed there");
+                ClusterCoordinator cluster=null;
+                if (backup.conf.getClusterDir()!=null)
+                {
+                    cluster=new ClusterCoordinator(new File(backup.conf.getClusterDir()), HostLock.getProcessName(), backup.conf.getClusterLeaseMillis());
+                    cluster.start();
+                    scheduler.setCluster(cluster);
+                }
+                try
+                {
+                    scheduler.executeBackups();
+                }
+                finally
+                {
+                    spool.close();
+                    if (cluster!=null) cluster.close();
+                }
+                backup.logStorageForecasts();
+            }
+            else if (args[0].equalsIgnoreCase("SUBMIT"))
+            {
+                if (args.length < 2)
+                {
+                    System.err.println("Missing argument: SUBMIT hostname [--wait]");
+                    System.exit(1);
+                }
+                boolean wait=args.length>2 && args[2].equals("--wait");
+                System.exit(backup.submitBackup(args[1], wait));
+            }
+            else if (args[0].equalsIgnoreCase("PLACE"))
+            {
+                if (args.length < 2)
+                {
+                    System.err.println("Missing argument: PLACE hostname|ALL");
+                    System.exit(1);
+                }
+                List<ConfHost> hosts=args[1].equalsIgnoreCase("ALL")?backup.conf.getAllHosts():Collections.singletonList(backup.conf.getForHost(args[1]));
+                for (ConfHost host: hosts)
+                {
+                    backup.placeHost(host);
+                    LOG.info("{}: {}",host.host,host.hostStorageDir);
+                }
             }
             else
             {
@@ -86,7 +149,7 @@ public class RSyncBackup implements IBackupExecutor
         }
         finally
         {
-            lock.release();
+            if (backup!=null) backup.tunnels.closeAll();
         }
         
     }
@@ -94,11 +157,24 @@ public class RSyncBackup implements IBackupExecutor
     final BackupConf conf;
     final File confDir;
     final File sshPrivateKeyFile;
+    final SshTunnelManager tunnels;
+    final File spoolDir;
+    final SpaceAdmission space;
+    final VerifySchedule verifySchedule;
     
     public RSyncBackup(String[] args) throws Exception
+    {
+        this(new File("").getAbsoluteFile());
+    }
+    
+    /**
+     * @param baseDir directory that contains conf, tunnels and spool (usually the working directory)
+     */
+    public RSyncBackup(File baseDir) throws Exception
     {
         setThreadHostname(null);
-        confDir = new File("conf").getAbsoluteFile();
+        LogContext.startRun();
+        confDir = new File(baseDir, "conf").getAbsoluteFile();
         
         File loggerConf=new File(confDir,"logback.xml");
         
@@ -117,6 +193,17 @@ public class RSyncBackup implements IBackupExecutor
               // StatusPrinter will handle this
             }
             StatusPrinter.printInCaseOfErrorsOrWarnings(context);
+            
+            // flush asynchronous appenders on System.exit()
+            final LoggerContext stopContext=context;
+            Runtime.getRuntime().addShutdownHook(new Thread("LoggerShutdown")
+            {
+                @Override
+                public void run()
+                {
+                    stopContext.stop();
+                }
+            });
         }
         
         LOG=LoggerFactory.getLogger(RSyncBackup.class);
@@ -132,24 +219,330 @@ public class RSyncBackup implements IBackupExecutor
         
         LOG.debug("Reading backup.conf");
         conf = BackupConf.read(new File(confDir, "backup.conf"));
+        
+        // per process, since several processes may run at the same time
+        tunnels = new SshTunnelManager(new File(new File(baseDir, "tunnels"),HostLock.getProcessName().split("@")[0]).getAbsoluteFile());
+        spoolDir = new File(baseDir, "spool").getAbsoluteFile();
+        space = new SpaceAdmission();
+        verifySchedule = new VerifySchedule(conf.getVerifyBudgetBytes());
     }
     
     public void runBackupForHost(String hostname) throws Exception
     {
+        runBackupWithRetries(new BackupJob(conf.getForHost(hostname)));
+    }
+    
+    /**
+     * Runs the backup and waits for its retries (see RetryPolicy)
+     */
+    protected void runBackupWithRetries(BackupJob job) throws Exception
+    {
+        runBackupForHost(job);
+        while (job.retryAt>0)
+        {
+            long delay=job.retryAt-System.currentTimeMillis();
+            if (delay>0) Thread.sleep(delay);
+            runBackupForHost(job);
+        }
+    }
+    
+    /**
+     * Submits a priority backup to the running scheduler (see BackupSpool). If no scheduler is running, the backup is
+     * executed by this process.
+     * @param wait wait until the backup is finished
+     * @return the exit status of the backup (see BackupSpool) or 0 if not waiting
+     */
+    public int submitBackup(String hostname, boolean wait) throws Exception
+    {
+        BackupSpool spool=new BackupSpool(spoolDir, conf);
+        String id=spool.submit(hostname);
+        LOG.info("Submitted priority backup {}",id);
+        
+        while (true)
+        {
+            Integer status=spool.readResult(id);
+            if (status!=null)
+            {
+                LOG.info("Priority backup {} finished with status {}",id,status);
+                return status;
+            }
+            
+            if (!spool.isSchedulerRunning())
+            {
+                BackupJob job=spool.claim(id);
+                if (job!=null)
+                {
+                    LOG.info("No scheduler is running - executing the backup");
+                    runBackupWithRetries(job);
+                    spool.finish(job);
+                    continue;
+                }
+                if (!spool.isWaiting(id))
+                {
+                    status=spool.readResult(id); // finished meanwhile
+                    if (status!=null) return status;
+                    LOG.warn("The scheduler has terminated before priority backup {} was finished",id);
+                    return BackupSpool.STATUS_FAILED;
+                }
+            }
+            
+            if (!wait) return 0;
+            Thread.sleep(1000);
+        }
+    }
+    
+    @Override
+    public void runPreBackupForHost(BackupJob job) throws Exception
+    {
+        ConfHost host = job.host;
+        setThreadHostname(host.host);
+        placeHost(host);
+        ProcessWatchdog.setLimits(job.getProcessLimits(System.currentTimeMillis()));
+        
+        if (host.proxyConf!=null)
+        {
+            tunnels.acquire(host.proxyConf, createCmdSsh(host.proxyConf, null));
+        }
+        try
+        {
+            Map<String, String> env = createEnv();
+            
+            int exitCode=executeCommand("SSH-TEST", createCmdSsh(host, "NOOP"), env, null);
+            if (exitCode!=0)
+            {
+                LOG.warn("Error when running remote NOOP command. Exit code "+exitCode);
+            }
+            
+            runPreBackup(job, env);
+        }
+        finally
+        {
+            if (host.proxyConf!=null) tunnels.release(host.proxyConf);
+            ProcessWatchdog.setLimits(null);
+        }
+    }
+    
+    @Override
+    public void runBackupForHost(BackupJob job) throws Exception
+    {
+        ConfHost host = job.host;
+        setThreadHostname(host.host);
+        placeHost(host);
+        job.startAttempt(System.currentTimeMillis());
+        ProcessWatchdog.setLimits(job.getProcessLimits(System.currentTimeMillis()));
+        
+        // jobs of the scheduler are already locked
+        boolean locked=false;
+        if (job.hostLock==null)
+        {
+            if (!job.tryLock())
+            {
+                LOG.warn("Host is locked by another process ({}) - skipping",HostLock.readOwner(new File(host.hostStorageDir)));
+                return;
+            }
+            locked=true;
+        }
+        try
+        {
+            if (host.proxyConf!=null)
+            {
+                tunnels.acquire(host.proxyConf, createCmdSsh(host.proxyConf, null));
+            }
+            try
+            {
+                if (admitBackup(job))
+                {
+                    try
+                    {
+                        runBackup(job);
+                    }
+                    finally
+                    {
+                        space.release(host);
+                    }
+                }
+            }
+            finally
+            {
+                if (host.proxyConf!=null) tunnels.release(host.proxyConf);
+            }
+        }
+        finally
+        {
+            stopPrewarm(job, null);
+            if (locked) job.unlock();
+            ProcessWatchdog.setLimits(null);
+        }
+    }
+    
+    /**
+     * Places a new host on a storage pool (see StoragePools.place), since the config only reads where it is stored
+     */
+    protected void placeHost(ConfHost host)
+    {
+        if (!host.isPooled()) return;
+        ConfPool pool=conf.getStoragePools().place(host.host, host.storagePool);
+        host.storageDir=pool.dir;
+        host.hostStorageDir=new File(pool.dir,host.host).getPath();
+    }
+    
+    /**
+     * Reserves the estimated space for a backup (see SpaceAdmission). On shortage, old backups are deleted first. If
+     * this does not help, the backup is delayed or skipped (spaceShortageAction).
+     * @return true if the backup can be started
+     */
+    protected boolean admitBackup(BackupJob job) throws Exception
+    {
+        ConfHost host=job.host;
+        File dir=new File(host.hostStorageDir);
+        if (!dir.isDirectory()) return true; // the backup fails with a proper message
+        
+        CapacityHistory.Estimate estimate=new CapacityHistory(dir).estimate();
+        LOG.debug("Estimated demand of the backup: {}",(estimate==null)?"unknown":estimate);
+        if (space.reserve(host, estimate)) return true;
+        
+        LOG.info("Not enough space for the backup - deleting old backups first");
+        if (deleteOldBackupsForHost(host.host)>0 && space.reserve(host, estimate)) return true;
+        
+        if (host.spaceShortageAction.equals("delay") && job.scheduleDelay(SPACE_RETRY_INTERVAL, System.currentTimeMillis()))
+        {
+            LOG.warn("Not enough space for the backup - retrying at {}",new LocalDateTime(job.retryAt));
+            return false;
+        }
+        
+        LOG.error("Not enough space for the backup - backup skipped");
+        job.succeeded=false;
         BackupStatistics statistics=new BackupStatistics();
-        statistics.startTime=new LocalDateTime();
+        statistics.startTime=statistics.endTime=new LocalDateTime();
+        statistics.backupErrors.add("Not enough space on "+host.storageDir);
+        updateStorageForecast(host, statistics);
+        ZabbixNotifier.notify(host,statistics);
+        return false;
+    }
+    
+    protected void updateStorageForecast(ConfHost host, BackupStatistics statistics)
+    {
+        try
+        {
+            Forecast forecast=space.updateForecast(host.storageDir);
+            statistics.storageDaysUntilFull=forecast.daysUntilFull;
+            statistics.storageDaysUntilInodesFull=forecast.daysUntilInodesFull;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Unable to forecast the usage of {}: {}",host.storageDir,ex.toString());
+        }
+    }
+    
+    /**
+     * Logs when the storage dirs (pools) of all hosts will run out of space or inodes (see StorageForecast)
+     */
+    protected void logStorageForecasts()
+    {
+        Set<String> storageDirs=new TreeSet<>();
+        for (ConfHost host: conf.getAllHosts())
+        {
+            storageDirs.add(host.storageDir);
+        }
+        for (String storageDir: storageDirs)
+        {
+            if (!new File(storageDir).isDirectory()) continue;
+            try
+            {
+                LOG.info("Storage forecast for {}: {}",storageDir,space.updateForecast(storageDir));
+            }
+            catch (Exception ex)
+            {
+                LOG.warn("Unable to forecast the usage of {}: {}",storageDir,ex.toString());
+            }
+        }
+    }
+    
+    protected void runPreBackup(BackupJob job, Map<String, String> env)
+    {
+        long start=System.currentTimeMillis();
+        if (job.prewarmer==null || !job.prewarmer.isRunning())
+        {
+            job.prewarmer=LinkDestPrewarmer.start(job.host);
+        }
         
-        ConfHost host = conf.getForHost(hostname);
-        setThreadHostname(hostname);
+        int exitCode;
+        try
+        {
+            exitCode=executeCommand("PRE_BACKUP", createCmdSsh(job.host, "PRE_BACKUP"), env, null);
+            if (exitCode!=0)
+            {
+                LOG.warn("Error when running remote PRE_BACKUP command. Exit code "+exitCode);
+            }
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Error when running remote PRE_BACKUP command",ex);
+            exitCode=-1;
+        }
+        job.preBackupExitCode=exitCode;
+        job.preBackupFinished=new LocalDateTime();
+        job.preBackupMillis=System.currentTimeMillis()-start;
+    }
+    
+    /**
+     * Stops the pre-warming of the previous backup, if still running
+     */
+    protected void stopPrewarm(BackupJob job, BackupStatistics statistics) throws InterruptedException
+    {
+        if (job.prewarmer==null) return;
+        job.prewarmer.stop();
+        if (statistics!=null)
+        {
+            statistics.prewarmMillis=job.prewarmer.getMillis();
+            statistics.prewarmEntries=job.prewarmer.getEntries();
+            LOG.info("Pre-warmed {} entries of the previous backup in {} s{}",job.prewarmer.getEntries(),job.prewarmer.getMillis()/1000,
+                    job.prewarmer.isComplete()?"":" (stopped at the start of the transfer)");
+        }
+        job.prewarmer=null;
+    }
+    
+    /**
+     * Records the peak RSS of a volume's backup for the memory admission of the BackupScheduler. The peak of a failed
+     * backup is only recorded if it is higher than the known one, it may have ended before the peak was reached.
+     */
+    protected void recordMemoryPeak(HostDir hostDir, ConfVolume volume, long bytes, boolean complete, BackupStatistics statistics)
+    {
+        if (bytes<=0) return; // not sampled, e.g. rsync ended before the first check of the ProcessWatchdog
+        statistics.peakMemory=Math.max(statistics.peakMemory, bytes);
+        try
+        {
+            MemoryHistory history=new MemoryHistory(hostDir.getHostDir());
+            Long known=history.read().get(volume.volume);
+            if (complete || known==null || bytes>known) history.record(volume.volume, bytes);
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to update the memory history: {}",ex.toString());
+        }
+        LOG.info("{}: peak memory {} MB",volume.volume,bytes/1024/1024);
+    }
+    
+    protected void runBackup(BackupJob job) throws Exception
+    {
+        ConfHost host=job.host;
+        String hostname=host.host;
+        BackupStatistics statistics=new BackupStatistics();
+        statistics.startTime=new LocalDateTime();
+        statistics.stallTimeoutMinutes=host.stallTimeoutMinutes;
+        statistics.deadlineMinutes=host.deadlineMinutes;
+        FailureClass failure=null;
         
-        LOG.info("Starting backup");
+        if (job.failedAttempts>0) LOG.info("Starting backup (retry {})",job.failedAttempts);
+        else LOG.info("Starting backup");
         
         HostDir hostDir = new HostDir(new File(host.hostStorageDir));
 
         File currentBackupLink = hostDir.updateCurrentDirLink();
         File syncDir = hostDir.getBackupSyncDir();
+        boolean resumed=syncDir.exists();
         
-        if (syncDir.exists())
+        if (resumed)
         {
             LOG.debug("Resuming previous backup to {}",syncDir);
         }
@@ -158,8 +551,7 @@ public class RSyncBackup implements IBackupExecutor
             syncDir.mkdirs();
         }
 
-        Map<String, String> env = new HashMap<>();
-        env.put("SSH_AUTH_SOCK", "");
+        Map<String, String> env = createEnv();
 
         statistics.backupOk=true;
         
@@ -170,56 +562,73 @@ public class RSyncBackup implements IBackupExecutor
             LOG.warn("Error when running remote NOOP command. Exit code "+exitCode);
         }
         
-        exitCode=executeCommand("PRE_BACKUP", createCmdSsh(host, "PRE_BACKUP"), env, null);
-        if (exitCode!=0)
+        if (job.isPreBackupDone())
+        {
+            if (!job.isPreBackupOk())
+            {
+                LOG.info("Prefetched PRE_BACKUP failed with exit code {} - running it again",job.preBackupExitCode);
+                job.resetPreBackup();
+            }
+            else if (job.isPreBackupExpired(statistics.startTime))
+            {
+                LOG.info("Prefetched PRE_BACKUP from {} is older than {} minutes - running it again",job.preBackupFinished,host.preBackupMaxAge);
+                job.resetPreBackup();
+            }
+            else
+            {
+                LOG.info("Using prefetched PRE_BACKUP from {}",job.preBackupFinished);
+            }
+        }
+        if (!job.isPreBackupDone())
+        {
+            runPreBackup(job, env);
+        }
+        if (!job.isPreBackupOk())
         {
             statistics.backupOk=false;
-            statistics.backupErrors.add("Error when running remote PRE_BACKUP command. Exit code "+exitCode);
-            LOG.warn("Error when running remote PRE_BACKUP command. Exit code "+exitCode);
+            statistics.backupErrors.add("Error when running remote PRE_BACKUP command. Exit code "+job.preBackupExitCode);
+            failure=RetryPolicy.worst(failure, RetryPolicy.classify(job.preBackupExitCode));
+            job.resetPreBackup();
         }
         
         
+        if (host.dumpEnabled)
+        {
+            new DatabaseDumps(this, host, env).dumpAll(new File(syncDir, host.dumpDir), statistics);
+        }
+        
         List<String> cmdRsyncPreBackup = new ArrayList<>();
         appendCommand(cmdRsyncPreBackup, host.cmdRsync);
         
-        for (ConfVolume volume : host.volumes)
+        statistics.preBackupMillis=job.preBackupMillis;
+        stopPrewarm(job, statistics);
+        long transferStart=System.currentTimeMillis();
+        if (statistics.backupOk && !resumed && isUnchanged(host, currentBackupLink, env))
         {
-            List<String> cmdRsync = new ArrayList<>();
-            appendCommand(cmdRsync, host.cmdNice);
-            appendCommand(cmdRsync, host.cmdRsync);
-
-            cmdRsync.add("-a"); // Archive
-            cmdRsync.add("-v"); // Verbose
-            cmdRsync.add("--fake-super"); // Store attributes as xattr (requires
-                                          // storage dir mounted with user_xattr
-                                          // option!)
-            cmdRsync.add("--delete");
-            cmdRsync.add("--numeric-ids"); // don't map IDs to backup host's
-                                           // users/groups
-            cmdRsync.add("--relative");
-            cmdRsync.add("--sparse");
-            if (currentBackupLink != null)
-            {
-                cmdRsync.add("--link-dest");
-                cmdRsync.add(new File(currentBackupLink, volume.volume).getAbsolutePath());
-            }
-            cmdRsync.add("--delete-excluded");
-            if (volume.exclude != null) for (String exclude : volume.exclude)
-            {
-                cmdRsync.add("--exclude");
-                cmdRsync.add(exclude);
-            }
-
-            cmdRsync.add("--rsh");
-            cmdRsync.add(dumpCommand(createCmdSsh(host, null), null));
-
-            cmdRsync.add("root@" + host.remoteAddress + ":/" + volume.volume + "/");
-
-            cmdRsync.add(syncDir.getAbsolutePath() + "/"+ volume.volume + "/");
-
+            LOG.info("No changes since the previous backup - reusing it");
+            statistics.unchanged=true;
+        }
+        if (!statistics.unchanged) for (ConfVolume volume : host.volumes)
+        {
+            ProcessWatchdog.MemoryPeak memoryPeak=new ProcessWatchdog.MemoryPeak();
+            ProcessWatchdog.setMemoryPeak(memoryPeak);
+            boolean complete=false;
             try
             {
-                exitCode=executeCommand("RSYNC",cmdRsync, env, null);
+                Integer verifyExitCode=new ChecksumVerify(this, host, env, verifySchedule).backupVolume(volume, currentBackupLink, syncDir, statistics);
+                if (verifyExitCode!=null)
+                {
+                    exitCode=verifyExitCode;
+                }
+                else if (volume.changeJournal!=null && volume.changeJournal)
+                {
+                    exitCode=new ChangeJournal(this, host, env).backupVolume(volume, currentBackupLink, syncDir);
+                }
+                else
+                {
+                    exitCode=executeCommand("RSYNC",createCmdRsync(host, volume, currentBackupLink, syncDir, null), env, null);
+                }
+                complete=(exitCode==0 || exitCode==24);
                 
                 if (exitCode==0)
                 {
@@ -233,6 +642,7 @@ public class RSyncBackup implements IBackupExecutor
                 {
                     statistics.backupOk=false;
                     statistics.backupErrors.add("Errors in rsync for "+volume.volume+": exit code "+exitCode);
+                    failure=RetryPolicy.worst(failure, RetryPolicy.classify(exitCode));
                     
                     LOG.warn("Rsync exited with status {} - backup failed",exitCode);
                 }
@@ -241,17 +651,49 @@ public class RSyncBackup implements IBackupExecutor
             {
                 statistics.backupOk=false;
                 statistics.backupErrors.add("Errors in rsync for "+volume.volume+": "+ex);
+                failure=RetryPolicy.worst(failure, RetryPolicy.classify(ex));
+                if (ex instanceof CommandTimeoutException)
+                {
+                    if (((CommandTimeoutException) ex).stalled) statistics.stalledCommands++;
+                    else statistics.deadlineExceeded=true;
+                }
                 LOG.warn("Error during command execution - backup failed",ex);
             }
+            finally
+            {
+                ProcessWatchdog.setMemoryPeak(null);
+            }
+            recordMemoryPeak(hostDir, volume, memoryPeak.getBytes(), complete, statistics);
         }
+        statistics.transferMillis=System.currentTimeMillis()-transferStart;
+        LOG.info("Phase timings: PRE_BACKUP {} s, pre-warm {} s, transfer {} s",statistics.preBackupMillis/1000,statistics.prewarmMillis/1000,statistics.transferMillis/1000);
         
         statistics.endTime=new LocalDateTime();
         
+        // the backup is resumed by the node that took over the host
+        if (isCancelled(job, "finalizing")) return;
+        
+        if (!statistics.backupOk)
+        {
+            if (failure==null) failure=FailureClass.FATAL; // e.g. database dumps
+            if (job.scheduleRetry(failure, System.currentTimeMillis()))
+            {
+                // the unfinished backup is resumed by the next attempt, only the final result is sent to monitoring
+                LOG.warn("Backup failed ({}, attempt {}) - retrying at {}: {}",failure,job.failedAttempts,new LocalDateTime(job.retryAt),statistics.backupErrors);
+                return;
+            }
+        }
+        job.succeeded=statistics.backupOk;
+        
         if (statistics.backupOk)
         {
-            LocalDateTime backup=hostDir.setBackupDone();
+            LocalDateTime backup=statistics.unchanged?recordUnchangedRun(hostDir, syncDir):hostDir.setBackupDone();
             
-            deleteOldBackupsForHost(hostname);
+            if (isCancelled(job, "pruning")) return;
+            int deleted=deleteOldBackupsForHost(hostname);
+            
+            if (isCancelled(job, "chunking")) return;
+            if (!statistics.unchanged || deleted>0) chunkLargeFiles(host, hostDir, deleted>0);
             
             updateBackupStatistics(hostDir, backup, statistics);
             
@@ -278,11 +720,126 @@ public class RSyncBackup implements IBackupExecutor
             LOG.info("Statistics: {} files changed, using {} of disk space. Duration: {}",statistics.changedFileCount,sizeStr,periodFormatter.print(duration.toPeriod()));
         }
         
+        updateStorageForecast(host, statistics);
         ZabbixNotifier.notify(host,statistics);
         
         LOG.info("Backup finished.");
     }
     
+    /**
+     * @return true if the job was cancelled (e.g. its host was taken over by another node of the cluster), so the
+     *         host dir must not be changed any more
+     */
+    protected static boolean isCancelled(BackupJob job, String step)
+    {
+        String reason=job.getCancelReason();
+        if (reason==null) return false;
+        LOG.warn("Backup stopped before {}: {}",step,reason);
+        return true;
+    }
+    
+    /**
+     * @return true if skipUnchanged is enabled and a dry-run of rsync against the previous backup itemizes no change in
+     * any volume. Not checked for hosts with database dumps or change journals and when a checksum verification is due
+     */
+    protected boolean isUnchanged(ConfHost host, File currentBackupLink, Map<String, String> env)
+    {
+        if (!host.skipUnchanged || currentBackupLink==null || host.dumpEnabled) return false;
+        
+        try
+        {
+            long now=System.currentTimeMillis();
+            for (ConfVolume volume: host.volumes)
+            {
+                if (volume.changeJournal!=null && volume.changeJournal) return false;
+                if (verifySchedule.isDue(host, volume.volume, now)) return false;
+                if (!new File(currentBackupLink, volume.volume).isDirectory()) return false;
+            }
+            for (ConfVolume volume: host.volumes)
+            {
+                ChangeCounter counter=new ChangeCounter();
+                List<String> extraArgs=Arrays.asList("--dry-run", "--out-format="+ChecksumVerify.ITEMIZE_PREFIX+"%i %n");
+                int exitCode=executeCommand("RSYNC-DRYRUN", createCmdRsync(host, volume, null, currentBackupLink, extraArgs), env, counter);
+                if (exitCode!=0 || counter.changes>0)
+                {
+                    LOG.debug("{}: dry-run found {} changes (exit code {})",volume.volume,counter.changes,exitCode);
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Unable to check for changes: {}",ex.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Records a run without changes in the RunCatalog instead of creating a new backup
+     * @return the time of the run
+     */
+    protected LocalDateTime recordUnchangedRun(HostDir hostDir, File syncDir) throws IOException
+    {
+        LocalDateTime latestBackup=hostDir.getLatestBackup();
+        LocalDateTime run=new LocalDateTime().withMillisOfSecond(0);
+        if (run.isAfter(latestBackup)) new RunCatalog(hostDir.getHostDir()).record(run, latestBackup);
+        syncDir.delete(); // empty, a non-empty .sync is resumed by the next backup
+        return run;
+    }
+    
+    /**
+     * @param extraArgs additional rsync arguments or null
+     */
+    protected List<String> createCmdRsync(ConfHost host, ConfVolume volume, File currentBackupLink, File syncDir, List<String> extraArgs)
+    {
+        List<String> cmdRsync = new ArrayList<>();
+        appendCommand(cmdRsync, host.cmdNice);
+        appendCommand(cmdRsync, host.cmdRsync);
+
+        cmdRsync.add("-a"); // Archive
+        cmdRsync.add("-v"); // Verbose
+        cmdRsync.add("--fake-super"); // Store attributes as xattr (requires
+                                      // storage dir mounted with user_xattr
+                                      // option!)
+        cmdRsync.add("--delete");
+        cmdRsync.add("--numeric-ids"); // don't map IDs to backup host's
+                                       // users/groups
+        cmdRsync.add("--relative");
+        cmdRsync.add("--sparse");
+        cmdRsync.add("--partial-dir="+PARTIAL_DIR); // keep partially transferred files for the next attempt
+        cmdRsync.add("--filter=P "+PARTIAL_DIR+"/"); // not deleted by --delete-excluded
+        if (currentBackupLink != null)
+        {
+            cmdRsync.add("--link-dest");
+            cmdRsync.add(new File(currentBackupLink, volume.volume).getAbsolutePath());
+        }
+        cmdRsync.add("--delete-excluded");
+        if (volume.exclude != null) for (String exclude : volume.exclude)
+        {
+            cmdRsync.add("--exclude");
+            cmdRsync.add(exclude);
+        }
+
+        if (extraArgs!=null) cmdRsync.addAll(extraArgs);
+
+        cmdRsync.add("--rsh");
+        cmdRsync.add(dumpCommand(createCmdSsh(host, null), null));
+
+        cmdRsync.add("root@" + host.remoteAddress + ":/" + volume.volume + "/");
+
+        cmdRsync.add(syncDir.getAbsolutePath() + "/"+ volume.volume + "/");
+
+        return cmdRsync;
+    }
+    
+    protected Map<String, String> createEnv()
+    {
+        Map<String, String> env = new HashMap<>();
+        env.put("SSH_AUTH_SOCK", "");
+        return env;
+    }
+    
     protected List<String> createCmdSsh(ConfHost host, String remoteCommand)
     {
         List<String> cmdSsh = new ArrayList<>();
@@ -301,6 +858,23 @@ public class RSyncBackup implements IBackupExecutor
         cmdSsh.add("-o");
         cmdSsh.add("HashKnownHosts no");
         
+        if (host.proxyConf!=null)
+        {
+            List<String> cmdProxy = new ArrayList<>();
+            cmdProxy.add(host.proxyConf.cmdSsh);
+            cmdProxy.add("-S");
+            cmdProxy.add(tunnels.getControlSocket(host.proxyConf).getAbsolutePath());
+            cmdProxy.add("-o");
+            cmdProxy.add("ControlMaster=no");
+            cmdProxy.add("root@"+host.proxyConf.remoteAddress);
+            cmdProxy.add("PROXY_"+host.proxyName.replaceAll("[^a-zA-Z0-9_]", "_")); // must be a valid shell variable name
+            
+            cmdSsh.add("-o");
+            cmdSsh.add("ProxyCommand " + dumpCommand(cmdProxy, null));
+            cmdSsh.add("-o");
+            cmdSsh.add("HostKeyAlias " + host.host); // remoteAddress is usually a private address behind the proxy
+        }
+        
         if ("NOOP".equals(remoteCommand)) // Fake-Command: adds the host's ssh key to the authorized keys if it is not already there
         {
             cmdSsh.add("-o");
@@ -316,17 +890,41 @@ public class RSyncBackup implements IBackupExecutor
     }
 
     protected void updateBackupStatistics(HostDir hostDir, LocalDateTime backup, BackupStatistics statistics) throws Exception
+    {
+        if (!statistics.unchanged) countNewEntries(hostDir, backup, statistics);
+        
+        try
+        {
+            new CapacityHistory(hostDir.getHostDir()).record(backup, statistics.changedFileSize+statistics.otherEntrySize, statistics.changedFileCount+statistics.otherEntryCount);
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to update the capacity history: {}",ex.toString());
+        }
+    }
+    
+    protected void countNewEntries(HostDir hostDir, LocalDateTime backup, BackupStatistics statistics) throws Exception
     {
         List<String> cmdFind=new ArrayList<>();
         
         cmdFind.add("/usr/bin/find");
         cmdFind.add(hostDir.getBackupDir(backup).getAbsolutePath());
+        cmdFind.add("(");
         cmdFind.add("-type");
         cmdFind.add("f");
         cmdFind.add("-links");
         cmdFind.add("1");
         cmdFind.add("-printf");
         cmdFind.add("%s %p\n");
+        cmdFind.add(")");
+        cmdFind.add("-o");
+        cmdFind.add("(");
+        cmdFind.add("!");
+        cmdFind.add("-type");
+        cmdFind.add("f");
+        cmdFind.add("-printf");
+        cmdFind.add(OTHER_ENTRY_PREFIX+"%s\n");
+        cmdFind.add(")");
         
         FindFilesCommandOutputConsumer consumer=new FindFilesCommandOutputConsumer();
         
@@ -334,9 +932,14 @@ public class RSyncBackup implements IBackupExecutor
         
         statistics.changedFileCount=consumer.totalCount;
         statistics.changedFileSize=consumer.totalSize;
+        statistics.otherEntryCount=consumer.otherCount;
+        statistics.otherEntrySize=consumer.otherSize;
     }
     
-    protected void deleteOldBackupsForHost(String hostname) throws Exception
+    /**
+     * @return the number of deleted backups
+     */
+    protected int deleteOldBackupsForHost(String hostname) throws Exception
     {
         ConfHost host = conf.getForHost(hostname);
         setThreadHostname(hostname);
@@ -346,33 +949,95 @@ public class RSyncBackup implements IBackupExecutor
         if (host.backupKeepStrategy==null)
         {
             LOG.warn("No keepStrategy defined. Keeping all backups forever");
-            return;
+            return 0;
         }
         
         HostDir hostDir = new HostDir(new File(host.hostStorageDir));
-        List<LocalDateTime> backups=hostDir.listBackups();
-        
-        List<LocalDateTime> backupToKeep=host.backupKeepStrategy.getBackupsToKeep(new LocalDateTime(), backups);
+        return prune(hostDir, new PrunePlanner(host).planBackups(new LocalDateTime()));
+    }
+    
+    /**
+     * Renames the backups that are only kept as one of their runs (recorded for replicas, see RunCatalog), updates the
+     * RunCatalog and deletes the backups of the plan
+     * @return the number of deleted backups
+     */
+    protected static int prune(HostDir hostDir, PrunePlan plan) throws Exception
+    {
+        for (Entry<LocalDateTime, LocalDateTime> rename: plan.renames.entrySet())
+        {
+            LOG.info("Renaming backup {} to its unchanged run {}",rename.getKey(),rename.getValue());
+            File backupDir=hostDir.getBackupDir(rename.getKey());
+            if (!backupDir.renameTo(hostDir.getBackupDir(rename.getValue()))) throw new IOException("Unable to rename "+backupDir);
+        }
+        RunCatalog catalog=new RunCatalog(hostDir.getHostDir());
+        catalog.write(plan.runs);
+        if (!plan.renames.isEmpty())
+        {
+            catalog.recordRenames(plan.renames, hostDir.listBackups());
+            hostDir.updateCurrentDirLink();
+        }
+        return deleteBackups(hostDir, plan.toDelete);
+    }
+    
+    /**
+     * @return the number of deleted backups
+     */
+    protected static int deleteBackups(HostDir hostDir, List<LocalDateTime> backups) throws Exception
+    {
+        int deleted=0;
+        for (LocalDateTime backup: backups)
+        {
+            File backupDir=hostDir.getBackupDir(backup);
+            
+            if (!backupDir.exists())
+            {
+                LOG.error("BUG: Backup in list not found in filesystem: "+backupDir.getAbsolutePath());
+                continue;
+            }
+            
+            LOG.info("Deleting old backup {}",backup);
+            deleteDirectory(backupDir);
+            deleted++;
+        }
+        return deleted;
+    }
+    
+    /**
+     * Moves large files of the previous backup (which are no longer needed for --link-dest) into the chunk store
+     * and removes chunks of deleted backups. Errors do not fail the backup.
+     */
+    protected void chunkLargeFiles(ConfHost host, HostDir hostDir, boolean backupsDeleted)
+    {
+        boolean enabled=false;
+        for (ConfVolume volume: host.volumes)
+        {
+            if (volume.chunkThresholdMB!=null) enabled=true;
+        }
+        if (!enabled) return;
         
-        if (!backupToKeep.isEmpty())
+        try
         {
-            for (LocalDateTime backup: backups)
+            ChunkStore chunkStore=new ChunkStore(hostDir.getHostDir());
+            List<LocalDateTime> backups=hostDir.listBackups();
+            if (backups.size()>=2)
             {
-                if (!backupToKeep.contains(backup))
+                File previousBackup=hostDir.getBackupDir(backups.get(backups.size()-2));
+                ChunkResult result=new ChunkResult();
+                for (ConfVolume volume: host.volumes)
                 {
-                    File backupDir=hostDir.getBackupDir(backup);
-                    
-                    if (!backupDir.exists())
-                    {
-                        LOG.error("BUG: Backup in list not found in filesystem: "+backupDir.getAbsolutePath());
-                        continue;
-                    }
-                    
-                    LOG.info("Deleting old backup {}",backup);
-                    deleteDirectory(backupDir);
+                    if (volume.chunkThresholdMB==null) continue;
+                    result.add(chunkStore.chunkFiles(previousBackup, new File(previousBackup,volume.volume), volume.chunkThresholdMB*1024L*1024));
                 }
+                LOG.info("Chunked {} large files ({} bytes) of the previous backup, {} bytes of new chunks",result.files,result.fileBytes,result.storedBytes);
             }
-            
+            if (backupsDeleted)
+            {
+                LOG.info("Removed {} unused chunks",chunkStore.collectGarbage(hostDir));
+            }
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Error when chunking large files",ex);
         }
     }
     
@@ -387,56 +1052,94 @@ public class RSyncBackup implements IBackupExecutor
     }
     
     
+    /**
+     * Sets the host of the log context of the current thread (see LogContext), null for global messages
+     */
     public static void setThreadHostname(String hostname)
     {
-        Thread.currentThread().setName(hostname==null?"global":hostname);
+        LogContext.setHost(hostname);
     }
 
     protected static int executeCommand(String logName, List<String> cmdList, Map<String, String> env, CommandOutputConsumer outputConsumer) throws Exception
+    {
+        return executeCommand(logName, cmdList, env, outputConsumer, null);
+    }
+    
+    /**
+     * @param outputFile if not null, stdout is written to this file and only stderr is passed to the outputConsumer/log
+     */
+    protected static int executeCommand(String logName, List<String> cmdList, Map<String, String> env, CommandOutputConsumer outputConsumer, File outputFile) throws Exception
     {
         LOG.info("Executing {}: {}",logName, dumpCommand(cmdList, env));
         
         ProcessBuilder bp = new ProcessBuilder(cmdList);
-        bp.redirectErrorStream(true);
+        if (outputFile != null)
+        {
+            bp.redirectOutput(outputFile);
+        }
+        else
+        {
+            bp.redirectErrorStream(true);
+        }
 
         if (env != null)
         {
             bp.environment().putAll(env);
         }
-
+        
+        ProcessWatchdog.checkDeadline(logName);
+        
         Process proc = bp.start();
-
-        BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-        String line;
-
-        while ((line = in.readLine()) != null)
-        {
-            if (outputConsumer!=null) outputConsumer.consume(line);
-            else LOG.debug("{}: {}",logName,line); 
-        }
-
-        for (int i = 0; i < 10; i++)
+        ProcessWatchdog.Watch watch = ProcessWatchdog.watch(logName, proc, outputFile);
+        try
         {
+            BufferedReader in = new BufferedReader(new InputStreamReader((outputFile != null) ? proc.getErrorStream() : proc.getInputStream()));
+            String line;
+            
             try
             {
-                return proc.exitValue();
+                while ((line = in.readLine()) != null)
+                {
+                    watch.progress(line.length()+1);
+                    if (outputConsumer!=null) outputConsumer.consume(line);
+                    else LOG.debug("{}: {}",logName,line); 
+                }
             }
-            catch (IllegalThreadStateException ex)
+            catch (IOException ex)
+            {
+                watch.checkKilled();
+                throw ex;
+            }
+            
+            for (int i = 0; i < 10; i++)
             {
-                // ignored
                 try
                 {
-                    Thread.sleep(500);
+                    int exitCode = proc.exitValue();
+                    watch.checkKilled();
+                    return exitCode;
                 }
-                catch (InterruptedException iex)
+                catch (IllegalThreadStateException ex)
                 {
-                    break;
+                    // ignored
+                    try
+                    {
+                        Thread.sleep(500);
+                    }
+                    catch (InterruptedException iex)
+                    {
+                        break;
+                    }
                 }
             }
+            
+            proc.destroy();
+            throw new RuntimeException("Process did not terminate and was killed!");
+        }
+        finally
+        {
+            watch.finish();
         }
-
-        proc.destroy();
-        throw new RuntimeException("Process did not terminate and was killed!");
     }
 
     protected static String dumpCommand(List<String> cmdList, Map<String, String> env)
@@ -500,14 +1203,34 @@ public class RSyncBackup implements IBackupExecutor
         public void consume(String line);
     }
     
+    /**
+     * Prefix of the find output for directories, symlinks etc. (always new in a backup, not hard linked)
+     */
+    protected static final String OTHER_ENTRY_PREFIX="OTHER ";
+    
     protected static class FindFilesCommandOutputConsumer implements CommandOutputConsumer
     {
         protected int totalCount=0;
         protected long totalSize=0;
+        protected long otherCount=0;
+        protected long otherSize=0;
         
         @Override
         public void consume(String line)
         {
+            if (line.startsWith(OTHER_ENTRY_PREFIX))
+            {
+                otherCount++;
+                try
+                {
+                    otherSize+=Long.parseLong(line.substring(OTHER_ENTRY_PREFIX.length()));
+                }
+                catch (NumberFormatException ex)
+                {
+                    // ignored
+                }
+                return;
+            }
             int pos=line.indexOf(' ');
             if (pos<0) return;
             try
@@ -528,13 +1251,72 @@ public class RSyncBackup implements IBackupExecutor
         }
     }
     
+    /**
+     * Counts the itemized changes (added, changed and deleted entries) of an rsync dry-run
+     */
+    protected static class ChangeCounter implements CommandOutputConsumer
+    {
+        protected int changes=0;
+        
+        @Override
+        public void consume(String line)
+        {
+            if (line.startsWith(ChecksumVerify.ITEMIZE_PREFIX))
+            {
+                if (changes<10) LOG.debug("RSYNC-DRYRUN: {}",line);
+                changes++;
+            }
+        }
+    }
+    
     public static class BackupStatistics
     {
         public LocalDateTime startTime;
         public LocalDateTime endTime;
         public int changedFileCount;
         public long changedFileSize;
+        /**
+         * Directories, symlinks and other entries that are not regular files
+         */
+        public long otherEntryCount;
+        public long otherEntrySize;
+        public int dumpCount;
+        public int dumpFailedCount;
+        public long dumpSize;
         public boolean backupOk;
+        public Integer stallTimeoutMinutes;
+        public Integer deadlineMinutes;
+        /**
+         * Number of commands killed by the ProcessWatchdog because they made no progress
+         */
+        public int stalledCommands;
+        public boolean deadlineExceeded;
+        /**
+         * Forecast for the host's storage dir (see StorageForecast), null if unknown
+         */
+        public Double storageDaysUntilFull;
+        public Double storageDaysUntilInodesFull;
+        /**
+         * Volumes backed up with --checksum (see ChecksumVerify) and the files that differed with same size and mtime
+         */
+        public int verifiedVolumes;
+        public int verifyDiscrepancies;
+        /**
+         * Highest peak RSS (bytes) of the rsync process trees of the volumes (see MemoryHistory), 0 if not sampled
+         */
+        public long peakMemory;
+        /**
+         * Phase timings: PRE_BACKUP (possibly prefetched), pre-warming of the previous backup (see LinkDestPrewarmer,
+         * runs parallel to PRE_BACKUP) and the rsync of all volumes
+         */
+        public long preBackupMillis;
+        public long prewarmMillis;
+        public long prewarmEntries;
+        public long transferMillis;
+        /**
+         * No changes were found, the previous backup was reused (see skipUnchanged)
+         */
+        public boolean unchanged;
         public List<String> backupErrors=new ArrayList<>();
     }
 }
@@ -0,0 +1,105 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.chunks.ChunkStore.ChunkResult;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.HostLock;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Commands for the chunk store (see ChunkStore):
+ * <ul>
+ * <li>restore manifest targetFile: rebuilds a single file</li>
+ * <li>materialize dir: replaces all manifests below dir (e.g. a restored copy of a backup) by the files</li>
+ * <li>chunk hostname|ALL: chunks the large files of all but the latest backup (e.g. after enabling chunkThresholdMB)</li>
+ * <li>gc hostname|ALL: removes unused chunks</li>
+ * </ul>
+ */
+public class RSyncBackupChunks
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Missing argument: restore manifest targetFile | materialize dir | chunk hostname|ALL | gc hostname|ALL");
+            System.exit(1);
+        }
+        
+        if (args[0].equals("restore") && args.length>2)
+        {
+            File manifest=new File(args[1]);
+            ChunkStore.forManifest(manifest).restore(manifest, new File(args[2]));
+            return;
+        }
+        if (args[0].equals("materialize"))
+        {
+            System.err.println("Restored "+ChunkStore.materialize(new File(args[1]))+" files");
+            return;
+        }
+        
+        boolean chunk=args[0].equals("chunk");
+        if (!chunk && !args[0].equals("gc")) throw new IllegalArgumentException("Unknown command: "+args[0]);
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        List<ConfHost> hosts;
+        if (args[1].equalsIgnoreCase("ALL")) hosts=backup.conf.getAllHosts();
+        else
+        {
+            hosts=new ArrayList<>();
+            hosts.add(backup.conf.getForHost(args[1]));
+        }
+        
+        for (ConfHost host: hosts)
+        {
+            File dir=new File(host.hostStorageDir);
+            if (!dir.isDirectory()) continue;
+            
+            RSyncBackup.setThreadHostname(host.host);
+            HostLock lock=HostLock.tryLock(dir);
+            if (lock==null)
+            {
+                RSyncBackup.LOG.info("Host is locked by a running backup - skipping");
+                continue;
+            }
+            try
+            {
+                HostDir hostDir=new HostDir(dir);
+                ChunkStore chunkStore=new ChunkStore(dir);
+                if (chunk) chunkHost(host, hostDir, chunkStore);
+                RSyncBackup.LOG.info("Removed {} unused chunks",chunkStore.collectGarbage(hostDir));
+            }
+            catch (Exception ex)
+            {
+                RSyncBackup.LOG.error("Error in chunk store",ex);
+            }
+            finally
+            {
+                lock.release();
+                RSyncBackup.setThreadHostname(null);
+            }
+        }
+    }
+    
+    protected static void chunkHost(ConfHost host, HostDir hostDir, ChunkStore chunkStore) throws Exception
+    {
+        List<LocalDateTime> backups=hostDir.listBackups();
+        ChunkResult result=new ChunkResult();
+        // the latest backup is the base for the next --link-dest
+        for (int i=0;i<backups.size()-1;i++)
+        {
+            File backupDir=hostDir.getBackupDir(backups.get(i));
+            for (ConfVolume volume: host.volumes)
+            {
+                if (volume.chunkThresholdMB==null) continue;
+                result.add(chunkStore.chunkFiles(backupDir, new File(backupDir,volume.volume), volume.chunkThresholdMB*1024L*1024));
+            }
+        }
+        RSyncBackup.LOG.info("Chunked {} large files ({} bytes), {} bytes of new chunks",result.files,result.fileBytes,result.storedBytes);
+    }
+}
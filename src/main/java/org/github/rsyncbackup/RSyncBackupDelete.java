@@ -1,114 +1,181 @@
 package org.github.rsyncbackup;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.github.rsyncbackup.keep.IBackupKeepStrategy;
-import org.github.rsyncbackup.keep.IntervalKeepStrategy;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.logging.LogContext;
+import org.github.rsyncbackup.prune.PrunePlanner;
+import org.github.rsyncbackup.prune.PrunePlanner.PrunePlan;
 import org.joda.time.LocalDateTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
-
 
+/**
+ * Deletes the backups that are not kept by the keepStrategy of the hosts in backup.conf, like the backup does after
+ * each run. Without --execute, only a report of the backups to delete and the bytes this would free is printed (e.g.
+ * to check a changed keepStrategy before the next backup applies it). See PrunePlanner.
+ *
+ * The hosts are planned in parallel. With --execute, each host is locked (see HostLock) while it is planned and pruned,
+ * hosts that are backed up meanwhile are skipped.
+ */
 public class RSyncBackupDelete
 {
     public static void main(String[] args) throws Exception
     {
-        if (args.length==0 && new File(".project").exists() && new File(".classpath").exists()) args=new String[] {"ALL"};
-        
-        if (args.length==0) throw new RuntimeException("Missing argument: hostname|ALL");
-
-        File allHostDir=new File("hosts");
-        if (!allHostDir.isDirectory()) throw new IOException("No such directory: "+allHostDir.getAbsolutePath());
-        
-        String keepRelative="1h 2h 3h 4h 5h 6h 12h 1d 2d 3d 4d 5d 6d 7d 8d 9d 10d 11d 12d 13d 14d 21d 28d 35d 42d 49d 56d 84d 112d 140d 210d 350d 490d";
-        IBackupKeepStrategy keepStrategy=new IntervalKeepStrategy(keepRelative);
-        
+        if (args.length==0)
+        {
+            System.err.println("Missing argument: hostname|ALL [--execute] [--parallel N]");
+            System.exit(1);
+        }
         
-        if ("ALL".equals(args[0]))
+        RSyncBackup backup=new RSyncBackup(args);
+        boolean execute=false;
+        int parallel=4;
+        for (int i=1;i<args.length;i++)
         {
-            for (File host: allHostDir.listFiles())
-            {
-                if (!host.isDirectory()) continue;
-                deleteBackupsIn(host,keepStrategy);
-            }
+            if (args[i].equals("--execute")) execute=true;
+            else if (args[i].equals("--parallel") && i+1<args.length) parallel=Integer.parseInt(args[++i]);
+            else throw new IllegalArgumentException("Invalid argument: "+args[i]);
         }
+        
+        List<ConfHost> hosts;
+        if (args[0].equalsIgnoreCase("ALL")) hosts=backup.conf.getAllHosts();
         else
         {
-            deleteBackupsIn(new File(allHostDir,args[0]),keepStrategy);
+            hosts=new ArrayList<>();
+            hosts.add(backup.conf.getForHost(args[0]));
         }
+        
+        System.exit(prune(hosts, execute, parallel)?0:1);
     }
     
-    protected static DateTimeFormatter backupDirFormat=DateTimeFormat.forPattern("'backup-'yyyy-MM-dd-HH:mm:ss");
-    
-    protected static LocalDateTime getBackupFromDir(File dir)
+    /**
+     * @return false if a host failed
+     */
+    protected static boolean prune(List<ConfHost> hosts, final boolean execute, int parallel) throws Exception
     {
-        if (!dir.isDirectory()) return null;
+        final LocalDateTime now=new LocalDateTime();
+        ExecutorService executor=Executors.newFixedThreadPool(parallel);
+        List<Future<PrunePlan>> results=new ArrayList<>();
         try
         {
-            return LocalDateTime.parse(dir.getName(),backupDirFormat);
+            for (final ConfHost host: hosts)
+            {
+                results.add(executor.submit(LogContext.wrap(new Callable<PrunePlan>()
+                {
+                    @Override
+                    public PrunePlan call() throws Exception
+                    {
+                        RSyncBackup.setThreadHostname(host.host);
+                        try
+                        {
+                            return pruneHost(host, now, execute);
+                        }
+                        catch (Exception ex)
+                        {
+                            RSyncBackup.LOG.error("Prune failed",ex);
+                            throw ex;
+                        }
+                        finally
+                        {
+                            RSyncBackup.setThreadHostname(null);
+                        }
+                    }
+                })));
+            }
+            
+            boolean ok=true;
+            int totalBackups=0;
+            long totalBytes=0;
+            System.out.println(String.format("%-30s %6s %6s %12s %14s %14s", "host", "kept", "delete", "inodes", "reclaimable MB", "shared MB"));
+            for (int i=0;i<hosts.size();i++)
+            {
+                PrunePlan plan;
+                try
+                {
+                    plan=results.get(i).get();
+                }
+                catch (Exception ex)
+                {
+                    System.out.println(String.format("%-30s failed: %s", hosts.get(i).host, ex.getCause()));
+                    ok=false;
+                    continue;
+                }
+                if (plan==null) continue;
+                
+                System.out.println(String.format(Locale.US, "%-30s %6d %6d %12d %14.1f %14.1f", plan.host.host, plan.keptCount, plan.toDelete.size(),
+                        plan.inodes, mb(plan.getReclaimableBytes()), mb(plan.sharedFileBytes)));
+                for (LocalDateTime backup: plan.toDelete)
+                {
+                    System.out.println("    "+(execute?"deleted ":"")+HostDir.getDirnameFromBackup(backup));
+                }
+                for (Entry<LocalDateTime,LocalDateTime> rename: plan.renames.entrySet())
+                {
+                    System.out.println("    "+(execute?"renamed ":"rename ")+HostDir.getDirnameFromBackup(rename.getKey())+" -> "+HostDir.getDirnameFromBackup(rename.getValue()));
+                }
+                totalBackups+=plan.toDelete.size();
+                totalBytes+=plan.getReclaimableBytes();
+            }
+            System.out.println(String.format(Locale.US, "%s %d backups, %.1f MB", execute?"Deleted":"Would delete", totalBackups, mb(totalBytes)));
+            return ok;
         }
-        catch (IllegalArgumentException ex)
+        finally
         {
-            return null;
+            executor.shutdownNow();
         }
     }
     
-    protected static String getDirnameFromBackup(LocalDateTime backup)
+    /**
+     * @return the plan or null if the host was skipped
+     */
+    protected static PrunePlan pruneHost(ConfHost host, LocalDateTime now, boolean execute) throws Exception
     {
-        return (backupDirFormat.print(backup));
-    }
-    
-    protected static void deleteDirectory(File dir) throws Exception
-    {
-        Process proc=Runtime.getRuntime().exec(new String[] {"/bin/rm","-rf",dir.getAbsolutePath()});
-        proc.waitFor();
-        
-//        FileUtils.deleteQuietly(dir);
-    }
-    
-    protected static void deleteBackupsIn(File hostDir, IBackupKeepStrategy keepStrategy) throws Exception
-    {
-        if (!hostDir.isDirectory()) throw new IOException("No such directory: "+hostDir.getAbsolutePath());
-        System.err.println("Deleting old backups from "+hostDir.getName());
-        
-        List<LocalDateTime> backups=new ArrayList<>();
-        
-        File[] files=hostDir.listFiles();
-        if (files!=null) for (File dir: files)
+        File dir=new File(host.hostStorageDir);
+        if (!dir.isDirectory())
         {
-            LocalDateTime backup=getBackupFromDir(dir);
-            if (backup!=null) backups.add(backup);
+            RSyncBackup.LOG.info("No backups - skipping prune");
+            return null;
+        }
+        if (host.backupKeepStrategy==null)
+        {
+            RSyncBackup.LOG.warn("No keepStrategy defined. Keeping all backups forever");
+            return null;
         }
         
-        List<LocalDateTime> backupToKeep=keepStrategy.getBackupsToKeep(new LocalDateTime(), backups);
-        
-        if (!backupToKeep.isEmpty())
+        HostLock lock=null;
+        if (execute)
         {
-            for (LocalDateTime backup: backups)
+            lock=HostLock.tryLock(dir);
+            if (lock==null)
             {
-                if (!backupToKeep.contains(backup))
-                {
-                    String dirname=getDirnameFromBackup(backup);
-                    
-                    File backupDir=new File(hostDir,dirname);
-                    if (!backupDir.exists())
-                    {
-                        System.err.println("BUG: Backup in list not found in filesystem: "+backupDir.getAbsolutePath());
-                        continue;
-                    }
-                    
-                    System.err.println("  deleting "+dirname);
-                    deleteDirectory(backupDir);
-                }
+                RSyncBackup.LOG.warn("Host is locked by another process ({}) - skipping",HostLock.readOwner(dir));
+                return null;
             }
-            
         }
-        System.err.println("done.");
-        
+        try
+        {
+            PrunePlan plan=new PrunePlanner(host).plan(now);
+            RSyncBackup.LOG.info("Prune plan: {} of {} backups, {} bytes reclaimable, {} bytes still linked from kept backups",
+                    plan.toDelete.size(),plan.toDelete.size()+plan.keptCount,plan.getReclaimableBytes(),plan.sharedFileBytes);
+            if (execute) RSyncBackup.prune(new HostDir(dir), plan);
+            return plan;
+        }
+        finally
+        {
+            if (lock!=null) lock.release();
+        }
+    }
+    
+    protected static double mb(long bytes)
+    {
+        return bytes/1024.0/1024;
     }
 }
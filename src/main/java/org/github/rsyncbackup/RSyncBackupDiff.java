@@ -0,0 +1,71 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.List;
+
+import org.github.rsyncbackup.diff.SnapshotDiff;
+import org.github.rsyncbackup.diff.SnapshotDiff.DiffEntry;
+import org.github.rsyncbackup.diff.SnapshotDiff.DiffResult;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Prints the differences between two backups of a host: "+" added, "-" removed, "M" modified, each with
+ * the change in bytes. A backup is given by its directory name (backup-yyyy-MM-dd-HH:mm:ss), "current"
+ * (the latest) or "previous" (the one before the latest).
+ */
+public class RSyncBackupDiff
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Missing argument: hostname oldBackup newBackup [parallel]");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        ConfHost host=backup.conf.getForHost(args[0]);
+        HostDir hostDir=new HostDir(new File(host.hostStorageDir));
+        int parallel=(args.length>3)?Integer.parseInt(args[3]):8;
+        
+        File oldBackup=resolveBackup(hostDir, args[1]);
+        File newBackup=resolveBackup(hostDir, args[2]);
+        
+        DiffResult result=new SnapshotDiff(oldBackup.toPath(), newBackup.toPath(), parallel).diff();
+        
+        long added=0;
+        long removed=0;
+        long delta=0;
+        for (DiffEntry entry: result.entries)
+        {
+            System.out.println(entry);
+            if (entry.delta>0) added+=entry.delta;
+            else removed-=entry.delta;
+            delta+=entry.delta;
+        }
+        for (String error: result.errors)
+        {
+            System.err.println("Error: "+error);
+        }
+        System.err.println(result.entries.size()+" changes, "+added+" bytes added, "+removed+" bytes removed, delta "+delta+" bytes ("
+                +result.linked+" files skipped by inode, "+result.compared+" compared)");
+        
+        System.exit(result.errors.isEmpty()?0:1);
+    }
+    
+    protected static File resolveBackup(HostDir hostDir, String name)
+    {
+        List<LocalDateTime> backups=hostDir.listBackups();
+        if (name.equals("current") || name.equals("previous"))
+        {
+            int index=backups.size()-(name.equals("current")?1:2);
+            if (index<0) throw new RuntimeException("No "+name+" backup");
+            return hostDir.getBackupDir(backups.get(index));
+        }
+        File dir=new File(hostDir.getHostDir(),name);
+        if (!dir.isDirectory()) throw new RuntimeException("No such backup: "+name);
+        return dir;
+    }
+}
@@ -0,0 +1,146 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.export.ArchiveIndex;
+import org.github.rsyncbackup.export.SnapshotExporter;
+import org.github.rsyncbackup.export.SnapshotExporter.ExportResult;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.LocalTime;
+
+/**
+ * Exports backups to archives for cold storage (see SnapshotExporter):
+ * <ul>
+ * <li>export hostname archive backup-...|--before yyyy-MM-dd [--threads N] [--no-compress] [--prune]: writes the
+ * backups into one tar archive, compressed with zstd (cmdZstd) in frames on N threads, and its index (archive.index).
+ * With --prune, the exported backups are deleted after the archive was verified (except the latest backup)</li>
+ * <li>verify hostname archive: checks all files of the archive against the index</li>
+ * <li>extract hostname archive path targetFile: extracts a single file, only the frames that contain it are read</li>
+ * </ul>
+ * The archive is a plain tar stream (zstd -dc archive | tar -x --xattrs --xattrs-include='user.*').
+ */
+public class RSyncBackupExport
+{
+    protected static final int FRAME_SIZE=32*1024*1024;
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Missing argument: export hostname archive backup-...|--before yyyy-MM-dd [--threads N] [--no-compress] [--prune]"
+                    + " | verify hostname archive | extract hostname archive path targetFile");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        ConfHost host=backup.conf.getForHost(args[1]);
+        RSyncBackup.setThreadHostname(host.host);
+        File archive=new File(args[2]);
+        
+        List<String> cmdDecompress=new ArrayList<>();
+        RSyncBackup.appendCommand(cmdDecompress, host.cmdZstd);
+        cmdDecompress.add("-q");
+        cmdDecompress.add("-d");
+        cmdDecompress.add("-c");
+        
+        if (args[0].equals("verify"))
+        {
+            int files=ArchiveIndex.read(ArchiveIndex.getIndexFile(archive)).verify(archive, cmdDecompress);
+            RSyncBackup.LOG.info("Archive verified: {} files",files);
+            return;
+        }
+        if (args[0].equals("extract") && args.length>4)
+        {
+            try (OutputStream out=new FileOutputStream(args[4]))
+            {
+                ArchiveIndex.read(ArchiveIndex.getIndexFile(archive)).extract(archive, args[3], out, cmdDecompress);
+            }
+            return;
+        }
+        if (!args[0].equals("export")) throw new IllegalArgumentException("Unknown command: "+args[0]);
+        
+        File dir=new File(host.hostStorageDir);
+        if (!dir.isDirectory()) throw new RuntimeException("No backups found in "+dir);
+        HostDir hostDir=new HostDir(dir);
+        
+        List<LocalDateTime> backups=new ArrayList<>();
+        int threads=Runtime.getRuntime().availableProcessors();
+        boolean compress=true;
+        boolean prune=false;
+        for (int i=3;i<args.length;i++)
+        {
+            if (args[i].equals("--threads") && i+1<args.length) threads=Integer.parseInt(args[++i]);
+            else if (args[i].equals("--no-compress")) compress=false;
+            else if (args[i].equals("--prune")) prune=true;
+            else if (args[i].equals("--before") && i+1<args.length)
+            {
+                LocalDateTime before=LocalDate.parse(args[++i]).toLocalDateTime(LocalTime.MIDNIGHT);
+                for (LocalDateTime existing: hostDir.listBackups())
+                {
+                    if (existing.isBefore(before) && !backups.contains(existing)) backups.add(existing);
+                }
+            }
+            else
+            {
+                LocalDateTime selected=null;
+                for (LocalDateTime existing: hostDir.listBackups())
+                {
+                    if (HostDir.getDirnameFromBackup(existing).equals(args[i])) selected=existing;
+                }
+                if (selected==null) throw new IllegalArgumentException("No such backup: "+args[i]);
+                if (!backups.contains(selected)) backups.add(selected);
+            }
+        }
+        if (backups.isEmpty()) throw new IllegalArgumentException("No backups selected");
+        
+        List<String> cmdCompress=null;
+        if (compress)
+        {
+            cmdCompress=new ArrayList<>();
+            RSyncBackup.appendCommand(cmdCompress, host.cmdZstd);
+            cmdCompress.add("-q");
+            cmdCompress.add("-c");
+        }
+        
+        // the backups must not change or disappear while they are exported
+        HostLock lock=HostLock.tryLock(dir);
+        if (lock==null) throw new RuntimeException("Host is locked by another process ("+HostLock.readOwner(dir)+")");
+        try
+        {
+            ExportResult result=new SnapshotExporter(cmdCompress, threads, FRAME_SIZE).export(hostDir, backups, archive);
+            RSyncBackup.LOG.info("Exported {} backups: {} files ({} bytes), {} hard links, {} chunked files, archive {} of {} bytes",
+                    backups.size(),result.files,result.fileBytes,result.hardlinks,result.chunkedFiles,result.compressedBytes,result.bytes);
+            
+            if (!prune) return;
+            int files=ArchiveIndex.read(ArchiveIndex.getIndexFile(archive)).verify(archive, cmdDecompress);
+            RSyncBackup.LOG.info("Archive verified: {} files",files);
+            
+            // the latest backup is the base for the next --link-dest
+            backups.remove(hostDir.getLatestBackup());
+            RSyncBackup.deleteBackups(hostDir, backups);
+            
+            RunCatalog runCatalog=new RunCatalog(dir);
+            Map<LocalDateTime,LocalDateTime> runs=runCatalog.read();
+            for (Iterator<LocalDateTime> it=runs.values().iterator();it.hasNext();)
+            {
+                if (backups.contains(it.next())) it.remove();
+            }
+            runCatalog.write(runs);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfPool;
+import org.github.rsyncbackup.impl.CapacityHistory;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.impl.MemoryHistory;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.github.rsyncbackup.scrub.VerifySchedule;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Moves all backups of a host to another storage pool.
+ *
+ * The backups are copied one by one, from the oldest to the newest, each with --link-dest to the previously
+ * copied one. This restores the hardlinks between the backups without "rsync -H", which needs memory for all
+ * files of all backups. Backups of the host continue while it is copied. Backups that are created meanwhile
+ * are copied in further rounds. The chunk store (.chunks) is copied before the backups that reference it, backups
+ * that were renamed by a prune meanwhile are renamed on the target too. Finally the host dir is locked for a short
+ * catch-up, in which the state files of the host (runs, verification and memory history, ...) are copied, and then
+ * replaced by a symlink to the new location.
+ */
+public class RSyncBackupMigrate
+{
+    protected static final int MAX_ROUNDS=10;
+    protected static final long LOCK_RETRY_MILLIS=30000;
+    protected static final String TEMP_PREFIX=".migrate-";
+    /**
+     * Files of the host dir that are copied in the catch-up
+     */
+    protected static final String[] STATE_FILE_NAMES={RunCatalog.FILE_NAME, RunCatalog.RENAMES_FILE_NAME, VerifySchedule.STATE_FILE_NAME,
+            VerifySchedule.LOG_FILE_NAME, MemoryHistory.FILE_NAME, CapacityHistory.FILE_NAME};
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Missing argument: hostname targetPool [--keep-source]");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        ConfHost host=backup.conf.getForHost(args[0]);
+        ConfPool pool=backup.conf.getStoragePools().getPool(args[1]);
+        boolean keepSource=(args.length>2 && args[2].equals("--keep-source"));
+        
+        RSyncBackup.setThreadHostname(host.host);
+        try
+        {
+            new RSyncBackupMigrate(host, pool).migrate(keepSource);
+        }
+        catch (Exception ex)
+        {
+            RSyncBackup.LOG.error("Migration failed",ex);
+            System.exit(1);
+        }
+    }
+    
+    protected final ConfHost host;
+    protected final ConfPool pool;
+    protected final File sourceDir;
+    protected final File targetDir;
+    
+    public RSyncBackupMigrate(ConfHost host, ConfPool pool)
+    {
+        this.host=host;
+        this.pool=pool;
+        this.sourceDir=new File(host.hostStorageDir).getAbsoluteFile();
+        this.targetDir=new File(pool.dir,host.host).getAbsoluteFile();
+    }
+    
+    public void migrate(boolean keepSource) throws Exception
+    {
+        if (!sourceDir.isDirectory() || Files.isSymbolicLink(sourceDir.toPath())) throw new RuntimeException("No such directory: "+sourceDir);
+        if (sourceDir.getCanonicalFile().equals(targetDir.getCanonicalFile())) throw new RuntimeException(host.host+" is already stored on pool "+pool.name);
+        if (Files.isSymbolicLink(targetDir.toPath())) throw new RuntimeException("Target is a symlink: "+targetDir);
+        
+        targetDir.mkdirs();
+        
+        RSyncBackup.LOG.info("Migrating {} to {}",sourceDir,targetDir);
+        
+        for (int round=1;round<=MAX_ROUNDS;round++)
+        {
+            copyChunks();
+            int copied=copyNewBackups();
+            RSyncBackup.LOG.info("Round {}: {} backups copied",round,copied);
+            if (copied==0) break;
+        }
+        
+        File oldDir=new File(sourceDir.getParentFile(),"."+host.host+".migrated");
+        if (oldDir.exists()) throw new RuntimeException("Left-over from a previous migration, please remove it: "+oldDir);
+        
+        HostLock lock=waitForLock();
+        try
+        {
+            // catch up with a backup that was running until now
+            copyChunks();
+            copyNewBackups();
+            removeDeletedBackups();
+            copyStateFiles();
+            copySyncDir();
+            new HostDir(targetDir).updateCurrentDirLink();
+            
+            if (!sourceDir.renameTo(oldDir)) throw new RuntimeException("Unable to rename "+sourceDir+" to "+oldDir);
+            Files.createSymbolicLink(sourceDir.toPath(), targetDir.toPath());
+            RSyncBackup.LOG.info("Switched {} to {}",sourceDir,targetDir);
+        }
+        finally
+        {
+            lock.release();
+        }
+        
+        if (keepSource)
+        {
+            RSyncBackup.LOG.info("Old backups are kept in {}",oldDir);
+        }
+        else
+        {
+            RSyncBackup.LOG.info("Removing old backups in {}",oldDir);
+            RSyncBackup.deleteDirectory(oldDir);
+        }
+        RSyncBackup.LOG.info("Migration finished. Note: the scrub index is rebuilt by the next scrub");
+    }
+    
+    /**
+     * Copies all backups that are not yet on the target. Copies of backups that were renamed on the source are renamed
+     * first
+     * @return the number of copied backups
+     */
+    protected int copyNewBackups() throws Exception
+    {
+        HostDir source=new HostDir(sourceDir);
+        int renamed=new RunCatalog(sourceDir).applyRenames(targetDir);
+        if (renamed>0) RSyncBackup.LOG.info("{} backups renamed like on the source",renamed);
+        int copied=0;
+        File previous=null;
+        for (LocalDateTime backup: source.listBackups())
+        {
+            File sourceBackup=source.getBackupDir(backup);
+            File targetBackup=new File(targetDir,sourceBackup.getName());
+            if (!targetBackup.isDirectory())
+            {
+                copyBackup(sourceBackup, targetBackup, previous);
+                copied++;
+            }
+            previous=targetBackup;
+        }
+        return copied;
+    }
+    
+    protected void copyBackup(File sourceBackup, File targetBackup, File linkDest) throws Exception
+    {
+        File tempDir=new File(targetDir,TEMP_PREFIX+sourceBackup.getName());
+        RSyncBackup.LOG.info("Copying {}",sourceBackup.getName());
+        
+        rsync(sourceBackup, tempDir, linkDest);
+        
+        if (!tempDir.renameTo(targetBackup)) throw new RuntimeException("Unable to rename "+tempDir+" to "+targetBackup);
+    }
+    
+    /**
+     * Copies the chunks of chunked files that are not yet on the target
+     */
+    protected void copyChunks() throws Exception
+    {
+        int copied=new ChunkStore(sourceDir).copyMissingChunks(targetDir);
+        if (copied>0) RSyncBackup.LOG.info("{} chunks copied",copied);
+    }
+    
+    /**
+     * Copies the state files of the host, a state file that no longer exists on the source is removed
+     */
+    protected void copyStateFiles() throws Exception
+    {
+        for (String name: STATE_FILE_NAMES)
+        {
+            File source=new File(sourceDir,name);
+            File target=new File(targetDir,name);
+            if (!source.isFile())
+            {
+                Files.deleteIfExists(target.toPath());
+                continue;
+            }
+            File tempFile=new File(targetDir,name+".tmp");
+            Files.copy(source.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Copies the unfinished backup (if any), so that it can be resumed on the new location
+     */
+    protected void copySyncDir() throws Exception
+    {
+        HostDir source=new HostDir(sourceDir);
+        if (!source.getBackupSyncDir().isDirectory()) return;
+        
+        HostDir target=new HostDir(targetDir);
+        LocalDateTime latest=target.getLatestBackup();
+        RSyncBackup.LOG.info("Copying unfinished backup");
+        rsync(source.getBackupSyncDir(), target.getBackupSyncDir(), (latest==null)?null:target.getBackupDir(latest));
+    }
+    
+    /**
+     * Removes backups from the target that were deleted from the source (by the keep strategy) in the meantime
+     */
+    protected void removeDeletedBackups() throws Exception
+    {
+        Set<LocalDateTime> sourceBackups=new HashSet<>(HostDir.listBackups(sourceDir));
+        HostDir target=new HostDir(targetDir);
+        for (LocalDateTime backup: target.listBackups())
+        {
+            if (sourceBackups.contains(backup)) continue;
+            RSyncBackup.LOG.info("Removing backup {} that was deleted during migration",backup);
+            RSyncBackup.deleteDirectory(target.getBackupDir(backup));
+        }
+    }
+    
+    protected void rsync(File source, File target, File linkDest) throws Exception
+    {
+        List<String> cmdRsync=new ArrayList<>();
+        RSyncBackup.appendCommand(cmdRsync, host.cmdNice);
+        RSyncBackup.appendCommand(cmdRsync, host.cmdRsync);
+        cmdRsync.add("-a");
+        cmdRsync.add("-X"); // the file attributes of --fake-super
+        cmdRsync.add("--numeric-ids");
+        cmdRsync.add("--sparse");
+        cmdRsync.add("--delete");
+        if (linkDest!=null)
+        {
+            cmdRsync.add("--link-dest");
+            cmdRsync.add(linkDest.getAbsolutePath());
+        }
+        cmdRsync.add(source.getAbsolutePath()+"/");
+        cmdRsync.add(target.getAbsolutePath()+"/");
+        
+        int exitCode=RSyncBackup.executeCommand("RSYNC", cmdRsync, null, null);
+        if (exitCode!=0) throw new RuntimeException("Rsync exited with status "+exitCode);
+    }
+    
+    protected HostLock waitForLock() throws Exception
+    {
+        while (true)
+        {
+            HostLock lock=HostLock.tryLock(sourceDir);
+            if (lock!=null) return lock;
+            RSyncBackup.LOG.info("Waiting for the running backup to finish");
+            Thread.sleep(LOCK_RETRY_MILLIS);
+        }
+    }
+}
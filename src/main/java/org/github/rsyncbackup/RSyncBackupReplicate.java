@@ -0,0 +1,77 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.replicate.SnapshotReplicator;
+import org.github.rsyncbackup.replicate.SnapshotReplicator.ReplicationResult;
+
+/**
+ * Replicates the backups to a secondary location (e.g. an offsite server mounted via NFS). Each host is stored
+ * in {targetDir}/{host}. See SnapshotReplicator.
+ */
+public class RSyncBackupReplicate
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Missing argument: targetDir hostname|ALL [--prune]");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        File targetDir=new File(args[0]);
+        if (!targetDir.isDirectory()) throw new RuntimeException("No such directory: "+targetDir);
+        boolean prune=(args.length>2 && args[2].equals("--prune"));
+        
+        List<ConfHost> hosts;
+        if (args[1].equalsIgnoreCase("ALL")) hosts=backup.conf.getAllHosts();
+        else
+        {
+            hosts=new ArrayList<>();
+            hosts.add(backup.conf.getForHost(args[1]));
+        }
+        
+        int failed=0;
+        for (ConfHost host: hosts)
+        {
+            RSyncBackup.setThreadHostname(host.host);
+            try
+            {
+                File dir=new File(host.hostStorageDir);
+                if (!dir.isDirectory())
+                {
+                    RSyncBackup.LOG.info("No backups - skipping replication");
+                    continue;
+                }
+                
+                SnapshotReplicator replicator=new SnapshotReplicator(new HostDir(dir), new File(targetDir,host.host));
+                ReplicationResult result=replicator.replicate();
+                RSyncBackup.LOG.info("Replication finished: {} backups, {} files ({} bytes) copied, {} files linked, {} chunks copied, {} backups renamed",
+                        result.backups,result.copiedFiles,result.copiedBytes,result.linkedFiles,result.copiedChunks,result.renamedBackups);
+                
+                if (prune)
+                {
+                    int removed=replicator.prune();
+                    RSyncBackup.LOG.info("Removed {} replicated backups that no longer exist",removed);
+                }
+            }
+            catch (Exception ex)
+            {
+                // the next run resumes the interrupted backup
+                RSyncBackup.LOG.error("Replication failed",ex);
+                failed++;
+            }
+            finally
+            {
+                RSyncBackup.setThreadHostname(null);
+            }
+        }
+        
+        System.exit(failed>0?1:0);
+    }
+}
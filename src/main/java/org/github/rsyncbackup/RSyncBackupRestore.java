@@ -0,0 +1,275 @@
+package org.github.rsyncbackup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.github.rsyncbackup.RSyncBackup.CommandOutputConsumer;
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.logging.LogContext;
+import org.github.rsyncbackup.restore.ShardPlanner;
+import org.github.rsyncbackup.restore.ShardPlanner.Shard;
+
+/**
+ * Restores a volume of a backup to a target (e.g. root@rescue-system:/mnt/ or a local directory) with several
+ * parallel rsync streams, for a fast bare-metal restore of volumes with millions of files.
+ *
+ * The volume is split into shards of about the same cost (see ShardPlanner), each transferred by one rsync.
+ * Ownership and permissions are restored from the fake-super attributes of the backup (rsync --fake-super on the
+ * sending side), so the target's rsync must run as root. A final pass restores the attributes of all directories
+ * (modified by the parallel streams) or, with --delete, synchronizes the whole volume incl. deletions.
+ *
+ * Chunked files (see ChunkStore) are restored from their manifests into a staging dir next to the backups and
+ * transferred from there before the final pass. With --keep-chunked, the manifests are transferred instead.
+ */
+public class RSyncBackupRestore
+{
+    protected static final long PROGRESS_INTERVAL=30000;
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 4)
+        {
+            System.err.println("Missing argument: hostname backup volume target [streams] [--delete] [--keep-chunked]");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        ConfHost host=backup.conf.getForHost(args[0]);
+        RSyncBackup.setThreadHostname(host.host);
+        HostDir hostDir=new HostDir(new File(host.hostStorageDir));
+        File backupDir=RSyncBackupDiff.resolveBackup(hostDir, args[1]);
+        File volumeDir=new File(backupDir, args[2]);
+        String target=args[3];
+        int streams=(args.length>4 && !args[4].startsWith("--"))?Integer.parseInt(args[4]):4;
+        boolean delete=false;
+        boolean keepChunked=false;
+        for (int i=4;i<args.length;i++)
+        {
+            if (args[i].equals("--delete")) delete=true;
+            else if (args[i].equals("--keep-chunked")) keepChunked=true;
+        }
+        
+        if (!volumeDir.isDirectory()) throw new RuntimeException("No such volume: "+volumeDir);
+        File stagingDir=null;
+        if (new File(backupDir, ChunkStore.REFS_FILE_NAME).length()>0)
+        {
+            if (keepChunked)
+            {
+                RSyncBackup.LOG.warn("The backup contains chunked files (*{}). They are restored as manifests, use RSyncBackupChunks restore for them",ChunkStore.MANIFEST_SUFFIX);
+            }
+            else
+            {
+                stagingDir=new File(hostDir.getHostDir(), ".restore-"+backupDir.getName()+"-"+volumeDir.getName());
+            }
+        }
+        
+        int exitCode;
+        try
+        {
+            exitCode=restore(host, volumeDir, target, streams, delete, stagingDir);
+        }
+        finally
+        {
+            if (stagingDir!=null) FileUtils.deleteDirectory(stagingDir);
+        }
+        System.exit(exitCode);
+    }
+    
+    /**
+     * @param stagingDir the dir to restore chunked files into before they are transferred, null to transfer the manifests
+     * @return the first non-zero exit code of the rsync streams or 0
+     */
+    protected static int restore(final ConfHost host, final File volumeDir, final String target, int streams, boolean delete, File stagingDir) throws Exception
+    {
+        List<String> chunkedFiles=new ArrayList<>();
+        final List<String> filterArgs=new ArrayList<>();
+        if (stagingDir!=null)
+        {
+            RSyncBackup.LOG.info("Restoring chunked files into {}",stagingDir);
+            FileUtils.deleteDirectory(stagingDir); // left over by an interrupted restore
+            chunkedFiles=ChunkStore.materialize(volumeDir, stagingDir);
+            RSyncBackup.LOG.info("{} chunked files restored",chunkedFiles.size());
+            filterArgs.add("--exclude=*"+ChunkStore.MANIFEST_SUFFIX);
+        }
+        
+
+        RSyncBackup.LOG.info("Planning restore of {} to {} with {} streams",volumeDir,target,streams);
+        List<Shard> shards=new ShardPlanner(volumeDir.toPath(), streams).plan();
+        
+        long totalBytes=0;
+        for (Shard shard: shards)
+        {
+            totalBytes+=shard.bytes;
+            RSyncBackup.LOG.info("Shard {}: {} paths, {} files, {} bytes",shard.number,shard.paths.size(),shard.files,shard.bytes);
+        }
+        
+        File listDir=Files.createTempDirectory("rsync-restore").toFile();
+        final AtomicLong doneBytes=new AtomicLong();
+        Thread progress=startProgress(doneBytes, totalBytes);
+        ExecutorService executor=Executors.newFixedThreadPool(streams);
+        int exitCode=0;
+        try
+        {
+            List<Future<Integer>> results=new ArrayList<>();
+            for (final Shard shard: shards)
+            {
+                if (shard.paths.isEmpty()) continue;
+                final File list=new File(listDir, "shard-"+shard.number);
+                try (OutputStream out=new BufferedOutputStream(new FileOutputStream(list)))
+                {
+                    for (String path: shard.paths)
+                    {
+                        out.write(path.getBytes("utf-8"));
+                        out.write(0);
+                    }
+                }
+                results.add(executor.submit(LogContext.wrap(new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call() throws Exception
+                    {
+                        List<String> args=new ArrayList<>();
+                        args.add("-r");
+                        args.add("--from0");
+                        args.add("--files-from="+list.getAbsolutePath());
+                        args.addAll(filterArgs);
+                        return RSyncBackup.executeCommand("RESTORE "+shard.number, createCmdRsync(host, volumeDir, target, args), null, new ProgressConsumer(doneBytes));
+                    }
+                })));
+            }
+            for (Future<Integer> result: results)
+            {
+                int shardExitCode=result.get();
+                if (exitCode==0) exitCode=shardExitCode;
+            }
+            
+            // before the final pass, which restores the attributes of the directories
+            if (!chunkedFiles.isEmpty())
+            {
+                RSyncBackup.LOG.info("Transferring {} chunked files",chunkedFiles.size());
+                int chunkedExitCode=RSyncBackup.executeCommand("RESTORE", createCmdRsync(host, stagingDir, target, new ArrayList<String>()), null, new ProgressConsumer(doneBytes));
+                if (exitCode==0) exitCode=chunkedExitCode;
+            }
+            
+            List<String> args=new ArrayList<>();
+            if (delete)
+            {
+                RSyncBackup.LOG.info("Final pass: synchronizing the whole volume incl. deletions");
+                args.add("--delete");
+                // the chunked files are not in the volume, only their manifests
+                File protectList=new File(listDir, "chunked-files");
+                try (OutputStream out=new BufferedOutputStream(new FileOutputStream(protectList)))
+                {
+                    for (String path: chunkedFiles)
+                    {
+                        out.write(("P /"+path.replaceAll("([*?\\[\\\\])", "\\\\$1")+"\n").getBytes("utf-8"));
+                    }
+                }
+                args.add("--filter=merge "+protectList.getAbsolutePath());
+            }
+            else
+            {
+                RSyncBackup.LOG.info("Final pass: restoring directory attributes");
+                args.add("--include=*/");
+                args.add("--exclude=*");
+            }
+            args.addAll(filterArgs);
+            int finalExitCode=RSyncBackup.executeCommand("RESTORE", createCmdRsync(host, volumeDir, target, args), null, new ProgressConsumer(doneBytes));
+            if (exitCode==0) exitCode=finalExitCode;
+        }
+        finally
+        {
+            executor.shutdownNow();
+            progress.interrupt();
+            FileUtils.deleteDirectory(listDir);
+        }
+        
+        RSyncBackup.LOG.info("Restore finished with exit code {}: {} bytes transferred",exitCode,doneBytes.get());
+        return exitCode;
+    }
+    
+    protected static List<String> createCmdRsync(ConfHost host, File volumeDir, String target, List<String> extraArgs)
+    {
+        List<String> cmd=new ArrayList<>();
+        RSyncBackup.appendCommand(cmd, host.cmdRsync);
+        cmd.add("-a");
+        cmd.add("--numeric-ids");
+        cmd.add("--fake-super"); // ownership and permissions from the backup's xattrs
+        cmd.add("--sparse");
+        cmd.add("--out-format=%l");
+        cmd.addAll(extraArgs);
+        cmd.add(volumeDir.getAbsolutePath()+"/");
+        cmd.add(target.endsWith("/")?target:target+"/");
+        return cmd;
+    }
+    
+    protected static Thread startProgress(final AtomicLong doneBytes, final long totalBytes)
+    {
+        final long start=System.currentTimeMillis();
+        Thread thread=new Thread(LogContext.wrap(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(PROGRESS_INTERVAL);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    long done=doneBytes.get();
+                    long seconds=Math.max(1, (System.currentTimeMillis()-start)/1000);
+                    long rate=done/seconds;
+                    String eta=(rate>0)?formatSeconds(Math.max(0, totalBytes-done)/rate):"unknown";
+                    RSyncBackup.LOG.info("Progress: {}% ({} of {} MB, {} MB/s), ETA {}",(totalBytes>0)?done*100/totalBytes:100,
+                            done/1048576,totalBytes/1048576,rate/1048576,eta);
+                }
+            }
+        }), "RestoreProgress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    protected static String formatSeconds(long seconds)
+    {
+        return String.format("%d:%02d:%02d", seconds/3600, (seconds/60)%60, seconds%60);
+    }
+    
+    /**
+     * Counts the transferred bytes (--out-format=%l), other output is logged
+     */
+    protected static class ProgressConsumer implements CommandOutputConsumer
+    {
+        protected final AtomicLong doneBytes;
+        
+        protected ProgressConsumer(AtomicLong doneBytes)
+        {
+            this.doneBytes=doneBytes;
+        }
+        
+        @Override
+        public void consume(String line)
+        {
+            if (line.matches("[0-9]+")) doneBytes.addAndGet(Long.parseLong(line));
+            else RSyncBackup.LOG.info("{}",line);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.github.rsyncbackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.notify.ZabbixNotifier;
+import org.github.rsyncbackup.scrub.HostScrubber;
+import org.github.rsyncbackup.scrub.HostScrubber.ScrubResult;
+import org.github.rsyncbackup.scrub.IoBudget;
+
+/**
+ * Verifies the checksums of all backed up files to detect bit rot. Each inode is read only once per host,
+ * and only if it is new or its last verification is older than scrubRecheckDays. Intended to run in the
+ * background (e.g. via cron with "nice ionice -c3"), the read rate is limited to the given MB/s.
+ */
+public class RSyncBackupScrub
+{
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Missing argument: hostname|ALL [MB/s] [maxGBPerRun]");
+            System.exit(1);
+        }
+        
+        RSyncBackup backup=new RSyncBackup(args);
+        
+        long bytesPerSecond=((args.length>1)?Long.parseLong(args[1]):20)*1024*1024;
+        long maxBytes=((args.length>2)?Long.parseLong(args[2]):0)*1024*1024*1024;
+        
+        // one budget for the whole run
+        IoBudget budget=new IoBudget(bytesPerSecond, maxBytes);
+        
+        List<ConfHost> hosts;
+        if (args[0].equalsIgnoreCase("ALL")) hosts=backup.conf.getAllHosts();
+        else
+        {
+            hosts=new ArrayList<>();
+            hosts.add(backup.conf.getForHost(args[0]));
+        }
+        
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        
+        int corruptCount=0;
+        for (ConfHost host: hosts)
+        {
+            RSyncBackup.setThreadHostname(host.host);
+            try
+            {
+                corruptCount+=scrubHost(host, budget);
+            }
+            catch (Exception ex)
+            {
+                RSyncBackup.LOG.error("Scrub failed",ex);
+            }
+            finally
+            {
+                RSyncBackup.setThreadHostname(null);
+            }
+        }
+        
+        System.exit(corruptCount>0?2:0);
+    }
+    
+    protected static int scrubHost(ConfHost host, IoBudget budget) throws Exception
+    {
+        File dir=new File(host.hostStorageDir);
+        if (!dir.isDirectory())
+        {
+            RSyncBackup.LOG.info("No backups - skipping scrub");
+            return 0;
+        }
+        
+        RSyncBackup.LOG.info("Starting scrub");
+        ScrubResult result=new HostScrubber(new HostDir(dir), host.scrubRecheckDays, budget).scrub();
+        
+        RSyncBackup.LOG.info("Scrub finished: {} new, {} verified, {} corrupt inodes, {} unreadable files, {} bytes read, {} removed from index{}",
+                result.newInodes, result.verifiedInodes, result.corruptInodes.size(), result.unreadableFiles, result.hashedBytes, result.removedInodes,
+                result.budgetExhausted?" - I/O budget exhausted, remaining files are checked in the next run":"");
+        
+        for (Entry<Long,List<String>> corrupt: result.corruptInodes.entrySet())
+        {
+            RSyncBackup.LOG.error("Corrupt inode {}, linked from {} backup path(s):",corrupt.getKey(),corrupt.getValue().size());
+            for (String path: corrupt.getValue())
+            {
+                RSyncBackup.LOG.error("  {}",path);
+            }
+        }
+        
+        ZabbixNotifier.notifyScrub(host, result.corruptInodes.size());
+        
+        return result.corruptInodes.size();
+    }
+}
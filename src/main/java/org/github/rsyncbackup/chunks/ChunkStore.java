@@ -0,0 +1,411 @@
+package org.github.rsyncbackup.chunks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.github.rsyncbackup.chunks.Chunker.ChunkConsumer;
+import org.github.rsyncbackup.impl.HostDir;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed chunk storage of a host ({hostdir}/.chunks/xx/{sha256}).
+ *
+ * Large files that are changed a little from backup to backup (VM images, mailboxes, databases) cannot be
+ * shared with --link-dest. In all but the latest backup (which rsync needs as full files for --link-dest),
+ * such files are split into chunks (see Chunker) and replaced by a manifest "{name}.chunked" that has the same
+ * mtime, permissions and xattrs. Unchanged chunks are shared between all versions of the file. The manifest
+ * is turned back into the file by RSyncBackupChunks restore|materialize.
+ *
+ * The chunks used by a backup are listed in {backup}/.chunk-refs, so that unused chunks can be removed after
+ * old backups were deleted without walking all backups.
+ */
+public class ChunkStore
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(ChunkStore.class);
+    
+    public static final String CHUNK_DIR_NAME=".chunks";
+    public static final String MANIFEST_SUFFIX=".chunked";
+    public static final String REFS_FILE_NAME=".chunk-refs";
+    protected static final String MAGIC="RSYNCBACKUP-CHUNKED-1";
+    
+    protected final File chunkDir;
+    
+    public ChunkStore(File hostDir)
+    {
+        this.chunkDir=new File(hostDir,CHUNK_DIR_NAME);
+    }
+    
+    /**
+     * Finds the chunk store of a manifest in one of its parent dirs
+     */
+    public static ChunkStore forManifest(File manifest) throws IOException
+    {
+        for (File dir=manifest.getAbsoluteFile().getParentFile();dir!=null;dir=dir.getParentFile())
+        {
+            if (new File(dir,CHUNK_DIR_NAME).isDirectory()) return new ChunkStore(dir);
+        }
+        throw new IOException("No "+CHUNK_DIR_NAME+" found for "+manifest);
+    }
+    
+    /**
+     * Chunks all files of at least minSize bytes below dir that are not shared with another backup
+     * @param backupDir the backup that contains dir
+     */
+    public ChunkResult chunkFiles(File backupDir, File dir, final long minSize) throws IOException
+    {
+        final ChunkResult result=new ChunkResult();
+        if (!dir.isDirectory()) return result;
+        
+        try (final Writer refs=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(backupDir,REFS_FILE_NAME),true),"utf-8")))
+        {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    if (!attrs.isRegularFile() || attrs.size()<minSize) return FileVisitResult.CONTINUE;
+                    if (file.getFileName().toString().endsWith(MANIFEST_SUFFIX)) return FileVisitResult.CONTINUE;
+                    // a file that is linked from another backup takes no extra space
+                    if (((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue()>1) return FileVisitResult.CONTINUE;
+                    
+                    chunkFile(file, refs, result);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return result;
+    }
+    
+    protected void chunkFile(Path file, Writer refs, final ChunkResult result) throws IOException
+    {
+        final List<String> chunks=new ArrayList<>();
+        final MessageDigest md=createDigest();
+        try (InputStream in=new BufferedInputStream(new FileInputStream(file.toFile())))
+        {
+            Chunker.split(in, new ChunkConsumer()
+            {
+                @Override
+                public void chunk(byte[] data, int length) throws IOException
+                {
+                    md.update(data, 0, length);
+                    String hash=toHex(md.digest());
+                    if (storeChunk(hash, data, length)) result.storedBytes+=length;
+                    chunks.add(hash+" "+length);
+                }
+            });
+        }
+        
+        // the chunks must be referenced before the original file is removed
+        for (String chunk: chunks)
+        {
+            refs.write(chunk.substring(0,chunk.indexOf(' ')));
+            refs.write('\n');
+        }
+        refs.flush();
+        
+        Path manifest=file.resolveSibling(file.getFileName()+MANIFEST_SUFFIX);
+        Path tempFile=file.resolveSibling(file.getFileName()+MANIFEST_SUFFIX+".tmp");
+        long size=Files.size(file);
+        try (Writer out=new OutputStreamWriter(new FileOutputStream(tempFile.toFile()),"utf-8"))
+        {
+            out.write(MAGIC+"\n");
+            out.write("size "+size+"\n");
+            for (String chunk: chunks)
+            {
+                out.write(chunk+"\n");
+            }
+        }
+        copyMetadata(file, tempFile);
+        Files.move(tempFile, manifest, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(file);
+        
+        result.files++;
+        result.fileBytes+=size;
+        LOG.debug("Chunked {}: {} chunks",file,chunks.size());
+    }
+    
+    /**
+     * @return true if the chunk is new
+     */
+    protected boolean storeChunk(String hash, byte[] data, int length) throws IOException
+    {
+        File chunkFile=getChunkFile(hash);
+        if (chunkFile.isFile()) return false;
+        
+        chunkFile.getParentFile().mkdirs();
+        File tempFile=new File(chunkFile.getParentFile(),hash+".tmp");
+        try (OutputStream out=new FileOutputStream(tempFile))
+        {
+            out.write(data, 0, length);
+        }
+        Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+    
+    protected File getChunkFile(String hash)
+    {
+        return new File(new File(chunkDir,hash.substring(0,2)),hash);
+    }
+    
+    /**
+     * Rebuilds the file of a manifest, including its metadata. Each chunk is verified
+     */
+    public void restore(File manifest, File target) throws IOException
+    {
+        File tempFile=new File(target.getAbsoluteFile().getParentFile(),"."+target.getName()+".restore");
+        try (BufferedReader in=new BufferedReader(new InputStreamReader(new FileInputStream(manifest),"utf-8"));
+             OutputStream out=new FileOutputStream(tempFile))
+        {
+            if (!MAGIC.equals(in.readLine())) throw new IOException("Not a chunk manifest: "+manifest);
+            String sizeLine=in.readLine();
+            if (sizeLine==null || !sizeLine.startsWith("size ")) throw new IOException("Invalid chunk manifest: "+manifest);
+            long size=Long.parseLong(sizeLine.substring(5));
+            
+            long written=0;
+            String line;
+            while ((line=in.readLine())!=null)
+            {
+                String[] hashLength=line.split(" ");
+                byte[] data=Files.readAllBytes(getChunkFile(hashLength[0]).toPath());
+                if (data.length!=Integer.parseInt(hashLength[1]) || !toHex(createDigest().digest(data)).equals(hashLength[0]))
+                {
+                    throw new IOException("Corrupt chunk "+hashLength[0]+" in "+manifest);
+                }
+                out.write(data);
+                written+=data.length;
+            }
+            if (written!=size) throw new IOException("Size mismatch: "+written+" != "+size+" in "+manifest);
+        }
+        catch (IOException ex)
+        {
+            tempFile.delete();
+            throw ex;
+        }
+        copyMetadata(manifest.toPath(), tempFile.toPath());
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Replaces all manifests below dir by the restored files
+     * @return the number of restored files
+     */
+    public static int materialize(File dir) throws IOException
+    {
+        final int[] count=new int[1];
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                String name=file.getFileName().toString();
+                if (!attrs.isRegularFile() || !name.endsWith(MANIFEST_SUFFIX)) return FileVisitResult.CONTINUE;
+                
+                File target=file.resolveSibling(name.substring(0,name.length()-MANIFEST_SUFFIX.length())).toFile();
+                forManifest(file.toFile()).restore(file.toFile(), target);
+                Files.delete(file);
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+    
+    /**
+     * Copies the chunks that are missing in the chunk store of another host dir. Chunks never change, so an existing
+     * chunk is complete
+     * @return the number of copied chunks
+     */
+    public int copyMissingChunks(File targetHostDir) throws IOException
+    {
+        ChunkStore target=new ChunkStore(targetHostDir);
+        int copied=0;
+        File[] prefixDirs=chunkDir.listFiles();
+        if (prefixDirs!=null) for (File prefixDir: prefixDirs)
+        {
+            File[] chunks=prefixDir.listFiles();
+            if (chunks!=null) for (File chunk: chunks)
+            {
+                if (chunk.getName().endsWith(".tmp")) continue;
+                File targetChunk=target.getChunkFile(chunk.getName());
+                if (targetChunk.isFile()) continue;
+                
+                targetChunk.getParentFile().mkdirs();
+                File tempFile=new File(targetChunk.getParentFile(),chunk.getName()+".tmp");
+                Files.copy(chunk.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile.toPath(), targetChunk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copied++;
+            }
+        }
+        return copied;
+    }
+    
+    /**
+     * Restores the files of all manifests below dir into targetDir, at the same relative paths. The manifests are
+     * not changed
+     * @return the relative paths of the restored files
+     */
+    public static List<String> materialize(final File dir, final File targetDir) throws IOException
+    {
+        final List<String> restored=new ArrayList<>();
+        final Path root=dir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                String name=file.getFileName().toString();
+                if (!attrs.isRegularFile() || !name.endsWith(MANIFEST_SUFFIX)) return FileVisitResult.CONTINUE;
+                
+                String rel=root.relativize(file.resolveSibling(name.substring(0,name.length()-MANIFEST_SUFFIX.length()))).toString();
+                File target=new File(targetDir,rel);
+                target.getParentFile().mkdirs();
+                forManifest(file.toFile()).restore(file.toFile(), target);
+                restored.add(rel);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return restored;
+    }
+    
+    /**
+     * Removes all chunks that are not referenced by one of the host's backups
+     * @return the number of removed chunks
+     */
+    public int collectGarbage(HostDir hostDir) throws IOException
+    {
+        if (!chunkDir.isDirectory()) return 0;
+        
+        Set<String> referenced=new HashSet<>();
+        for (LocalDateTime backup: hostDir.listBackups())
+        {
+            File refsFile=new File(hostDir.getBackupDir(backup),REFS_FILE_NAME);
+            if (!refsFile.isFile()) continue;
+            try (BufferedReader in=new BufferedReader(new InputStreamReader(new FileInputStream(refsFile),"utf-8")))
+            {
+                String line;
+                while ((line=in.readLine())!=null)
+                {
+                    if (!line.isEmpty()) referenced.add(line);
+                }
+            }
+        }
+        
+        int removed=0;
+        File[] prefixDirs=chunkDir.listFiles();
+        if (prefixDirs!=null) for (File prefixDir: prefixDirs)
+        {
+            File[] chunks=prefixDir.listFiles();
+            if (chunks!=null) for (File chunk: chunks)
+            {
+                if (referenced.contains(chunk.getName())) continue;
+                if (chunk.delete()) removed++;
+            }
+        }
+        return removed;
+    }
+    
+    /**
+     * Copies mtime, permissions, owner and xattrs (which hold the attributes stored by --fake-super)
+     */
+    protected static void copyMetadata(Path source, Path target) throws IOException
+    {
+        PosixFileAttributes attrs=Files.readAttributes(source, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        
+        UserDefinedFileAttributeView sourceView=Files.getFileAttributeView(source, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        UserDefinedFileAttributeView targetView=Files.getFileAttributeView(target, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        List<String> names;
+        try
+        {
+            names=sourceView.list();
+        }
+        catch (IOException ex)
+        {
+            names=new ArrayList<>(); // not supported by the filesystem
+        }
+        for (String name: names)
+        {
+            ByteBuffer value=ByteBuffer.allocate(sourceView.size(name));
+            sourceView.read(name, value);
+            value.flip();
+            targetView.write(name, value);
+        }
+        
+        Files.setPosixFilePermissions(target, attrs.permissions());
+        try
+        {
+            Files.setOwner(target, attrs.owner());
+        }
+        catch (IOException ex)
+        {
+            // not running as root
+        }
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+    }
+    
+    protected static MessageDigest createDigest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    protected static String toHex(byte[] bytes)
+    {
+        StringBuilder hex=new StringBuilder();
+        for (byte b: bytes)
+        {
+            hex.append(String.format("%02x",b&0xff));
+        }
+        return hex.toString();
+    }
+    
+    public static class ChunkResult
+    {
+        public int files;
+        public long fileBytes;
+        /**
+         * Bytes of new chunks (the remaining bytes were already stored)
+         */
+        public long storedBytes;
+        
+        public void add(ChunkResult other)
+        {
+            files+=other.files;
+            fileBytes+=other.fileBytes;
+            storedBytes+=other.storedBytes;
+        }
+    }
+}
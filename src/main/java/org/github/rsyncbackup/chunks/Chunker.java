@@ -0,0 +1,61 @@
+package org.github.rsyncbackup.chunks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Content defined chunking with a rolling "gear" hash. A chunk ends where the hash matches a bit mask, so an
+ * insertion or change only affects the chunks around it. All other chunks stay identical between versions of
+ * a file and are stored only once.
+ */
+public class Chunker
+{
+    public static final int MIN_CHUNK_SIZE=256*1024;
+    public static final int MAX_CHUNK_SIZE=4*1024*1024;
+    /**
+     * 20 bits: average chunk size about 1 MB (plus MIN_CHUNK_SIZE)
+     */
+    protected static final long MASK=0xfffffL<<44;
+    
+    protected static final long[] GEAR=new long[256];
+    static
+    {
+        // fixed seed: the chunk boundaries must never change
+        Random random=new Random(0x7273796e63L);
+        for (int i=0;i<GEAR.length;i++)
+        {
+            GEAR[i]=random.nextLong();
+        }
+    }
+    
+    public interface ChunkConsumer
+    {
+        public void chunk(byte[] data, int length) throws IOException;
+    }
+    
+    public static void split(InputStream in, ChunkConsumer consumer) throws IOException
+    {
+        byte[] chunk=new byte[MAX_CHUNK_SIZE];
+        byte[] block=new byte[64*1024];
+        int length=0;
+        long hash=0;
+        int read;
+        while ((read=in.read(block))>=0)
+        {
+            for (int i=0;i<read;i++)
+            {
+                byte b=block[i];
+                chunk[length++]=b;
+                hash=(hash<<1)+GEAR[b&0xff];
+                if ((length>=MIN_CHUNK_SIZE && (hash&MASK)==0) || length==MAX_CHUNK_SIZE)
+                {
+                    consumer.chunk(chunk, length);
+                    length=0;
+                    hash=0;
+                }
+            }
+        }
+        if (length>0) consumer.chunk(chunk, length);
+    }
+}
@@ -0,0 +1,267 @@
+package org.github.rsyncbackup.diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compares two backups of the same host. Both trees are walked together, each directory pair in its own
+ * fork/join task. Files that are hardlinked between the backups (same inode) are unchanged by construction
+ * and are skipped without reading anything else. Only for different inodes the size, mtime and xattrs (which
+ * hold the owner and permissions stored by --fake-super) are compared. File contents are never read.
+ */
+public class SnapshotDiff
+{
+    public enum Type
+    {
+        ADDED("+"),
+        REMOVED("-"),
+        MODIFIED("M");
+        
+        public final String symbol;
+        
+        private Type(String symbol)
+        {
+            this.symbol=symbol;
+        }
+    }
+    
+    protected final Path oldRoot;
+    protected final Path newRoot;
+    protected final int parallelism;
+    
+    public SnapshotDiff(Path oldRoot, Path newRoot, int parallelism)
+    {
+        this.oldRoot=oldRoot;
+        this.newRoot=newRoot;
+        this.parallelism=parallelism;
+    }
+    
+    /**
+     * @return all differences, sorted by path
+     */
+    public DiffResult diff()
+    {
+        ForkJoinPool pool=new ForkJoinPool(parallelism);
+        try
+        {
+            return pool.invoke(new DirectoryDiff(oldRoot.getFileSystem().getPath("")));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    
+    protected class DirectoryDiff extends RecursiveTask<DiffResult>
+    {
+        private static final long serialVersionUID = 1L;
+        
+        protected final Path rel;
+        
+        protected DirectoryDiff(Path rel)
+        {
+            this.rel=rel;
+        }
+        
+        @Override
+        protected DiffResult compute()
+        {
+            DiffResult result=new DiffResult();
+            try
+            {
+                Path oldDir=oldRoot.resolve(rel);
+                Path newDir=newRoot.resolve(rel);
+                TreeSet<String> names=new TreeSet<>();
+                Set<String> oldNames=list(oldDir);
+                Set<String> newNames=list(newDir);
+                names.addAll(oldNames);
+                names.addAll(newNames);
+                
+                // sub directories in order, so that the result is sorted
+                List<Object> parts=new ArrayList<>();
+                for (String name: names)
+                {
+                    Path path=rel.resolve(name);
+                    BasicFileAttributes oldAttrs=oldNames.contains(name)?readAttributes(oldRoot.resolve(path)):null;
+                    BasicFileAttributes newAttrs=newNames.contains(name)?readAttributes(newRoot.resolve(path)):null;
+                    
+                    if (oldAttrs!=null && newAttrs!=null && oldAttrs.isDirectory() && newAttrs.isDirectory())
+                    {
+                        DirectoryDiff sub=new DirectoryDiff(path);
+                        sub.fork();
+                        parts.add(sub);
+                        continue;
+                    }
+                    
+                    DiffResult part=new DiffResult();
+                    if (oldAttrs!=null && newAttrs!=null && oldAttrs.isDirectory()==newAttrs.isDirectory())
+                    {
+                        compareFiles(path, oldAttrs, newAttrs, part);
+                    }
+                    else
+                    {
+                        if (oldAttrs!=null) part.add(new DiffEntry(Type.REMOVED, path, -size(oldRoot.resolve(path), oldAttrs)));
+                        if (newAttrs!=null) part.add(new DiffEntry(Type.ADDED, path, size(newRoot.resolve(path), newAttrs)));
+                    }
+                    parts.add(part);
+                }
+                
+                for (Object part: parts)
+                {
+                    result.addAll((part instanceof DirectoryDiff)?((DirectoryDiff) part).join():(DiffResult) part);
+                }
+            }
+            catch (IOException ex)
+            {
+                result.errors.add(rel+": "+ex);
+            }
+            return result;
+        }
+    }
+    
+    protected void compareFiles(Path path, BasicFileAttributes oldAttrs, BasicFileAttributes newAttrs, DiffResult result) throws IOException
+    {
+        if (oldAttrs.fileKey()!=null && oldAttrs.fileKey().equals(newAttrs.fileKey()))
+        {
+            result.linked++;
+            return;
+        }
+        result.compared++;
+        
+        Path oldFile=oldRoot.resolve(path);
+        Path newFile=newRoot.resolve(path);
+        boolean modified=oldAttrs.size()!=newAttrs.size()
+                || oldAttrs.lastModifiedTime().toMillis()!=newAttrs.lastModifiedTime().toMillis()
+                || oldAttrs.isSymbolicLink()!=newAttrs.isSymbolicLink()
+                || (oldAttrs.isSymbolicLink() && !Files.readSymbolicLink(oldFile).equals(Files.readSymbolicLink(newFile)))
+                || !readXattrs(oldFile).equals(readXattrs(newFile));
+        
+        if (modified) result.add(new DiffEntry(Type.MODIFIED, path, newAttrs.size()-oldAttrs.size()));
+    }
+    
+    protected static Set<String> list(Path dir) throws IOException
+    {
+        Set<String> names=new HashSet<>();
+        try (DirectoryStream<Path> stream=Files.newDirectoryStream(dir))
+        {
+            for (Path file: stream)
+            {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+    
+    protected static BasicFileAttributes readAttributes(Path file) throws IOException
+    {
+        return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+    
+    /**
+     * @return the size of a file or the total size of a directory tree
+     */
+    protected static long size(Path file, BasicFileAttributes attrs) throws IOException
+    {
+        if (!attrs.isDirectory()) return attrs.size();
+        final long[] size=new long[1];
+        Files.walkFileTree(file, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                size[0]+=attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+    
+    protected static Map<String,ByteBuffer> readXattrs(Path file) throws IOException
+    {
+        Map<String,ByteBuffer> xattrs=new HashMap<>();
+        UserDefinedFileAttributeView view=Files.getFileAttributeView(file, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (view==null) return xattrs;
+        try
+        {
+            for (String name: view.list())
+            {
+                ByteBuffer value=ByteBuffer.allocate(view.size(name));
+                view.read(name, value);
+                value.flip();
+                xattrs.put(name, value);
+            }
+        }
+        catch (IOException ex)
+        {
+            // not supported (e.g. symlinks)
+        }
+        return xattrs;
+    }
+    
+    public static class DiffEntry
+    {
+        public final Type type;
+        public final Path path;
+        /**
+         * Change of the used bytes (a removed or added directory counts with all of its content)
+         */
+        public final long delta;
+        
+        public DiffEntry(Type type, Path path, long delta)
+        {
+            this.type=type;
+            this.path=path;
+            this.delta=delta;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return type.symbol+" "+(delta>=0?"+":"")+delta+" "+path;
+        }
+    }
+    
+    public static class DiffResult
+    {
+        public final List<DiffEntry> entries=new ArrayList<>();
+        public final List<String> errors=new ArrayList<>();
+        /**
+         * Files skipped because of the same inode
+         */
+        public long linked;
+        /**
+         * Files with different inodes whose metadata was compared
+         */
+        public long compared;
+        
+        protected void add(DiffEntry entry)
+        {
+            entries.add(entry);
+        }
+        
+        protected void addAll(DiffResult other)
+        {
+            entries.addAll(other.entries);
+            errors.addAll(other.errors);
+            linked+=other.linked;
+            compared+=other.compared;
+        }
+    }
+}
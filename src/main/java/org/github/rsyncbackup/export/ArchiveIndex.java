@@ -0,0 +1,301 @@
+package org.github.rsyncbackup.export;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Side index of an exported archive ({archive}.index): the frames of the archive (see FramedOutputStream) and the
+ * position, size and CRC32 of each entry's data in the uncompressed tar stream. A single file is extracted by
+ * decompressing only the frames that contain its data.
+ */
+public class ArchiveIndex
+{
+    public static final String SUFFIX=".index";
+    protected static final String MAGIC="RSYNCBACKUP-ARCHIVE-INDEX-1";
+    
+    public boolean compressed;
+    /**
+     * Compressed and uncompressed offset of each frame, followed by the end of the archive
+     */
+    public final List<long[]> frames=new ArrayList<>();
+    public final Map<String,Entry> entries=new LinkedHashMap<>();
+    /**
+     * The entries in the order they were added
+     */
+    protected final List<Entry> positions=new ArrayList<>();
+    
+    public static class Entry
+    {
+        public String path;
+        public char type;
+        /**
+         * Position of the data in the uncompressed tar stream
+         */
+        public long dataOffset;
+        public long size;
+        public long crc;
+        /**
+         * Target of a symlink or hard link, null otherwise
+         */
+        public String linkName;
+    }
+    
+    public static File getIndexFile(File archive)
+    {
+        return new File(archive.getAbsoluteFile().getParentFile(),archive.getName()+SUFFIX);
+    }
+    
+    /**
+     * @return the position of the entry (see getEntry)
+     */
+    public int add(Entry entry)
+    {
+        entries.put(entry.path, entry);
+        positions.add(entry);
+        return positions.size()-1;
+    }
+    
+    public Entry getEntry(int position)
+    {
+        return positions.get(position);
+    }
+    
+    /**
+     * @return the entry that holds the data of the file (the target of a hard link) or null if there's no such file
+     */
+    public Entry getFileEntry(String path)
+    {
+        Entry entry=entries.get(path);
+        if (entry!=null && entry.type==TarWriter.TYPE_HARDLINK) entry=entries.get(entry.linkName);
+        return (entry!=null && entry.type==TarWriter.TYPE_FILE)?entry:null;
+    }
+    
+    public void write(File file) throws IOException
+    {
+        File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+        try (Writer out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)))
+        {
+            out.write(MAGIC+"\n");
+            out.write("compressed\t"+compressed+"\n");
+            for (long[] frame: frames)
+            {
+                out.write("F\t"+frame[0]+"\t"+frame[1]+"\n");
+            }
+            for (Entry entry: entries.values())
+            {
+                out.write("E\t"+entry.type+"\t"+entry.dataOffset+"\t"+entry.size+"\t"+entry.crc+"\t"+escape(entry.path)
+                        +((entry.linkName==null)?"":"\t"+escape(entry.linkName))+"\n");
+            }
+        }
+        if (!tempFile.renameTo(file)) throw new IOException("Unable to rename "+tempFile+" to "+file);
+    }
+    
+    public static ArchiveIndex read(File file) throws IOException
+    {
+        ArchiveIndex index=new ArchiveIndex();
+        try (BufferedReader in=new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+        {
+            if (!MAGIC.equals(in.readLine())) throw new IOException("Not an archive index: "+file);
+            String line;
+            while ((line=in.readLine())!=null)
+            {
+                String[] parts=line.split("\t");
+                if (parts[0].equals("compressed"))
+                {
+                    index.compressed=Boolean.parseBoolean(parts[1]);
+                }
+                else if (parts[0].equals("F"))
+                {
+                    index.frames.add(new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+                }
+                else if (parts[0].equals("E"))
+                {
+                    Entry entry=new Entry();
+                    entry.type=parts[1].charAt(0);
+                    entry.dataOffset=Long.parseLong(parts[2]);
+                    entry.size=Long.parseLong(parts[3]);
+                    entry.crc=Long.parseLong(parts[4]);
+                    entry.path=unescape(parts[5]);
+                    if (parts.length>6) entry.linkName=unescape(parts[6]);
+                    index.add(entry);
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Extracts the data of a single file, decompressing only the frames that contain it
+     * @param decompressCmd command that decompresses stdin to stdout (ignored for uncompressed archives)
+     */
+    public void extract(File archive, String path, OutputStream out, List<String> decompressCmd) throws IOException
+    {
+        Entry entry=getFileEntry(path);
+        if (entry==null) throw new IOException("No such file in the archive: "+path);
+        if (entry.size==0) return;
+        
+        int first=findFrame(entry.dataOffset);
+        int last=findFrame(entry.dataOffset+entry.size-1);
+        long[] start=frames.get(first);
+        try (InputStream in=openFrames(archive, start[0], frames.get(last+1)[0], decompressCmd))
+        {
+            IOUtils.skipFully(in, entry.dataOffset-start[1]);
+            CRC32 crc=new CRC32();
+            byte[] buffer=new byte[65536];
+            long remaining=entry.size;
+            while (remaining>0)
+            {
+                int count=in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count<0) throw new IOException("Archive truncated: "+archive);
+                out.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+                remaining-=count;
+            }
+            if (crc.getValue()!=entry.crc) throw new IOException("CRC mismatch in "+path);
+        }
+    }
+    
+    /**
+     * Reads the whole archive and checks the data of every file against its CRC32
+     * @return the number of verified files
+     */
+    public int verify(File archive, List<String> decompressCmd) throws IOException
+    {
+        long[] end=frames.get(frames.size()-1);
+        if (archive.length()!=end[0]) throw new IOException("Archive size "+archive.length()+" does not match the index ("+end[0]+")");
+        
+        int verified=0;
+        try (InputStream in=openFrames(archive, 0, end[0], decompressCmd))
+        {
+            long position=0;
+            byte[] buffer=new byte[65536];
+            for (Entry entry: entries.values())
+            {
+                if (entry.type!=TarWriter.TYPE_FILE) continue;
+                IOUtils.skipFully(in, entry.dataOffset-position);
+                CRC32 crc=new CRC32();
+                long remaining=entry.size;
+                while (remaining>0)
+                {
+                    int count=in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count<0) throw new IOException("Archive truncated at "+entry.path);
+                    crc.update(buffer, 0, count);
+                    remaining-=count;
+                }
+                if (crc.getValue()!=entry.crc) throw new IOException("CRC mismatch in "+entry.path);
+                position=entry.dataOffset+entry.size;
+                verified++;
+            }
+            IOUtils.skipFully(in, end[1]-position);
+            if (in.read()>=0) throw new IOException("Archive is longer than the index");
+        }
+        return verified;
+    }
+    
+    /**
+     * @return the frame that contains the uncompressed position
+     */
+    protected int findFrame(long position)
+    {
+        int low=0;
+        int high=frames.size()-2;
+        while (low<high)
+        {
+            int middle=(low+high+1)/2;
+            if (frames.get(middle)[1]<=position) low=middle;
+            else high=middle-1;
+        }
+        return low;
+    }
+    
+    /**
+     * @return the uncompressed stream of the archive's bytes from start to end, which must be frame boundaries
+     */
+    protected InputStream openFrames(File archive, long start, long end, List<String> decompressCmd) throws IOException
+    {
+        final FileInputStream file=new FileInputStream(archive);
+        IOUtils.skipFully(file, start);
+        final InputStream range=new BoundedInputStream(file, end-start);
+        if (!compressed) return range;
+        
+        final Process proc=new ProcessBuilder(decompressCmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final Thread feeder=new Thread("Decompress")
+        {
+            @Override
+            public void run()
+            {
+                try (OutputStream in=proc.getOutputStream())
+                {
+                    IOUtils.copyLarge(range, in);
+                }
+                catch (IOException ex)
+                {
+                    // closed early after the needed data
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(range);
+                }
+            }
+        };
+        feeder.start();
+        return new FilterInputStream(proc.getInputStream())
+        {
+            @Override
+            public void close() throws IOException
+            {
+                proc.destroy();
+                super.close();
+                try
+                {
+                    feeder.join();
+                }
+                catch (InterruptedException ex)
+                {
+                    throw new IOException(ex);
+                }
+            }
+        };
+    }
+    
+    protected static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+    
+    protected static String unescape(String value)
+    {
+        StringBuilder result=new StringBuilder(value.length());
+        for (int i=0;i<value.length();i++)
+        {
+            char c=value.charAt(i);
+            if (c=='\\' && i+1<value.length())
+            {
+                c=value.charAt(++i);
+                if (c=='t') c='\t';
+                else if (c=='n') c='\n';
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
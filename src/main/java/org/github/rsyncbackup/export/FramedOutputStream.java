@@ -0,0 +1,196 @@
+package org.github.rsyncbackup.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cuts a stream into frames of frameSize bytes and compresses each frame separately with an external command (e.g.
+ * zstd -c), threads frames at a time. Concatenated zstd (or gzip) frames are a valid stream for the decompressor, and
+ * each frame can also be decompressed on its own, starting at its offset in the archive (see ArchiveIndex).
+ *
+ * Without a command, the data is written uncompressed, still split into frames of frameSize bytes.
+ */
+public class FramedOutputStream extends OutputStream
+{
+    protected final OutputStream out;
+    protected final List<String> compressCmd;
+    protected final ExecutorService executor;
+    protected final int maxPending;
+    /**
+     * Compressed frames, in order
+     */
+    protected final Deque<Future<byte[]>> pending=new ArrayDeque<>();
+    protected final List<long[]> frames=new ArrayList<>();
+    protected byte[] buffer;
+    protected int bufferLength;
+    protected long position;
+    protected long compressedPosition;
+    protected int writtenFrames;
+    
+    /**
+     * @param compressCmd command that compresses stdin to stdout, null for no compression
+     */
+    public FramedOutputStream(OutputStream out, List<String> compressCmd, int threads, int frameSize)
+    {
+        this.out=out;
+        this.compressCmd=compressCmd;
+        this.executor=(compressCmd==null)?null:Executors.newFixedThreadPool(threads);
+        this.maxPending=threads*2;
+        this.buffer=new byte[frameSize];
+    }
+    
+    /**
+     * @return the uncompressed bytes written so far
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+    
+    /**
+     * @return the frames (compressed offset, uncompressed offset), followed by the end of the stream. Complete after close
+     */
+    public List<long[]> getFrames()
+    {
+        return frames;
+    }
+    
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        while (length>0)
+        {
+            int count=Math.min(length, buffer.length-bufferLength);
+            System.arraycopy(data, offset, buffer, bufferLength, count);
+            bufferLength+=count;
+            position+=count;
+            offset+=count;
+            length-=count;
+            if (bufferLength==buffer.length) flushFrame();
+        }
+    }
+    
+    protected void flushFrame() throws IOException
+    {
+        if (bufferLength==0) return;
+        
+        final byte[] frame=Arrays.copyOf(buffer, bufferLength);
+        frames.add(new long[] {-1, position-bufferLength});
+        bufferLength=0;
+        if (executor==null)
+        {
+            writeFrame(frame);
+            return;
+        }
+        
+        pending.add(executor.submit(new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call() throws Exception
+            {
+                return compress(compressCmd, frame);
+            }
+        }));
+        while (pending.size()>maxPending)
+        {
+            writePending();
+        }
+    }
+    
+    protected void writePending() throws IOException
+    {
+        try
+        {
+            writeFrame(pending.poll().get());
+        }
+        catch (InterruptedException|ExecutionException ex)
+        {
+            throw new IOException("Compression failed", ex);
+        }
+    }
+    
+    protected void writeFrame(byte[] frame) throws IOException
+    {
+        // frames are written in order
+        frames.get(writtenFrames++)[0]=compressedPosition;
+        out.write(frame);
+        compressedPosition+=frame.length;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flushFrame();
+            while (!pending.isEmpty())
+            {
+                writePending();
+            }
+            frames.add(new long[] {compressedPosition, position});
+            out.close();
+        }
+        finally
+        {
+            if (executor!=null) executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs the command with data as stdin
+     * @return its stdout
+     */
+    protected static byte[] compress(List<String> cmd, final byte[] data) throws IOException, InterruptedException
+    {
+        final Process proc=new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Thread feeder=new Thread("Compress")
+        {
+            @Override
+            public void run()
+            {
+                try (OutputStream in=proc.getOutputStream())
+                {
+                    in.write(data);
+                }
+                catch (IOException ex)
+                {
+                    // the exit code fails the frame
+                }
+            }
+        };
+        feeder.start();
+        
+        ByteArrayOutputStream result=new ByteArrayOutputStream(data.length/2);
+        try (InputStream in=proc.getInputStream())
+        {
+            byte[] buffer=new byte[65536];
+            int count;
+            while ((count=in.read(buffer))>=0)
+            {
+                result.write(buffer, 0, count);
+            }
+        }
+        feeder.join();
+        int exitCode=proc.waitFor();
+        if (exitCode!=0) throw new IOException(cmd.get(0)+" exited with status "+exitCode);
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package org.github.rsyncbackup.export;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The first exported entry of each inode with several links, stored off-heap (an open addressing hash table in a
+ * direct ByteBuffer, like InodeRefCounts), so that exports of tens of millions of hard links don't need a java object
+ * per inode. The entry is referenced by its position in the ArchiveIndex, its path is already held there.
+ */
+public class LinkTargets
+{
+    /**
+     * Slot: dev+1 (0 is empty), inode (long each), entry position (int), unused
+     */
+    protected static final int SLOT_SIZE=24;
+    protected static final int MAX_SLOTS=Integer.MAX_VALUE/SLOT_SIZE;
+    protected static final double MAX_LOAD=0.7;
+    
+    protected ByteBuffer table;
+    protected int slots;
+    protected int size;
+    
+    public LinkTargets()
+    {
+        this(1024);
+    }
+    
+    public LinkTargets(int initialSlots)
+    {
+        allocate(Math.max(16, Integer.highestOneBit(initialSlots-1)<<1));
+    }
+    
+    protected void allocate(int slots)
+    {
+        this.slots=slots;
+        this.size=0;
+        this.table=ByteBuffer.allocateDirect(slots*SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * @return the entry position of the inode, -1 if it was not exported yet
+     */
+    public int get(long dev, long inode)
+    {
+        int pos=findSlot(dev, inode)*SLOT_SIZE;
+        return (table.getLong(pos)==0)?-1:table.getInt(pos+16);
+    }
+    
+    public void put(long dev, long inode, int entry)
+    {
+        int pos=findSlot(dev, inode)*SLOT_SIZE;
+        if (table.getLong(pos)==0)
+        {
+            table.putLong(pos, dev+1);
+            table.putLong(pos+8, inode);
+            size++;
+        }
+        table.putInt(pos+16, entry);
+        if (size>slots*MAX_LOAD) grow();
+    }
+    
+    /**
+     * @return the slot of the inode or the empty slot where it belongs
+     */
+    protected int findSlot(long dev, long inode)
+    {
+        long key=dev+1;
+        int slot=hash(key, inode) & (slots-1);
+        while (true)
+        {
+            int pos=slot*SLOT_SIZE;
+            long current=table.getLong(pos);
+            if (current==0 || (current==key && table.getLong(pos+8)==inode)) return slot;
+            slot=(slot+1) & (slots-1);
+        }
+    }
+    
+    protected static int hash(long dev, long inode)
+    {
+        long h=(inode*31+dev)*0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h>>>32));
+    }
+    
+    protected void grow()
+    {
+        if (slots*2>MAX_SLOTS) throw new IllegalStateException("Too many inodes: "+size);
+        
+        ByteBuffer old=this.table;
+        int oldSlots=this.slots;
+        allocate(oldSlots*2);
+        for (int i=0;i<oldSlots;i++)
+        {
+            int oldPos=i*SLOT_SIZE;
+            long key=old.getLong(oldPos);
+            if (key==0) continue;
+            long inode=old.getLong(oldPos+8);
+            int pos=findSlot(key-1, inode)*SLOT_SIZE;
+            table.putLong(pos, key);
+            table.putLong(pos+8, inode);
+            table.putInt(pos+16, old.getInt(oldPos+16));
+            size++;
+        }
+    }
+    
+    /**
+     * @return the number of distinct inodes
+     */
+    public int size()
+    {
+        return size;
+    }
+}
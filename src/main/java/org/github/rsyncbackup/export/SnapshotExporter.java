@@ -0,0 +1,278 @@
+package org.github.rsyncbackup.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.impl.HostDir;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams backups of a host into one tar archive (entries "backup-yyyy-MM-dd-HH:mm:ss/VOLUME/..."), compressed in
+ * frames (see FramedOutputStream), with a side index (see ArchiveIndex). Inodes that are shared between the backups
+ * (or within one) are stored once, all further paths are hard link entries (see LinkTargets). Chunked files (see
+ * ChunkStore) are restored and stored as the original file. The xattrs (owner and permissions stored by rsync
+ * --fake-super) are kept as pax headers, the tar owner and mode are taken from them.
+ */
+public class SnapshotExporter
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(SnapshotExporter.class);
+    
+    protected static final String FAKE_SUPER_XATTR="rsync.%stat";
+    
+    protected final List<String> compressCmd;
+    protected final int threads;
+    protected final int frameSize;
+    
+    /**
+     * @param compressCmd command that compresses stdin to stdout, null for a plain tar
+     */
+    public SnapshotExporter(List<String> compressCmd, int threads, int frameSize)
+    {
+        this.compressCmd=compressCmd;
+        this.threads=threads;
+        this.frameSize=frameSize;
+    }
+    
+    /**
+     * Writes the archive and its index ({archive}.index). Both are replaced only when complete
+     */
+    public ExportResult export(HostDir hostDir, List<LocalDateTime> backups, File archive) throws IOException
+    {
+        File tempArchive=new File(archive.getAbsoluteFile().getParentFile(),archive.getName()+".tmp");
+        File tempDir=Files.createTempDirectory(archive.getAbsoluteFile().getParentFile().toPath(), ".export").toFile();
+        ExportResult result=new ExportResult();
+        ArchiveIndex index=new ArchiveIndex();
+        index.compressed=(compressCmd!=null);
+        try
+        {
+            FramedOutputStream out=new FramedOutputStream(new BufferedOutputStream(new FileOutputStream(tempArchive)), compressCmd, threads, frameSize);
+            try
+            {
+                TarWriter tar=new TarWriter(out);
+                LinkTargets inodes=new LinkTargets();
+                for (LocalDateTime backup: backups)
+                {
+                    File backupDir=hostDir.getBackupDir(backup);
+                    if (!backupDir.isDirectory()) throw new IOException("Backup not found: "+backupDir);
+                    LOG.info("Exporting {}",backupDir.getName());
+                    exportTree(backupDir.toPath(), backupDir.getName(), tar, index, inodes, tempDir, result);
+                }
+                tar.finish();
+            }
+            finally
+            {
+                out.close();
+            }
+            index.frames.addAll(out.getFrames());
+            result.bytes=out.getPosition();
+            result.compressedBytes=tempArchive.length();
+            
+            index.write(ArchiveIndex.getIndexFile(archive));
+            if (!tempArchive.renameTo(archive)) throw new IOException("Unable to rename "+tempArchive+" to "+archive);
+            return result;
+        }
+        finally
+        {
+            tempArchive.delete();
+            tempDir.delete();
+        }
+    }
+    
+    protected void exportTree(final Path root, final String rootName, final TarWriter tar, final ArchiveIndex index,
+            final LinkTargets inodes, final File tempDir, final ExportResult result) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                String name=getName(dir)+"/";
+                Metadata metadata=readMetadata(dir, attrs);
+                long offset=tar.putEntry(name, TarWriter.TYPE_DIRECTORY, 0, metadata.mode, metadata.uid, metadata.gid, metadata.mtime, null, metadata.xattrs);
+                addEntry(name, TarWriter.TYPE_DIRECTORY, offset, 0, 0, null);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                String name=getName(file);
+                Metadata metadata=readMetadata(file, attrs);
+                if (attrs.isSymbolicLink())
+                {
+                    String target=Files.readSymbolicLink(file).toString();
+                    long offset=tar.putEntry(name, TarWriter.TYPE_SYMLINK, 0, metadata.mode, metadata.uid, metadata.gid, metadata.mtime, target, metadata.xattrs);
+                    addEntry(name, TarWriter.TYPE_SYMLINK, offset, 0, 0, target);
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!attrs.isRegularFile())
+                {
+                    LOG.warn("Skipping special file {}",file);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                boolean chunked=name.endsWith(ChunkStore.MANIFEST_SUFFIX);
+                if (chunked) name=name.substring(0,name.length()-ChunkStore.MANIFEST_SUFFIX.length());
+                
+                if (metadata.nlink>1)
+                {
+                    int position=inodes.get(metadata.dev, metadata.ino);
+                    if (position>=0)
+                    {
+                        String first=index.getEntry(position).path;
+                        long offset=tar.putEntry(name, TarWriter.TYPE_HARDLINK, 0, metadata.mode, metadata.uid, metadata.gid, metadata.mtime, first, metadata.xattrs);
+                        addEntry(name, TarWriter.TYPE_HARDLINK, offset, 0, 0, first);
+                        result.hardlinks++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+                
+                File source=file.toFile();
+                if (chunked)
+                {
+                    source=new File(tempDir,"restored");
+                    ChunkStore.forManifest(file.toFile()).restore(file.toFile(), source);
+                    result.chunkedFiles++;
+                }
+                try (InputStream in=new FileInputStream(source))
+                {
+                    long size=source.length();
+                    long offset=tar.putEntry(name, TarWriter.TYPE_FILE, size, metadata.mode, metadata.uid, metadata.gid, metadata.mtime, null, metadata.xattrs);
+                    long crc=tar.writeData(in, size);
+                    int position=addEntry(name, TarWriter.TYPE_FILE, offset, size, crc, null);
+                    if (metadata.nlink>1) inodes.put(metadata.dev, metadata.ino, position);
+                    result.files++;
+                    result.fileBytes+=size;
+                }
+                finally
+                {
+                    if (chunked) source.delete();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            protected String getName(Path path)
+            {
+                String relative=root.relativize(path).toString();
+                return relative.isEmpty()?rootName:rootName+"/"+relative;
+            }
+            
+            protected int addEntry(String name, char type, long offset, long size, long crc, String linkName)
+            {
+                ArchiveIndex.Entry entry=new ArchiveIndex.Entry();
+                entry.path=name;
+                entry.type=type;
+                entry.dataOffset=offset;
+                entry.size=size;
+                entry.crc=crc;
+                entry.linkName=linkName;
+                return index.add(entry);
+            }
+        });
+    }
+    
+    protected static class Metadata
+    {
+        int mode;
+        long uid;
+        long gid;
+        long mtime;
+        long dev;
+        long ino;
+        int nlink;
+        Map<String,byte[]> xattrs;
+    }
+    
+    protected static Metadata readMetadata(Path file, BasicFileAttributes attrs) throws IOException
+    {
+        Map<String,Object> unix=Files.readAttributes(file, "unix:mode,uid,gid,dev,ino,nlink", LinkOption.NOFOLLOW_LINKS);
+        Metadata metadata=new Metadata();
+        metadata.mode=((Number) unix.get("mode")).intValue();
+        metadata.uid=((Number) unix.get("uid")).longValue();
+        metadata.gid=((Number) unix.get("gid")).longValue();
+        metadata.dev=((Number) unix.get("dev")).longValue();
+        metadata.ino=((Number) unix.get("ino")).longValue();
+        metadata.nlink=((Number) unix.get("nlink")).intValue();
+        metadata.mtime=attrs.lastModifiedTime().to(TimeUnit.SECONDS);
+        metadata.xattrs=readXattrs(file);
+        
+        // "mode major,minor uid:gid" as stored by rsync --fake-super
+        byte[] fakeSuper=metadata.xattrs.get(FAKE_SUPER_XATTR);
+        if (fakeSuper!=null)
+        {
+            String[] parts=new String(fakeSuper, StandardCharsets.US_ASCII).trim().split(" ");
+            try
+            {
+                metadata.mode=Integer.parseInt(parts[0], 8);
+                String[] uidGid=parts[parts.length-1].split(":");
+                if (uidGid.length==2)
+                {
+                    metadata.uid=Long.parseLong(uidGid[0]);
+                    metadata.gid=Long.parseLong(uidGid[1]);
+                }
+            }
+            catch (NumberFormatException ex)
+            {
+                LOG.warn("Invalid {} of {}",FAKE_SUPER_XATTR,file);
+            }
+        }
+        return metadata;
+    }
+    
+    /**
+     * @return the user xattrs, sorted by name
+     */
+    protected static Map<String,byte[]> readXattrs(Path file)
+    {
+        Map<String,byte[]> xattrs=new TreeMap<>();
+        UserDefinedFileAttributeView view=Files.getFileAttributeView(file, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (view==null) return xattrs;
+        try
+        {
+            for (String name: view.list())
+            {
+                ByteBuffer value=ByteBuffer.allocate(view.size(name));
+                view.read(name, value);
+                xattrs.put(name, value.array());
+            }
+        }
+        catch (IOException ex)
+        {
+            // not supported (e.g. symlinks)
+        }
+        return xattrs;
+    }
+    
+    public static class ExportResult
+    {
+        public int files;
+        public int hardlinks;
+        public int chunkedFiles;
+        public long fileBytes;
+        /**
+         * Size of the uncompressed tar stream
+         */
+        public long bytes;
+        public long compressedBytes;
+    }
+}
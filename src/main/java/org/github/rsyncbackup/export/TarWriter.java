@@ -0,0 +1,190 @@
+package org.github.rsyncbackup.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a POSIX (pax) tar stream. Names longer than the ustar fields, large sizes and ids and the user xattrs (which
+ * hold the owner and permissions stored by rsync --fake-super) are written as pax extended headers, readable by GNU
+ * tar (--xattrs) and bsdtar.
+ */
+public class TarWriter
+{
+    public static final char TYPE_FILE='0';
+    public static final char TYPE_HARDLINK='1';
+    public static final char TYPE_SYMLINK='2';
+    public static final char TYPE_DIRECTORY='5';
+    protected static final char TYPE_PAX='x';
+    
+    protected static final int BLOCK_SIZE=512;
+    protected static final long MAX_OCTAL_SIZE=077777777777L;
+    protected static final long MAX_OCTAL_ID=07777777L;
+    
+    protected final FramedOutputStream out;
+    
+    public TarWriter(FramedOutputStream out)
+    {
+        this.out=out;
+    }
+    
+    /**
+     * Writes the header of an entry
+     * @param linkName target of a symlink or hard link, null otherwise
+     * @param xattrs user xattrs (name without "user.") or null
+     * @return the position of the entry's data in the (uncompressed) stream
+     */
+    public long putEntry(String name, char type, long size, int mode, long uid, long gid, long mtimeSeconds, String linkName,
+            Map<String,byte[]> xattrs) throws IOException
+    {
+        Map<String,byte[]> pax=new LinkedHashMap<>();
+        byte[] nameBytes=name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length>100 || !isAscii(nameBytes)) pax.put("path", nameBytes);
+        if (linkName!=null)
+        {
+            byte[] linkBytes=linkName.getBytes(StandardCharsets.UTF_8);
+            if (linkBytes.length>100 || !isAscii(linkBytes)) pax.put("linkpath", linkBytes);
+        }
+        if (size>MAX_OCTAL_SIZE) pax.put("size", Long.toString(size).getBytes(StandardCharsets.UTF_8));
+        if (uid>MAX_OCTAL_ID) pax.put("uid", Long.toString(uid).getBytes(StandardCharsets.UTF_8));
+        if (gid>MAX_OCTAL_ID) pax.put("gid", Long.toString(gid).getBytes(StandardCharsets.UTF_8));
+        if (xattrs!=null) for (Map.Entry<String,byte[]> xattr: xattrs.entrySet())
+        {
+            pax.put("SCHILY.xattr.user."+xattr.getKey(), xattr.getValue());
+        }
+        
+        if (!pax.isEmpty())
+        {
+            byte[] records=createPaxRecords(pax);
+            String paxName="PaxHeaders/"+truncate(name, 80);
+            out.write(createHeader(paxName, TYPE_PAX, records.length, 0644, 0, 0, mtimeSeconds, null));
+            out.write(records);
+            pad(records.length);
+        }
+        out.write(createHeader(name, type, size, mode, uid, gid, mtimeSeconds, linkName));
+        return out.getPosition();
+    }
+    
+    /**
+     * Writes the data of the current entry
+     * @return the CRC32 of the data
+     */
+    public long writeData(InputStream in, long size) throws IOException
+    {
+        CRC32 crc=new CRC32();
+        byte[] buffer=new byte[65536];
+        long remaining=size;
+        while (remaining>0)
+        {
+            int count=in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (count<0) throw new IOException("File shrunk during export, "+remaining+" bytes missing");
+            out.write(buffer, 0, count);
+            crc.update(buffer, 0, count);
+            remaining-=count;
+        }
+        pad(size);
+        return crc.getValue();
+    }
+    
+    /**
+     * Writes the end of archive marker
+     */
+    public void finish() throws IOException
+    {
+        out.write(new byte[BLOCK_SIZE*2]);
+    }
+    
+    protected void pad(long size) throws IOException
+    {
+        int padding=(int) ((BLOCK_SIZE-size%BLOCK_SIZE)%BLOCK_SIZE);
+        if (padding>0) out.write(new byte[padding]);
+    }
+    
+    protected static byte[] createHeader(String name, char type, long size, int mode, long uid, long gid, long mtimeSeconds, String linkName)
+    {
+        byte[] header=new byte[BLOCK_SIZE];
+        putString(header, 0, 100, name);
+        putOctal(header, 100, 8, mode & 07777);
+        putOctal(header, 108, 8, Math.min(uid, MAX_OCTAL_ID));
+        putOctal(header, 116, 8, Math.min(gid, MAX_OCTAL_ID));
+        putOctal(header, 124, 12, Math.min(size, MAX_OCTAL_SIZE));
+        putOctal(header, 136, 12, Math.max(0, mtimeSeconds));
+        header[156]=(byte) type;
+        if (linkName!=null) putString(header, 157, 100, linkName);
+        putString(header, 257, 6, "ustar");
+        header[263]='0';
+        header[264]='0';
+        
+        // checksum with the checksum field as spaces
+        for (int i=148;i<156;i++)
+        {
+            header[i]=' ';
+        }
+        long checksum=0;
+        for (byte b: header)
+        {
+            checksum+=b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[154]=0;
+        return header;
+    }
+    
+    /**
+     * Writes the string (truncated, the full value is in the pax header)
+     */
+    protected static void putString(byte[] header, int offset, int length, String value)
+    {
+        byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+    }
+    
+    /**
+     * Writes the value as length-1 octal digits, terminated by NUL
+     */
+    protected static void putOctal(byte[] header, int offset, int length, long value)
+    {
+        String octal=Long.toOctalString(value);
+        while (octal.length()<length-1) octal="0"+octal;
+        putString(header, offset, length-1, octal);
+    }
+    
+    /**
+     * @return records "length key=value\n", where length includes itself
+     */
+    protected static byte[] createPaxRecords(Map<String,byte[]> pax)
+    {
+        ByteArrayOutputStream records=new ByteArrayOutputStream();
+        for (Map.Entry<String,byte[]> entry: pax.entrySet())
+        {
+            byte[] key=(" "+entry.getKey()+"=").getBytes(StandardCharsets.UTF_8);
+            int length=key.length+entry.getValue().length+1;
+            int total=length+Integer.toString(length).length();
+            if (Integer.toString(total).length()>Integer.toString(length).length()) total++;
+            byte[] prefix=Integer.toString(total).getBytes(StandardCharsets.UTF_8);
+            records.write(prefix, 0, prefix.length);
+            records.write(key, 0, key.length);
+            records.write(entry.getValue(), 0, entry.getValue().length);
+            records.write('\n');
+        }
+        return records.toByteArray();
+    }
+    
+    protected static boolean isAscii(byte[] bytes)
+    {
+        for (byte b: bytes)
+        {
+            if (b<0x20) return false; // negative for non-ASCII
+        }
+        return true;
+    }
+    
+    protected static String truncate(String name, int length)
+    {
+        return (name.length()<=length)?name:name.substring(name.length()-length);
+    }
+}
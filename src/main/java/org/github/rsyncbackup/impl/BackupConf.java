@@ -1,16 +1,31 @@
 package org.github.rsyncbackup.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.reflect.Field;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.github.rsyncbackup.keep.IBackupKeepStrategy;
 import org.github.rsyncbackup.keep.IntervalKeepStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.esotericsoftware.yamlbeans.YamlReader;
 
@@ -21,35 +36,212 @@ public class BackupConf
         BackupConf.read(new File("backup.conf"));
     }
     
+    protected static final Logger LOG=LoggerFactory.getLogger(BackupConf.class);
+    
+    protected static final String CACHE_VERSION="5";
+    
+    protected static final PlaceholderResolver placeholderResolver=new PlaceholderResolver(ConfHost.class);
+    
+    /**
+     * Reads the config file and all inventory files (hosts.d/*.conf next to the config file). The parsed and
+     * validated result is cached in a binary snapshot, which is used as long as none of the files changed
+     * and no host directory was created or moved on the storage pools.
+     */
     public static BackupConf read(File source) throws Exception
     {
-        YamlReader reader = new YamlReader(new InputStreamReader(new FileInputStream(source),"utf-8"));
+        List<File> inventoryFiles=listInventoryFiles(new File(source.getAbsoluteFile().getParentFile(),"hosts.d"));
+        File cacheFile=new File(source.getAbsoluteFile().getParentFile(),"."+source.getName()+".cache");
+        String fingerprint=createFingerprint(source, inventoryFiles);
         
+        BackupConf conf=readCache(cacheFile, fingerprint);
+        if (conf!=null) return conf;
+        
+        conf=parse(source, inventoryFiles);
+        writeCache(cacheFile, fingerprint, conf);
+        return conf;
+    }
+    
+    protected static List<File> listInventoryFiles(File inventoryDir)
+    {
+        List<File> inventoryFiles=new ArrayList<>();
+        File[] files=inventoryDir.listFiles();
+        if (files!=null) for (File file: files)
+        {
+            if (file.isFile() && file.getName().endsWith(".conf")) inventoryFiles.add(file);
+        }
+        Collections.sort(inventoryFiles);
+        return inventoryFiles;
+    }
+    
+    protected static BackupConf parse(File source, List<File> inventoryFiles) throws Exception
+    {
+        BackupConfHolder holder=readHolder(source);
+        
+        final ConfHost hostDefaults=holder.defaults;
+        if (hostDefaults==null) holder.defaults=createDefaultHostConf();
+        else hostDefaults.applyDefaults(createDefaultHostConf());
+        
+        BackupConf conf=new BackupConf();
+        conf.hostMap=new LinkedHashMap<>();
+        conf.storagePools=new StoragePools(holder.pools);
+        conf.verifyBudgetBytes=(holder.verifyBudgetGB==null)?0:holder.verifyBudgetGB*1024L*1024*1024;
+        conf.memoryBudgetBytes=(holder.memoryBudgetMB==null)?0:holder.memoryBudgetMB*1024L*1024;
+        conf.clusterDir=holder.clusterDir;
+        conf.clusterLeaseMillis=((holder.clusterLeaseSeconds==null)?120:holder.clusterLeaseSeconds)*1000L;
+        
+        List<Callable<List<ConfHost>>> tasks=new ArrayList<>();
+        tasks.add(new HostsParser(source, holder, holder.defaults, conf.storagePools));
+        for (File inventoryFile: inventoryFiles)
+        {
+            tasks.add(new HostsParser(inventoryFile, null, holder.defaults, conf.storagePools));
+        }
+        
+        ExecutorService parserExecutor=Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try
+        {
+            List<Future<List<ConfHost>>> results=parserExecutor.invokeAll(tasks);
+            for (int i=0;i<tasks.size();i++)
+            {
+                File file=((HostsParser) tasks.get(i)).file;
+                List<ConfHost> hosts;
+                try
+                {
+                    hosts=results.get(i).get();
+                }
+                catch (ExecutionException ex)
+                {
+                    throw new RuntimeException("Invalid config in "+file+": "+ex.getCause().getMessage(), ex.getCause());
+                }
+                for (ConfHost hostConf: hosts)
+                {
+                    if (conf.hostMap.containsKey(hostConf.host)) throw new RuntimeException("Duplicate host "+hostConf.host+" in "+file);
+                    conf.hostMap.put(hostConf.host,hostConf);
+                }
+            }
+        }
+        finally
+        {
+            parserExecutor.shutdown();
+        }
+        
+        conf.initialize();
+        
+        return conf;
+    }
+    
+    protected static BackupConfHolder readHolder(File file) throws Exception
+    {
+        YamlReader reader = new YamlReader(new InputStreamReader(new FileInputStream(file),"utf-8"));
         try
         {
             BackupConfHolder holder=reader.read(BackupConfHolder.class);
+            if (holder==null) holder=new BackupConfHolder(); // empty file
+            return holder;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Initializes everything that is not part of the cached snapshot
+     */
+    protected void initialize()
+    {
+        Map<String,IBackupKeepStrategy> keepStrategies=new HashMap<>();
+        for (ConfHost hostConf: hostMap.values())
+        {
+            hostConf.initialize(keepStrategies);
+        }
+        for (ConfHost hostConf: hostMap.values())
+        {
+            hostConf.initializeProxy(this);
+        }
+    }
+    
+    protected static String createFingerprint(File source, List<File> inventoryFiles)
+    {
+        StringBuilder fingerprint=new StringBuilder();
+        try
+        {
+            // defaults may change with a new version
+            fingerprint.append(BackupConf.class.getResource("BackupConf.class").openConnection().getLastModified()).append('\n');
+        }
+        catch (IOException ex)
+        {
+            // ignored
+        }
+        List<File> files=new ArrayList<>();
+        files.add(source);
+        files.addAll(inventoryFiles);
+        for (File file: files)
+        {
+            fingerprint.append(file.getAbsolutePath()).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+        }
+        return fingerprint.toString();
+    }
+    
+    protected static BackupConf readCache(File cacheFile, String fingerprint)
+    {
+        if (!cacheFile.isFile()) return null;
+        
+        try (ObjectInputStream in=new ObjectInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+        {
+            if (!CACHE_VERSION.equals(in.readUTF())) return null;
+            if (!fingerprint.equals(in.readUTF())) return null;
             
             BackupConf conf=new BackupConf();
-            conf.hostMap=new LinkedHashMap<>();
-            
-            ConfHost hostDefaults=holder.defaults;
-            if (hostDefaults==null) hostDefaults=createDefaultHostConf();
-            else hostDefaults.applyDefaults(createDefaultHostConf());
+            conf.storagePools=new StoragePools((ConfPool[]) in.readObject());
+            if (!conf.storagePools.createFingerprint().equals(in.readUTF())) return null;
+            conf.verifyBudgetBytes=in.readLong();
+            conf.memoryBudgetBytes=in.readLong();
+            String clusterDir=in.readUTF();
+            conf.clusterDir=clusterDir.isEmpty()?null:clusterDir;
+            conf.clusterLeaseMillis=in.readLong();
             
-            
-            for (ConfHost hostConf: holder.hosts)
+            conf.hostMap=new LinkedHashMap<>();
+            for (ConfHost hostConf: (ConfHost[]) in.readObject())
             {
-                hostConf.applyDefaults(hostDefaults);
-                resolvePlaceholders(hostConf);
-                hostConf.initialize();
                 conf.hostMap.put(hostConf.host,hostConf);
             }
-            
+            conf.initialize();
+            LOG.debug("Using cached config {}",cacheFile);
             return conf;
         }
-        finally
+        catch (Exception ex)
         {
-            reader.close();
+            // e.g. ConfHost has changed
+            LOG.debug("Ignoring outdated config cache {}: {}",cacheFile,ex.toString());
+            return null;
+        }
+    }
+    
+    protected static void writeCache(File cacheFile, String fingerprint, BackupConf conf)
+    {
+        File tempFile=null;
+        try
+        {
+            // unique name, several processes may write the cache at the same time
+            tempFile=File.createTempFile(cacheFile.getName(),".tmp",cacheFile.getParentFile());
+            try (ObjectOutputStream out=new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+            {
+                out.writeUTF(CACHE_VERSION);
+                out.writeUTF(fingerprint);
+                out.writeObject(conf.storagePools.getPools().toArray(new ConfPool[0]));
+                out.writeUTF(conf.storagePools.createFingerprint());
+                out.writeLong(conf.verifyBudgetBytes);
+                out.writeLong(conf.memoryBudgetBytes);
+                out.writeUTF((conf.clusterDir==null)?"":conf.clusterDir);
+                out.writeLong(conf.clusterLeaseMillis);
+                out.writeObject(conf.hostMap.values().toArray(new ConfHost[conf.hostMap.size()]));
+            }
+            if (!tempFile.renameTo(cacheFile)) throw new IOException("Unable to rename "+tempFile+" to "+cacheFile);
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Unable to write config cache {}: {}",cacheFile,ex.toString());
+            if (tempFile!=null) tempFile.delete();
         }
     }
     
@@ -68,92 +260,97 @@ public class BackupConf
         conf.notifyZabbixRetryCount=3;
         conf.notifyZabbixServer=null;
         conf.notifyZabbixHost="${host}";
+        conf.proxyName="${host}";
+        conf.proxyMaxParallel=4;
+        conf.preBackupMaxAge=120;
+        conf.dumpEnabled=Boolean.FALSE;
+        conf.dumpParallel=2;
+        conf.dumpDir="DUMPS";
+        conf.cmdZstd="/usr/bin/zstd";
+        conf.scrubRecheckDays=90;
+        conf.retryAttempts=3;
+        conf.retryDelayMinutes=5;
+        conf.retryMaxDelayMinutes=60;
+        conf.retryBudgetMinutes=360;
+        conf.stallTimeoutMinutes=30;
+        conf.deadlineMinutes=0;
+        conf.minFreeSpacePercent=5;
+        conf.minFreeInodesPercent=5;
+        conf.spaceShortageAction="delay";
+        conf.verifyDays=0;
+        conf.prewarmThreads=0;
+        conf.skipUnchanged=Boolean.FALSE;
         return conf;
     }
     
     protected Map<String,ConfHost> hostMap;
+    protected StoragePools storagePools;
+    protected long verifyBudgetBytes;
+    protected long memoryBudgetBytes;
+    protected String clusterDir;
+    protected long clusterLeaseMillis;
     
-    public List<ConfHost> getAllHosts()
+    public StoragePools getStoragePools()
     {
-        return new ArrayList<>(hostMap.values());
+        return storagePools;
     }
     
-    public ConfHost getForHost(String hostname)
+    /**
+     * @return the bytes that all checksum verifications of a run may read (see VerifySchedule), 0 for unlimited
+     */
+    public long getVerifyBudgetBytes()
     {
-        ConfHost host=hostMap.get(hostname);
-        if (host == null) throw new RuntimeException("No configuration for host " + hostname);
-        return host;
+        return verifyBudgetBytes;
     }
     
+    /**
+     * @return the memory that all backups running in parallel may use (see BackupScheduler), 0 for unlimited
+     */
+    public long getMemoryBudgetBytes()
+    {
+        return memoryBudgetBytes;
+    }
     
-    protected static void resolvePlaceholders(Object o) throws Exception
+    /**
+     * @return the directory shared by all nodes of a cluster (see ClusterCoordinator), null if not clustered
+     */
+    public String getClusterDir()
     {
-        for (Field field: o.getClass().getFields())
-        {
-            if (field.getType()!=String.class) continue;
-            
-            String value=(String) field.get(o);
-            if (value==null) continue;
-            String newValue=resolvePlaceholders(value, o);
-            
-            if (!value.equals(newValue)) field.set(o,resolvePlaceholders(value, o));
-        }
+        return clusterDir;
     }
     
-    protected static String getPropertyAsString(Object o, String name)
+    public long getClusterLeaseMillis()
     {
-        try
-        {
-            Object result=o.getClass().getField(name).get(o);
-            if (result==null) return null;
-            return result.toString();
-        }
-        catch (Exception ex)
-        {
-            return null;
-        }
+        return clusterLeaseMillis;
     }
     
-    protected static String resolvePlaceholders(String value, Object o) throws Exception
+    public List<ConfHost> getAllHosts()
     {
-        if (value==null) return null;
-        
-        StringBuilder newValue=new StringBuilder();
-        
-        
-        int endPos=0;
-        int startPos=0;
-        for (;;)
-        {
-            startPos=value.indexOf("${", startPos);
-            if (startPos<0) break;
-            
-            newValue.append(value.substring(endPos, startPos));
-            
-            endPos=value.indexOf("}", startPos)+1;
-            if (endPos<startPos) throw new RuntimeException("Invalid placeholder in "+value);
-            
-            String placeholder=value.substring(startPos+2,endPos-1);
-            
-            String placeholderValue=getPropertyAsString(o, placeholder);
-            
-            if (placeholderValue==null) throw new RuntimeException("Unresolved placeholder '"+placeholder+"' in "+value);
-
-            newValue.append(placeholderValue);
-            
-            startPos=endPos;
-        }
-        newValue.append(value.substring(endPos));
-        
-        return newValue.toString();
+        return new ArrayList<>(hostMap.values());
+    }
+    
+    public ConfHost getForHost(String hostname)
+    {
+        ConfHost host=hostMap.get(hostname);
+        if (host == null) throw new RuntimeException("No configuration for host " + hostname);
+        return host;
     }
     
-    public static class ConfHost
+    
+    /**
+     * Note: there's intentionally no serialVersionUID, so that the config cache is invalidated when fields are added
+     */
+    @SuppressWarnings("serial")
+    public static class ConfHost implements Serializable
     {
         public String host;
         public String remoteAddress;
         public String storageDir;
         public String hostStorageDir;
+        /**
+         * Storage pool for a new host (if pools are configured). Default: the pool with the best score (see StoragePools)
+         */
+        public String storagePool;
         public String cmdNice;
         public String cmdRsync;
         public String cmdSsh;
@@ -162,15 +359,98 @@ public class BackupConf
         public Boolean scheduleEnabled;
         public Integer remoteSshPort;
         public ConfVolume[] volumes;
-        public IBackupKeepStrategy backupKeepStrategy;
+        public transient IBackupKeepStrategy backupKeepStrategy;
         
         public String notifyZabbixServer;
         public String notifyZabbixHost;
         public Integer notifyZabbixRetryCount;
         
+        /**
+         * Name of another configured host (the jump client) through which this host is reached.
+         * The jump client's backup_shell.sh must define PROXY_{proxyName}_HOST and PROXY_{proxyName}_PORT.
+         */
+        public String proxyHost;
+        public String proxyName;
+        /**
+         * When this host is used as jump client: number of hosts that may be backed up through it at the same time
+         */
+        public Integer proxyMaxParallel;
+        public transient ConfHost proxyConf;
+        /**
+         * Stored on a storage pool, see StoragePools.place
+         */
+        protected boolean pooled;
+        
+        /**
+         * Maximum age (minutes) of a prefetched PRE_BACKUP result. Older results are discarded and PRE_BACKUP runs again
+         */
+        public Integer preBackupMaxAge;
+        
+        /**
+         * Stream database dumps (DUMP_* commands of backup_shell.sh) directly into the backup
+         */
+        public Boolean dumpEnabled;
+        public Integer dumpParallel;
+        public String dumpDir;
+        public String cmdZstd;
+        
+        /**
+         * Days after which RSyncBackupScrub re-reads a file to verify its checksum
+         */
+        public Integer scrubRecheckDays;
+        
+        /**
+         * Number of retries after a network error (a partial transfer is retried once, see RetryPolicy)
+         */
+        public Integer retryAttempts;
+        /**
+         * Delay (minutes) before the first retry, doubled for each further retry up to retryMaxDelayMinutes
+         */
+        public Integer retryDelayMinutes;
+        public Integer retryMaxDelayMinutes;
+        /**
+         * No retry is started later than this (minutes) after the first attempt
+         */
+        public Integer retryBudgetMinutes;
+        
+        /**
+         * A command (rsync, ssh, ...) without output or I/O for this time (minutes) is killed (see ProcessWatchdog). 0 for no limit
+         */
+        public Integer stallTimeoutMinutes;
+        /**
+         * Commands of a host are killed or not started when its backup (including retries) runs longer than this (minutes). 0 for no limit
+         */
+        public Integer deadlineMinutes;
+        
+        /**
+         * Part of the storage filesystem that must stay free after the estimated demand of a backup (see SpaceAdmission)
+         */
+        public Integer minFreeSpacePercent;
+        public Integer minFreeInodesPercent;
+        /**
+         * If there's not enough space after deleting old backups: "delay" (retry within retryBudgetMinutes) or "skip"
+         */
+        public String spaceShortageAction;
+        
+        /**
+         * Each volume is backed up with rsync --checksum once in this many days (see VerifySchedule). 0 to disable
+         */
+        public Integer verifyDays;
+        
+        /**
+         * Threads that stat the previous backup while PRE_BACKUP runs (see LinkDestPrewarmer). 0 to disable
+         */
+        public Integer prewarmThreads;
+        
+        /**
+         * Runs that find no change (rsync dry-run) reuse the previous backup instead of creating a new one (see RunCatalog)
+         */
+        public Boolean skipUnchanged;
+        
         protected void applyDefaults(ConfHost defaults)
         {
             if (this.storageDir==null) this.storageDir=defaults.storageDir;
+            if (this.storagePool==null) this.storagePool=defaults.storagePool;
             if (this.remoteAddress==null) this.remoteAddress=defaults.remoteAddress;
             if (this.hostStorageDir==null) this.hostStorageDir=defaults.hostStorageDir;
             if (this.cmdNice==null) this.cmdNice=defaults.cmdNice;
@@ -184,12 +464,66 @@ public class BackupConf
             if (this.notifyZabbixRetryCount==null) this.notifyZabbixRetryCount=defaults.notifyZabbixRetryCount;
             if (this.scheduleGroup==null) this.scheduleGroup=defaults.scheduleGroup;
             if (this.scheduleEnabled==null) this.scheduleEnabled=defaults.scheduleEnabled;
+            if (this.proxyHost==null) this.proxyHost=defaults.proxyHost;
+            if (this.proxyName==null) this.proxyName=defaults.proxyName;
+            if (this.proxyMaxParallel==null) this.proxyMaxParallel=defaults.proxyMaxParallel;
+            if (this.preBackupMaxAge==null) this.preBackupMaxAge=defaults.preBackupMaxAge;
+            if (this.dumpEnabled==null) this.dumpEnabled=defaults.dumpEnabled;
+            if (this.dumpParallel==null) this.dumpParallel=defaults.dumpParallel;
+            if (this.dumpDir==null) this.dumpDir=defaults.dumpDir;
+            if (this.cmdZstd==null) this.cmdZstd=defaults.cmdZstd;
+            if (this.scrubRecheckDays==null) this.scrubRecheckDays=defaults.scrubRecheckDays;
+            if (this.retryAttempts==null) this.retryAttempts=defaults.retryAttempts;
+            if (this.retryDelayMinutes==null) this.retryDelayMinutes=defaults.retryDelayMinutes;
+            if (this.retryMaxDelayMinutes==null) this.retryMaxDelayMinutes=defaults.retryMaxDelayMinutes;
+            if (this.retryBudgetMinutes==null) this.retryBudgetMinutes=defaults.retryBudgetMinutes;
+            if (this.stallTimeoutMinutes==null) this.stallTimeoutMinutes=defaults.stallTimeoutMinutes;
+            if (this.deadlineMinutes==null) this.deadlineMinutes=defaults.deadlineMinutes;
+            if (this.minFreeSpacePercent==null) this.minFreeSpacePercent=defaults.minFreeSpacePercent;
+            if (this.minFreeInodesPercent==null) this.minFreeInodesPercent=defaults.minFreeInodesPercent;
+            if (this.spaceShortageAction==null) this.spaceShortageAction=defaults.spaceShortageAction;
+            if (this.verifyDays==null) this.verifyDays=defaults.verifyDays;
+            if (this.prewarmThreads==null) this.prewarmThreads=defaults.prewarmThreads;
+            if (this.skipUnchanged==null) this.skipUnchanged=defaults.skipUnchanged;
+        }
+        
+        /**
+         * @return true if the host is stored on a storage pool and must be placed before its first backup
+         */
+        public boolean isPooled()
+        {
+            return pooled;
         }
         
-        protected void initialize()
+        protected void validate()
+        {
+            if (host==null || host.isEmpty()) throw new IllegalArgumentException("Missing host name");
+            
+            if (!spaceShortageAction.equals("delay") && !spaceShortageAction.equals("skip"))
+            {
+                throw new IllegalArgumentException("Invalid spaceShortageAction for "+host+": "+spaceShortageAction);
+            }
+            
+            if (dumpEnabled)
+            {
+                if (dumpParallel<1) throw new IllegalArgumentException("Invalid dumpParallel for "+host+": "+dumpParallel);
+                for (ConfVolume volume: volumes)
+                {
+                    if (volume.volume.equals(dumpDir)) throw new IllegalArgumentException("dumpDir of "+host+" must not be the name of a volume: "+dumpDir);
+                }
+            }
+        }
+        
+        /**
+         * @param keepStrategies keep strategies by definition, shared between hosts
+         */
+        protected void initialize(Map<String,IBackupKeepStrategy> keepStrategies)
         {
             if (keepStrategy!=null)
             {
+                backupKeepStrategy=keepStrategies.get(keepStrategy);
+                if (backupKeepStrategy!=null) return;
+                
                 String nameArgs[]=keepStrategy.split("\\|",2);
                 String name=nameArgs[0].trim();
                 
@@ -201,11 +535,25 @@ public class BackupConf
                 {
                     throw new IllegalArgumentException("Inavlid keepStrategy: "+name);
                 }
+                keepStrategies.put(keepStrategy,backupKeepStrategy);
             }
         }
+        
+        protected void initializeProxy(BackupConf conf)
+        {
+            if (proxyHost==null || proxyHost.isEmpty()) return;
+            
+            if (proxyHost.equals(host)) throw new IllegalArgumentException("Host "+host+" cannot be its own proxyHost");
+            
+            proxyConf=conf.hostMap.get(proxyHost);
+            if (proxyConf==null) throw new IllegalArgumentException("Unknown proxyHost for "+host+": "+proxyHost);
+            if (proxyConf.proxyHost!=null && !proxyConf.proxyHost.isEmpty()) throw new IllegalArgumentException("proxyHost "+proxyHost+" of "+host+" must be reachable without proxy");
+            if (proxyConf.proxyMaxParallel==null || proxyConf.proxyMaxParallel<1) throw new IllegalArgumentException("Invalid proxyMaxParallel for "+proxyHost);
+        }
     }
     
-    public static class ConfVolume
+    @SuppressWarnings("serial")
+    public static class ConfVolume implements Serializable
     {
         public ConfVolume()
         {
@@ -218,12 +566,119 @@ public class BackupConf
         
         public String volume;
         public String[] exclude;
+        /**
+         * Files of this size (MB) or more are moved into the chunk store in older backups (see ChunkStore). Default: disabled
+         */
+        public Integer chunkThresholdMB;
+        /**
+         * Transfer only the entries that changed on the client since the previous backup (see ChangeJournal). Default: false
+         */
+        public Boolean changeJournal;
+        /**
+         * Days between full rsync scans of a volume with changeJournal (default: 7)
+         */
+        public Integer fullScanDays;
+        /**
+         * More changed entries than this (default: 100000) fall back to a full rsync scan
+         */
+        public Integer changeJournalMaxEntries;
     }
 
+    /**
+     * A storage pool. Hosts are stored in {dir}/{host}
+     */
+    @SuppressWarnings("serial")
+    public static class ConfPool implements Serializable
+    {
+        public String name;
+        public String dir;
+        /**
+         * Relative I/O capacity, used for placing new hosts
+         */
+        public Integer weight;
+        /**
+         * Mount point of the pool's file system, default: dir. New hosts are not placed while it is not mounted. "/"
+         * for a pool on the root file system
+         */
+        public String mountPoint;
+    }
+    
     public static class BackupConfHolder
     {
+        public ConfPool[] pools;
+        /**
+         * I/O budget (GB) for all checksum verifications of a run, default: unlimited
+         */
+        public Integer verifyBudgetGB;
+        /**
+         * Memory (MB) for all backups running in parallel, predicted from their last peak RSS, default: unlimited
+         */
+        public Integer memoryBudgetMB;
+        /**
+         * Directory shared by all backup nodes (e.g. on NFS), see ClusterCoordinator. Default: not clustered
+         */
+        public String clusterDir;
+        /**
+         * Time (seconds) after which the hosts of a dead node are taken over by other nodes, default: 120
+         */
+        public Integer clusterLeaseSeconds;
         public ConfHost defaults;
         public ConfHost[] hosts;
     }
     
+    /**
+     * Parses the hosts of one config file, applies the defaults and resolves their placeholders
+     */
+    protected static class HostsParser implements Callable<List<ConfHost>>
+    {
+        protected final File file;
+        protected final BackupConfHolder holder;
+        protected final ConfHost mainDefaults;
+        protected final StoragePools storagePools;
+        
+        /**
+         * @param holder the already parsed file or null
+         */
+        protected HostsParser(File file, BackupConfHolder holder, ConfHost mainDefaults, StoragePools storagePools)
+        {
+            this.file=file;
+            this.holder=holder;
+            this.mainDefaults=mainDefaults;
+            this.storagePools=storagePools;
+        }
+        
+        @Override
+        public List<ConfHost> call() throws Exception
+        {
+            BackupConfHolder holder=(this.holder!=null)?this.holder:readHolder(file);
+            
+            ConfHost hostDefaults=mainDefaults;
+            if (holder!=this.holder && holder.defaults!=null)
+            {
+                // an inventory file's defaults inherit from the main config
+                hostDefaults=holder.defaults;
+                hostDefaults.applyDefaults(mainDefaults);
+            }
+            
+            List<ConfHost> hosts=new ArrayList<>();
+            if (holder.hosts!=null) for (ConfHost hostConf: holder.hosts)
+            {
+                // an explicit storageDir overrides the pools
+                boolean pooled=(hostConf.storageDir==null && !storagePools.isEmpty() && hostConf.host!=null);
+                hostConf.applyDefaults(hostDefaults);
+                // a new host is placed by its first backup (see RSyncBackup.placeHost)
+                if (pooled) hostConf.storageDir=storagePools.getPoolForHost(hostConf.host, hostConf.storagePool).dir;
+                placeholderResolver.resolvePlaceholders(hostConf);
+                hostConf.validate();
+                hostConf.pooled=pooled;
+                if (pooled && !new File(hostConf.hostStorageDir).equals(new File(hostConf.storageDir,hostConf.host)))
+                {
+                    throw new IllegalArgumentException("Storage pools require hostStorageDir ${storageDir}/${host}: "+hostConf.host);
+                }
+                hosts.add(hostConf);
+            }
+            return hosts;
+        }
+    }
+    
 }
@@ -0,0 +1,221 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.RetryPolicy.FailureClass;
+import org.joda.time.LocalDateTime;
+
+/**
+ * A backup of one host as it moves through the scheduler: PRE_BACKUP (possibly prefetched ahead of the
+ * transfer) and transfer.
+ */
+public class BackupJob
+{
+    public static enum State
+    {
+        QUEUED,
+        PRE_BACKUP,
+        READY
+    }
+    
+    public final ConfHost host;
+    
+    /**
+     * Submitted via BackupSpool: starts before all other jobs as soon as its resources are available
+     */
+    public boolean priority;
+    public String spoolId;
+    /**
+     * Time when the priority job was submitted, null for other jobs
+     */
+    public LocalDateTime submittedAt;
+    /**
+     * Result of the last (final) attempt, null if not executed
+     */
+    public Boolean succeeded;
+    
+    protected State state=State.QUEUED;
+    
+    /**
+     * Exit code of the PRE_BACKUP command, -1 if it failed with an exception, null if not executed yet
+     */
+    public Integer preBackupExitCode;
+    public LocalDateTime preBackupFinished;
+    public long preBackupMillis;
+    /**
+     * Started with PRE_BACKUP, stopped when the transfer starts. null if disabled or stopped
+     */
+    public LinkDestPrewarmer prewarmer;
+    
+    /**
+     * Lock of the host dir, held from PRE_BACKUP until the backup is finished
+     */
+    public HostLock hostLock;
+    /**
+     * Time (millis) of the first attempt that found the host locked by another process, 0 if not locked
+     */
+    protected long lockedSince;
+    protected long lockRetryAt;
+    
+    /**
+     * Time (millis) when the job (PRE_BACKUP or the first attempt) started, 0 if not started yet
+     */
+    public long firstAttemptAt;
+    public int failedAttempts;
+    /**
+     * Time (millis) of the next attempt if the last one failed and is retried, 0 otherwise
+     */
+    public long retryAt;
+    /**
+     * Predicted memory (bytes) of the backup (see MemoryHistory), null if not predicted yet
+     */
+    protected Long memoryEstimate;
+    /**
+     * Limits of the commands of the current attempt, see cancel
+     */
+    protected volatile ProcessWatchdog.Limits processLimits;
+    /**
+     * Set by cancel until the host is locked again, null if not cancelled
+     */
+    protected volatile String cancelReason;
+    
+    public BackupJob(ConfHost host)
+    {
+        this.host=host;
+    }
+    
+    /**
+     * @return false if the host is locked by another process
+     */
+    public boolean tryLock() throws IOException
+    {
+        if (hostLock!=null) return true;
+        File dir=new File(host.hostStorageDir);
+        if (!dir.isDirectory()) return true; // the backup fails with a proper message
+        hostLock=HostLock.tryLock(dir);
+        return hostLock!=null;
+    }
+    
+    public void unlock()
+    {
+        if (hostLock==null) return;
+        hostLock.release();
+        hostLock=null;
+    }
+    
+    /**
+     * Starts the job if not already started
+     * @return the limits for commands of this job (see ProcessWatchdog)
+     */
+    public ProcessWatchdog.Limits getProcessLimits(long now)
+    {
+        if (firstAttemptAt==0) firstAttemptAt=now;
+        long stallTimeout=(host.stallTimeoutMinutes==null)?0:host.stallTimeoutMinutes*60000L;
+        long deadline=(host.deadlineMinutes==null || host.deadlineMinutes<=0)?0:firstAttemptAt+host.deadlineMinutes*60000L;
+        ProcessWatchdog.Limits limits=new ProcessWatchdog.Limits(stallTimeout, deadline);
+        processLimits=limits;
+        String reason=cancelReason;
+        if (reason!=null) ProcessWatchdog.cancel(limits, reason);
+        return limits;
+    }
+    
+    /**
+     * @return the reason why the job was cancelled, null if not cancelled. A cancelled job must not change the host dir
+     */
+    public String getCancelReason()
+    {
+        return cancelReason;
+    }
+    
+    /**
+     * Kills the running commands of the job and prevents new ones until the host is locked again
+     */
+    public void cancel(String reason)
+    {
+        cancelReason=reason;
+        ProcessWatchdog.Limits limits=processLimits;
+        if (limits!=null) ProcessWatchdog.cancel(limits, reason);
+    }
+    
+    public void startAttempt(long now)
+    {
+        if (firstAttemptAt==0) firstAttemptAt=now;
+        retryAt=0;
+        succeeded=null;
+    }
+    
+    /**
+     * Schedules the next attempt after a failure, if allowed by the host's RetryPolicy
+     * @return true if the backup is retried
+     */
+    public boolean scheduleRetry(FailureClass failure, long now)
+    {
+        failedAttempts++;
+        long delay=RetryPolicy.getRetryDelay(host, failure, failedAttempts, now-firstAttemptAt);
+        if (delay<0) return false;
+        retryAt=now+delay;
+        return true;
+    }
+    
+    /**
+     * Schedules the next attempt without counting a failure (e.g. waiting for free space), if the host's retry budget allows it
+     * @return false if the attempt would start after the retry budget
+     */
+    public boolean scheduleDelay(long delay, long now)
+    {
+        if (now+delay-firstAttemptAt>host.retryBudgetMinutes*60000L) return false;
+        retryAt=now+delay;
+        return true;
+    }
+    
+    /**
+     * Puts a job that is retried back into the queue. A successful PRE_BACKUP that is not expired yet is kept, so
+     * the job is ready for the transfer, otherwise PRE_BACKUP is run again
+     */
+    public void requeue()
+    {
+        if (isPreBackupOk() && !isPreBackupExpired(new LocalDateTime()))
+        {
+            state=State.READY;
+        }
+        else
+        {
+            state=State.QUEUED;
+            resetPreBackup();
+        }
+        lockRetryAt=retryAt;
+    }
+    
+    public boolean isPreBackupDone()
+    {
+        return preBackupExitCode!=null;
+    }
+    
+    public boolean isPreBackupOk()
+    {
+        return preBackupExitCode!=null && preBackupExitCode==0;
+    }
+    
+    /**
+     * @return true if the PRE_BACKUP result is older than the host's preBackupMaxAge
+     */
+    public boolean isPreBackupExpired(LocalDateTime now)
+    {
+        if (preBackupFinished==null || host.preBackupMaxAge==null) return false;
+        return preBackupFinished.plusMinutes(host.preBackupMaxAge).isBefore(now);
+    }
+    
+    public void resetPreBackup()
+    {
+        preBackupExitCode=null;
+        preBackupFinished=null;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return host.host;
+    }
+}
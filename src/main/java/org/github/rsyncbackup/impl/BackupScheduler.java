@@ -1,45 +1,228 @@
 package org.github.rsyncbackup.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.github.rsyncbackup.RSyncBackup;
 import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupJob.State;
+import org.github.rsyncbackup.logging.LogContext;
+import org.joda.time.LocalDateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Runs a given number of backups in parallel
+ * Runs a given number of backups in parallel.
+ *
+ * Each backup occupies some resources (its scheduleGroup, the ssh link of its proxy) that have a limited
+ * number of concurrent users. A host is only started if all of its resources are available.
+ *
+ * PRE_BACKUP (e.g. dumping databases on the client) is a separate pipeline stage with its own number of
+ * parallel executors. It is started for upcoming hosts ahead of time, so that a host is ready to transfer
+ * when a backup slot becomes free and does not hold the slot without sending any data.
+ *
+ * A host is locked (see HostLock) from its PRE_BACKUP until its backup is finished. Hosts that are locked by
+ * another process (e.g. a manual backup or another scheduler run) are retried later. If the other process
+ * has created a new backup meanwhile, the host is done. So several scheduler runs can share the hosts.
+ *
+ * A failed backup that is retried (see RetryPolicy) goes back into the queue and releases its slot and lock
+ * until its retry time.
+ *
+ * Priority jobs (submitted while the scheduler is running, see BackupSpool) go ahead of the queue and start as
+ * soon as their resources are available.
+ *
+ * With a memory budget (see setMemoryBudget), a backup only starts if its predicted memory (the last peak RSS of its
+ * rsync, see MemoryHistory) fits into the budget next to the running backups. A backup that exceeds the whole budget
+ * runs alone. When the budget is tight, smaller backups are started first, so the budget is used by several backups
+ * instead of being blocked by one large backup that waits for memory.
+ *
+ * In a cluster (see setCluster), the schedulers of all nodes share the queue: a host is leased in the cluster
+ * together with its HostLock, and the resources are acquired cluster-wide, so a scheduleGroup runs on one node at a
+ * time. Each node prefers its home hosts and steals the hosts of other nodes from the end of the queue when none of its
+ * own can start. The hosts of a node that died are retried like locked hosts and resumed when its leases expire. A
+ * node that loses the lease of a host (e.g. because it was suspended) stops the host's commands and releases its lock
+ * once the job has stopped without finalizing the backup, the other node does the backup. The memory budget and the
+ * space admission are per node.
+ *
  * @author mwyraz
  */
 public class BackupScheduler implements Runnable
 {
     protected Logger LOG=LoggerFactory.getLogger(getClass());
+    
     protected final int numberOfParallelBackups;
-    protected final List<ConfHost> hostsTodo;
-    protected final Map<String,ConfHost> hostsInProgress;
+    protected final int numberOfParallelPreBackups;
+    protected final List<BackupJob> jobsTodo;
+    /**
+     * Jobs whose backup is running, they are not in jobsTodo
+     */
+    protected final List<BackupJob> jobsRunning=new ArrayList<>();
+    protected final Map<String,Integer> resourcesInUse;
+    protected int preBackupsRunning;
+    protected int backupsRunning;
     protected IBackupExecutor executor;
+    protected final LocalDateTime startTime;
+    protected BackupSpool spool;
+    protected long spoolPollAt;
+    protected long lockRetryInterval=60000;
+    protected long lockRetryTimeout=6*3600000;
+    protected long memoryBudget;
+    protected long memoryInUse;
+    /**
+     * Prediction for hosts without measured memory: the largest known prediction
+     */
+    protected long largestMemoryEstimate;
+    protected ClusterCoordinator cluster;
+    
+    protected static final long SPOOL_POLL_INTERVAL=2000;
     
     public BackupScheduler(int numberOfParallelBackups, List<ConfHost> hosts, IBackupExecutor executor)
+    {
+        this(numberOfParallelBackups, numberOfParallelBackups, hosts, executor);
+    }
+    
+    public BackupScheduler(int numberOfParallelBackups, int numberOfParallelPreBackups, List<ConfHost> hosts, IBackupExecutor executor)
     {
         this.numberOfParallelBackups=numberOfParallelBackups;
-        this.hostsTodo=new ArrayList<>(hosts);
-        this.hostsInProgress=new HashMap<>();
+        this.numberOfParallelPreBackups=numberOfParallelPreBackups;
+        this.jobsTodo=new ArrayList<>();
+        for (ConfHost host: hosts)
+        {
+            jobsTodo.add(new BackupJob(host));
+        }
+        this.resourcesInUse=new HashMap<>();
         this.executor=executor;
+        this.startTime=new LocalDateTime();
+    }
+    
+    public void setLockRetry(long interval, long timeout)
+    {
+        this.lockRetryInterval=interval;
+        this.lockRetryTimeout=timeout;
+    }
+    
+    /**
+     * Limits the predicted memory of all running backups
+     * @param bytes budget, 0 for unlimited
+     */
+    public synchronized void setMemoryBudget(long bytes)
+    {
+        this.memoryBudget=bytes;
+        if (bytes<=0) return;
+        
+        // measured hosts first, so hosts without measurement get the largest prediction
+        for (BackupJob job: jobsTodo)
+        {
+            job.memoryEstimate=readMemoryEstimate(job.host);
+            if (job.memoryEstimate!=null) largestMemoryEstimate=Math.max(largestMemoryEstimate, job.memoryEstimate);
+        }
+        for (BackupJob job: jobsTodo)
+        {
+            getMemoryEstimate(job);
+        }
+        LOG.info("Memory budget {} MB, largest predicted backup {} MB",bytes/1024/1024,largestMemoryEstimate/1024/1024);
+    }
+    
+    /**
+     * Shares the hosts with the other nodes of the given (started) cluster. Hosts whose storage is not mounted on this
+     * node (split storage) are left to the other nodes
+     */
+    public synchronized void setCluster(ClusterCoordinator cluster)
+    {
+        this.cluster=cluster;
+        cluster.setListener(new ClusterCoordinator.LeaseListener()
+        {
+            @Override
+            public void hostLost(String host)
+            {
+                hostLeaseLost(host);
+            }
+        });
+        for (BackupJob job: new ArrayList<>(jobsTodo))
+        {
+            File storageDir=new File(job.host.hostStorageDir).getAbsoluteFile().getParentFile();
+            if (storageDir.isDirectory()) continue;
+            LOG.info("Storage of {} is not available on this node - skipping",job.host.host);
+            jobsTodo.remove(job);
+        }
+    }
+    
+    /**
+     * Enables priority jobs from the given (opened) spool
+     */
+    public void setSpool(BackupSpool spool)
+    {
+        this.spool=spool;
+    }
+    
+    /**
+     * Adds a priority job. A queued job of the same host is replaced
+     */
+    public synchronized void submit(BackupJob job)
+    {
+        if (job.submittedAt==null) job.submittedAt=new LocalDateTime();
+        for (BackupJob queued: new ArrayList<>(jobsTodo))
+        {
+            if (queued.host!=job.host || queued.priority) continue;
+            // keep a prefetched PRE_BACKUP
+            jobsTodo.remove(queued);
+            queued.priority=true;
+            queued.spoolId=job.spoolId;
+            queued.submittedAt=job.submittedAt;
+            job=queued;
+            break;
+        }
+        
+        int index=0;
+        while (index<jobsTodo.size() && jobsTodo.get(index).priority) index++;
+        jobsTodo.add(index, job);
+        LOG.info("Priority backup of {} submitted",job.host.host);
+    }
+    
+    protected void pollSpool(long now)
+    {
+        if (spool==null || spoolPollAt>now) return;
+        spoolPollAt=now+SPOOL_POLL_INTERVAL;
+        for (BackupJob job: spool.claim())
+        {
+            submit(job);
+        }
+    }
+    
+    /**
+     * Removes a job that is not executed
+     */
+    protected void removeJob(BackupJob job)
+    {
+        jobsTodo.remove(job);
+        if (job.spoolId!=null) spool.finish(job);
     }
     
     public void executeBackups()
     {
-        Thread[] threads=new Thread[numberOfParallelBackups];
+        List<Thread> threads=new ArrayList<>();
         
-        LOG.info("Starting {} parallel executors",numberOfParallelBackups);
+        LOG.info("Starting {} parallel executors and {} parallel PRE_BACKUP executors",numberOfParallelBackups,numberOfParallelPreBackups);
         for (int i=0;i<numberOfParallelBackups;i++)
         {
-            threads[i]=new Thread(this,"BackupExecutor "+(i+1)+"/"+numberOfParallelBackups);
-            threads[i].start();
+            threads.add(new Thread(LogContext.wrap(this),"BackupExecutor "+(i+1)+"/"+numberOfParallelBackups));
+        }
+        for (int i=0;i<numberOfParallelPreBackups;i++)
+        {
+            threads.add(new Thread(LogContext.wrap(new PreBackupRunner()),"PreBackupExecutor "+(i+1)+"/"+numberOfParallelPreBackups));
+        }
+        for (Thread thread: threads)
+        {
+            thread.start();
         }
         
         boolean running=true;
@@ -70,41 +253,83 @@ public class BackupScheduler implements Runnable
     protected boolean executeNextBackup(String threadName)
     {
         RSyncBackup.setThreadHostname(null); // for correct log target
-        ConfHost hostTask=null;
+        BackupJob job=null;
         synchronized(this)
         {
-            if (hostsTodo.isEmpty()) return false;
+            long now=System.currentTimeMillis();
+            pollSpool(now);
+            if (jobsTodo.isEmpty()) return false;
             
-            for (ConfHost host: hostsTodo)
+            // priority jobs first, PRE_BACKUP is executed inline if not done yet
+            for (BackupJob candidate: new ArrayList<>(jobsTodo))
             {
-                if (hostsInProgress.containsKey(host.scheduleGroup)) continue;
-                hostTask=host;
-                hostsTodo.remove(host);
+                if (!candidate.priority || candidate.state==State.PRE_BACKUP) continue;
+                if (!isAvailable(getResources(candidate.host))) continue;
+                if (!fitsMemory(candidate)) return true; // wait for memory, don't let other jobs take it
+                if (!lockAndAcquire(candidate, getResources(candidate.host), now)) continue;
+                job=candidate;
                 break;
             }
             
-            if (hostTask==null) return true; // Retry later
+            List<BackupJob> candidates=getCandidates();
+            
+            // prefer hosts that are ready to transfer (the lock is held since PRE_BACKUP, unless the job is retried)
+            if (job==null) for (BackupJob candidate: candidates)
+            {
+                if (candidate.state!=State.READY) continue;
+                if (!isAvailable(getResources(candidate.host))) continue;
+                if (!fitsMemory(candidate)) continue;
+                if (!lockAndAcquire(candidate, getResources(candidate.host), now)) continue;
+                job=candidate;
+                break;
+            }
             
-            hostsInProgress.put(hostTask.scheduleGroup,hostTask);
+            // run PRE_BACKUP inline if there's no free executor to do it ahead of time
+            if (job==null)
+            {
+                boolean preBackupInline=preBackupsRunning>=numberOfParallelPreBackups;
+                for (BackupJob candidate: candidates)
+                {
+                    if (candidate.state!=State.QUEUED) continue;
+                    if (candidate.host.scheduleEnabled && !preBackupInline) continue;
+                    if (!isAvailable(getResources(candidate.host))) continue;
+                    if (!fitsMemory(candidate)) continue;
+                    if (candidate.host.scheduleEnabled)
+                    {
+                        if (!lockAndAcquire(candidate, getResources(candidate.host), now)) continue;
+                    }
+                    else if (!acquireInCluster(getResources(candidate.host))) continue;
+                    job=candidate;
+                    break;
+                }
+            }
+            
+            if (job==null) return !jobsTodo.isEmpty(); // Retry later
+            
+            jobsTodo.remove(job);
+            jobsRunning.add(job);
+            backupsRunning++;
+            acquire(getResources(job.host));
+            if (memoryBudget>0) memoryInUse+=getMemoryEstimate(job);
         }
         
         try
         {
-            if (!hostTask.scheduleEnabled)
+            if (!job.host.scheduleEnabled && !job.priority)
             {
-                LOG.info("Skipping disabled schedule for {}",hostTask.host,threadName);
+                LOG.info("Skipping disabled schedule for {}",job.host.host,threadName);
             }
             else
             {
-                LOG.info("Running {} on {}",hostTask.host,threadName);
+                LOG.info("Running {} on {}",job.host.host,threadName);
                 try
                 {
-                    executor.runBackupForHost(hostTask.host);
+                    executor.runBackupForHost(job);
                 }
                 finally
                 {
                     RSyncBackup.setThreadHostname(null); // for correct log target
-                    LOG.info("Finished {} on {}",hostTask.host,threadName);
+                    LOG.info("Finished {} on {}",job.host.host,threadName);
                 }
             }
         }
@@ -116,12 +341,385 @@ public class BackupScheduler implements Runnable
         {
             synchronized(this)
             {
-                hostsInProgress.remove(hostTask.scheduleGroup);
+                unlock(job);
+                jobsRunning.remove(job);
+                backupsRunning--;
+                release(getResources(job.host));
+                if (cluster!=null) cluster.release(getResources(job.host));
+                if (memoryBudget>0) memoryInUse-=getMemoryEstimate(job);
+                if (job.retryAt>0)
+                {
+                    job.requeue();
+                    jobsTodo.add(job);
+                }
+                else if (job.spoolId!=null)
+                {
+                    spool.finish(job);
+                }
             }
         }
         return true;
     }
     
+    protected boolean executeNextPreBackup(String threadName)
+    {
+        RSyncBackup.setThreadHostname(null); // for correct log target
+        BackupJob job=null;
+        synchronized(this)
+        {
+            long now=System.currentTimeMillis();
+            int jobsAhead=0;
+            boolean queued=false;
+            for (BackupJob candidate: jobsTodo)
+            {
+                // a retried job that waits for its next attempt is not ahead
+                if (candidate.state!=State.QUEUED && (candidate.hostLock!=null || candidate.lockRetryAt<=now)) jobsAhead++;
+                else if (candidate.host.scheduleEnabled) queued=true;
+            }
+            if (!queued) return !jobsTodo.isEmpty() || backupsRunning>0; // running jobs may be requeued for a retry
+            
+            // don't prefetch too far ahead, otherwise the results are outdated when the transfer starts
+            if (jobsAhead>=numberOfParallelBackups+numberOfParallelPreBackups) return true; // Retry later
+            
+            for (BackupJob candidate: getQueueOrder())
+            {
+                if (candidate.state!=State.QUEUED || !candidate.host.scheduleEnabled) continue;
+                if (!isAvailable(getPreBackupResources(candidate.host))) continue;
+                if (!lockAndAcquire(candidate, getPreBackupResources(candidate.host), now)) continue;
+                job=candidate;
+                break;
+            }
+            
+            if (job==null) return true; // Retry later
+            
+            job.state=State.PRE_BACKUP;
+            preBackupsRunning++;
+            acquire(getPreBackupResources(job.host));
+        }
+        
+        try
+        {
+            LOG.info("Running PRE_BACKUP for {} on {}",job.host.host,threadName);
+            try
+            {
+                executor.runPreBackupForHost(job);
+            }
+            finally
+            {
+                RSyncBackup.setThreadHostname(null); // for correct log target
+                LOG.info("Finished PRE_BACKUP for {} on {}",job.host.host,threadName);
+            }
+        }
+        catch (Throwable th)
+        {
+            LOG.error("Fatal error",th);
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                // a failed PRE_BACKUP is repeated by the backup executor
+                job.state=State.READY;
+                if (job.getCancelReason()!=null) unlock(job); // taken over by another node meanwhile
+                preBackupsRunning--;
+                release(getPreBackupResources(job.host));
+                if (cluster!=null) cluster.release(getPreBackupResources(job.host));
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Locks the host of a job. A host that is locked by another process is retried every lockRetryInterval. It is
+     * removed from the queue if it was backed up by the other process or after lockRetryTimeout. In a cluster, the
+     * host is also leased, and a host that was backed up by another node since the cluster's run started is removed.
+     * A priority job is only removed if the host was backed up since the job was submitted.
+     * @return true if the job can be started
+     */
+    protected boolean lock(BackupJob job, long now)
+    {
+        if (job.hostLock!=null) return true;
+        if (job.lockRetryAt>now) return false;
+        
+        try
+        {
+            if (tryLock(job))
+            {
+                if ((job.lockedSince>0 || cluster!=null) && isBackedUpSinceStart(job))
+                {
+                    LOG.info("{} was backed up by another process - skipping",job.host.host);
+                    unlock(job);
+                    removeJob(job);
+                    return false;
+                }
+                return true;
+            }
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to lock {}: {}",job.host.host,ex.toString());
+        }
+        
+        if (job.lockedSince==0)
+        {
+            job.lockedSince=now;
+            LOG.info("{} is locked by another process ({}) - retrying later",job.host.host,getLockOwner(job.host));
+        }
+        else if (now-job.lockedSince>lockRetryTimeout)
+        {
+            LOG.warn("{} is still locked by another process - skipping",job.host.host);
+            removeJob(job);
+            return false;
+        }
+        job.lockRetryAt=now+lockRetryInterval;
+        return false;
+    }
+    
+    /**
+     * Locks the host of a job and acquires the resources in the cluster. If the resources are not available, a lock
+     * that was taken here is released again, so that the host is not blocked while the job waits
+     */
+    protected boolean lockAndAcquire(BackupJob job, Map<String,Integer> resources, long now)
+    {
+        boolean wasLocked=(job.hostLock!=null);
+        if (!lock(job, now)) return false;
+        if (acquireInCluster(resources)) return true;
+        if (!wasLocked) unlock(job);
+        return false;
+    }
+    
+    /**
+     * Leases the host in the cluster (if any) and locks it
+     */
+    protected boolean tryLock(BackupJob job) throws IOException
+    {
+        if (cluster!=null && !cluster.tryLeaseHost(job.host.host)) return false;
+        if (job.tryLock())
+        {
+            job.cancelReason=null;
+            return true;
+        }
+        if (cluster!=null) cluster.releaseHost(job.host.host);
+        return false;
+    }
+    
+    /**
+     * Stops the PRE_BACKUP or backup of a host that was taken over by another node. A running job keeps its lock until
+     * its thread has stopped (see executeNextBackup), a waiting job releases it at once. The job stays in the queue
+     * and is skipped once the other node has backed up the host
+     */
+    protected synchronized void hostLeaseLost(String host)
+    {
+        List<BackupJob> jobs=new ArrayList<>(jobsRunning);
+        jobs.addAll(jobsTodo);
+        for (BackupJob job: jobs)
+        {
+            if (!job.host.host.equals(host)) continue;
+            if (job.hostLock==null && !jobsRunning.contains(job)) continue; // not started on this node
+            LOG.warn("{} was taken over by another node - stopping its commands",host);
+            job.cancel("host was taken over by another node");
+            if (!jobsRunning.contains(job) && job.state!=State.PRE_BACKUP) job.unlock();
+        }
+    }
+    
+    protected void unlock(BackupJob job)
+    {
+        job.unlock();
+        if (cluster!=null) cluster.releaseHost(job.host.host);
+    }
+    
+    protected String getLockOwner(ConfHost host)
+    {
+        String owner=(cluster==null)?null:cluster.getHostOwner(host.host);
+        return (owner!=null)?owner:HostLock.readOwner(new File(host.hostStorageDir));
+    }
+    
+    /**
+     * @return true if the host was backed up since the start of the scheduler (or the cluster's run). For a priority
+     *         job, only a backup since the job was submitted counts
+     */
+    protected boolean isBackedUpSinceStart(BackupJob job)
+    {
+        ConfHost host=job.host;
+        LocalDateTime start=startTime;
+        if (job.priority && job.submittedAt!=null)
+        {
+            start=job.submittedAt;
+        }
+        else if (cluster!=null)
+        {
+            LocalDateTime clusterStart=new LocalDateTime(cluster.getClusterStartTime());
+            if (clusterStart.isBefore(start)) start=clusterStart;
+        }
+        File hostDir=new File(host.hostStorageDir);
+        List<LocalDateTime> backups=HostDir.listBackups(hostDir);
+        LocalDateTime latest=backups.isEmpty()?null:backups.get(backups.size()-1);
+        try
+        {
+            // a run without changes that reused the previous backup
+            LocalDateTime run=new RunCatalog(hostDir).getLatestRun();
+            if (run!=null && (latest==null || run.isAfter(latest))) latest=run;
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to read the runs of {}: {}",host.host,ex.toString());
+        }
+        return latest!=null && !latest.isBefore(start);
+    }
+    
+    /**
+     * @return the resources a backup of the given host occupies, mapped to the maximum number of concurrent users
+     */
+    protected Map<String,Integer> getResources(ConfHost host)
+    {
+        Map<String,Integer> resources=new LinkedHashMap<>();
+        resources.put("group:"+host.scheduleGroup,1);
+        if (host.proxyConf!=null) resources.put("proxy:"+host.proxyConf.host,host.proxyConf.proxyMaxParallel);
+        return resources;
+    }
+    
+    /**
+     * @return the resources a PRE_BACKUP of the given host occupies. The proxy link is not counted because PRE_BACKUP transfers no data
+     */
+    protected Map<String,Integer> getPreBackupResources(ConfHost host)
+    {
+        Map<String,Integer> resources=new LinkedHashMap<>();
+        resources.put("group:"+host.scheduleGroup,1);
+        return resources;
+    }
+    
+    protected boolean isAvailable(Map<String,Integer> resources)
+    {
+        for (Entry<String,Integer> resource: resources.entrySet())
+        {
+            Integer inUse=resourcesInUse.get(resource.getKey());
+            if (inUse!=null && inUse>=resource.getValue()) return false;
+        }
+        return true;
+    }
+    
+    protected void acquire(Map<String,Integer> resources)
+    {
+        for (String resource: resources.keySet())
+        {
+            Integer inUse=resourcesInUse.get(resource);
+            resourcesInUse.put(resource,(inUse==null)?1:inUse+1);
+        }
+    }
+    
+    /**
+     * Acquires the resources in the cluster, if any. The local availability must be checked before
+     * @return false if the resources are used by other nodes
+     */
+    protected boolean acquireInCluster(Map<String,Integer> resources)
+    {
+        if (cluster==null) return true;
+        try
+        {
+            return cluster.tryAcquire(resources);
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to acquire {} in the cluster: {}",resources.keySet(),ex.toString());
+            return false;
+        }
+    }
+    
+    protected void release(Map<String,Integer> resources)
+    {
+        for (String resource: resources.keySet())
+        {
+            Integer inUse=resourcesInUse.get(resource);
+            if (inUse==null || inUse<=1) resourcesInUse.remove(resource);
+            else resourcesInUse.put(resource,inUse-1);
+        }
+    }
+    
+    /**
+     * @return the predicted memory of the job's backup
+     */
+    protected long getMemoryEstimate(BackupJob job)
+    {
+        if (job.memoryEstimate==null)
+        {
+            job.memoryEstimate=readMemoryEstimate(job.host);
+            if (job.memoryEstimate==null) job.memoryEstimate=largestMemoryEstimate;
+            else largestMemoryEstimate=Math.max(largestMemoryEstimate, job.memoryEstimate);
+        }
+        return job.memoryEstimate;
+    }
+    
+    /**
+     * @return the prediction from the host's MemoryHistory or null if unknown
+     */
+    protected Long readMemoryEstimate(ConfHost host)
+    {
+        try
+        {
+            return new MemoryHistory(new File(host.hostStorageDir)).estimate(host);
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to read the memory history of {}: {}",host.host,ex.toString());
+            return null;
+        }
+    }
+    
+    /**
+     * A job that exceeds the whole budget fits if no other backup is running
+     */
+    protected boolean fitsMemory(BackupJob job)
+    {
+        return memoryBudget<=0 || memoryInUse==0 || memoryInUse+getMemoryEstimate(job)<=memoryBudget;
+    }
+    
+    /**
+     * @return the queued jobs in queue order. In a cluster, the hosts of this node come first, followed by the hosts
+     * of other nodes in reverse order (they are stolen from the end of the other nodes' queues)
+     */
+    protected List<BackupJob> getQueueOrder()
+    {
+        if (cluster==null) return new ArrayList<>(jobsTodo);
+        
+        List<BackupJob> jobs=new ArrayList<>();
+        List<BackupJob> foreignJobs=new ArrayList<>();
+        for (BackupJob job: jobsTodo)
+        {
+            if (job.priority || cluster.isHome(job.host.host)) jobs.add(job);
+            else foreignJobs.add(job);
+        }
+        Collections.reverse(foreignJobs);
+        jobs.addAll(foreignJobs);
+        return jobs;
+    }
+    
+    /**
+     * @return the queued jobs (see getQueueOrder), smallest predicted memory first if the remaining budget is less than
+     * the largest prediction of the queued jobs
+     */
+    protected List<BackupJob> getCandidates()
+    {
+        List<BackupJob> candidates=getQueueOrder();
+        if (memoryBudget<=0 || memoryInUse==0) return candidates;
+        
+        long largest=0;
+        for (BackupJob candidate: candidates)
+        {
+            largest=Math.max(largest, getMemoryEstimate(candidate));
+        }
+        if (memoryBudget-memoryInUse>=largest) return candidates;
+        
+        Collections.sort(candidates, new Comparator<BackupJob>()
+        {
+            @Override
+            public int compare(BackupJob job1, BackupJob job2)
+            {
+                return Long.compare(getMemoryEstimate(job1), getMemoryEstimate(job2));
+            }
+        });
+        return candidates;
+    }
+    
     @Override
     public void run()
     {
@@ -139,5 +737,23 @@ public class BackupScheduler implements Runnable
         }
     }
     
-    
+    protected class PreBackupRunner implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            String threadName=Thread.currentThread().getName();
+            while (executeNextPreBackup(threadName))
+            {
+                try
+                {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException ex)
+                {
+                    // ignored
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spool directory for priority backups that are submitted to a running scheduler (RSyncBackup SUBMIT hostname).
+ *
+ * A submitted job is a file {id}.job that contains the host name. The scheduler claims it by renaming it to
+ * {id}.running and writes the exit status of the backup to {id}.done when it is finished:
+ * 0 - backup succeeded, 1 - backup failed, 2 - backup not executed (unknown host, locked by another process).
+ *
+ * The scheduler holds the lock of the spool directory (see HostLock) while it is running, so a submitter knows
+ * whether there's a scheduler that will pick up its job.
+ */
+public class BackupSpool
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(BackupSpool.class);
+    
+    public static final int STATUS_OK=0;
+    public static final int STATUS_FAILED=1;
+    public static final int STATUS_NOT_EXECUTED=2;
+    
+    protected static final String JOB_SUFFIX=".job";
+    protected static final String RUNNING_SUFFIX=".running";
+    protected static final String DONE_SUFFIX=".done";
+    
+    protected final File spoolDir;
+    protected final BackupConf conf;
+    protected HostLock lock;
+    
+    public BackupSpool(File spoolDir, BackupConf conf)
+    {
+        this.spoolDir=spoolDir;
+        this.conf=conf;
+    }
+    
+    public File getSpoolDir()
+    {
+        return spoolDir;
+    }
+    
+    /**
+     * Takes the spool for a scheduler
+     * @return false if another scheduler is running
+     */
+    public boolean open() throws IOException
+    {
+        spoolDir.mkdirs();
+        lock=HostLock.tryLock(spoolDir);
+        return lock!=null;
+    }
+    
+    public void close()
+    {
+        if (lock==null) return;
+        lock.release();
+        lock=null;
+    }
+    
+    /**
+     * @return true if a scheduler is running that picks up submitted jobs
+     */
+    public boolean isSchedulerRunning() throws IOException
+    {
+        spoolDir.mkdirs();
+        HostLock test=HostLock.tryLock(spoolDir);
+        if (test==null) return true;
+        test.release();
+        return false;
+    }
+    
+    /**
+     * @return the id of the submitted job
+     */
+    public String submit(String hostname) throws IOException
+    {
+        conf.getForHost(hostname); // fail early for unknown hosts
+        spoolDir.mkdirs();
+        String id=new LocalDateTime().toString("yyyyMMdd-HHmmss")+"-"+HostLock.getProcessName().split("@")[0]+"-"+hostname.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        File temp=new File(spoolDir, "."+id+JOB_SUFFIX);
+        Files.write(temp.toPath(), (hostname+"\n").getBytes("utf-8"));
+        Files.move(temp.toPath(), new File(spoolDir, id+JOB_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+    
+    /**
+     * Claims all submitted jobs (oldest first)
+     */
+    public List<BackupJob> claim()
+    {
+        List<BackupJob> jobs=new ArrayList<>();
+        String[] names=spoolDir.list();
+        if (names==null) return jobs;
+        Arrays.sort(names);
+        for (String name: names)
+        {
+            if (name.startsWith(".") || !name.endsWith(JOB_SUFFIX)) continue;
+            String id=name.substring(0, name.length()-JOB_SUFFIX.length());
+            BackupJob job=claim(id);
+            if (job!=null) jobs.add(job);
+        }
+        return jobs;
+    }
+    
+    /**
+     * @return the job or null if it was already claimed or is invalid
+     */
+    public BackupJob claim(String id)
+    {
+        File running=new File(spoolDir, id+RUNNING_SUFFIX);
+        try
+        {
+            Files.move(new File(spoolDir, id+JOB_SUFFIX).toPath(), running.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex)
+        {
+            return null; // claimed by someone else
+        }
+        
+        try
+        {
+            String hostname=new String(Files.readAllBytes(running.toPath()),"utf-8").trim();
+            BackupJob job=new BackupJob(conf.getForHost(hostname));
+            job.priority=true;
+            job.spoolId=id;
+            job.submittedAt=new LocalDateTime(running.lastModified()); // the time of submit(), kept by the rename
+            LOG.info("Claimed priority backup {} of {}",id,hostname);
+            return job;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Invalid priority backup {}: {}",id,ex.toString());
+            finish(id, STATUS_NOT_EXECUTED);
+            return null;
+        }
+    }
+    
+    public void finish(BackupJob job)
+    {
+        int status=(job.succeeded==null)?STATUS_NOT_EXECUTED:job.succeeded?STATUS_OK:STATUS_FAILED;
+        finish(job.spoolId, status);
+    }
+    
+    protected void finish(String id, int status)
+    {
+        try
+        {
+            File temp=new File(spoolDir, "."+id+DONE_SUFFIX);
+            Files.write(temp.toPath(), (status+"\n").getBytes("utf-8"));
+            Files.move(temp.toPath(), new File(spoolDir, id+DONE_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            new File(spoolDir, id+RUNNING_SUFFIX).delete();
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to write the result of {}",id,ex);
+        }
+    }
+    
+    /**
+     * @return true if the job is still waiting to be claimed
+     */
+    public boolean isWaiting(String id)
+    {
+        return new File(spoolDir, id+JOB_SUFFIX).exists();
+    }
+    
+    /**
+     * Reads and removes the result of a finished job
+     * @return the exit status or null if the job is not finished
+     */
+    public Integer readResult(String id) throws IOException
+    {
+        File done=new File(spoolDir, id+DONE_SUFFIX);
+        if (!done.exists()) return null;
+        int status=Integer.parseInt(new String(Files.readAllBytes(done.toPath()),"utf-8").trim());
+        done.delete();
+        return status;
+    }
+}
@@ -0,0 +1,130 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.LocalDateTime;
+
+/**
+ * Bytes and inodes that the recent backups of a host have allocated: new and changed files, directories and symlinks
+ * (unchanged files are hard links to the previous backup and cost nothing). Used to estimate the demand of the next
+ * backup (see SpaceAdmission).
+ */
+public class CapacityHistory
+{
+    public static final String FILE_NAME=".capacity-history";
+    
+    protected static final int MAX_ENTRIES=30;
+    /**
+     * The estimate is the largest of the recent backups plus a margin for growth
+     */
+    protected static final int ESTIMATE_ENTRIES=10;
+    protected static final double ESTIMATE_FACTOR=1.5;
+    
+    protected final File file;
+    
+    public CapacityHistory(File hostDir)
+    {
+        this.file=new File(hostDir,FILE_NAME);
+    }
+    
+    public synchronized void record(LocalDateTime backup, long bytes, long inodes) throws IOException
+    {
+        List<Entry> entries=read();
+        Entry entry=new Entry();
+        entry.backup=backup;
+        entry.bytes=bytes;
+        entry.inodes=inodes;
+        entries.add(entry);
+        while (entries.size()>MAX_ENTRIES) entries.remove(0);
+        
+        List<String> lines=new ArrayList<>();
+        for (Entry e: entries)
+        {
+            lines.add(e.backup+" "+e.bytes+" "+e.inodes);
+        }
+        File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+        Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * @return the entries, oldest first. Invalid lines are ignored
+     */
+    public synchronized List<Entry> read() throws IOException
+    {
+        List<Entry> entries=new ArrayList<>();
+        if (!file.isFile()) return entries;
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split(" ");
+            if (parts.length!=3) continue;
+            try
+            {
+                Entry entry=new Entry();
+                entry.backup=LocalDateTime.parse(parts[0]);
+                entry.bytes=Long.parseLong(parts[1]);
+                entry.inodes=Long.parseLong(parts[2]);
+                entries.add(entry);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // ignored
+            }
+        }
+        return entries;
+    }
+    
+    /**
+     * @return the estimated demand of the next backup or null if there's no history (e.g. the first backup)
+     */
+    public Estimate estimate() throws IOException
+    {
+        List<Entry> entries=read();
+        if (entries.isEmpty()) return null;
+        
+        Estimate estimate=new Estimate();
+        for (Entry entry: entries.subList(Math.max(0, entries.size()-ESTIMATE_ENTRIES), entries.size()))
+        {
+            estimate.bytes=Math.max(estimate.bytes, entry.bytes);
+            estimate.inodes=Math.max(estimate.inodes, entry.inodes);
+        }
+        estimate.bytes=(long) (estimate.bytes*ESTIMATE_FACTOR);
+        estimate.inodes=(long) (estimate.inodes*ESTIMATE_FACTOR);
+        return estimate;
+    }
+    
+    public static class Entry
+    {
+        public LocalDateTime backup;
+        public long bytes;
+        public long inodes;
+    }
+    
+    public static class Estimate
+    {
+        public long bytes;
+        public long inodes;
+        
+        public Estimate()
+        {
+        }
+        
+        public Estimate(long bytes, long inodes)
+        {
+            this.bytes=bytes;
+            this.inodes=inodes;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return bytes+" bytes, "+inodes+" inodes";
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the schedulers of several backup nodes (or several processes on one machine) through a shared
+ * directory (clusterDir), e.g. on NFS.
+ *
+ * Ownership is expressed by lease files {clusterDir}/leases/{name}.lease, containing the owner and the expiry time:
+ * - host-{host}: the node that runs the PRE_BACKUP and backup of a host
+ * - res-{resource}-{slot}: one of the concurrent users of a resource (scheduleGroup, proxy link), so the limits
+ *   hold across the whole cluster
+ * - {clusterDir}/nodes/{node}.lease: the live nodes and their start time
+ *
+ * A lease is created atomically (hard link of a complete temp file) and renewed by a heartbeat thread. If a node
+ * dies, its leases expire after leaseMillis and are taken over by another node, which resumes the unfinished backup.
+ * A lease is only renewed while it is far enough from its expiry that no other node can take it over meanwhile. A
+ * node that misses this (e.g. because it was suspended) gives the lease up and tells its listener (see
+ * setListener), so the backup of a lost host is stopped instead of running on two nodes. Expiry compares wall
+ * clock times of different nodes, so their clocks must be synchronized (e.g. NTP) to well below leaseMillis.
+ *
+ * Each host has a home node (rendezvous hash over the live nodes). A scheduler prefers its own hosts and steals
+ * hosts of other nodes (from the end of the queue) when none of its own hosts can be started.
+ */
+public class ClusterCoordinator
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(ClusterCoordinator.class);
+    
+    public static final String LEASE_SUFFIX=".lease";
+    
+    /**
+     * Reads of a missing lease before it counts as lost. It may be missing for a moment while another node checks
+     * whether it has expired (see removeExpired)
+     */
+    protected static final int RENEW_READ_ATTEMPTS=3;
+    protected static final long RENEW_READ_DELAY=100;
+    
+    /**
+     * Notified by the heartbeat thread when this node lost a host lease to another node
+     */
+    public static interface LeaseListener
+    {
+        public void hostLost(String host);
+    }
+    
+    protected final File leaseDir;
+    protected final File nodeDir;
+    protected final String node;
+    protected final long leaseMillis;
+    protected final long startTime;
+    /**
+     * Names of the leases held by this node, including resource slots
+     */
+    protected final Set<String> held=new LinkedHashSet<>();
+    /**
+     * Resource slots held by this node, several jobs of this node may hold slots of the same resource
+     */
+    protected final Map<String,List<String>> heldSlots=new HashMap<>();
+    /**
+     * Read on demand, refreshed by the heartbeat
+     */
+    protected Map<String,Long> liveNodes;
+    protected Thread heartbeat;
+    protected volatile LeaseListener listener;
+    
+    /**
+     * @param node unique name of this process, e.g. pid@hostname (see HostLock.getProcessName())
+     */
+    public ClusterCoordinator(File clusterDir, String node, long leaseMillis)
+    {
+        this.leaseDir=new File(clusterDir,"leases");
+        this.nodeDir=new File(clusterDir,"nodes");
+        this.node=node;
+        this.leaseMillis=leaseMillis;
+        this.startTime=now();
+    }
+    
+    public String getNode()
+    {
+        return node;
+    }
+    
+    public void setListener(LeaseListener listener)
+    {
+        this.listener=listener;
+    }
+    
+    /**
+     * Registers this node and starts renewing its leases
+     */
+    public void start() throws IOException
+    {
+        leaseDir.mkdirs();
+        nodeDir.mkdirs();
+        writeNodeLease();
+        
+        heartbeat=new Thread("ClusterHeartbeat")
+        {
+            @Override
+            public void run()
+            {
+                while (!isInterrupted())
+                {
+                    try
+                    {
+                        Thread.sleep(leaseMillis/3);
+                        renew();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                    catch (Exception ex)
+                    {
+                        LOG.warn("Unable to renew the cluster leases: {}",ex.toString());
+                    }
+                }
+            }
+        };
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        LOG.info("Joined cluster as {}, {} live nodes",node,getLiveNodes().size());
+    }
+    
+    /**
+     * Releases all leases and leaves the cluster
+     */
+    public synchronized void close()
+    {
+        if (heartbeat!=null) heartbeat.interrupt();
+        for (String name: new ArrayList<>(held))
+        {
+            releaseLease(name);
+        }
+        heldSlots.clear();
+        new File(nodeDir,encode(node)+LEASE_SUFFIX).delete();
+    }
+    
+    /**
+     * @return false if the host is leased by another node
+     */
+    public synchronized boolean tryLeaseHost(String host) throws IOException
+    {
+        return tryLease("host-"+encode(host));
+    }
+    
+    public synchronized void releaseHost(String host)
+    {
+        releaseLease("host-"+encode(host));
+    }
+    
+    /**
+     * @return the node that leases the host, null if not leased
+     */
+    public String getHostOwner(String host)
+    {
+        String[] lease=readLease(new File(leaseDir,"host-"+encode(host)+LEASE_SUFFIX));
+        return (lease==null)?null:lease[0];
+    }
+    
+    /**
+     * Acquires a slot of each resource (all or nothing)
+     * @param resources resource name mapped to the maximum number of concurrent users in the cluster
+     * @return false if a resource is fully used by other nodes (or this node)
+     */
+    public synchronized boolean tryAcquire(Map<String,Integer> resources) throws IOException
+    {
+        Map<String,String> acquired=new HashMap<>();
+        for (Entry<String,Integer> resource: resources.entrySet())
+        {
+            String slot=null;
+            for (int i=0;i<resource.getValue() && slot==null;i++)
+            {
+                String name="res-"+encode(resource.getKey())+"-"+i;
+                if (!held.contains(name) && tryLease(name)) slot=name;
+            }
+            if (slot==null)
+            {
+                for (String name: acquired.values())
+                {
+                    releaseLease(name);
+                }
+                return false;
+            }
+            acquired.put(resource.getKey(), slot);
+        }
+        for (Entry<String,String> slot: acquired.entrySet())
+        {
+            List<String> slots=heldSlots.get(slot.getKey());
+            if (slots==null) heldSlots.put(slot.getKey(), slots=new ArrayList<>());
+            slots.add(slot.getValue());
+        }
+        return true;
+    }
+    
+    public synchronized void release(Map<String,Integer> resources)
+    {
+        for (String resource: resources.keySet())
+        {
+            List<String> slots=heldSlots.get(resource);
+            if (slots==null || slots.isEmpty()) continue;
+            releaseLease(slots.remove(slots.size()-1));
+        }
+    }
+    
+    /**
+     * @return true if this node is the home node of the host
+     */
+    public boolean isHome(String host)
+    {
+        String home=null;
+        long best=0;
+        for (String live: getLiveNodes().keySet())
+        {
+            long score=mix((live+"/"+host).hashCode());
+            if (home==null || score>best || (score==best && live.compareTo(home)<0))
+            {
+                home=live;
+                best=score;
+            }
+        }
+        return home==null || home.equals(node);
+    }
+    
+    /**
+     * @return the start time (millis) of the earliest live node, i.e. of the cluster's run
+     */
+    public long getClusterStartTime()
+    {
+        long start=startTime;
+        for (long nodeStart: getLiveNodes().values())
+        {
+            start=Math.min(start, nodeStart);
+        }
+        return start;
+    }
+    
+    /**
+     * @return the live nodes mapped to their start times
+     */
+    protected synchronized Map<String,Long> getLiveNodes()
+    {
+        if (liveNodes!=null) return liveNodes;
+        
+        long now=now();
+        Map<String,Long> nodes=new HashMap<>();
+        nodes.put(node, startTime);
+        File[] files=nodeDir.listFiles();
+        if (files!=null) for (File file: files)
+        {
+            String[] lease=readLease(file);
+            if (lease==null || lease.length<3 || Long.parseLong(lease[1])<=now) continue;
+            nodes.put(lease[0], Long.parseLong(lease[2]));
+        }
+        liveNodes=nodes;
+        return nodes;
+    }
+    
+    /**
+     * Renews all leases of this node and notifies the listener of lost host leases. Called periodically by the
+     * heartbeat thread
+     */
+    public void renew() throws IOException
+    {
+        List<String> lost=renewLeases();
+        LeaseListener listener=this.listener;
+        for (String name: lost)
+        {
+            if (listener!=null && name.startsWith("host-")) listener.hostLost(decode(name.substring("host-".length())));
+        }
+    }
+    
+    /**
+     * A lease is renewed only if it still has a third of leaseMillis left (the heartbeat renews it after a third), so
+     * it cannot expire and be taken over by another node while it is rewritten. Otherwise it is given up.
+     * @return the names of the leases that were lost
+     */
+    protected synchronized List<String> renewLeases() throws IOException
+    {
+        writeNodeLease();
+        liveNodes=null;
+        List<String> lost=new ArrayList<>();
+        for (String name: new ArrayList<>(held))
+        {
+            File file=new File(leaseDir,name+LEASE_SUFFIX);
+            String[] lease=readHeldLease(file);
+            if (lease==null || !lease[0].equals(node))
+            {
+                // expired (e.g. this process was suspended) and taken over by another node
+                LOG.error("Lost lease {} to {}",name,(lease==null)?"nobody":lease[0]);
+                held.remove(name);
+                lost.add(name);
+                continue;
+            }
+            if (Long.parseLong(lease[1])-now()<leaseMillis/3)
+            {
+                // may be taken over by another node any time, so it must not be overwritten
+                LOG.error("Lost lease {}: not renewed in time",name);
+                held.remove(name);
+                lost.add(name);
+                continue;
+            }
+            writeAtomically(file, node+" "+(now()+leaseMillis));
+            lease=readHeldLease(file);
+            if (lease==null || !lease[0].equals(node))
+            {
+                LOG.error("Lost lease {} to {} while renewing it",name,(lease==null)?"nobody":lease[0]);
+                held.remove(name);
+                lost.add(name);
+            }
+        }
+        return lost;
+    }
+    
+    /**
+     * Reads a lease of this node, retries if it is missing
+     * @return the lease or null if it is still missing
+     */
+    protected String[] readHeldLease(File file) throws InterruptedIOException
+    {
+        for (int i=1;;i++)
+        {
+            String[] lease=readLease(file);
+            if (lease!=null || i>=RENEW_READ_ATTEMPTS) return lease;
+            try
+            {
+                Thread.sleep(RENEW_READ_DELAY);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt(); // stops the heartbeat
+                throw new InterruptedIOException("Interrupted while reading "+file);
+            }
+        }
+    }
+    
+    protected boolean tryLease(String name) throws IOException
+    {
+        if (held.contains(name)) return true;
+        
+        File file=new File(leaseDir,name+LEASE_SUFFIX);
+        String[] lease=readLease(file);
+        if (lease!=null)
+        {
+            if (Long.parseLong(lease[1])>now()) return false;
+            if (!removeExpired(file, lease)) return false;
+            LOG.warn("Taking over expired lease {} of {}",name,lease[0]);
+        }
+        
+        File tempFile=new File(leaseDir,name+"."+encode(node)+".tmp");
+        Files.write(tempFile.toPath(), (node+" "+(now()+leaseMillis)+"\n").getBytes(StandardCharsets.UTF_8));
+        try
+        {
+            Files.createLink(file.toPath(), tempFile.toPath());
+        }
+        catch (FileAlreadyExistsException ex)
+        {
+            return false; // another node was faster
+        }
+        finally
+        {
+            tempFile.delete();
+        }
+        held.add(name);
+        return true;
+    }
+    
+    /**
+     * Removes an expired lease. The lease is renamed first, so only one node can remove it. If it was renewed or
+     * replaced meanwhile, it is put back.
+     * @return true if the expired lease was removed
+     */
+    protected boolean removeExpired(File file, String[] expired) throws IOException
+    {
+        File staleFile=new File(leaseDir,file.getName()+"."+encode(node)+".stale");
+        try
+        {
+            Files.move(file.toPath(), staleFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (NoSuchFileException ex)
+        {
+            return true; // released meanwhile
+        }
+        String[] lease=readLease(staleFile);
+        if (lease!=null && (!lease[0].equals(expired[0]) || Long.parseLong(lease[1])>now()))
+        {
+            try
+            {
+                Files.createLink(file.toPath(), staleFile.toPath());
+            }
+            catch (FileAlreadyExistsException ex)
+            {
+                // replaced by yet another node
+            }
+            staleFile.delete();
+            return false;
+        }
+        staleFile.delete();
+        return true;
+    }
+    
+    protected void releaseLease(String name)
+    {
+        if (!held.remove(name)) return;
+        File file=new File(leaseDir,name+LEASE_SUFFIX);
+        String[] lease=readLease(file);
+        if (lease!=null && lease[0].equals(node)) file.delete();
+    }
+    
+    protected void writeNodeLease() throws IOException
+    {
+        writeAtomically(new File(nodeDir,encode(node)+LEASE_SUFFIX), node+" "+(now()+leaseMillis)+" "+startTime);
+    }
+    
+    protected void writeAtomically(File file, String content) throws IOException
+    {
+        File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+        Files.write(tempFile.toPath(), (content+"\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * @return owner, expiry (and start time of nodes) or null if the lease does not exist or is invalid
+     */
+    protected static String[] readLease(File file)
+    {
+        if (!file.getName().endsWith(LEASE_SUFFIX)) return null;
+        try
+        {
+            String[] lease=new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            if (lease.length<2) return null;
+            Long.parseLong(lease[1]);
+            return lease;
+        }
+        catch (IOException|NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+    
+    protected static String encode(String name)
+    {
+        try
+        {
+            return URLEncoder.encode(name, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    protected static String decode(String name)
+    {
+        try
+        {
+            return URLDecoder.decode(name, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    protected static long mix(long h)
+    {
+        h*=0x9E3779B97F4A7C15L;
+        return h^(h>>>29);
+    }
+    
+    protected long now()
+    {
+        return System.currentTimeMillis();
+    }
+}
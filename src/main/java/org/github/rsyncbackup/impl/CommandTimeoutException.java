@@ -0,0 +1,19 @@
+package org.github.rsyncbackup.impl;
+
+/**
+ * A command was killed by the ProcessWatchdog
+ */
+@SuppressWarnings("serial")
+public class CommandTimeoutException extends RuntimeException
+{
+    /**
+     * true if the command made no progress for the stall timeout, false if the host's deadline was exceeded
+     */
+    public final boolean stalled;
+    
+    public CommandTimeoutException(String message, boolean stalled)
+    {
+        super(message);
+        this.stalled=stalled;
+    }
+}
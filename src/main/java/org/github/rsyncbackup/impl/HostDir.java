@@ -25,6 +25,11 @@ public class HostDir
         this.hostDir=hostDir.getAbsoluteFile();
     }
     
+    public File getHostDir()
+    {
+        return hostDir;
+    }
+    
     public File updateCurrentDirLink() throws IOException
     {
         LocalDateTime latestBackup=getLatestBackup();
@@ -125,7 +130,7 @@ public class HostDir
         }
     }
     
-    protected static String getDirnameFromBackup(LocalDateTime backup)
+    public static String getDirnameFromBackup(LocalDateTime backup)
     {
         return (backupDirFormat.print(backup));
     }
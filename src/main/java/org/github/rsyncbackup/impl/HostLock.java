@@ -0,0 +1,134 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.LocalDateTime;
+
+/**
+ * Exclusive lock on a host's storage directory (file ".lock" in the host dir). Held by a running backup
+ * and by a migration while it switches the host to another storage pool.
+ *
+ * The lock is a lock of the operating system, so it is released automatically if the process dies. Such a lock
+ * is also released when the process closes any descriptor of the file, so ".lock" is never opened while this
+ * process holds it: the locks of this process are kept in a map and checked first. The process that holds the
+ * lock is written to ".lock.owner", for diagnostics only.
+ */
+public class HostLock
+{
+    public static final String LOCK_FILE_NAME=".lock";
+    public static final String OWNER_FILE_NAME=".lock.owner";
+    
+    /**
+     * The locks held by this process, by the canonical path of their lock file
+     */
+    protected static final Map<String,HostLock> HELD=new HashMap<>();
+    
+    protected final String path;
+    protected final RandomAccessFile lockFile;
+    protected final FileLock lock;
+    
+    protected HostLock(String path, RandomAccessFile lockFile, FileLock lock)
+    {
+        this.path=path;
+        this.lockFile=lockFile;
+        this.lock=lock;
+    }
+    
+    /**
+     * @return the lock or null if the host is locked by someone else (or by this process)
+     */
+    public static HostLock tryLock(File hostDir) throws IOException
+    {
+        File file=new File(hostDir,LOCK_FILE_NAME);
+        String path=file.getCanonicalPath();
+        synchronized (HELD)
+        {
+            if (HELD.containsKey(path)) return null;
+            
+            RandomAccessFile lockFile=new RandomAccessFile(file,"rw");
+            FileLock lock;
+            try
+            {
+                lock=lockFile.getChannel().tryLock();
+            }
+            catch (IOException ex)
+            {
+                lockFile.close();
+                throw ex;
+            }
+            if (lock==null)
+            {
+                // held by another process, closing the file does not affect its lock
+                lockFile.close();
+                return null;
+            }
+            
+            HostLock hostLock=new HostLock(path, lockFile, lock);
+            HELD.put(path, hostLock);
+            try
+            {
+                Files.write(new File(hostDir,OWNER_FILE_NAME).toPath(), (getProcessName()+" "+new LocalDateTime()+"\n").getBytes("utf-8"));
+            }
+            catch (IOException ex)
+            {
+                // diagnostics only
+            }
+            return hostLock;
+        }
+    }
+    
+    /**
+     * @return the process that holds (or held) the lock
+     */
+    public static String readOwner(File hostDir)
+    {
+        try
+        {
+            return new String(Files.readAllBytes(new File(hostDir,OWNER_FILE_NAME).toPath()),"utf-8").trim();
+        }
+        catch (IOException ex)
+        {
+            return "unknown";
+        }
+    }
+    
+    /**
+     * @return pid@hostname of this process
+     */
+    public static String getProcessName()
+    {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+    
+    public void release()
+    {
+        synchronized (HELD)
+        {
+            if (HELD.get(path)!=this) return; // already released
+            HELD.remove(path);
+            try
+            {
+                lock.release();
+            }
+            catch (IOException ex)
+            {
+                // ignored
+            }
+            try
+            {
+                lockFile.close();
+            }
+            catch (IOException ex)
+            {
+                // ignored
+            }
+        }
+    }
+}
@@ -2,5 +2,13 @@ package org.github.rsyncbackup.impl;
 
 public interface IBackupExecutor
 {
-    public void runBackupForHost(String hostname) throws Exception;
+    /**
+     * Runs only the PRE_BACKUP stage (e.g. database dumps on the client) and stores its result in the job
+     */
+    public void runPreBackupForHost(BackupJob job) throws Exception;
+    
+    /**
+     * Runs the backup. PRE_BACKUP is executed before if the job has no valid prefetched result.
+     */
+    public void runBackupForHost(BackupJob job) throws Exception;
 }
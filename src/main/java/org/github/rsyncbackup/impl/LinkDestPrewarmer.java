@@ -0,0 +1,171 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.logging.LogContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks the volumes of the previous backup (the --link-dest of the next rsync) with prewarmThreads threads and stats
+ * every entry, so that their inodes are in the page cache when rsync compares the files. Started with PRE_BACKUP, it
+ * runs while the client prepares the backup. It is stopped when the transfer starts, rsync reads the rest itself.
+ */
+public class LinkDestPrewarmer
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(LinkDestPrewarmer.class);
+    
+    protected final List<File> volumeDirs;
+    protected final ForkJoinPool pool;
+    protected final AtomicLong entries=new AtomicLong();
+    protected volatile boolean cancelled;
+    protected volatile boolean complete;
+    protected long startTime;
+    protected volatile long endTime;
+    protected Thread thread;
+    
+    protected LinkDestPrewarmer(List<File> volumeDirs, int threads)
+    {
+        this.volumeDirs=volumeDirs;
+        this.pool=new ForkJoinPool(threads);
+    }
+    
+    /**
+     * @return the started prewarmer or null if disabled for the host or there's no previous backup
+     */
+    public static LinkDestPrewarmer start(ConfHost host)
+    {
+        if (host.prewarmThreads==null || host.prewarmThreads<=0) return null;
+        
+        File hostDir=new File(host.hostStorageDir);
+        if (!hostDir.isDirectory()) return null;
+        HostDir dir=new HostDir(hostDir);
+        if (dir.getLatestBackup()==null) return null;
+        File latestBackup=dir.getBackupDir(dir.getLatestBackup());
+        
+        List<File> volumeDirs=new ArrayList<>();
+        for (ConfVolume volume: host.volumes)
+        {
+            File volumeDir=new File(latestBackup,volume.volume);
+            if (volumeDir.isDirectory()) volumeDirs.add(volumeDir);
+        }
+        if (volumeDirs.isEmpty()) return null;
+        
+        final LinkDestPrewarmer prewarmer=new LinkDestPrewarmer(volumeDirs, host.prewarmThreads);
+        prewarmer.startTime=System.currentTimeMillis();
+        prewarmer.thread=new Thread(LogContext.wrap(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prewarmer.walk();
+            }
+        }),"Prewarm "+host.host);
+        prewarmer.thread.setDaemon(true);
+        prewarmer.thread.start();
+        LOG.debug("Pre-warming {} with {} threads",latestBackup,host.prewarmThreads);
+        return prewarmer;
+    }
+    
+    protected void walk()
+    {
+        try
+        {
+            for (File volumeDir: volumeDirs)
+            {
+                if (cancelled) break;
+                pool.invoke(new WalkTask(volumeDir.toPath()));
+            }
+            complete=!cancelled;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Pre-warming failed: {}",ex.toString());
+        }
+        finally
+        {
+            endTime=System.currentTimeMillis();
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Stops the walk and waits until its threads are finished
+     */
+    public void stop() throws InterruptedException
+    {
+        cancelled=true;
+        thread.join();
+    }
+    
+    public boolean isRunning()
+    {
+        return thread.isAlive();
+    }
+    
+    /**
+     * @return true if all entries were visited before the walk was stopped
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+    
+    public long getEntries()
+    {
+        return entries.get();
+    }
+    
+    /**
+     * @return the duration of the walk (so far)
+     */
+    public long getMillis()
+    {
+        return ((endTime>0)?endTime:System.currentTimeMillis())-startTime;
+    }
+    
+    @SuppressWarnings("serial")
+    protected class WalkTask extends RecursiveAction
+    {
+        protected final Path dir;
+        
+        protected WalkTask(Path dir)
+        {
+            this.dir=dir;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            List<WalkTask> subDirs=new ArrayList<>();
+            try (DirectoryStream<Path> stream=Files.newDirectoryStream(dir))
+            {
+                for (Path entry: stream)
+                {
+                    if (cancelled) return;
+                    BasicFileAttributes attributes=Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    entries.incrementAndGet();
+                    if (attributes.isDirectory()) subDirs.add(new WalkTask(entry));
+                }
+            }
+            catch (IOException ex)
+            {
+                LOG.debug("Unable to pre-warm {}: {}",dir,ex.toString());
+            }
+            invokeAll(subDirs);
+        }
+    }
+}
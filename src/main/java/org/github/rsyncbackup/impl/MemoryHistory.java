@@ -0,0 +1,91 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+
+/**
+ * Peak RSS of the server side processes (rsync, ssh) of the last backup of each volume of a host, sampled by the
+ * ProcessWatchdog. rsync needs memory per file in the transfer, so the peak of a volume hardly changes between
+ * backups. Used to predict the memory of the next backup (see BackupScheduler).
+ */
+public class MemoryHistory
+{
+    public static final String FILE_NAME=".memory-peaks";
+    
+    /**
+     * Margin for growth on top of the last measured peak
+     */
+    protected static final double ESTIMATE_FACTOR=1.2;
+    
+    protected final File file;
+    
+    public MemoryHistory(File hostDir)
+    {
+        this.file=new File(hostDir,FILE_NAME);
+    }
+    
+    public synchronized void record(String volume, long bytes) throws IOException
+    {
+        Map<String,Long> peaks=read();
+        peaks.put(volume, bytes);
+        
+        List<String> lines=new ArrayList<>();
+        for (Map.Entry<String,Long> entry: peaks.entrySet())
+        {
+            lines.add(entry.getKey()+" "+entry.getValue());
+        }
+        File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+        Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * @return the peak bytes per volume. Invalid lines are ignored
+     */
+    public synchronized Map<String,Long> read() throws IOException
+    {
+        Map<String,Long> peaks=new LinkedHashMap<>();
+        if (!file.isFile()) return peaks;
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split(" ");
+            if (parts.length!=2) continue;
+            try
+            {
+                peaks.put(parts[0], Long.parseLong(parts[1]));
+            }
+            catch (NumberFormatException ex)
+            {
+                // ignored
+            }
+        }
+        return peaks;
+    }
+    
+    /**
+     * The volumes of a host are backed up one after the other, so the memory of a backup is the largest peak of its
+     * volumes.
+     * @return the estimated bytes of the next backup of the host or null if none of its volumes was measured yet
+     */
+    public Long estimate(ConfHost host) throws IOException
+    {
+        Map<String,Long> peaks=read();
+        Long max=null;
+        if (host.volumes!=null) for (ConfVolume volume: host.volumes)
+        {
+            Long peak=peaks.get(volume.volume);
+            if (peak!=null && (max==null || peak>max)) max=peak;
+        }
+        return (max==null)?null:(long) (max*ESTIMATE_FACTOR);
+    }
+}
@@ -0,0 +1,122 @@
+package org.github.rsyncbackup.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves ${fieldName} placeholders in all public String fields of an object with the values of its other
+ * public fields. The fields are looked up once per class and each distinct value (e.g. "${storageDir}/${host}"
+ * which is shared by most hosts) is parsed only once. Thread safe.
+ */
+public class PlaceholderResolver
+{
+    protected final List<Field> stringFields;
+    protected final Map<String,Field> fields;
+    protected final ConcurrentMap<String,Template> templates;
+    
+    public PlaceholderResolver(Class<?> type)
+    {
+        stringFields=new ArrayList<>();
+        fields=new HashMap<>();
+        for (Field field: type.getFields())
+        {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            fields.put(field.getName(),field);
+            if (field.getType()==String.class) stringFields.add(field);
+        }
+        templates=new ConcurrentHashMap<>();
+    }
+    
+    public void resolvePlaceholders(Object o) throws Exception
+    {
+        for (Field field: stringFields)
+        {
+            String value=(String) field.get(o);
+            if (value==null) continue;
+            
+            Template template=getTemplate(value);
+            if (template.isConstant()) continue;
+            
+            field.set(o,template.apply(o));
+        }
+    }
+    
+    protected Template getTemplate(String value)
+    {
+        Template template=templates.get(value);
+        if (template==null)
+        {
+            template=new Template(value);
+            templates.putIfAbsent(value,template);
+        }
+        return template;
+    }
+    
+    protected class Template
+    {
+        protected final String value;
+        /**
+         * Literal Strings and Fields, in order
+         */
+        protected final List<Object> parts;
+        
+        protected Template(String value)
+        {
+            this.value=value;
+            this.parts=new ArrayList<>();
+            
+            int endPos=0;
+            int startPos=0;
+            for (;;)
+            {
+                startPos=value.indexOf("${", endPos);
+                if (startPos<0) break;
+                
+                if (startPos>endPos) parts.add(value.substring(endPos, startPos));
+                
+                endPos=value.indexOf("}", startPos)+1;
+                if (endPos<=0) throw new RuntimeException("Invalid placeholder in "+value);
+                
+                String placeholder=value.substring(startPos+2,endPos-1);
+                Field field=fields.get(placeholder);
+                if (field==null) throw new RuntimeException("Unresolved placeholder '"+placeholder+"' in "+value);
+                parts.add(field);
+            }
+            if (endPos<value.length()) parts.add(value.substring(endPos));
+        }
+        
+        protected boolean isConstant()
+        {
+            for (Object part: parts)
+            {
+                if (part instanceof Field) return false;
+            }
+            return true;
+        }
+        
+        protected String apply(Object o) throws Exception
+        {
+            StringBuilder result=new StringBuilder();
+            for (Object part: parts)
+            {
+                if (part instanceof Field)
+                {
+                    Object placeholderValue=((Field) part).get(o);
+                    if (placeholderValue==null) throw new RuntimeException("Unresolved placeholder '"+((Field) part).getName()+"' in "+value);
+                    result.append(placeholderValue);
+                }
+                else
+                {
+                    result.append(part);
+                }
+            }
+            return result.toString();
+        }
+    }
+}
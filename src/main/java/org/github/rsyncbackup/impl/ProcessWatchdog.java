@@ -0,0 +1,441 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.logging.LogContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kills child processes (including all of their children, e.g. the ssh started by rsync) that hang, e.g. because of a
+ * dead TCP peer or a frozen mount on the client.
+ *
+ * A process makes progress if it writes output or if the I/O counters (/proc/{pid}/io, including sockets) of its
+ * process tree change. It is killed after stallTimeout without progress or when the deadline is reached.
+ * The limits are set per thread (see setLimits), so executeCommand does not need to know the host. Cancelling the
+ * limits (see cancel) kills the running commands of a job at once and prevents new ones, e.g. when its host was taken
+ * over by another node of the cluster.
+ *
+ * The watchdog also samples the peak RSS (VmHWM) of the process tree. A thread that sets a MemoryPeak (see
+ * setMemoryPeak) gets the peak of all commands it started since, e.g. to record the memory of an rsync per volume.
+ */
+public class ProcessWatchdog
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(ProcessWatchdog.class);
+    
+    protected static final long CHECK_INTERVAL=10000;
+    
+    protected static final ThreadLocal<Limits> threadLimits=new ThreadLocal<>();
+    protected static final ThreadLocal<MemoryPeak> threadMemoryPeak=new ThreadLocal<>();
+    protected static final List<Watch> watches=new ArrayList<>();
+    protected static Thread watchdogThread;
+    
+    public static class Limits
+    {
+        /**
+         * Millis without progress, 0 for no limit
+         */
+        public final long stallTimeout;
+        /**
+         * Absolute time (millis), 0 for no limit
+         */
+        public final long deadline;
+        /**
+         * Set by cancel, null if not cancelled
+         */
+        protected volatile String cancelReason;
+        
+        public Limits(long stallTimeout, long deadline)
+        {
+            this.stallTimeout=stallTimeout;
+            this.deadline=deadline;
+        }
+    }
+    
+    /**
+     * Sets the limits for commands started by the current thread, null for no limits
+     */
+    public static void setLimits(Limits limits)
+    {
+        if (limits==null) threadLimits.remove();
+        else threadLimits.set(limits);
+    }
+    
+    public static Limits getLimits()
+    {
+        return threadLimits.get();
+    }
+    
+    /**
+     * Kills the running commands that were started with the given limits and prevents new commands with them
+     */
+    public static void cancel(Limits limits, String reason)
+    {
+        limits.cancelReason=reason;
+        List<Watch> current;
+        synchronized(watches)
+        {
+            current=new ArrayList<>(watches);
+        }
+        for (Watch watch: current)
+        {
+            if (watch.limits!=limits) continue;
+            Map<String,String> previous=LogContext.restore(watch.logContext); // log to the host of the command
+            try
+            {
+                watch.check(System.currentTimeMillis());
+            }
+            finally
+            {
+                LogContext.restore(previous);
+            }
+        }
+    }
+    
+    /**
+     * The highest RSS of the process trees of the commands started while it was set
+     */
+    public static class MemoryPeak
+    {
+        protected long bytes;
+        
+        public synchronized void update(long bytes)
+        {
+            if (bytes>this.bytes) this.bytes=bytes;
+        }
+        
+        public synchronized long getBytes()
+        {
+            return bytes;
+        }
+    }
+    
+    /**
+     * Sets the MemoryPeak that is updated by commands started by the current thread, null to stop sampling
+     */
+    public static void setMemoryPeak(MemoryPeak peak)
+    {
+        if (peak==null) threadMemoryPeak.remove();
+        else threadMemoryPeak.set(peak);
+    }
+    
+    /**
+     * @throws CommandTimeoutException if the deadline of the current thread is exceeded or its limits are cancelled
+     */
+    public static void checkDeadline(String logName)
+    {
+        Limits limits=threadLimits.get();
+        if (limits!=null && limits.cancelReason!=null)
+        {
+            throw new CommandTimeoutException(logName+" not started: "+limits.cancelReason, false);
+        }
+        if (limits!=null && limits.deadline>0 && System.currentTimeMillis()>=limits.deadline)
+        {
+            throw new CommandTimeoutException(logName+" not started: deadline exceeded", false);
+        }
+    }
+    
+    /**
+     * Starts watching a process with the limits of the current thread. Watch.finish() must be called when the process has ended.
+     * @param outputFile file the process writes its output to or null
+     */
+    public static Watch watch(String logName, Process process, File outputFile)
+    {
+        Watch watch=new Watch(logName, process, outputFile, threadLimits.get(), threadMemoryPeak.get());
+        if (watch.limits==null && watch.memoryPeak==null) return watch;
+        synchronized(watches)
+        {
+            watches.add(watch);
+            if (watchdogThread==null)
+            {
+                watchdogThread=new Thread("ProcessWatchdog")
+                {
+                    @Override
+                    public void run()
+                    {
+                        runWatchdog();
+                    }
+                };
+                watchdogThread.setDaemon(true);
+                watchdogThread.start();
+            }
+        }
+        return watch;
+    }
+    
+    protected static void runWatchdog()
+    {
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(CHECK_INTERVAL);
+            }
+            catch (InterruptedException ex)
+            {
+                return;
+            }
+            checkAll(System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Checks all watched processes and kills those that exceeded their limits. Called periodically by the watchdog thread
+     */
+    public static void checkAll(long now)
+    {
+        List<Watch> current;
+        synchronized(watches)
+        {
+            current=new ArrayList<>(watches);
+        }
+        for (Watch watch: current)
+        {
+            Map<String,String> previous=LogContext.restore(watch.logContext); // log to the host of the command
+            try
+            {
+                watch.check(now);
+            }
+            catch (Exception ex)
+            {
+                LOG.warn("Unable to check {}",watch.logName,ex);
+            }
+            finally
+            {
+                LogContext.restore(previous);
+            }
+        }
+    }
+    
+    public static class Watch
+    {
+        protected final String logName;
+        protected final Process process;
+        protected final File outputFile;
+        protected final Limits limits;
+        protected final MemoryPeak memoryPeak;
+        protected final int pid;
+        protected final Map<String,String> logContext;
+        
+        protected volatile long outputBytes;
+        protected long lastOutputBytes;
+        protected long lastIoBytes;
+        protected long lastProgress;
+        protected volatile CommandTimeoutException killReason;
+        
+        protected Watch(String logName, Process process, File outputFile, Limits limits, MemoryPeak memoryPeak)
+        {
+            this.logName=logName;
+            this.process=process;
+            this.outputFile=outputFile;
+            this.limits=limits;
+            this.memoryPeak=memoryPeak;
+            this.pid=getPid(process);
+            this.logContext=LogContext.capture();
+            this.lastProgress=System.currentTimeMillis();
+        }
+        
+        /**
+         * Called for each chunk of output read from the process
+         */
+        public void progress(long bytes)
+        {
+            outputBytes+=bytes;
+        }
+        
+        protected synchronized void check(long now)
+        {
+            if (killReason!=null) return;
+            
+            if (memoryPeak!=null && pid>0) memoryPeak.update(readRssBytes(pid));
+            if (limits==null) return;
+            
+            long output=outputBytes+((outputFile!=null)?outputFile.length():0);
+            long io=(pid>0)?readIoBytes(pid):0;
+            if (output!=lastOutputBytes || io!=lastIoBytes)
+            {
+                lastOutputBytes=output;
+                lastIoBytes=io;
+                lastProgress=now;
+            }
+            
+            if (limits.cancelReason!=null)
+            {
+                kill(new CommandTimeoutException(logName+" killed: "+limits.cancelReason, false));
+            }
+            else if (limits.deadline>0 && now>=limits.deadline)
+            {
+                kill(new CommandTimeoutException(logName+" killed: deadline exceeded", false));
+            }
+            else if (limits.stallTimeout>0 && now-lastProgress>=limits.stallTimeout)
+            {
+                kill(new CommandTimeoutException(logName+" killed: no progress for "+((now-lastProgress)/1000)+" seconds", true));
+            }
+        }
+        
+        protected void kill(CommandTimeoutException reason)
+        {
+            LOG.warn("{} (pid {})",reason.getMessage(),pid);
+            killReason=reason;
+            if (pid>0) killTree(pid);
+            process.destroy();
+        }
+        
+        /**
+         * Stops watching the process
+         */
+        public void finish()
+        {
+            synchronized(watches)
+            {
+                watches.remove(this);
+            }
+        }
+        
+        /**
+         * @throws CommandTimeoutException if the process was killed by the watchdog
+         */
+        public void checkKilled()
+        {
+            if (killReason!=null) throw killReason;
+        }
+    }
+    
+    /**
+     * @return the pid of the process or -1 if it cannot be determined
+     */
+    protected static int getPid(Process process)
+    {
+        try
+        {
+            // Java 9+
+            return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+        }
+        catch (Exception ex)
+        {
+            // Java 7/8: java.lang.UNIXProcess
+        }
+        try
+        {
+            Field field=process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        }
+        catch (Exception ex)
+        {
+            LOG.debug("Unable to get the pid of {}",process);
+            return -1;
+        }
+    }
+    
+    /**
+     * @return the pid and all descendants of the process
+     */
+    protected static List<Integer> getProcessTree(int pid)
+    {
+        Map<Integer,List<Integer>> children=new HashMap<>();
+        String[] names=new File("/proc").list();
+        if (names!=null) for (String name: names)
+        {
+            if (!name.matches("[0-9]+")) continue;
+            try
+            {
+                String stat=new String(Files.readAllBytes(new File("/proc/"+name+"/stat").toPath()), StandardCharsets.UTF_8);
+                // pid (comm) state ppid ... - comm may contain spaces and braces
+                String[] fields=stat.substring(stat.lastIndexOf(')')+2).split(" ");
+                int ppid=Integer.parseInt(fields[1]);
+                List<Integer> list=children.get(ppid);
+                if (list==null) children.put(ppid, list=new ArrayList<>());
+                list.add(Integer.parseInt(name));
+            }
+            catch (Exception ex)
+            {
+                // process has ended
+            }
+        }
+        
+        List<Integer> tree=new ArrayList<>();
+        tree.add(pid);
+        for (int i=0;i<tree.size();i++)
+        {
+            List<Integer> list=children.get(tree.get(i));
+            if (list!=null) tree.addAll(list);
+        }
+        return tree;
+    }
+    
+    /**
+     * @return the sum of read and written bytes (rchar+wchar) of the process tree
+     */
+    protected static long readIoBytes(int pid)
+    {
+        long bytes=0;
+        for (int p: getProcessTree(pid))
+        {
+            try
+            {
+                for (String line: Files.readAllLines(new File("/proc/"+p+"/io").toPath(), StandardCharsets.UTF_8))
+                {
+                    if (line.startsWith("rchar:") || line.startsWith("wchar:")) bytes+=Long.parseLong(line.substring(6).trim());
+                }
+            }
+            catch (IOException|NumberFormatException ex)
+            {
+                // process has ended or is not readable
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * @return the sum of the peak RSS (VmHWM) of the processes of the tree. This is an upper bound of the tree's RSS,
+     * the processes (e.g. rsync's generator and receiver) may not have had their peaks at the same time
+     */
+    protected static long readRssBytes(int pid)
+    {
+        long bytes=0;
+        for (int p: getProcessTree(pid))
+        {
+            try
+            {
+                for (String line: Files.readAllLines(new File("/proc/"+p+"/status").toPath(), StandardCharsets.UTF_8))
+                {
+                    // e.g. "VmHWM:     12345 kB"
+                    if (line.startsWith("VmHWM:")) bytes+=Long.parseLong(line.substring(6).replace("kB","").trim())*1024;
+                }
+            }
+            catch (IOException|NumberFormatException ex)
+            {
+                // process has ended or is not readable
+            }
+        }
+        return bytes;
+    }
+    
+    protected static void killTree(int pid)
+    {
+        List<String> cmd=new ArrayList<>();
+        cmd.add("kill");
+        cmd.add("-KILL");
+        for (int p: getProcessTree(pid))
+        {
+            cmd.add(String.valueOf(p));
+        }
+        try
+        {
+            new ProcessBuilder(cmd).redirectErrorStream(true).start().waitFor();
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Unable to kill {}",cmd,ex);
+        }
+    }
+}
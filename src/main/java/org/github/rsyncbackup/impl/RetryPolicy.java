@@ -0,0 +1,86 @@
+package org.github.rsyncbackup.impl;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+
+/**
+ * Decides whether a failed backup is retried, based on the class of the failure and the host's retry settings
+ * (retryAttempts, retryDelayMinutes, retryMaxDelayMinutes, retryBudgetMinutes).
+ *
+ * The delay doubles with each attempt. No retry is scheduled that would start later than retryBudgetMinutes
+ * after the first attempt.
+ */
+public class RetryPolicy
+{
+    public static enum FailureClass
+    {
+        /**
+         * Connection lost or timed out (ssh, rsync protocol stream). Retried up to retryAttempts times
+         */
+        NETWORK,
+        /**
+         * rsync could not transfer some files (exit code 23). Retried once, since the cause (e.g. permissions) usually persists
+         */
+        PARTIAL,
+        /**
+         * Configuration, client or disk errors. Not retried
+         */
+        FATAL
+    }
+    
+    public static FailureClass classify(int exitCode)
+    {
+        switch (exitCode)
+        {
+            case 10: // error in socket I/O
+            case 12: // error in rsync protocol data stream
+            case 30: // timeout in data send/receive
+            case 35: // timeout waiting for daemon connection
+            case 255: // ssh connection failed
+                return FailureClass.NETWORK;
+            case 23: // partial transfer due to error
+                return FailureClass.PARTIAL;
+            default:
+                return FailureClass.FATAL;
+        }
+    }
+    
+    /**
+     * Classifies an exception of a command. A stalled command (see ProcessWatchdog) is treated like a network error
+     */
+    public static FailureClass classify(Throwable ex)
+    {
+        if (ex instanceof CommandTimeoutException && ((CommandTimeoutException) ex).stalled) return FailureClass.NETWORK;
+        return FailureClass.FATAL;
+    }
+    
+    /**
+     * @return the more severe of both classes, a null class is ignored
+     */
+    public static FailureClass worst(FailureClass a, FailureClass b)
+    {
+        if (a==null) return b;
+        if (b==null) return a;
+        return (a.compareTo(b)>=0)?a:b;
+    }
+    
+    /**
+     * @param failedAttempts number of failed attempts including the current one
+     * @param elapsed millis since the first attempt started
+     * @return the delay (millis) until the next attempt or -1 if the backup is not retried
+     */
+    public static long getRetryDelay(ConfHost host, FailureClass failure, int failedAttempts, long elapsed)
+    {
+        if (failure==null || failure==FailureClass.FATAL) return -1;
+        
+        int maxRetries=(host.retryAttempts==null)?0:host.retryAttempts;
+        if (failure==FailureClass.PARTIAL) maxRetries=Math.min(maxRetries, 1);
+        if (failedAttempts>maxRetries) return -1;
+        
+        long delay=(host.retryDelayMinutes==null)?0:host.retryDelayMinutes*60000L;
+        for (int i=1;i<failedAttempts;i++) delay*=2;
+        if (host.retryMaxDelayMinutes!=null) delay=Math.min(delay, host.retryMaxDelayMinutes*60000L);
+        
+        if (host.retryBudgetMinutes!=null && elapsed+delay>host.retryBudgetMinutes*60000L) return -1;
+        return delay;
+    }
+}
@@ -0,0 +1,149 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Runs that found no change on the client (see skipUnchanged) and reused the previous backup instead of creating a new
+ * one. Each run is stored with the backup it reused ({hostdir}/.runs, lines "run backup"). A run counts like a backup
+ * of its time for the keepStrategy (see PrunePlanner): if the strategy only keeps the run, the reused backup is renamed
+ * to the run's time.
+ *
+ * The renames are recorded in {hostdir}/.renames (lines "backup newName"), so that copies of the backups (replicas,
+ * migrations) can follow them (see applyRenames).
+ */
+public class RunCatalog
+{
+    public static final String FILE_NAME=".runs";
+    public static final String RENAMES_FILE_NAME=".renames";
+    
+    protected static final DateTimeFormatter format=DateTimeFormat.forPattern("yyyy-MM-dd-HH:mm:ss");
+    
+    protected final File file;
+    protected final File renamesFile;
+    
+    public RunCatalog(File hostDir)
+    {
+        this.file=new File(hostDir,FILE_NAME);
+        this.renamesFile=new File(hostDir,RENAMES_FILE_NAME);
+    }
+    
+    public synchronized void record(LocalDateTime run, LocalDateTime backup) throws IOException
+    {
+        Map<LocalDateTime,LocalDateTime> runs=read();
+        runs.put(run, backup);
+        write(runs);
+    }
+    
+    /**
+     * @return the runs (oldest first) mapped to the backups they reused. Invalid lines are ignored
+     */
+    public synchronized Map<LocalDateTime,LocalDateTime> read() throws IOException
+    {
+        return read(file);
+    }
+    
+    public synchronized void write(Map<LocalDateTime,LocalDateTime> runs) throws IOException
+    {
+        write(file, runs);
+    }
+    
+    /**
+     * Records the renames of a prune. A backup that was renamed before and is renamed again keeps only its latest
+     * name, renames to backups that no longer exist are dropped
+     * @param backups the backups after the renames
+     */
+    public synchronized void recordRenames(Map<LocalDateTime,LocalDateTime> renames, Collection<LocalDateTime> backups) throws IOException
+    {
+        Map<LocalDateTime,LocalDateTime> recorded=read(renamesFile);
+        for (Map.Entry<LocalDateTime,LocalDateTime> rename: recorded.entrySet())
+        {
+            LocalDateTime newName=renames.get(rename.getValue());
+            if (newName!=null) rename.setValue(newName);
+        }
+        recorded.putAll(renames);
+        recorded.values().retainAll(new HashSet<>(backups));
+        write(renamesFile, recorded);
+    }
+    
+    /**
+     * Renames the copies of the backups in another host dir (e.g. a replica) like the backups were renamed here
+     * @return the number of renamed backups
+     */
+    public synchronized int applyRenames(File targetHostDir) throws IOException
+    {
+        HostDir target=new HostDir(targetHostDir);
+        int renamed=0;
+        for (Map.Entry<LocalDateTime,LocalDateTime> rename: read(renamesFile).entrySet())
+        {
+            File backupDir=target.getBackupDir(rename.getKey());
+            File renamedDir=target.getBackupDir(rename.getValue());
+            if (!backupDir.isDirectory() || renamedDir.exists()) continue;
+            if (!backupDir.renameTo(renamedDir)) throw new IOException("Unable to rename "+backupDir);
+            renamed++;
+        }
+        if (renamed>0) target.updateCurrentDirLink();
+        return renamed;
+    }
+    
+    protected static Map<LocalDateTime,LocalDateTime> read(File file) throws IOException
+    {
+        Map<LocalDateTime,LocalDateTime> runs=new TreeMap<>();
+        if (!file.isFile()) return runs;
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split(" ");
+            if (parts.length!=2) continue;
+            try
+            {
+                runs.put(LocalDateTime.parse(parts[0], format), LocalDateTime.parse(parts[1], format));
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // ignored
+            }
+        }
+        return runs;
+    }
+    
+    protected static void write(File file, Map<LocalDateTime,LocalDateTime> runs) throws IOException
+    {
+        if (runs.isEmpty())
+        {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        
+        List<String> lines=new ArrayList<>();
+        for (Map.Entry<LocalDateTime,LocalDateTime> entry: runs.entrySet())
+        {
+            lines.add(format.print(entry.getKey())+" "+format.print(entry.getValue()));
+        }
+        File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+        Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * @return the time of the latest run or null if there is none
+     */
+    public LocalDateTime getLatestRun() throws IOException
+    {
+        Map<LocalDateTime,LocalDateTime> runs=read();
+        return runs.isEmpty()?null:Collections.max(runs.keySet());
+    }
+}
@@ -0,0 +1,158 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.CapacityHistory.Estimate;
+import org.github.rsyncbackup.impl.StorageForecast.Forecast;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits a backup only if the filesystem of the host's storage dir has enough free space and inodes for it. The
+ * demand of a backup is estimated from the host's CapacityHistory and reserved until the backup is finished, so
+ * that parallel backups to the same storage dir (pool) do not over-commit it. After the reservations, at least
+ * minFreeSpacePercent / minFreeInodesPercent of the filesystem must stay free.
+ *
+ * Reservations are not reduced while a backup writes its data, so the check is conservative.
+ */
+public class SpaceAdmission
+{
+    protected Logger LOG=LoggerFactory.getLogger(getClass());
+    
+    protected final Map<String,Reservation> reservations=new HashMap<>();
+    
+    /**
+     * Reserves the estimated demand of a backup
+     * @param estimate the estimate or null if unknown (only the minimum free space is checked)
+     * @return false if there is not enough space
+     */
+    public synchronized boolean reserve(ConfHost host, Estimate estimate) throws IOException
+    {
+        release(host);
+        
+        Usage usage=readUsage(new File(host.storageDir));
+        long now=System.currentTimeMillis();
+        try
+        {
+            new StorageForecast(new File(host.storageDir)).sample(usage, now);
+        }
+        catch (IOException ex)
+        {
+            LOG.warn("Unable to sample the usage of {}: {}",host.storageDir,ex.toString());
+        }
+        
+        long reservedBytes=0;
+        long reservedInodes=0;
+        for (Reservation reservation: reservations.values())
+        {
+            if (!reservation.storageDir.equals(host.storageDir)) continue;
+            reservedBytes+=reservation.estimate.bytes;
+            reservedInodes+=reservation.estimate.inodes;
+        }
+        if (estimate==null) estimate=new Estimate();
+        
+        long freeBytes=usage.freeBytes-reservedBytes-estimate.bytes;
+        long minFreeBytes=usage.totalBytes/100*host.minFreeSpacePercent;
+        if (freeBytes<minFreeBytes)
+        {
+            LOG.warn("Not enough space on {}: {} bytes free, {} reserved by running backups, {} estimated, {} must stay free",
+                    host.storageDir,usage.freeBytes,reservedBytes,estimate.bytes,minFreeBytes);
+            return false;
+        }
+        
+        if (usage.totalInodes>0) // 0 for filesystems with dynamic inodes
+        {
+            long freeInodes=usage.freeInodes-reservedInodes-estimate.inodes;
+            long minFreeInodes=usage.totalInodes/100*host.minFreeInodesPercent;
+            if (freeInodes<minFreeInodes)
+            {
+                LOG.warn("Not enough inodes on {}: {} free, {} reserved by running backups, {} estimated, {} must stay free",
+                        host.storageDir,usage.freeInodes,reservedInodes,estimate.inodes,minFreeInodes);
+                return false;
+            }
+        }
+        
+        reservations.put(host.host, new Reservation(host.storageDir, estimate));
+        return true;
+    }
+    
+    public synchronized void release(ConfHost host)
+    {
+        reservations.remove(host.host);
+    }
+    
+    /**
+     * Samples the usage of a storage dir and forecasts when it is full (see StorageForecast)
+     */
+    public Forecast updateForecast(String storageDir) throws IOException
+    {
+        StorageForecast forecast=new StorageForecast(new File(storageDir));
+        long now=System.currentTimeMillis();
+        forecast.sample(readUsage(new File(storageDir)), now);
+        return forecast.forecast(now);
+    }
+    
+    /**
+     * @return the usage of the filesystem. Inodes are 0 if unknown
+     */
+    protected Usage readUsage(File dir) throws IOException
+    {
+        Usage usage=new Usage();
+        usage.totalBytes=dir.getTotalSpace();
+        usage.freeBytes=dir.getUsableSpace();
+        
+        // java has no API for inodes
+        ProcessBuilder pb=new ProcessBuilder("/usr/bin/stat", "-f", "-c", "%c %d", dir.getAbsolutePath());
+        pb.redirectErrorStream(true);
+        Process proc=pb.start();
+        String line;
+        try (BufferedReader in=new BufferedReader(new InputStreamReader(proc.getInputStream())))
+        {
+            line=in.readLine();
+        }
+        try
+        {
+            if (proc.waitFor()==0 && line!=null)
+            {
+                String[] parts=line.trim().split(" ");
+                usage.totalInodes=Long.parseLong(parts[0]);
+                usage.freeInodes=Long.parseLong(parts[1]);
+            }
+            else
+            {
+                LOG.debug("Unable to read inodes of {}: {}",dir,line);
+            }
+        }
+        catch (InterruptedException|RuntimeException ex)
+        {
+            LOG.debug("Unable to read inodes of {}: {}",dir,ex.toString());
+        }
+        return usage;
+    }
+    
+    public static class Usage
+    {
+        public long totalBytes;
+        public long freeBytes;
+        public long totalInodes;
+        public long freeInodes;
+    }
+    
+    protected static class Reservation
+    {
+        protected final String storageDir;
+        protected final Estimate estimate;
+        
+        protected Reservation(String storageDir, Estimate estimate)
+        {
+            this.storageDir=storageDir;
+            this.estimate=estimate;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one long-lived ssh master connection per jump client (see ConfHost.proxyHost). All hosts behind
+ * the same jump client open their PROXY_* sessions over this connection (ssh connection multiplexing),
+ * so there is only one ssh handshake per proxy and run. The master is closed when the last host that
+ * uses it is finished. A master is opened under the lock of its tunnel, so a slow or dead jump client only
+ * delays the hosts behind it.
+ *
+ * Note: the number of hosts sharing a tunnel (proxyMaxParallel) must not exceed "MaxSessions" in the
+ * jump client's sshd_config (default: 10).
+ */
+public class SshTunnelManager
+{
+    protected Logger LOG=LoggerFactory.getLogger(getClass());
+    
+    protected static final long MASTER_STARTUP_TIMEOUT=30000;
+    
+    protected final File socketDir;
+    protected final Map<String,Tunnel> tunnels;
+    
+    public SshTunnelManager(File socketDir)
+    {
+        this.socketDir=socketDir;
+        this.tunnels=new HashMap<>();
+    }
+    
+    public File getControlSocket(ConfHost proxy)
+    {
+        return new File(socketDir,proxy.host+".sock");
+    }
+    
+    /**
+     * Opens the master connection to the jump client if not already running. Only hosts behind the same jump client
+     * wait for a connection that is being opened
+     * @param cmdSsh ssh command (without remote host and command) to reach the jump client
+     */
+    public void acquire(ConfHost proxy, List<String> cmdSsh) throws Exception
+    {
+        Tunnel tunnel;
+        synchronized(this)
+        {
+            tunnel=tunnels.get(proxy.host);
+            if (tunnel==null)
+            {
+                tunnel=new Tunnel(getControlSocket(proxy));
+                tunnels.put(proxy.host,tunnel);
+            }
+            tunnel.users++;
+        }
+        
+        try
+        {
+            synchronized(tunnel)
+            {
+                if (tunnel.master!=null && !tunnel.isAlive())
+                {
+                    LOG.warn("Tunnel to {} has died - reconnecting",proxy.host);
+                    tunnel.close();
+                }
+                if (tunnel.master==null) tunnel.open(proxy, cmdSsh);
+            }
+        }
+        catch (Exception ex)
+        {
+            release(proxy);
+            throw ex;
+        }
+        LOG.debug("Tunnel to {} is used by {} host(s)",proxy.host,tunnel.users);
+    }
+    
+    public synchronized void release(ConfHost proxy)
+    {
+        Tunnel tunnel=tunnels.get(proxy.host);
+        if (tunnel==null) return;
+        
+        tunnel.users--;
+        if (tunnel.users>0) return;
+        
+        // no user is opening the tunnel, so its monitor is free
+        LOG.info("Closing tunnel to {}",proxy.host);
+        synchronized(tunnel)
+        {
+            tunnel.close();
+        }
+        tunnels.remove(proxy.host);
+    }
+    
+    public synchronized void closeAll()
+    {
+        for (Tunnel tunnel: tunnels.values())
+        {
+            synchronized(tunnel)
+            {
+                tunnel.close();
+            }
+        }
+        tunnels.clear();
+        socketDir.delete();
+    }
+    
+    protected class Tunnel
+    {
+        protected final File controlSocket;
+        protected Process master;
+        protected int users;
+        
+        protected Tunnel(File controlSocket)
+        {
+            this.controlSocket=controlSocket;
+        }
+        
+        protected void open(ConfHost proxy, List<String> cmdSsh) throws Exception
+        {
+            socketDir.mkdirs();
+            if (controlSocket.exists()) controlSocket.delete(); // stale socket from a previous run
+            
+            List<String> cmd=new ArrayList<>(cmdSsh);
+            cmd.add("-M");
+            cmd.add("-S");
+            cmd.add(controlSocket.getAbsolutePath());
+            cmd.add("-N");
+            cmd.add("-o");
+            cmd.add("ControlPersist=no");
+            cmd.add("-o");
+            cmd.add("ServerAliveInterval=30");
+            cmd.add("-o");
+            cmd.add("ServerAliveCountMax=4");
+            cmd.add("root@"+proxy.remoteAddress);
+            
+            LOG.info("Opening tunnel to {}: {}",proxy.host,cmd);
+            
+            ProcessBuilder pb=new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            pb.environment().put("SSH_AUTH_SOCK", "");
+            master=pb.start();
+            
+            final String logName="TUNNEL "+proxy.host;
+            final BufferedReader in=new BufferedReader(new InputStreamReader(master.getInputStream()));
+            Thread outputReader=new Thread(logName)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        String line;
+                        while ((line=in.readLine())!=null)
+                        {
+                            LOG.debug("{}: {}",logName,line);
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        // ignored
+                    }
+                }
+            };
+            outputReader.setDaemon(true);
+            outputReader.start();
+            
+            long timeout=System.currentTimeMillis()+MASTER_STARTUP_TIMEOUT;
+            while (!controlSocket.exists())
+            {
+                if (!isAlive())
+                {
+                    int exitCode=master.exitValue();
+                    close();
+                    throw new RuntimeException("Unable to open tunnel to "+proxy.host+". Exit code "+exitCode);
+                }
+                if (System.currentTimeMillis()>timeout)
+                {
+                    close();
+                    throw new RuntimeException("Unable to open tunnel to "+proxy.host+". Timeout waiting for control socket "+controlSocket);
+                }
+                Thread.sleep(200);
+            }
+        }
+        
+        protected boolean isAlive()
+        {
+            if (master==null) return false;
+            try
+            {
+                master.exitValue();
+                return false;
+            }
+            catch (IllegalThreadStateException ex)
+            {
+                return true;
+            }
+        }
+        
+        protected void close()
+        {
+            if (master!=null)
+            {
+                master.destroy();
+                try
+                {
+                    master.waitFor();
+                }
+                catch (InterruptedException ex)
+                {
+                    // ignored
+                }
+                master=null;
+            }
+            controlSocket.delete();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.github.rsyncbackup.impl.SpaceAdmission.Usage;
+
+/**
+ * Predicts when a storage dir (pool) runs out of space or inodes. The usage of the filesystem is sampled (at most
+ * hourly) into a file in the storage dir, the forecast extrapolates the trend (least squares) of the last
+ * TREND_DAYS. So it includes everything that changes the usage: new backups, pruning, other hosts on the filesystem.
+ */
+public class StorageForecast
+{
+    public static final String FILE_NAME=".capacity-samples";
+    
+    protected static final long SAMPLE_INTERVAL=3600000L;
+    protected static final long TREND_DAYS=14;
+    protected static final long MAX_SAMPLE_AGE=90*24*3600000L;
+    /**
+     * At least this time span is required for a forecast
+     */
+    protected static final long MIN_TREND_SPAN=24*3600000L;
+    
+    protected final File file;
+    
+    public StorageForecast(File storageDir)
+    {
+        this.file=new File(storageDir,FILE_NAME);
+    }
+    
+    /**
+     * Appends a sample if the last one is older than the sample interval
+     */
+    public synchronized void sample(Usage usage, long now) throws IOException
+    {
+        List<Sample> samples=read();
+        if (!samples.isEmpty() && samples.get(samples.size()-1).time+SAMPLE_INTERVAL>now) return;
+        
+        String line=now+" "+usage.freeBytes+" "+usage.totalBytes+" "+usage.freeInodes+" "+usage.totalInodes+"\n";
+        if (!samples.isEmpty() && samples.get(0).time+MAX_SAMPLE_AGE<now)
+        {
+            // drop outdated samples
+            List<String> lines=new ArrayList<>();
+            for (Sample sample: samples)
+            {
+                if (sample.time+MAX_SAMPLE_AGE<now) continue;
+                lines.add(sample.time+" "+sample.freeBytes+" "+sample.totalBytes+" "+sample.freeInodes+" "+sample.totalInodes);
+            }
+            lines.add(line.trim());
+            File tempFile=new File(file.getParentFile(),file.getName()+".tmp");
+            Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        else
+        {
+            Files.write(file.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+    
+    /**
+     * @return the samples, oldest first. Invalid lines are ignored
+     */
+    public synchronized List<Sample> read() throws IOException
+    {
+        List<Sample> samples=new ArrayList<>();
+        if (!file.isFile()) return samples;
+        for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split(" ");
+            if (parts.length!=5) continue;
+            try
+            {
+                Sample sample=new Sample();
+                sample.time=Long.parseLong(parts[0]);
+                sample.freeBytes=Long.parseLong(parts[1]);
+                sample.totalBytes=Long.parseLong(parts[2]);
+                sample.freeInodes=Long.parseLong(parts[3]);
+                sample.totalInodes=Long.parseLong(parts[4]);
+                samples.add(sample);
+            }
+            catch (NumberFormatException ex)
+            {
+                // ignored
+            }
+        }
+        Collections.sort(samples);
+        return samples;
+    }
+    
+    public Forecast forecast(long now) throws IOException
+    {
+        List<Sample> samples=new ArrayList<>();
+        for (Sample sample: read())
+        {
+            if (sample.time>=now-TREND_DAYS*24*3600000L) samples.add(sample);
+        }
+        
+        Forecast forecast=new Forecast();
+        if (samples.size()<2 || samples.get(samples.size()-1).time-samples.get(0).time<MIN_TREND_SPAN) return forecast;
+        
+        Sample last=samples.get(samples.size()-1);
+        forecast.daysUntilFull=getDaysUntilZero(samples, false, last.freeBytes);
+        if (last.totalInodes>0) forecast.daysUntilInodesFull=getDaysUntilZero(samples, true, last.freeInodes);
+        return forecast;
+    }
+    
+    /**
+     * @return the days until the trend of the free space/inodes reaches 0 (from the last sample), null if it does not decrease
+     */
+    protected static Double getDaysUntilZero(List<Sample> samples, boolean inodes, long lastFree)
+    {
+        double t0=samples.get(0).time;
+        double sumX=0, sumY=0, sumXX=0, sumXY=0;
+        for (Sample sample: samples)
+        {
+            double x=(sample.time-t0)/(24*3600000.0);
+            double y=inodes?sample.freeInodes:sample.freeBytes;
+            sumX+=x;
+            sumY+=y;
+            sumXX+=x*x;
+            sumXY+=x*y;
+        }
+        int n=samples.size();
+        double denominator=n*sumXX-sumX*sumX;
+        if (denominator==0) return null;
+        double slope=(n*sumXY-sumX*sumY)/denominator; // free units per day
+        if (slope>=0) return null;
+        return lastFree/-slope;
+    }
+    
+    public static class Sample implements Comparable<Sample>
+    {
+        public long time;
+        public long freeBytes;
+        public long totalBytes;
+        public long freeInodes;
+        public long totalInodes;
+        
+        @Override
+        public int compareTo(Sample o)
+        {
+            return Long.compare(time, o.time);
+        }
+    }
+    
+    public static class Forecast
+    {
+        /**
+         * Days until the filesystem is full, null if unknown or the usage does not grow
+         */
+        public Double daysUntilFull;
+        public Double daysUntilInodesFull;
+        
+        @Override
+        public String toString()
+        {
+            return "space full in "+format(daysUntilFull)+", inodes full in "+format(daysUntilInodesFull);
+        }
+        
+        protected static String format(Double days)
+        {
+            return (days==null)?"-":String.format(Locale.US,"%.1f days",days);
+        }
+    }
+}
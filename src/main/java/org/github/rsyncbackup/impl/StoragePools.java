@@ -0,0 +1,204 @@
+package org.github.rsyncbackup.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named storage directories for host backups. A host that has a directory on one of the pools stays there
+ * (until it is moved with RSyncBackupMigrate). A new host is placed on the pool with the best score
+ * free space * weight / (1 + hosts on the pool), so the weight can be used to express the I/O capacity of a pool.
+ *
+ * Hosts are only placed by a backup or the PLACE command (see place), never while the config is read, and only while
+ * all pools are mounted. Otherwise the host of an unmounted pool would look new and get a second directory.
+ */
+public class StoragePools
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(StoragePools.class);
+    
+    protected final Map<String,ConfPool> pools;
+    protected Map<String,Integer> hostCounts;
+    
+    public StoragePools(ConfPool[] pools)
+    {
+        this.pools=new LinkedHashMap<>();
+        if (pools!=null) for (ConfPool pool: pools)
+        {
+            if (pool.name==null || pool.name.isEmpty()) throw new IllegalArgumentException("Missing pool name");
+            if (pool.dir==null || pool.dir.isEmpty()) throw new IllegalArgumentException("Missing dir for pool "+pool.name);
+            if (pool.weight==null) pool.weight=1;
+            if (pool.weight<1) throw new IllegalArgumentException("Invalid weight for pool "+pool.name+": "+pool.weight);
+            if (this.pools.put(pool.name,pool)!=null) throw new IllegalArgumentException("Duplicate pool "+pool.name);
+        }
+    }
+    
+    public boolean isEmpty()
+    {
+        return pools.isEmpty();
+    }
+    
+    public Collection<ConfPool> getPools()
+    {
+        return pools.values();
+    }
+    
+    public ConfPool getPool(String name)
+    {
+        ConfPool pool=pools.get(name);
+        if (pool==null) throw new IllegalArgumentException("Unknown storage pool: "+name);
+        return pool;
+    }
+    
+    /**
+     * @return the pool that holds the host's backups. For a host that is not placed yet, the pool where it would be
+     *         placed if it has a preferredPool, otherwise the first pool. Nothing is created
+     */
+    public ConfPool getPoolForHost(String host, String preferredPool)
+    {
+        ConfPool pool=locate(host);
+        if (pool!=null) return pool;
+        return (preferredPool!=null)?getPool(preferredPool):pools.values().iterator().next();
+    }
+    
+    /**
+     * Places a new host on preferredPool (if set) or on the best pool by creating its directory
+     * @return the pool that holds the host's backups
+     * @throws RuntimeException if the host is new and a pool is not available, since the host may be stored there
+     */
+    public synchronized ConfPool place(String host, String preferredPool)
+    {
+        ConfPool pool=locate(host);
+        if (pool!=null) return pool;
+        
+        for (ConfPool candidate: pools.values())
+        {
+            if (!isAvailable(candidate))
+            {
+                throw new RuntimeException("Storage pool "+candidate.name+" is not mounted ("+candidate.dir+") - not placing new host "+host);
+            }
+        }
+        pool=(preferredPool!=null)?getPool(preferredPool):selectPoolForNewHost();
+        
+        File hostDir=new File(pool.dir,host);
+        if (!hostDir.mkdirs()) throw new RuntimeException("Unable to create "+hostDir);
+        LOG.info("Placed new host {} on storage pool {}",host,pool.name);
+        
+        getHostCounts().put(pool.name,getHostCounts().get(pool.name)+1);
+        
+        return pool;
+    }
+    
+    /**
+     * @return true if the pool's dir exists and its mountPoint is mounted, i.e. it is on another file system than
+     *         the directory that contains the mount point. "/" is always mounted
+     */
+    protected static boolean isAvailable(ConfPool pool)
+    {
+        File dir=new File(pool.dir);
+        if (!dir.isDirectory()) return false;
+        try
+        {
+            File mountPoint=new File((pool.mountPoint!=null)?pool.mountPoint:pool.dir).getCanonicalFile();
+            if (!dir.getCanonicalPath().startsWith(mountPoint.getPath())) return false;
+            File parent=mountPoint.getParentFile();
+            if (parent==null) return true;
+            return !Files.getAttribute(mountPoint.toPath(), "unix:dev").equals(Files.getAttribute(parent.toPath(), "unix:dev"));
+        }
+        catch (IOException|RuntimeException ex)
+        {
+            LOG.warn("Unable to check the mount point of storage pool {}: {}",pool.name,ex.toString());
+            return false;
+        }
+    }
+    
+    /**
+     * @return the pool that contains the host's directory or null. Symlinks (left behind by a migration) are ignored
+     */
+    public ConfPool locate(String host)
+    {
+        for (ConfPool pool: pools.values())
+        {
+            File hostDir=new File(pool.dir,host);
+            if (hostDir.isDirectory() && !Files.isSymbolicLink(hostDir.toPath())) return pool;
+        }
+        return null;
+    }
+    
+    protected ConfPool selectPoolForNewHost()
+    {
+        ConfPool best=null;
+        double bestScore=-1;
+        for (ConfPool pool: pools.values())
+        {
+            File dir=new File(pool.dir);
+            if (!dir.isDirectory())
+            {
+                LOG.warn("Storage pool {} is not available: {}",pool.name,dir);
+                continue;
+            }
+            double score=(double) dir.getUsableSpace()*pool.weight/(1+getHostCounts().get(pool.name));
+            if (score>bestScore)
+            {
+                best=pool;
+                bestScore=score;
+            }
+        }
+        if (best==null) throw new RuntimeException("No storage pool available");
+        return best;
+    }
+    
+    protected Map<String,Integer> getHostCounts()
+    {
+        if (hostCounts==null)
+        {
+            hostCounts=new HashMap<>();
+            for (ConfPool pool: pools.values())
+            {
+                int count=0;
+                File[] files=new File(pool.dir).listFiles();
+                if (files!=null) for (File file: files)
+                {
+                    if (file.isDirectory() && !file.getName().startsWith(".") && !Files.isSymbolicLink(file.toPath())) count++;
+                }
+                hostCounts.put(pool.name,count);
+            }
+        }
+        return hostCounts;
+    }
+    
+    /**
+     * @return a fingerprint of the pool directories' contents, used to detect host dirs created or moved outside of this process
+     */
+    public String createFingerprint()
+    {
+        StringBuilder fingerprint=new StringBuilder();
+        for (ConfPool pool: pools.values())
+        {
+            fingerprint.append(pool.name).append(':').append(pool.dir).append('\n');
+            File[] files=new File(pool.dir).listFiles();
+            if (files==null) continue;
+            List<String> names=new ArrayList<>();
+            for (File file: files)
+            {
+                names.add(Files.isSymbolicLink(file.toPath())?file.getName()+"@":file.getName());
+            }
+            Collections.sort(names);
+            for (String name: names)
+            {
+                fingerprint.append(name).append('\n');
+            }
+        }
+        return fingerprint.toString();
+    }
+}
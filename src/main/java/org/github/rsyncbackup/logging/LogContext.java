@@ -0,0 +1,112 @@
+package org.github.rsyncbackup.logging;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.joda.time.LocalDateTime;
+import org.slf4j.MDC;
+
+/**
+ * The log context (host and run) of the current thread, kept in the SLF4J MDC. Log files per host are created by
+ * a SiftingAppender with a MDCBasedDiscriminator on "host" (see conf.example/logback.xml).
+ *
+ * The MDC is not passed on to other threads. Tasks that are executed by another thread (thread pools, ForkJoin,
+ * background threads) must be wrapped with wrap() when they are created.
+ */
+public class LogContext
+{
+    public static final String HOST="host";
+    public static final String RUN="run";
+    
+    /**
+     * Sets the host of the current thread, null for messages that don't belong to a host
+     */
+    public static void setHost(String host)
+    {
+        if (host==null) MDC.remove(HOST);
+        else MDC.put(HOST, host);
+    }
+    
+    public static String getHost()
+    {
+        return MDC.get(HOST);
+    }
+    
+    /**
+     * Sets a new run id (start time and pid of this process) for the current thread
+     */
+    public static void startRun()
+    {
+        MDC.put(RUN, new LocalDateTime().toString("yyyyMMdd-HHmmss")+"-"+ManagementFactory.getRuntimeMXBean().getName().split("@")[0]);
+    }
+    
+    /**
+     * @return a copy of the log context of the current thread (may be null)
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String,String> capture()
+    {
+        return MDC.getCopyOfContextMap();
+    }
+    
+    /**
+     * Replaces the log context of the current thread
+     * @return the previous log context
+     */
+    public static Map<String,String> restore(Map<String,String> context)
+    {
+        Map<String,String> previous=capture();
+        if (context==null) MDC.clear();
+        else MDC.setContextMap(context);
+        return previous;
+    }
+    
+    /**
+     * @return a task that runs with the log context of the current thread
+     */
+    public static Runnable wrap(final Runnable runnable)
+    {
+        final Map<String,String> context=capture();
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Map<String,String> previous=restore(context);
+                try
+                {
+                    runnable.run();
+                }
+                finally
+                {
+                    restore(previous);
+                }
+            }
+        };
+    }
+    
+    /**
+     * @return a task that runs with the log context of the current thread
+     */
+    public static <T> Callable<T> wrap(final Callable<T> callable)
+    {
+        final Map<String,String> context=capture();
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                Map<String,String> previous=restore(context);
+                try
+                {
+                    return callable.call();
+                }
+                finally
+                {
+                    restore(previous);
+                }
+            }
+        };
+    }
+}
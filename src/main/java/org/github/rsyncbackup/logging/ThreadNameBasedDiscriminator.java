@@ -5,7 +5,12 @@ import ch.qos.logback.core.sift.Discriminator;
 
 /**
  * Code from http://www.nurkiewicz.com/2013/04/siftingappender-logging-different.html
+ *
+ * @deprecated threads are no longer renamed to the host. Use ch.qos.logback.classic.sift.MDCBasedDiscriminator
+ * with key "host" (see LogContext). For existing configs, this returns the host of the event's log context or
+ * "global" if there's none.
  */
+@Deprecated
 public class ThreadNameBasedDiscriminator implements Discriminator<ILoggingEvent>
 {
     private static final String KEY = "threadName";
@@ -14,7 +19,8 @@ public class ThreadNameBasedDiscriminator implements Discriminator<ILoggingEvent
     @Override
     public String getDiscriminatingValue(ILoggingEvent iLoggingEvent)
     {
-        return Thread.currentThread().getName();
+        String host = iLoggingEvent.getMDCPropertyMap().get(LogContext.HOST);
+        return (host != null) ? host : "global";
     }
 
     @Override
@@ -37,4 +43,4 @@ public class ThreadNameBasedDiscriminator implements Discriminator<ILoggingEvent
     {
         return started;
     }
-}
\ No newline at end of file
+}
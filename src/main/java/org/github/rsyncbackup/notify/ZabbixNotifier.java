@@ -2,6 +2,7 @@ package org.github.rsyncbackup.notify;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import org.github.rsyncbackup.RSyncBackup;
 import org.github.rsyncbackup.RSyncBackup.BackupStatistics;
@@ -29,16 +30,61 @@ public class ZabbixNotifier
         if (statistics.backupOk)
         {
             Duration duration=new Duration(statistics.startTime.toDateTime(),statistics.endTime.toDateTime());
-            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.status", "OK: Backup finished"));
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.status", statistics.unchanged?"OK: No changes, previous backup reused":"OK: Backup finished"));
             items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.duration", ""+duration.getStandardSeconds()));
             items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.lastSuccessfull", statistics.endTime.toDateTime().toString("yyyy-MM-dd HH:mm:ss")));
             items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.changedFileCount", ""+statistics.changedFileCount));
             items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.changedFileSize", ""+statistics.changedFileSize));
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.phase.preBackup", ""+statistics.preBackupMillis/1000));
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.phase.transfer", ""+statistics.transferMillis/1000));
+            if (conf.prewarmThreads!=null && conf.prewarmThreads>0)
+            {
+                items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.phase.prewarm", ""+statistics.prewarmMillis/1000));
+            }
+            if (conf.dumpEnabled)
+            {
+                items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.dumpCount", ""+statistics.dumpCount));
+                items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.dumpSize", ""+statistics.dumpSize));
+            }
         }
         else
         {
             items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.status", "ERR: See log for details"));
         }
+        if (statistics.verifiedVolumes>0 || statistics.verifyDiscrepancies>0)
+        {
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.verify.discrepancies", ""+statistics.verifyDiscrepancies));
+        }
+        if (statistics.storageDaysUntilFull!=null)
+        {
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.storage.daysUntilFull", String.format(Locale.US,"%.1f",statistics.storageDaysUntilFull)));
+        }
+        if (statistics.storageDaysUntilInodesFull!=null)
+        {
+            items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.storage.daysUntilInodesFull", String.format(Locale.US,"%.1f",statistics.storageDaysUntilInodesFull)));
+        }
+        
+        send(conf, items);
+    }
+    
+    public static void notifyScrub(ConfHost conf, int corruptCount)
+    {
+        Logger LOG=LoggerFactory.getLogger(ZabbixNotifier.class);
+        
+        if (conf.notifyZabbixServer==null || conf.notifyZabbixServer.isEmpty()) return;
+        if (conf.notifyZabbixHost==null || conf.notifyZabbixHost.isEmpty()) return;
+        
+        LOG.debug("Sending scrub result via zabbix");
+        
+        List<ZabbixSenderItem> items=new ArrayList<>();
+        items.add(new ZabbixSenderItem(conf.notifyZabbixHost, "backup.scrub.corruptCount", ""+corruptCount));
+        
+        send(conf, items);
+    }
+    
+    protected static void send(ConfHost conf, List<ZabbixSenderItem> items)
+    {
+        Logger LOG=LoggerFactory.getLogger(ZabbixNotifier.class);
         
         int retryCount=(conf.notifyZabbixRetryCount!=null)?conf.notifyZabbixRetryCount:1;
         if (retryCount<1) retryCount=1;
@@ -0,0 +1,154 @@
+package org.github.rsyncbackup.prune;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Counts the links of inodes seen in a set of directories, stored off-heap (an open addressing hash table in a direct
+ * ByteBuffer), so that hosts with tens of millions of files don't need a java object per inode.
+ *
+ * An inode is reclaimable if all of its links were seen, i.e. the number of seen links equals its link count (st_nlink).
+ * Links outside of the walked directories (e.g. kept backups or the chunk store) are never walked, they only show in
+ * the link count. Inode numbers are only unique within one file system, so all directories must be on the same one.
+ */
+public class InodeRefCounts
+{
+    /**
+     * Slot: inode+1 (0 is empty), seen links, link count (int each), allocated bytes
+     */
+    protected static final int SLOT_SIZE=24;
+    protected static final int MAX_SLOTS=Integer.MAX_VALUE/SLOT_SIZE;
+    protected static final double MAX_LOAD=0.7;
+    
+    protected ByteBuffer table;
+    protected int slots;
+    protected int size;
+    
+    public InodeRefCounts()
+    {
+        this(1024);
+    }
+    
+    public InodeRefCounts(int initialSlots)
+    {
+        allocate(Math.max(16, Integer.highestOneBit(initialSlots-1)<<1));
+    }
+    
+    protected void allocate(int slots)
+    {
+        this.slots=slots;
+        this.size=0;
+        this.table=ByteBuffer.allocateDirect(slots*SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+    
+    /**
+     * Counts one link of an inode
+     * @param linkCount st_nlink of the inode
+     * @param bytes allocated bytes of the inode, counted once per inode
+     */
+    public void addLink(long inode, int linkCount, long bytes)
+    {
+        int slot=findSlot(inode);
+        int pos=slot*SLOT_SIZE;
+        if (table.getLong(pos)==0)
+        {
+            table.putLong(pos, inode+1);
+            table.putInt(pos+8, 1);
+            table.putInt(pos+12, linkCount);
+            table.putLong(pos+16, bytes);
+            size++;
+            if (size>slots*MAX_LOAD) grow();
+        }
+        else
+        {
+            table.putInt(pos+8, table.getInt(pos+8)+1);
+        }
+    }
+    
+    /**
+     * @return the slot of the inode or the empty slot where it belongs
+     */
+    protected int findSlot(long inode)
+    {
+        long key=inode+1;
+        int slot=hash(key) & (slots-1);
+        while (true)
+        {
+            long current=table.getLong(slot*SLOT_SIZE);
+            if (current==0 || current==key) return slot;
+            slot=(slot+1) & (slots-1);
+        }
+    }
+    
+    protected static int hash(long key)
+    {
+        long h=key*0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h>>>32));
+    }
+    
+    protected void grow()
+    {
+        if (slots*2>MAX_SLOTS) throw new IllegalStateException("Too many inodes: "+size);
+        
+        ByteBuffer old=this.table;
+        int oldSlots=this.slots;
+        allocate(oldSlots*2);
+        for (int i=0;i<oldSlots;i++)
+        {
+            int oldPos=i*SLOT_SIZE;
+            long key=old.getLong(oldPos);
+            if (key==0) continue;
+            int pos=findSlot(key-1)*SLOT_SIZE;
+            table.putLong(pos, key);
+            table.putInt(pos+8, old.getInt(oldPos+8));
+            table.putInt(pos+12, old.getInt(oldPos+12));
+            table.putLong(pos+16, old.getLong(oldPos+16));
+            size++;
+        }
+    }
+    
+    /**
+     * @return the number of distinct inodes
+     */
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * @return the seen links of the inode, 0 if not seen
+     */
+    public int getLinks(long inode)
+    {
+        int pos=findSlot(inode)*SLOT_SIZE;
+        return (table.getLong(pos)==0)?0:table.getInt(pos+8);
+    }
+    
+    /**
+     * @return the bytes of the inodes whose links were all seen
+     */
+    public long getReclaimableBytes()
+    {
+        long bytes=0;
+        for (int i=0;i<slots;i++)
+        {
+            int pos=i*SLOT_SIZE;
+            if (table.getLong(pos)!=0 && table.getInt(pos+8)>=table.getInt(pos+12)) bytes+=table.getLong(pos+16);
+        }
+        return bytes;
+    }
+    
+    /**
+     * @return the bytes of all seen inodes
+     */
+    public long getTotalBytes()
+    {
+        long bytes=0;
+        for (int i=0;i<slots;i++)
+        {
+            int pos=i*SLOT_SIZE;
+            if (table.getLong(pos)!=0) bytes+=table.getLong(pos+16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,227 @@
+package org.github.rsyncbackup.prune;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.github.rsyncbackup.keep.IBackupKeepStrategy;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Plans the deletion of a host's backups that are not kept by its keepStrategy, and computes how many bytes the
+ * deletion frees: the directories, symlinks etc. of the deleted backups, and the files whose every hard link lies inside
+ * the deleted backups (see InodeRefCounts). Files that are still linked from a kept backup, the .sync dir or the chunk
+ * store cost nothing. Sizes are allocated bytes (find %b), not file sizes.
+ *
+ * Runs that reused a backup (see RunCatalog) count like backups of their time. A backup is kept if the strategy keeps
+ * it or one of its runs. If only runs are kept, the backup is renamed to the latest of them (instead of deleting it).
+ */
+public class PrunePlanner
+{
+    protected final ConfHost host;
+    
+    public PrunePlanner(ConfHost host)
+    {
+        this.host=host;
+    }
+    
+    /**
+     * @return the backups that are not kept by the strategy, oldest first. Empty if the strategy keeps nothing (all
+     * backups are kept then, e.g. because of a broken strategy)
+     */
+    public static List<LocalDateTime> getBackupsToDelete(IBackupKeepStrategy keepStrategy, List<LocalDateTime> backups, LocalDateTime now)
+    {
+        List<LocalDateTime> toDelete=new ArrayList<>();
+        List<LocalDateTime> backupsToKeep=keepStrategy.getBackupsToKeep(now, backups);
+        if (backupsToKeep.isEmpty()) return toDelete;
+        for (LocalDateTime backup: backups)
+        {
+            if (!backupsToKeep.contains(backup)) toDelete.add(backup);
+        }
+        return toDelete;
+    }
+    
+    /**
+     * Plans the runs and backups to keep, sets toDelete, renames, runs and keptCount of the plan
+     */
+    public static void applyKeepStrategy(IBackupKeepStrategy keepStrategy, List<LocalDateTime> backups, Map<LocalDateTime,LocalDateTime> runs,
+            LocalDateTime now, PrunePlan plan)
+    {
+        // runs of deleted backups and runs that are backups themselves (e.g. renamed by an interrupted prune) are dropped
+        Set<LocalDateTime> backupSet=new HashSet<>(backups);
+        Map<LocalDateTime,List<LocalDateTime>> runsByBackup=new HashMap<>();
+        List<LocalDateTime> all=new ArrayList<>(backups);
+        for (Entry<LocalDateTime,LocalDateTime> run: new TreeMap<>(runs).entrySet())
+        {
+            if (!backupSet.contains(run.getValue()) || backupSet.contains(run.getKey())) continue;
+            List<LocalDateTime> backupRuns=runsByBackup.get(run.getValue());
+            if (backupRuns==null) runsByBackup.put(run.getValue(), backupRuns=new ArrayList<>());
+            backupRuns.add(run.getKey());
+            all.add(run.getKey());
+        }
+        Collections.sort(all);
+        
+        Set<LocalDateTime> kept=new HashSet<>(keepStrategy.getBackupsToKeep(now, all));
+        if (kept.isEmpty()) kept.addAll(all); // broken strategy, see getBackupsToDelete
+        
+        for (LocalDateTime backup: backups)
+        {
+            List<LocalDateTime> keptRuns=new ArrayList<>();
+            if (runsByBackup.containsKey(backup)) for (LocalDateTime run: runsByBackup.get(backup))
+            {
+                if (kept.contains(run)) keptRuns.add(run);
+            }
+            LocalDateTime name=backup;
+            if (!kept.contains(backup))
+            {
+                if (keptRuns.isEmpty())
+                {
+                    plan.toDelete.add(backup);
+                    continue;
+                }
+                name=keptRuns.remove(keptRuns.size()-1);
+                plan.renames.put(backup, name);
+            }
+            for (LocalDateTime run: keptRuns)
+            {
+                plan.runs.put(run, name);
+            }
+        }
+        plan.keptCount=backups.size()-plan.toDelete.size();
+    }
+    
+    /**
+     * Plans the backups to delete without computing the freed bytes
+     */
+    public PrunePlan planBackups(LocalDateTime now) throws IOException
+    {
+        if (host.backupKeepStrategy==null) throw new IllegalArgumentException("No keepStrategy defined for "+host.host);
+        
+        HostDir hostDir=new HostDir(new File(host.hostStorageDir));
+        PrunePlan plan=new PrunePlan(host);
+        applyKeepStrategy(host.backupKeepStrategy, hostDir.listBackups(), new RunCatalog(hostDir.getHostDir()).read(), now, plan);
+        return plan;
+    }
+    
+    public PrunePlan plan(LocalDateTime now) throws IOException
+    {
+        PrunePlan plan=planBackups(now);
+        HostDir hostDir=new HostDir(new File(host.hostStorageDir));
+        
+        List<File> dirs=new ArrayList<>();
+        for (LocalDateTime backup: plan.toDelete)
+        {
+            dirs.add(hostDir.getBackupDir(backup));
+        }
+        computeReclaimable(dirs, plan);
+        return plan;
+    }
+    
+    /**
+     * Walks the dirs (with find) and adds the freed bytes to the plan
+     */
+    public static void computeReclaimable(List<File> dirs, PrunePlan plan) throws IOException
+    {
+        if (dirs.isEmpty()) return;
+        
+        List<String> cmd=new ArrayList<>(Arrays.asList("/usr/bin/find"));
+        for (File dir: dirs)
+        {
+            cmd.add(dir.getAbsolutePath());
+        }
+        // inode, link count, allocated 512 byte blocks, type
+        cmd.addAll(Arrays.asList("-printf", "%i %n %b %y\n"));
+        
+        InodeRefCounts refCounts=new InodeRefCounts();
+        Process proc=new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (BufferedReader in=new BufferedReader(new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line=in.readLine())!=null)
+            {
+                String[] parts=line.split(" ");
+                if (parts.length!=4) continue;
+                long bytes=Long.parseLong(parts[2])*512;
+                if (parts[3].equals("d"))
+                {
+                    // directories can't be hard linked, their link count is the number of subdirs
+                    plan.otherBytes+=bytes;
+                }
+                else
+                {
+                    refCounts.addLink(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), bytes);
+                }
+            }
+            int exitCode=proc.waitFor();
+            if (exitCode!=0) throw new IOException("find exited with status "+exitCode);
+        }
+        catch (InterruptedException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            proc.destroy();
+        }
+        
+        plan.inodes=refCounts.size();
+        plan.reclaimableFileBytes=refCounts.getReclaimableBytes();
+        plan.sharedFileBytes=refCounts.getTotalBytes()-plan.reclaimableFileBytes;
+    }
+    
+    public static class PrunePlan
+    {
+        public final ConfHost host;
+        public List<LocalDateTime> toDelete=new ArrayList<>();
+        /**
+         * Backups that are only kept as one of their runs, mapped to the run's time they are renamed to
+         */
+        public Map<LocalDateTime,LocalDateTime> renames=new TreeMap<>();
+        /**
+         * The kept runs (see RunCatalog) mapped to their backups after the renames
+         */
+        public Map<LocalDateTime,LocalDateTime> runs=new TreeMap<>();
+        public int keptCount;
+        /**
+         * Distinct inodes (files, symlinks etc., without directories) in the deleted backups
+         */
+        public int inodes;
+        /**
+         * Bytes of inodes that are only linked from the deleted backups
+         */
+        public long reclaimableFileBytes;
+        /**
+         * Bytes of inodes that are still linked from elsewhere, not freed by the deletion
+         */
+        public long sharedFileBytes;
+        /**
+         * Bytes of the directories of the deleted backups
+         */
+        public long otherBytes;
+        
+        public PrunePlan(ConfHost host)
+        {
+            this.host=host;
+        }
+        
+        public long getReclaimableBytes()
+        {
+            return reclaimableFileBytes+otherBytes;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package org.github.rsyncbackup.replicate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replicates the backups of a host to another directory (e.g. a mounted offsite server), keeping the hardlinks
+ * between the backups.
+ *
+ * Each new backup is compared with the latest backup that was already replicated: a file that has the same inode
+ * in both backups is not transferred but recorded in a link list. Only the other inodes are copied. Files that are
+ * hardlinked within the new backup are written with their inode to sorted runs on disk, which are merged after the
+ * walk: the first name of each inode is copied, the others are linked to it. Then the link list is applied by
+ * hardlinking to the previous replica and the directory metadata is set. Unlike "rsync -H", the memory usage does
+ * not grow with the number of files (at most maxSortEntries inodes are sorted in memory).
+ *
+ * A backup is replicated into ".partial-{name}" and renamed when complete. An interrupted replication resumes
+ * there and skips all files that were already copied. The last complete backup is recorded in ".replication-state".
+ *
+ * The chunk store (.chunks) is replicated before the backups whose manifests reference it. Replicas of backups that
+ * were renamed by a prune are renamed first (see RunCatalog), and the runs of the host (.runs) are replicated.
+ */
+public class SnapshotReplicator
+{
+    protected static final Logger LOG=LoggerFactory.getLogger(SnapshotReplicator.class);
+    
+    public static final String STATE_FILE_NAME=".replication-state";
+    protected static final String PARTIAL_PREFIX=".partial-";
+    
+    protected static final Comparator<InodeEntry> BY_INODE=new Comparator<InodeEntry>()
+    {
+        @Override
+        public int compare(InodeEntry o1, InodeEntry o2)
+        {
+            return Long.compare(o1.inode, o2.inode);
+        }
+    };
+    
+    protected final HostDir source;
+    protected final File replicaDir;
+    
+    /**
+     * Number of hardlinked files that are sorted in memory before they are spilled to a run on disk
+     */
+    protected int maxSortEntries=100000;
+    
+    public SnapshotReplicator(HostDir source, File replicaDir)
+    {
+        this.source=source;
+        this.replicaDir=replicaDir.getAbsoluteFile();
+    }
+    
+    public SnapshotReplicator(HostDir source, File replicaDir, int maxSortEntries)
+    {
+        this(source, replicaDir);
+        this.maxSortEntries=maxSortEntries;
+    }
+    
+    /**
+     * Replicates all backups that are newer than the latest replicated one
+     */
+    public ReplicationResult replicate() throws IOException
+    {
+        replicaDir.mkdirs();
+        ReplicationResult result=new ReplicationResult();
+        
+        // a renamed backup is older than the latest replica, so it would neither be replicated nor a base
+        result.renamedBackups=new RunCatalog(source.getHostDir()).applyRenames(replicaDir);
+        
+        List<LocalDateTime> replicated=HostDir.listBackups(replicaDir);
+        LocalDateTime latest=replicated.isEmpty()?null:replicated.get(replicated.size()-1);
+        boolean chunksCopied=false;
+        
+        for (LocalDateTime backup: source.listBackups())
+        {
+            if (latest!=null && !backup.isAfter(latest)) continue;
+            
+            if (!chunksCopied)
+            {
+                result.copiedChunks=new ChunkStore(source.getHostDir()).copyMissingChunks(replicaDir);
+                chunksCopied=true;
+            }
+            LocalDateTime base=findBase(replicated, backup);
+            replicateBackup(backup, base, result);
+            replicated.add(backup);
+            latest=backup;
+            result.backups++;
+            
+            writeState(backup, result);
+        }
+        
+        if (latest!=null) new HostDir(replicaDir).updateCurrentDirLink();
+        copyRuns();
+        return result;
+    }
+    
+    /**
+     * Removes replicated backups that no longer exist on the source
+     * @return the number of removed backups
+     */
+    public int prune() throws IOException
+    {
+        new RunCatalog(source.getHostDir()).applyRenames(replicaDir);
+        Set<LocalDateTime> sourceBackups=new HashSet<>(source.listBackups());
+        HostDir replica=new HostDir(replicaDir);
+        List<LocalDateTime> replicated=replica.listBackups();
+        int removed=0;
+        // the latest replica is always kept as base for the next run
+        for (int i=0;i<replicated.size()-1;i++)
+        {
+            if (sourceBackups.contains(replicated.get(i))) continue;
+            LOG.info("Removing replicated backup {}",replicated.get(i));
+            deleteRecursive(replica.getBackupDir(replicated.get(i)).toPath());
+            removed++;
+        }
+        if (removed>0) new ChunkStore(replicaDir).collectGarbage(replica);
+        return removed;
+    }
+    
+    /**
+     * @return the newest replicated backup that is older than the given one and still exists on the source
+     */
+    protected LocalDateTime findBase(List<LocalDateTime> replicated, LocalDateTime backup)
+    {
+        for (int i=replicated.size()-1;i>=0;i--)
+        {
+            LocalDateTime candidate=replicated.get(i);
+            if (candidate.isBefore(backup) && source.getBackupDir(candidate).isDirectory()) return candidate;
+        }
+        return null;
+    }
+    
+    protected void replicateBackup(LocalDateTime backup, LocalDateTime base, ReplicationResult result) throws IOException
+    {
+        final Path sourceRoot=source.getBackupDir(backup).toPath();
+        String name=sourceRoot.getFileName().toString();
+        final Path partialRoot=new File(replicaDir,PARTIAL_PREFIX+name).toPath();
+        final Path sourceBase=(base==null)?null:source.getBackupDir(base).toPath();
+        final Path replicaBase=(base==null)?null:new File(replicaDir,sourceBase.getFileName().toString()).toPath();
+        
+        File linkListFile=new File(replicaDir,PARTIAL_PREFIX+name+".links");
+        File dirListFile=new File(replicaDir,PARTIAL_PREFIX+name+".dirs");
+        
+        if (Files.isDirectory(partialRoot)) LOG.info("Resuming replication of {}",name);
+        else LOG.info("Replicating {} (base: {})",name,(base==null)?"none":replicaBase.getFileName());
+        
+        final ReplicationResult backupResult=new ReplicationResult();
+        final List<File> inodeRuns=new ArrayList<>();
+        final List<InodeEntry> inodeBuffer=new ArrayList<>();
+        final String inodeRunPrefix=PARTIAL_PREFIX+name+".inodes.";
+        
+        // Phase 1: transfer new inodes, collect links, hardlinked files and directories
+        try (final OutputStream linkList=new BufferedOutputStream(new FileOutputStream(linkListFile));
+             final OutputStream dirList=new BufferedOutputStream(new FileOutputStream(dirListFile)))
+        {
+            Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+                {
+                    Path rel=sourceRoot.relativize(dir);
+                    Files.createDirectories(partialRoot.resolve(rel));
+                    writeEntry(dirList, rel);
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    Path rel=sourceRoot.relativize(file);
+                    Path target=partialRoot.resolve(rel);
+                    if (attrs.isSymbolicLink())
+                    {
+                        Files.deleteIfExists(target);
+                        Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (!attrs.isRegularFile())
+                    {
+                        LOG.warn("Skipping special file {}",file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    long inode=getInode(file);
+                    if (sourceBase!=null && inode==getInode(sourceBase.resolve(rel)))
+                    {
+                        writeEntry(linkList, rel);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    if (getNlink(file)>1)
+                    {
+                        // the other names of the inode may come later in the walk
+                        inodeBuffer.add(new InodeEntry(inode, rel, 0));
+                        if (inodeBuffer.size()>=maxSortEntries)
+                        {
+                            inodeRuns.add(writeInodeRun(inodeBuffer, new File(replicaDir,inodeRunPrefix+inodeRuns.size())));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                    
+                    copyFile(file, target, attrs, backupResult);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        if (!inodeBuffer.isEmpty()) inodeRuns.add(writeInodeRun(inodeBuffer, new File(replicaDir,inodeRunPrefix+inodeRuns.size())));
+        
+        // Phase 2: files that are hardlinked within the backup
+        copyInodeRuns(inodeRuns, sourceRoot, partialRoot, backupResult);
+        
+        // Phase 3: rebuild the unchanged files as hardlinks to the previous replica
+        try (InputStream linkList=new BufferedInputStream(new FileInputStream(linkListFile)))
+        {
+            Path rel;
+            while ((rel=readEntry(linkList))!=null)
+            {
+                Path target=partialRoot.resolve(rel);
+                Path existing=replicaBase.resolve(rel);
+                if (Files.exists(existing, LinkOption.NOFOLLOW_LINKS))
+                {
+                    link(target, existing, backupResult);
+                }
+                else
+                {
+                    // damaged replica
+                    LOG.warn("Missing in previous replica, copying: {}",existing);
+                    Path file=sourceRoot.resolve(rel);
+                    copyFile(file, target, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), backupResult);
+                }
+            }
+        }
+        
+        // Phase 4: directory metadata, children before their parents
+        applyDirectoryMetadata(dirListFile, sourceRoot, partialRoot);
+        
+        Path finalRoot=new File(replicaDir,name).toPath();
+        Files.move(partialRoot, finalRoot);
+        linkListFile.delete();
+        dirListFile.delete();
+        
+        LOG.info("Replicated {}: {} files ({} bytes) copied, {} files linked",name,backupResult.copiedFiles,backupResult.copiedBytes,backupResult.linkedFiles);
+        result.add(backupResult);
+    }
+    
+    /**
+     * Sorts the entries by inode, writes them to the run file and clears the list
+     */
+    protected static File writeInodeRun(List<InodeEntry> entries, File runFile) throws IOException
+    {
+        Collections.sort(entries, BY_INODE);
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile))))
+        {
+            for (InodeEntry entry: entries)
+            {
+                out.writeLong(entry.inode);
+                writeEntry(out, entry.rel);
+            }
+        }
+        entries.clear();
+        return runFile;
+    }
+    
+    /**
+     * Merges the sorted runs: the first name of each inode is copied, the other names are linked to it
+     */
+    protected void copyInodeRuns(List<File> runFiles, Path sourceRoot, Path partialRoot, ReplicationResult result) throws IOException
+    {
+        List<DataInputStream> runs=new ArrayList<>();
+        PriorityQueue<InodeEntry> heads=new PriorityQueue<>(Math.max(1, runFiles.size()), BY_INODE);
+        try
+        {
+            for (File runFile: runFiles)
+            {
+                runs.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runFile))));
+                InodeEntry head=readInodeEntry(runs.get(runs.size()-1), runs.size()-1);
+                if (head!=null) heads.add(head);
+            }
+            
+            long currentInode=-1;
+            Path currentTarget=null;
+            while (!heads.isEmpty())
+            {
+                InodeEntry entry=heads.poll();
+                Path target=partialRoot.resolve(entry.rel);
+                if (currentTarget!=null && entry.inode==currentInode)
+                {
+                    link(target, currentTarget, result);
+                }
+                else
+                {
+                    Path file=sourceRoot.resolve(entry.rel);
+                    copyFile(file, target, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), result);
+                    currentInode=entry.inode;
+                    currentTarget=target;
+                }
+                InodeEntry next=readInodeEntry(runs.get(entry.run), entry.run);
+                if (next!=null) heads.add(next);
+            }
+        }
+        finally
+        {
+            for (InputStream run: runs) run.close();
+        }
+        for (File runFile: runFiles) runFile.delete();
+    }
+    
+    /**
+     * @return the next entry of the run or null at its end
+     */
+    protected static InodeEntry readInodeEntry(DataInputStream in, int run) throws IOException
+    {
+        long inode;
+        try
+        {
+            inode=in.readLong();
+        }
+        catch (EOFException ex)
+        {
+            return null;
+        }
+        return new InodeEntry(inode, readEntry(in), run);
+    }
+    
+    protected void copyFile(Path file, Path target, BasicFileAttributes attrs, ReplicationResult result) throws IOException
+    {
+        if (Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS))
+        {
+            // already copied by an interrupted run?
+            BasicFileAttributes targetAttrs=Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (targetAttrs.size()==attrs.size() && targetAttrs.lastModifiedTime().toMillis()==attrs.lastModifiedTime().toMillis()) return;
+        }
+        Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        copyXattrs(file, target);
+        // COPY_ATTRIBUTES is applied before the xattrs, so the mtime is set again to mark the file as complete
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+        result.copiedFiles++;
+        result.copiedBytes+=attrs.size();
+    }
+    
+    protected void link(Path target, Path existing, ReplicationResult result) throws IOException
+    {
+        try
+        {
+            Files.createLink(target, existing);
+        }
+        catch (FileAlreadyExistsException ex)
+        {
+            // linked by an interrupted run?
+            if (getInode(target)!=getInode(existing))
+            {
+                Files.delete(target);
+                Files.createLink(target, existing);
+            }
+        }
+        result.linkedFiles++;
+    }
+    
+    protected void applyDirectoryMetadata(File dirListFile, Path sourceRoot, Path partialRoot) throws IOException
+    {
+        List<Path> dirs=new ArrayList<>();
+        try (InputStream dirList=new BufferedInputStream(new FileInputStream(dirListFile)))
+        {
+            Path rel;
+            while ((rel=readEntry(dirList))!=null) dirs.add(rel);
+        }
+        // the list is in pre-order, so it is processed backwards
+        for (int i=dirs.size()-1;i>=0;i--)
+        {
+            copyDirectoryMetadata(sourceRoot.resolve(dirs.get(i)), partialRoot.resolve(dirs.get(i)));
+        }
+    }
+    
+    protected void copyDirectoryMetadata(Path dir, Path target) throws IOException
+    {
+        PosixFileAttributes attrs=Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        PosixFileAttributeView targetView=Files.getFileAttributeView(target, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        copyXattrs(dir, target);
+        targetView.setPermissions(attrs.permissions());
+        try
+        {
+            targetView.setOwner(attrs.owner());
+            targetView.setGroup(attrs.group());
+        }
+        catch (IOException ex)
+        {
+            // not running as root
+        }
+        targetView.setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), null);
+    }
+    
+    /**
+     * Copies the user xattrs, i.e. the owner, permissions and special files stored by rsync --fake-super
+     */
+    protected static void copyXattrs(Path file, Path target) throws IOException
+    {
+        UserDefinedFileAttributeView sourceView=Files.getFileAttributeView(file, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        UserDefinedFileAttributeView targetView=Files.getFileAttributeView(target, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (sourceView==null || targetView==null) return;
+        List<String> names;
+        try
+        {
+            names=sourceView.list();
+        }
+        catch (IOException ex)
+        {
+            return; // not supported by the filesystem
+        }
+        for (String name: names)
+        {
+            ByteBuffer value=ByteBuffer.allocate(sourceView.size(name));
+            sourceView.read(name, value);
+            value.flip();
+            targetView.write(name, value);
+        }
+    }
+    
+    /**
+     * Copies the runs of the host (see RunCatalog), they are removed from the replica if there are none
+     */
+    protected void copyRuns() throws IOException
+    {
+        File runs=new File(source.getHostDir(),RunCatalog.FILE_NAME);
+        File replicaRuns=new File(replicaDir,RunCatalog.FILE_NAME);
+        if (!runs.isFile())
+        {
+            Files.deleteIfExists(replicaRuns.toPath());
+            return;
+        }
+        File tempFile=new File(replicaDir,RunCatalog.FILE_NAME+".tmp");
+        Files.copy(runs.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempFile.toPath(), replicaRuns.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    protected void writeState(LocalDateTime backup, ReplicationResult result) throws IOException
+    {
+        Properties state=new Properties();
+        state.setProperty("lastBackup", source.getBackupDir(backup).getName());
+        state.setProperty("replicated", new LocalDateTime().toString());
+        File stateFile=new File(replicaDir,STATE_FILE_NAME);
+        File tempFile=new File(replicaDir,STATE_FILE_NAME+".tmp");
+        try (OutputStream out=new FileOutputStream(tempFile))
+        {
+            state.store(out, null);
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    protected static void writeEntry(OutputStream out, Path rel) throws IOException
+    {
+        out.write(rel.toString().getBytes("utf-8"));
+        out.write(0);
+    }
+    
+    protected static Path readEntry(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream entry=new ByteArrayOutputStream();
+        int b;
+        while ((b=in.read())>0) entry.write(b);
+        if (b<0 && entry.size()==0) return null;
+        return new File(new String(entry.toByteArray(),"utf-8")).toPath();
+    }
+    
+    protected static void deleteRecursive(Path dir) throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException
+            {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * @return the inode or -1 if the file does not exist
+     */
+    protected static long getInode(Path file) throws IOException
+    {
+        try
+        {
+            return ((Number) Files.getAttribute(file, "unix:ino", LinkOption.NOFOLLOW_LINKS)).longValue();
+        }
+        catch (NoSuchFileException ex)
+        {
+            return -1;
+        }
+    }
+    
+    protected static int getNlink(Path file) throws IOException
+    {
+        return ((Number) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS)).intValue();
+    }
+    
+    protected static class InodeEntry
+    {
+        protected final long inode;
+        protected final Path rel;
+        protected final int run;
+        
+        protected InodeEntry(long inode, Path rel, int run)
+        {
+            this.inode=inode;
+            this.rel=rel;
+            this.run=run;
+        }
+    }
+    
+    public static class ReplicationResult
+    {
+        public int backups;
+        public long copiedFiles;
+        public long copiedBytes;
+        public long linkedFiles;
+        public int copiedChunks;
+        /**
+         * Replicas that were renamed like their backups on the source
+         */
+        public int renamedBackups;
+        
+        protected void add(ReplicationResult other)
+        {
+            copiedFiles+=other.copiedFiles;
+            copiedBytes+=other.copiedBytes;
+            linkedFiles+=other.linkedFiles;
+        }
+    }
+}
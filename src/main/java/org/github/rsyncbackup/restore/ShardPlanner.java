@@ -0,0 +1,236 @@
+package org.github.rsyncbackup.restore;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Splits a backed up volume into shards of about the same cost that can be transferred by parallel rsync streams.
+ *
+ * The cost of a file is its size plus a fixed per-file overhead (FILE_COST), so a directory with many small files
+ * is not underestimated. Directories that cost more than a fraction of the whole volume are split into their
+ * subdirectories and groups of their files. The resulting units are distributed with the LPT rule (largest unit to
+ * the shard with the lowest cost so far).
+ */
+public class ShardPlanner
+{
+    /**
+     * Cost of a file in addition to its size (bytes), for the per-file overhead of rsync and the file system
+     */
+    public static final long FILE_COST=32*1024;
+    /**
+     * A unit costs at most 1/(shards*UNITS_PER_SHARD) of the volume (unless it's a single file)
+     */
+    protected static final int UNITS_PER_SHARD=8;
+    
+    protected final Path volumeDir;
+    protected final int shardCount;
+    
+    public ShardPlanner(Path volumeDir, int shardCount)
+    {
+        this.volumeDir=volumeDir;
+        this.shardCount=shardCount;
+    }
+    
+    public List<Shard> plan() throws IOException
+    {
+        final Map<Path,Node> nodes=new HashMap<>();
+        final Node root=new Node(volumeDir);
+        nodes.put(volumeDir, root);
+        
+        Files.walkFileTree(volumeDir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                if (!dir.equals(volumeDir))
+                {
+                    Node node=new Node(dir);
+                    nodes.get(dir.getParent()).children.add(node);
+                    nodes.put(dir, node);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                Node parent=nodes.get(file.getParent());
+                parent.files++;
+                parent.bytes+=attrs.isRegularFile()?attrs.size():0;
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException
+            {
+                Node node=nodes.remove(dir);
+                node.totalFiles+=node.files+1;
+                node.totalBytes+=node.bytes;
+                for (Node child: node.children)
+                {
+                    node.totalFiles+=child.totalFiles;
+                    node.totalBytes+=child.totalBytes;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        long threshold=Math.max(FILE_COST, root.getCost()/(shardCount*UNITS_PER_SHARD));
+        List<Unit> units=new ArrayList<>();
+        split(root, threshold, units);
+        return distribute(units);
+    }
+    
+    protected void split(Node node, long threshold, List<Unit> units) throws IOException
+    {
+        if (node.path!=volumeDir && node.getCost()<=threshold)
+        {
+            Unit unit=new Unit(node.getCost(), node.totalBytes, node.totalFiles);
+            unit.paths.add(relativize(node.path));
+            units.add(unit);
+            return;
+        }
+        
+        for (Node child: node.children)
+        {
+            split(child, threshold, units);
+        }
+        
+        // the files of a directory that is split, in groups of up to threshold
+        if (node.files==0) return;
+        Unit group=null;
+        try (DirectoryStream<Path> stream=Files.newDirectoryStream(node.path))
+        {
+            for (Path file: stream)
+            {
+                BasicFileAttributes attrs=Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory()) continue;
+                long size=attrs.isRegularFile()?attrs.size():0;
+                if (group==null || group.cost+size+FILE_COST>threshold)
+                {
+                    group=new Unit(0, 0, 0);
+                    units.add(group);
+                }
+                group.cost+=size+FILE_COST;
+                group.bytes+=size;
+                group.files++;
+                group.paths.add(relativize(file));
+            }
+        }
+    }
+    
+    protected List<Shard> distribute(List<Unit> units)
+    {
+        Collections.sort(units, new Comparator<Unit>()
+        {
+            @Override
+            public int compare(Unit o1, Unit o2)
+            {
+                return Long.compare(o2.cost, o1.cost);
+            }
+        });
+        
+        PriorityQueue<Shard> byCost=new PriorityQueue<>(shardCount, new Comparator<Shard>()
+        {
+            @Override
+            public int compare(Shard o1, Shard o2)
+            {
+                return Long.compare(o1.cost, o2.cost);
+            }
+        });
+        List<Shard> shards=new ArrayList<>();
+        for (int i=0;i<shardCount;i++)
+        {
+            Shard shard=new Shard(i+1);
+            shards.add(shard);
+            byCost.add(shard);
+        }
+        
+        for (Unit unit: units)
+        {
+            Shard shard=byCost.poll();
+            shard.cost+=unit.cost;
+            shard.bytes+=unit.bytes;
+            shard.files+=unit.files;
+            shard.paths.addAll(unit.paths);
+            byCost.add(shard);
+        }
+        return shards;
+    }
+    
+    protected String relativize(Path path)
+    {
+        return volumeDir.relativize(path).toString();
+    }
+    
+    protected static class Node
+    {
+        protected final Path path;
+        protected final List<Node> children=new ArrayList<>();
+        /**
+         * Files directly in this directory
+         */
+        protected long files;
+        protected long bytes;
+        /**
+         * Including all subdirectories (and the directories themselves)
+         */
+        protected long totalFiles;
+        protected long totalBytes;
+        
+        protected Node(Path path)
+        {
+            this.path=path;
+        }
+        
+        protected long getCost()
+        {
+            return totalBytes+totalFiles*FILE_COST;
+        }
+    }
+    
+    protected static class Unit
+    {
+        protected long cost;
+        protected long bytes;
+        protected long files;
+        protected final List<String> paths=new ArrayList<>();
+        
+        protected Unit(long cost, long bytes, long files)
+        {
+            this.cost=cost;
+            this.bytes=bytes;
+            this.files=files;
+        }
+    }
+    
+    public static class Shard
+    {
+        public final int number;
+        public long cost;
+        public long bytes;
+        public long files;
+        /**
+         * Directories (transferred recursively) and files, relative to the volume
+         */
+        public final List<String> paths=new ArrayList<>();
+        
+        public Shard(int number)
+        {
+            this.number=number;
+        }
+    }
+}
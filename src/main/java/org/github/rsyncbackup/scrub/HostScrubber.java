@@ -0,0 +1,279 @@
+package org.github.rsyncbackup.scrub;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.scrub.ScrubIndex.Entry;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects bit rot in a host's backups. Each inode is hashed only once, no matter how many backups link
+ * to it. New inodes are hashed and stored in the ScrubIndex, known inodes are only re-read when their
+ * last verification is older than the recheck interval.
+ *
+ * The scrub runs without the HostLock, so files may disappear meanwhile (pruned, chunked or migrated backups). A file
+ * that can't be read is skipped and counted, the index is saved every SAVE_INTERVAL and at the end, so an aborted
+ * scrub continues where it stopped.
+ */
+public class HostScrubber
+{
+    protected Logger LOG=LoggerFactory.getLogger(getClass());
+    
+    public static final String INDEX_FILE_NAME=".scrub-index";
+    
+    protected static final long SAVE_INTERVAL=5*60*1000;
+    
+    protected final HostDir hostDir;
+    protected final long recheckMillis;
+    protected final IoBudget budget;
+    protected long lastSave;
+    
+    public HostScrubber(HostDir hostDir, int recheckDays, IoBudget budget)
+    {
+        this.hostDir=hostDir;
+        this.recheckMillis=recheckDays*24L*3600*1000;
+        this.budget=budget;
+    }
+    
+    public ScrubResult scrub() throws Exception
+    {
+        ScrubIndex index=new ScrubIndex(new File(hostDir.getHostDir(),INDEX_FILE_NAME));
+        index.load();
+        
+        ScrubResult result=new ScrubResult();
+        Set<Long> seen=new HashSet<>();
+        lastSave=System.currentTimeMillis();
+        
+        try
+        {
+            for (LocalDateTime backup: hostDir.listBackups())
+            {
+                scrubBackup(hostDir.getBackupDir(backup).toPath(), index, seen, result);
+            }
+            // only after a complete walk, otherwise inodes that were not visited yet would be dropped
+            result.removedInodes=index.retainAll(seen);
+        }
+        finally
+        {
+            index.save();
+        }
+        
+        if (!result.corruptInodes.isEmpty())
+        {
+            findCorruptPaths(result);
+        }
+        
+        return result;
+    }
+    
+    protected void scrubBackup(Path backupDir, final ScrubIndex index, final Set<Long> seen, final ScrubResult result) throws IOException
+    {
+        Files.walkFileTree(backupDir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+            {
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                
+                try
+                {
+                    long inode=getInode(file);
+                    if (!seen.add(inode)) return FileVisitResult.CONTINUE; // already processed via another link
+                    
+                    scrubFile(file, inode, attrs, index, result);
+                }
+                catch (NoSuchFileException ex)
+                {
+                    LOG.debug("{} was removed during the scrub",file);
+                }
+                catch (IOException ex)
+                {
+                    LOG.warn("Unable to read {}: {}",file,ex.toString());
+                    result.unreadableFiles++;
+                }
+                catch (InterruptedException ex)
+                {
+                    // stops the scrub, the progress is saved
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Scrub interrupted");
+                }
+                
+                if (System.currentTimeMillis()-lastSave>SAVE_INTERVAL)
+                {
+                    index.save();
+                    lastSave=System.currentTimeMillis();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException
+            {
+                if (ex instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+                LOG.warn("Unable to read {}: {}",file,ex.toString());
+                result.unreadableFiles++;
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException
+            {
+                if (ex!=null && !(ex instanceof NoSuchFileException))
+                {
+                    LOG.warn("Unable to list {}: {}",dir,ex.toString());
+                    result.unreadableFiles++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    protected void scrubFile(Path file, long inode, BasicFileAttributes attrs, ScrubIndex index, ScrubResult result) throws IOException, InterruptedException
+    {
+        long now=System.currentTimeMillis();
+        long mtime=attrs.lastModifiedTime().toMillis();
+        
+        Entry entry=index.get(inode);
+        if (entry!=null && (entry.size!=attrs.size() || entry.mtime!=mtime))
+        {
+            entry=null; // inode number was re-used by a new file
+        }
+        
+        if (entry!=null && entry.verified+recheckMillis>now) return; // verified recently
+        
+        if (budget.isExhausted())
+        {
+            result.budgetExhausted=true;
+            return;
+        }
+        
+        byte[] digest=digest(file);
+        result.hashedInodes++;
+        result.hashedBytes+=attrs.size();
+        
+        if (entry==null)
+        {
+            entry=new Entry();
+            entry.size=attrs.size();
+            entry.mtime=mtime;
+            entry.digest=digest;
+            entry.verified=now;
+            index.put(inode,entry);
+            result.newInodes++;
+        }
+        else if (Arrays.equals(entry.digest,digest))
+        {
+            entry.verified=now;
+            result.verifiedInodes++;
+        }
+        else
+        {
+            // keep the original digest, so the damage is reported again until the file is repaired or deleted
+            LOG.error("Checksum mismatch: {}",file);
+            result.corruptInodes.put(inode,new ArrayList<String>());
+        }
+    }
+    
+    protected byte[] digest(Path file) throws IOException, InterruptedException
+    {
+        MessageDigest md;
+        try
+        {
+            md=MessageDigest.getInstance("SHA-256");
+        }
+        catch (Exception ex)
+        {
+            throw new IOException(ex);
+        }
+        
+        ByteBuffer buffer=ByteBuffer.allocate(1024*1024);
+        try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ))
+        {
+            int read;
+            while ((read=channel.read(buffer))>=0)
+            {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+                budget.use(read);
+            }
+        }
+        return md.digest();
+    }
+    
+    /**
+     * Collects all paths (in all backups) that share a corrupt inode
+     */
+    protected void findCorruptPaths(final ScrubResult result) throws IOException
+    {
+        final Path root=hostDir.getHostDir().toPath();
+        for (LocalDateTime backup: hostDir.listBackups())
+        {
+            Files.walkFileTree(hostDir.getBackupDir(backup).toPath(), new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                    List<String> paths=result.corruptInodes.get(getInode(file));
+                    if (paths!=null) paths.add(root.relativize(file).toString());
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+    
+    protected static long getInode(Path file) throws IOException
+    {
+        return ((Number) Files.getAttribute(file, "unix:ino", LinkOption.NOFOLLOW_LINKS)).longValue();
+    }
+    
+    public static class ScrubResult
+    {
+        public int newInodes;
+        public int verifiedInodes;
+        public int hashedInodes;
+        public long hashedBytes;
+        public int removedInodes;
+        public int unreadableFiles;
+        public boolean budgetExhausted;
+        /**
+         * Corrupt inodes with all paths (relative to the host dir) that link to them
+         */
+        public Map<Long,List<String>> corruptInodes=new TreeMap<>();
+    }
+}
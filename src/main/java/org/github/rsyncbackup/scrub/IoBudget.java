@@ -0,0 +1,49 @@
+package org.github.rsyncbackup.scrub;
+
+/**
+ * Limits the read rate to a number of bytes per second and optionally the total number of bytes
+ */
+public class IoBudget
+{
+    protected final long bytesPerSecond;
+    protected final long maxBytes;
+    protected final long startTime;
+    protected long bytesUsed;
+    
+    /**
+     * @param bytesPerSecond 0 for unlimited
+     * @param maxBytes 0 for unlimited
+     */
+    public IoBudget(long bytesPerSecond, long maxBytes)
+    {
+        this.bytesPerSecond=bytesPerSecond;
+        this.maxBytes=maxBytes;
+        this.startTime=System.currentTimeMillis();
+    }
+    
+    public synchronized boolean isExhausted()
+    {
+        return maxBytes>0 && bytesUsed>=maxBytes;
+    }
+    
+    public synchronized long getBytesUsed()
+    {
+        return bytesUsed;
+    }
+    
+    /**
+     * Accounts the given number of bytes and sleeps until they are covered by the rate limit
+     */
+    public void use(long bytes) throws InterruptedException
+    {
+        long sleep;
+        synchronized(this)
+        {
+            bytesUsed+=bytes;
+            if (bytesPerSecond<=0) return;
+            long due=startTime+(bytesUsed*1000/bytesPerSecond);
+            sleep=due-System.currentTimeMillis();
+        }
+        if (sleep>0) Thread.sleep(sleep);
+    }
+}
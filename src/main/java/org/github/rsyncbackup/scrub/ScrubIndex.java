@@ -0,0 +1,120 @@
+package org.github.rsyncbackup.scrub;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent digest per inode of a host's backups. Since all backups of a host are on the same
+ * filesystem, the inode number identifies a file's content regardless of how many backups link to it.
+ */
+public class ScrubIndex
+{
+    protected static final String MAGIC="RSYNCBACKUP-SCRUB-1";
+    
+    protected final File indexFile;
+    protected final Map<Long,Entry> entries;
+    
+    public ScrubIndex(File indexFile)
+    {
+        this.indexFile=indexFile;
+        this.entries=new HashMap<>();
+    }
+    
+    public Entry get(long inode)
+    {
+        return entries.get(inode);
+    }
+    
+    public void put(long inode, Entry entry)
+    {
+        entries.put(inode,entry);
+    }
+    
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    /**
+     * Removes all entries of inodes that are not in the given set (deleted files or backups)
+     * @return number of removed entries
+     */
+    public int retainAll(Set<Long> inodes)
+    {
+        int removed=0;
+        for (Iterator<Long> it=entries.keySet().iterator();it.hasNext();)
+        {
+            if (!inodes.contains(it.next()))
+            {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+    
+    public void load() throws IOException
+    {
+        entries.clear();
+        if (!indexFile.exists()) return;
+        
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))))
+        {
+            if (!MAGIC.equals(in.readUTF())) throw new IOException("Invalid scrub index: "+indexFile);
+            int count=in.readInt();
+            for (int i=0;i<count;i++)
+            {
+                long inode=in.readLong();
+                Entry entry=new Entry();
+                entry.size=in.readLong();
+                entry.mtime=in.readLong();
+                entry.verified=in.readLong();
+                entry.digest=new byte[in.readUnsignedByte()];
+                in.readFully(entry.digest);
+                entries.put(inode,entry);
+            }
+        }
+    }
+    
+    public void save() throws IOException
+    {
+        File tempFile=new File(indexFile.getParentFile(),indexFile.getName()+".tmp");
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+        {
+            out.writeUTF(MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long,Entry> e: entries.entrySet())
+            {
+                Entry entry=e.getValue();
+                out.writeLong(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.verified);
+                out.writeByte(entry.digest.length);
+                out.write(entry.digest);
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) throw new IOException("Unable to rename "+tempFile+" to "+indexFile);
+    }
+    
+    public static class Entry
+    {
+        public long size;
+        public long mtime;
+        /**
+         * Time of the last verification (millis)
+         */
+        public long verified;
+        public byte[] digest;
+    }
+}
@@ -0,0 +1,165 @@
+package org.github.rsyncbackup.scrub;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which volumes are backed up with --checksum (see ChecksumVerify). Each volume of a host with verifyDays=N
+ * has a fixed slot (a hash of host and volume) among the N days, so every night about 1/N of the fleet is verified.
+ * A volume whose verification is overdue (e.g. because the host was not backed up or the budget was exhausted in its
+ * slot) is verified in the next backup.
+ *
+ * All verifications of a run share an I/O budget. The size of a volume is known from its previous verification, a
+ * volume that does not fit into the remaining budget is deferred.
+ *
+ * The state (last verification per volume) is stored in the host dir (.verify-state), discrepancies are appended to
+ * .verify-log.
+ */
+public class VerifySchedule
+{
+    protected Logger LOG=LoggerFactory.getLogger(getClass());
+    
+    public static final String STATE_FILE_NAME=".verify-state";
+    public static final String LOG_FILE_NAME=".verify-log";
+    
+    protected static final long DAY=24*3600000L;
+    
+    protected final long budgetBytes;
+    protected long usedBytes;
+    
+    /**
+     * @param budgetBytes bytes that all verifications of a run may read, 0 for unlimited
+     */
+    public VerifySchedule(long budgetBytes)
+    {
+        this.budgetBytes=budgetBytes;
+    }
+    
+    /**
+     * @return true if the volume is due for verification (ignoring the budget)
+     */
+    public boolean isDue(ConfHost host, String volume, long now) throws IOException
+    {
+        if (host.verifyDays==null || host.verifyDays<=0) return false;
+        
+        State state=readState(new File(host.hostStorageDir)).get(volume);
+        long period=host.verifyDays*DAY;
+        if (state!=null && state.verified+period+DAY<=now) return true; // missed its slot
+        if (state!=null && state.verified+DAY/2>now) return false; // verified in this run or night
+        
+        long slot=((host.host+"/"+volume).hashCode() & Integer.MAX_VALUE)%host.verifyDays;
+        return (now/DAY)%host.verifyDays==slot;
+    }
+    
+    /**
+     * Reserves the expected bytes of a volume's verification
+     * @return the reserved bytes or null if the volume is not due or does not fit into the budget
+     */
+    public synchronized Long reserve(ConfHost host, String volume, long now) throws IOException
+    {
+        if (!isDue(host, volume, now)) return null;
+        
+        State state=readState(new File(host.hostStorageDir)).get(volume);
+        long expected=(state!=null)?state.bytes:0;
+        if (budgetBytes>0 && (usedBytes>=budgetBytes || usedBytes+expected>budgetBytes))
+        {
+            LOG.info("Checksum verification of {} deferred: I/O budget exhausted ({} of {} bytes used, {} expected)",volume,usedBytes,budgetBytes,expected);
+            return null;
+        }
+        usedBytes+=expected;
+        return expected;
+    }
+    
+    /**
+     * Accounts the actual bytes of a verification and records its result
+     * @param complete false if rsync failed (the volume stays due)
+     */
+    public synchronized void finish(ConfHost host, String volume, long now, long reserved, long bytes, List<String> discrepancies, boolean complete) throws IOException
+    {
+        usedBytes+=bytes-reserved;
+        
+        File hostDir=new File(host.hostStorageDir);
+        if (!discrepancies.isEmpty())
+        {
+            StringBuilder lines=new StringBuilder();
+            String time=new LocalDateTime(now).toString();
+            for (String path: discrepancies)
+            {
+                lines.append(time).append(' ').append(volume).append(' ').append(path).append('\n');
+            }
+            Files.write(new File(hostDir,LOG_FILE_NAME).toPath(), lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        
+        if (!complete) return;
+        
+        Map<String,State> states=readState(hostDir);
+        State state=new State();
+        state.verified=now;
+        state.bytes=bytes;
+        states.put(volume, state);
+        
+        List<String> lines=new ArrayList<>();
+        for (Map.Entry<String,State> entry: states.entrySet())
+        {
+            lines.add(entry.getKey()+" "+entry.getValue().verified+" "+entry.getValue().bytes);
+        }
+        File stateFile=new File(hostDir,STATE_FILE_NAME);
+        File tempFile=new File(hostDir,STATE_FILE_NAME+".tmp");
+        Files.write(tempFile.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+    
+    protected static Map<String,State> readState(File hostDir) throws IOException
+    {
+        Map<String,State> states=new LinkedHashMap<>();
+        File stateFile=new File(hostDir,STATE_FILE_NAME);
+        if (!stateFile.isFile()) return states;
+        for (String line: Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split(" ");
+            if (parts.length!=3) continue;
+            try
+            {
+                State state=new State();
+                state.verified=Long.parseLong(parts[1]);
+                state.bytes=Long.parseLong(parts[2]);
+                states.put(parts[0], state);
+            }
+            catch (NumberFormatException ex)
+            {
+                // ignored
+            }
+        }
+        return states;
+    }
+    
+    protected static class State
+    {
+        /**
+         * Time (millis) of the last complete verification
+         */
+        protected long verified;
+        /**
+         * Bytes read by the last verification
+         */
+        protected long bytes;
+    }
+}
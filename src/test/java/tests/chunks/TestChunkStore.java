@@ -0,0 +1,95 @@
+package tests.chunks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.github.rsyncbackup.chunks.Chunker;
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.chunks.ChunkStore.ChunkResult;
+import org.github.rsyncbackup.impl.HostDir;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestChunkStore
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testChangedVersionsShareChunks() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File backup1=new File(hostDir,"backup-2014-03-01-01:00:00");
+        File backup2=new File(hostDir,"backup-2014-03-02-01:00:00");
+        
+        byte[] version1=new byte[16*1024*1024];
+        new Random(1).nextBytes(version1);
+        byte[] version2=version1.clone();
+        for (int i=0;i<100;i++) version2[8*1024*1024+i]=0; // a small change in the middle
+        
+        File file1=write(new File(backup1,"ROOT/vm.img"), version1);
+        file1.setLastModified(1393632000000L);
+        write(new File(backup2,"ROOT/vm.img"), version2);
+        write(new File(backup1,"ROOT/small.txt"), new byte[10]);
+        
+        ChunkStore store=new ChunkStore(hostDir);
+        ChunkResult result=store.chunkFiles(backup1, new File(backup1,"ROOT"), 1024*1024);
+        assertEquals(1, result.files);
+        assertEquals(version1.length, result.storedBytes);
+        assertFalse(file1.exists());
+        File manifest1=new File(backup1,"ROOT/vm.img"+ChunkStore.MANIFEST_SUFFIX);
+        assertTrue(manifest1.isFile());
+        assertEquals(1393632000000L, manifest1.lastModified());
+        assertTrue(new File(backup1,"ROOT/small.txt").isFile());
+        
+        // only the chunks around the change are new
+        result=store.chunkFiles(backup2, new File(backup2,"ROOT"), 1024*1024);
+        assertEquals(1, result.files);
+        assertTrue("stored "+result.storedBytes, result.storedBytes<=2*Chunker.MAX_CHUNK_SIZE);
+        
+        File restored=new File(tmp.getRoot(),"restored.img");
+        store.restore(manifest1, restored);
+        assertArrayEquals(version1, Files.readAllBytes(restored.toPath()));
+        assertEquals(1393632000000L, restored.lastModified());
+        
+        // chunks of version 2 are kept after the first backup is deleted
+        FileUtils.deleteDirectory(backup1);
+        assertTrue(store.collectGarbage(new HostDir(hostDir))>0);
+        assertEquals(1, ChunkStore.materialize(new File(backup2,"ROOT")));
+        assertArrayEquals(version2, Files.readAllBytes(new File(backup2,"ROOT/vm.img").toPath()));
+    }
+    
+    @Test
+    public void testManifestsAreRestoredIntoAnotherDir() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File backup=new File(hostDir,"backup-2014-03-01-01:00:00");
+        byte[] content=new byte[3*1024*1024];
+        new Random(2).nextBytes(content);
+        File file=write(new File(backup,"ROOT/var/lib/db.img"), content);
+        file.setLastModified(1393632000000L);
+        new ChunkStore(hostDir).chunkFiles(backup, new File(backup,"ROOT"), 1024*1024);
+        
+        File staging=new File(hostDir,".restore");
+        assertEquals(Arrays.asList("var/lib/db.img"), ChunkStore.materialize(new File(backup,"ROOT"), staging));
+        assertArrayEquals(content, Files.readAllBytes(new File(staging,"var/lib/db.img").toPath()));
+        assertEquals(1393632000000L, new File(staging,"var/lib/db.img").lastModified());
+        assertTrue(new File(backup,"ROOT/var/lib/db.img"+ChunkStore.MANIFEST_SUFFIX).isFile());
+    }
+    
+    protected static File write(File file, byte[] content) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
@@ -0,0 +1,174 @@
+package tests.conf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.github.rsyncbackup.impl.BackupConf;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBackupConf
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testInventoryFilesInheritDefaults() throws Exception
+    {
+        File confDir=tmp.newFolder("conf");
+        File confFile=write(new File(confDir,"backup.conf"),
+                "defaults:\n"+
+                "  storageDir: /backup/hosts\n"+
+                "  keepStrategy: interval | 1d 7d\n"+
+                "hosts:\n"+
+                " - host: main-host\n");
+        write(new File(confDir,"hosts.d/web.conf"),
+                "defaults:\n"+
+                "  scheduleGroup: web\n"+
+                "hosts:\n"+
+                " - host: web1\n"+
+                " - host: web2\n"+
+                "   remoteSshPort: 2222\n");
+        write(new File(confDir,"hosts.d/db.conf"),
+                "hosts:\n"+
+                " - host: db1\n"+
+                "   hostStorageDir: /fast/${host}\n");
+        write(new File(confDir,"hosts.d/ignored.txt"),"not a config file");
+        
+        BackupConf conf=BackupConf.read(confFile);
+        assertEquals(4, conf.getAllHosts().size());
+        
+        ConfHost web2=conf.getForHost("web2");
+        assertEquals("/backup/hosts/web2", web2.hostStorageDir);
+        assertEquals("web", web2.scheduleGroup);
+        assertEquals(Integer.valueOf(2222), web2.remoteSshPort);
+        assertNotNull(web2.backupKeepStrategy);
+        
+        assertEquals("/fast/db1", conf.getForHost("db1").hostStorageDir);
+        assertEquals("db1", conf.getForHost("db1").scheduleGroup);
+        assertEquals("main-host", conf.getForHost("main-host").scheduleGroup);
+        
+        assertTrue(new File(confDir,".backup.conf.cache").isFile());
+        
+        // second read comes from the cache
+        BackupConf cached=BackupConf.read(confFile);
+        assertEquals(4, cached.getAllHosts().size());
+        assertEquals("/backup/hosts/web2", cached.getForHost("web2").hostStorageDir);
+        assertNotNull(cached.getForHost("web2").backupKeepStrategy);
+    }
+    
+    @Test
+    public void testDuplicateHost() throws Exception
+    {
+        File confDir=tmp.newFolder("conf");
+        File confFile=write(new File(confDir,"backup.conf"),
+                "hosts:\n"+
+                " - host: host1\n");
+        write(new File(confDir,"hosts.d/other.conf"),
+                "hosts:\n"+
+                " - host: host1\n");
+        try
+        {
+            BackupConf.read(confFile);
+            fail("Duplicate host not detected");
+        }
+        catch (RuntimeException ex)
+        {
+            assertTrue(ex.getMessage().contains("Duplicate host host1"));
+        }
+    }
+    
+    @Test
+    public void testStoragePools() throws Exception
+    {
+        File confDir=tmp.newFolder("conf");
+        File pool1=tmp.newFolder("pool1");
+        File pool2=tmp.newFolder("pool2");
+        new File(pool2,"existing").mkdir();
+        File confFile=write(new File(confDir,"backup.conf"),
+                "pools:\n"+
+                " - name: pool1\n"+
+                "   dir: "+pool1+"\n"+
+                "   mountPoint: /\n"+
+                " - name: pool2\n"+
+                "   dir: "+pool2+"\n"+
+                "   mountPoint: /\n"+
+                "hosts:\n"+
+                " - host: existing\n"+
+                "   storagePool: pool1\n"+
+                " - host: new\n"+
+                "   storagePool: pool1\n"+
+                " - host: explicit\n"+
+                "   storageDir: /backup/hosts\n");
+        
+        BackupConf conf=BackupConf.read(confFile);
+        assertEquals(new File(pool2,"existing").getPath(), conf.getForHost("existing").hostStorageDir);
+        assertEquals(new File(pool1,"new").getPath(), conf.getForHost("new").hostStorageDir);
+        assertTrue(conf.getForHost("new").isPooled());
+        assertFalse(conf.getForHost("explicit").isPooled());
+        // reading the config doesn't place new hosts
+        assertFalse(new File(pool1,"new").exists());
+        assertEquals("pool1", conf.getStoragePools().place("new", "pool1").name);
+        assertTrue(new File(pool1,"new").isDirectory());
+        assertEquals("/backup/hosts/explicit", conf.getForHost("explicit").hostStorageDir);
+        
+        // migrated host: the cache must not be used since the pool contents changed
+        assertTrue(new File(pool2,"existing").renameTo(new File(pool1,"existing")));
+        Files.createSymbolicLink(new File(pool2,"existing").toPath(), new File(pool1,"existing").toPath());
+        conf=BackupConf.read(confFile);
+        assertEquals(new File(pool1,"existing").getPath(), conf.getForHost("existing").hostStorageDir);
+    }
+    
+    @Test
+    public void testNewHostsAreNotPlacedWhileAPoolIsNotMounted() throws Exception
+    {
+        File confDir=tmp.newFolder("conf");
+        File pool1=tmp.newFolder("pool1");
+        File pool2=new File(tmp.getRoot(),"pool2");
+        File confFile=write(new File(confDir,"backup.conf"),
+                "pools:\n"+
+                " - name: pool1\n"+
+                "   dir: "+pool1+"\n"+
+                "   mountPoint: /\n"+
+                " - name: pool2\n"+
+                "   dir: "+pool2+"\n"+
+                "   mountPoint: /\n"+
+                " - name: unmounted\n"+
+                "   dir: "+pool1+"\n"+
+                "hosts:\n"+
+                " - host: new\n");
+        
+        // the host may be stored on the missing or unmounted pool
+        BackupConf conf=BackupConf.read(confFile);
+        assertEquals(new File(pool1,"new").getPath(), conf.getForHost("new").hostStorageDir);
+        for (int i=0;i<2;i++)
+        {
+            try
+            {
+                conf.getStoragePools().place("new", null);
+                fail("Host placed while a pool is not mounted");
+            }
+            catch (RuntimeException ex)
+            {
+                assertTrue(ex.getMessage(), ex.getMessage().contains((i==0)?"pool2":"unmounted"));
+            }
+            assertFalse(new File(pool1,"new").exists());
+            pool2.mkdir();
+        }
+    }
+    
+    protected static File write(File file, String content) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("utf-8"));
+        return file;
+    }
+}
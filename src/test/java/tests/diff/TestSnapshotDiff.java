@@ -0,0 +1,63 @@
+package tests.diff;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.github.rsyncbackup.diff.SnapshotDiff;
+import org.github.rsyncbackup.diff.SnapshotDiff.DiffEntry;
+import org.github.rsyncbackup.diff.SnapshotDiff.DiffResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSnapshotDiff
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testDiff() throws Exception
+    {
+        File backup1=tmp.newFolder("backup-2014-03-01-01:00:00");
+        File backup2=tmp.newFolder("backup-2014-03-02-01:00:00");
+        
+        write(new File(backup1,"ROOT/etc/shared.conf"), "unchanged");
+        write(new File(backup1,"ROOT/etc/changed.conf"), "old");
+        write(new File(backup1,"ROOT/etc/removed.conf"), "removed");
+        write(new File(backup1,"ROOT/var/log/old.log"), "12345");
+        
+        new File(backup2,"ROOT/etc").mkdirs();
+        Files.createLink(new File(backup2,"ROOT/etc/shared.conf").toPath(), new File(backup1,"ROOT/etc/shared.conf").toPath());
+        write(new File(backup2,"ROOT/etc/changed.conf"), "new content");
+        new File(backup2,"ROOT/etc/changed.conf").setLastModified(new File(backup1,"ROOT/etc/changed.conf").lastModified()+10000);
+        write(new File(backup2,"ROOT/home/user/a.txt"), "abc");
+        write(new File(backup2,"ROOT/home/user/b.txt"), "de");
+        new File(backup2,"ROOT/var").mkdirs();
+        
+        DiffResult result=new SnapshotDiff(backup1.toPath(), backup2.toPath(), 4).diff();
+        
+        List<String> lines=new ArrayList<>();
+        for (DiffEntry entry: result.entries)
+        {
+            lines.add(entry.toString());
+        }
+        assertEquals(Arrays.asList(
+                "M +8 ROOT/etc/changed.conf",
+                "- -7 ROOT/etc/removed.conf",
+                "+ +5 ROOT/home",
+                "- -5 ROOT/var/log"), lines);
+        assertEquals(1, result.linked);
+        assertEquals(1, result.compared);
+    }
+    
+    protected static void write(File file, String content) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("utf-8"));
+    }
+}
@@ -0,0 +1,78 @@
+package tests.dumps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+
+import org.github.rsyncbackup.DatabaseDumps;
+import org.github.rsyncbackup.RSyncBackup;
+import org.github.rsyncbackup.RSyncBackup.BackupStatistics;
+import org.github.rsyncbackup.impl.BackupConf;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDatabaseDumps
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testValidDumpsAreStoredAndBrokenDumpsFailTheBackup() throws Exception
+    {
+        File workDir=tmp.newFolder("work");
+        File confDir=new File(workDir,"conf");
+        confDir.mkdirs();
+        Files.write(new File(confDir,"backup_ssh_private_key").toPath(), new byte[0]);
+        
+        // ssh stand-in for the client's backup_shell.sh: "ok" is a valid dump, "truncated" is not a valid archive,
+        // "failing" exits with an error. gzip stands in for zstd (both have -t -q)
+        File ssh=new File(workDir,"ssh.sh");
+        Files.write(ssh.toPath(), ("#!/bin/sh\n"
+                +"eval CMD=\\${$#}\n"
+                +"case \"$CMD\" in\n"
+                +"  DUMP_LIST) printf 'ok\\ntruncated\\nfailing\\ninvalid name\\n' ;;\n"
+                +"  DUMP_ok) echo 'CREATE TABLE t;' | gzip -c ;;\n"
+                +"  DUMP_truncated) echo 'CREATE TABLE t;' | gzip -c | head -c 10 ;;\n"
+                +"  DUMP_failing) echo 'access denied' >&2; exit 2 ;;\n"
+                +"esac\n").getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(ssh.toPath(), PosixFilePermissions.fromString("rwx------"));
+        
+        String yaml="defaults:\n"
+                +"  storageDir: "+tmp.newFolder("hosts").getAbsolutePath()+"\n"
+                +"  cmdSsh: "+ssh.getAbsolutePath()+"\n"
+                +"  cmdZstd: gzip\n"
+                +"hosts:\n"
+                +" - host: db-server\n";
+        Files.write(new File(confDir,"backup.conf").toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+        
+        RSyncBackup backup=new RSyncBackup(workDir);
+        ConfHost host=BackupConf.read(new File(confDir,"backup.conf")).getForHost("db-server");
+        
+        File dumpDir=new File(tmp.getRoot(),"sync/DUMPS");
+        dumpDir.mkdirs();
+        Files.write(new File(dumpDir,"dropped.sql.zst").toPath(), new byte[] {1});
+        
+        BackupStatistics statistics=new BackupStatistics();
+        statistics.backupOk=true;
+        new DatabaseDumps(backup, host, new HashMap<String,String>()).dumpAll(dumpDir, statistics);
+        
+        assertTrue(new File(dumpDir,"ok.sql.zst").isFile());
+        assertFalse(new File(dumpDir,"truncated.sql.zst").exists());
+        assertFalse(new File(dumpDir,"truncated.sql.zst.tmp").exists());
+        assertFalse(new File(dumpDir,"failing.sql.zst").exists());
+        assertFalse("Dump of a dropped database is removed", new File(dumpDir,"dropped.sql.zst").exists());
+        assertEquals(1, statistics.dumpCount);
+        assertEquals(2, statistics.dumpFailedCount);
+        assertEquals(new File(dumpDir,"ok.sql.zst").length(), statistics.dumpSize);
+        assertFalse(statistics.backupOk);
+        assertEquals(2, statistics.backupErrors.size());
+    }
+}
@@ -0,0 +1,148 @@
+package tests.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.github.rsyncbackup.export.ArchiveIndex;
+import org.github.rsyncbackup.export.LinkTargets;
+import org.github.rsyncbackup.export.SnapshotExporter;
+import org.github.rsyncbackup.export.SnapshotExporter.ExportResult;
+import org.github.rsyncbackup.impl.HostDir;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSnapshotExporter
+{
+    // concatenated gzip members are a valid gzip stream, like zstd frames
+    protected static final List<String> COMPRESS=Arrays.asList("gzip", "-c");
+    protected static final List<String> DECOMPRESS=Arrays.asList("gzip", "-d", "-c");
+    protected static final String LONG_NAME="a-file-name-that-does-not-fit-into-the-one-hundred-bytes-of-a-ustar-header-and-needs-a-pax-header.txt";
+    
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testSharedInodesAreStoredOnceAndFilesCanBeExtractedSingly() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        byte[] large=new byte[20000];
+        new Random(1).nextBytes(large);
+        createBackups(hostDir, large);
+        
+        File archive=new File(tmp.getRoot(),"host.tar.gz");
+        HostDir dir=new HostDir(hostDir);
+        ExportResult result=new SnapshotExporter(COMPRESS, 2, 4096).export(dir, dir.listBackups(), archive);
+        assertEquals(4, result.files);
+        assertEquals(1, result.hardlinks);
+        assertTrue(result.compressedBytes>0);
+        
+        ArchiveIndex index=ArchiveIndex.read(ArchiveIndex.getIndexFile(archive));
+        assertTrue(index.frames.size()>5);
+        assertEquals(4, index.verify(archive, DECOMPRESS));
+        
+        assertArrayEquals(large, extract(index, archive, "backup-2014-03-02-01:00:00/ROOT/large.bin"));
+        assertEquals("new content", new String(extract(index, archive, "backup-2014-03-02-01:00:00/ROOT/changed.txt"), StandardCharsets.UTF_8));
+        assertEquals("old content", new String(extract(index, archive, "backup-2014-03-01-01:00:00/ROOT/changed.txt"), StandardCharsets.UTF_8));
+        assertEquals("long", new String(extract(index, archive, "backup-2014-03-01-01:00:00/ROOT/"+LONG_NAME), StandardCharsets.UTF_8));
+        assertEquals("large.bin", index.entries.get("backup-2014-03-01-01:00:00/ROOT/link").linkName);
+        
+        // the archive is a regular tar stream
+        File extracted=tmp.newFolder("extracted");
+        Process tar=new ProcessBuilder("tar", "-xzf", archive.getAbsolutePath(), "-C", extracted.getAbsolutePath()).inheritIO().start();
+        Assume.assumeTrue(tar.waitFor()==0);
+        File large1=new File(extracted,"backup-2014-03-01-01:00:00/ROOT/large.bin");
+        File large2=new File(extracted,"backup-2014-03-02-01:00:00/ROOT/large.bin");
+        assertArrayEquals(large, Files.readAllBytes(large2.toPath()));
+        assertEquals(Files.getAttribute(large1.toPath(), "unix:ino"), Files.getAttribute(large2.toPath(), "unix:ino"));
+        assertEquals("large.bin", Files.readSymbolicLink(new File(extracted,"backup-2014-03-01-01:00:00/ROOT/link").toPath()).toString());
+        assertTrue(Files.isSymbolicLink(new File(extracted,"backup-2014-03-01-01:00:00/ROOT/link").toPath()));
+        assertEquals("long", new String(Files.readAllBytes(new File(extracted,"backup-2014-03-01-01:00:00/ROOT/"+LONG_NAME).toPath()), StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void testCorruptArchiveFailsVerification() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        byte[] large=new byte[20000];
+        new Random(2).nextBytes(large);
+        createBackups(hostDir, large);
+        
+        File archive=new File(tmp.getRoot(),"host.tar");
+        HostDir dir=new HostDir(hostDir);
+        new SnapshotExporter(null, 1, 4096).export(dir, dir.listBackups(), archive);
+        ArchiveIndex index=ArchiveIndex.read(ArchiveIndex.getIndexFile(archive));
+        assertEquals(4, index.verify(archive, null));
+        assertArrayEquals(large, extract(index, archive, "backup-2014-03-01-01:00:00/ROOT/large.bin"));
+        
+        ArchiveIndex.Entry entry=index.getFileEntry("backup-2014-03-02-01:00:00/ROOT/large.bin");
+        try (RandomAccessFile file=new RandomAccessFile(archive, "rw"))
+        {
+            file.seek(entry.dataOffset+10000);
+            file.write(large[10000]^1);
+        }
+        try
+        {
+            index.verify(archive, null);
+            fail("Corruption not detected");
+        }
+        catch (IOException ex)
+        {
+            assertTrue(ex.getMessage().contains("large.bin"));
+        }
+    }
+    
+    @Test
+    public void testLinkTargetsAreKeyedByDeviceAndInode() throws Exception
+    {
+        LinkTargets targets=new LinkTargets(16);
+        for (int i=0;i<10000;i++)
+        {
+            targets.put(1, i, i);
+            targets.put(2, i, 20000+i);
+        }
+        assertEquals(20000, targets.size());
+        for (int i=0;i<10000;i++)
+        {
+            assertEquals(i, targets.get(1, i));
+            assertEquals(20000+i, targets.get(2, i));
+        }
+        assertEquals(-1, targets.get(3, 1));
+        assertEquals(-1, targets.get(1, 10000));
+    }
+    
+    protected static void createBackups(File hostDir, byte[] large) throws Exception
+    {
+        File backup1=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        File backup2=new File(hostDir,"backup-2014-03-02-01:00:00/ROOT");
+        backup1.mkdirs();
+        backup2.mkdirs();
+        
+        Files.write(new File(backup1,"large.bin").toPath(), large);
+        Files.write(new File(backup1,"changed.txt").toPath(), "old content".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(backup1,LONG_NAME).toPath(), "long".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(new File(backup1,"link").toPath(), new File("large.bin").toPath());
+        Files.createLink(new File(backup2,"large.bin").toPath(), new File(backup1,"large.bin").toPath());
+        Files.write(new File(backup2,"changed.txt").toPath(), "new content".getBytes(StandardCharsets.UTF_8));
+    }
+    
+    protected static byte[] extract(ArchiveIndex index, File archive, String path) throws IOException
+    {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        index.extract(archive, path, out, index.compressed?DECOMPRESS:null);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,438 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.impl.BackupJob;
+import org.github.rsyncbackup.impl.BackupScheduler;
+import org.github.rsyncbackup.impl.ClusterCoordinator;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.impl.IBackupExecutor;
+import org.github.rsyncbackup.impl.MemoryHistory;
+import org.github.rsyncbackup.impl.RetryPolicy;
+import org.github.rsyncbackup.impl.RetryPolicy.FailureClass;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBackupScheduler
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testHostBackedUpByAnotherProcessIsSkipped() throws Exception
+    {
+        ConfHost host1=createHost("host1");
+        final ConfHost host2=createHost("host2");
+        
+        // another process is backing up host2
+        final HostLock otherProcess=HostLock.tryLock(new File(host2.hostStorageDir));
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                backups.add(job.host.host);
+                if (job.host.host.equals("host1"))
+                {
+                    // the other process finishes host2
+                    String backup=DateTimeFormat.forPattern("'backup-'yyyy-MM-dd-HH:mm:ss").print(new LocalDateTime().plusMinutes(1));
+                    new File(host2.hostStorageDir,backup).mkdir();
+                    otherProcess.release();
+                }
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(2, Arrays.asList(host2, host1), executor);
+        scheduler.setLockRetry(100, 60000);
+        scheduler.executeBackups();
+        
+        assertEquals(Arrays.asList("host1"), backups);
+    }
+    
+    @Test
+    public void testPreBackupIsPrefetchedAhead() throws Exception
+    {
+        List<ConfHost> hosts=new ArrayList<>();
+        for (int i=1;i<=4;i++)
+        {
+            hosts.add(createHost("host"+i));
+        }
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        final int[] prefetched=new int[2]; // waiting for the transfer, maximum
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+                assertTrue(Thread.currentThread().getName().startsWith("PreBackupExecutor"));
+                synchronized(prefetched)
+                {
+                    prefetched[0]++;
+                    prefetched[1]=Math.max(prefetched[1], prefetched[0]);
+                }
+                job.preBackupExitCode=0;
+                job.preBackupFinished=new LocalDateTime();
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                synchronized(prefetched)
+                {
+                    prefetched[0]--;
+                }
+                backups.add(job.host.host+(job.isPreBackupDone()?"":" without PRE_BACKUP"));
+                Thread.sleep(1500);
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(1, 1, hosts, executor);
+        scheduler.executeBackups();
+        
+        // every transfer found its PRE_BACKUP done, but not more than one transfer and one PRE_BACKUP ahead. Only the
+        // first transfer may run PRE_BACKUP inline if it starts while the PRE_BACKUP executor is busy with host1
+        assertEquals(4, backups.size());
+        if (backups.get(0).endsWith("without PRE_BACKUP")) backups.remove(0);
+        else assertEquals("host1", backups.remove(0));
+        for (String backup: backups) assertFalse(backup, backup.endsWith("without PRE_BACKUP"));
+        assertTrue("Prefetched too far ahead: "+prefetched[1], prefetched[1]<=2);
+    }
+    
+    @Test
+    public void testPreBackupRunsInlineWithoutFreeExecutor() throws Exception
+    {
+        ConfHost host1=createHost("host1");
+        ConfHost host2=createHost("host2");
+        
+        final List<String> calls=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+                calls.add("PRE_BACKUP "+job.host.host);
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                // the executor runs PRE_BACKUP itself if it is not done (see RSyncBackup.runBackup)
+                calls.add("backup "+job.host.host+(job.isPreBackupDone()?" prefetched":" inline"));
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(1, 0, Arrays.asList(host1, host2), executor);
+        scheduler.executeBackups();
+        
+        assertEquals(Arrays.asList("backup host1 inline", "backup host2 inline"), calls);
+    }
+    
+    @Test
+    public void testHostIsUnlockedWhileWaitingForClusterResources() throws Exception
+    {
+        final ConfHost host1=createHost("host1");
+        ConfHost host2=createHost("host2");
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                if (job.host==host1)
+                {
+                    backups.add("host1");
+                    return;
+                }
+                // host1 waits for its resources in the cluster, its lock must not block other processes
+                HostLock otherProcess=HostLock.tryLock(new File(host1.hostStorageDir));
+                backups.add("host2, host1 "+((otherProcess==null)?"locked":"unlocked"));
+                if (otherProcess!=null) otherProcess.release();
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(1, 0, Arrays.asList(host1, host2), executor)
+        {
+            @Override
+            protected boolean acquireInCluster(Map<String,Integer> resources)
+            {
+                // host1's group is busy on another node until host2 is done
+                return !resources.containsKey("group:host1") || !backups.isEmpty();
+            }
+        };
+        scheduler.executeBackups();
+        
+        assertEquals(Arrays.asList("host2, host1 unlocked", "host1"), backups);
+    }
+    
+    @Test
+    public void testPrefetchedPreBackupExpires() throws Exception
+    {
+        BackupJob job=new BackupJob(createHost("host1"));
+        LocalDateTime now=new LocalDateTime();
+        job.host.preBackupMaxAge=60;
+        assertFalse(job.isPreBackupExpired(now));
+        
+        job.preBackupExitCode=0;
+        job.preBackupFinished=now.minusMinutes(59);
+        assertFalse(job.isPreBackupExpired(now));
+        
+        job.preBackupFinished=now.minusMinutes(61);
+        assertTrue(job.isPreBackupExpired(now));
+        
+        // no limit
+        job.host.preBackupMaxAge=null;
+        assertFalse(job.isPreBackupExpired(now));
+        
+        job.resetPreBackup();
+        assertFalse(job.isPreBackupDone());
+    }
+    
+    @Test
+    public void testFailedBackupIsRequeued() throws Exception
+    {
+        ConfHost host=createHost("host1");
+        host.retryAttempts=2;
+        host.retryDelayMinutes=0;
+        host.retryBudgetMinutes=60;
+        
+        final List<Integer> attempts=Collections.synchronizedList(new ArrayList<Integer>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                job.startAttempt(System.currentTimeMillis());
+                attempts.add(job.failedAttempts);
+                job.scheduleRetry(FailureClass.NETWORK, System.currentTimeMillis());
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(1, Arrays.asList(host), executor);
+        scheduler.executeBackups();
+        
+        // first attempt and 2 retries
+        assertEquals(Arrays.asList(0, 1, 2), attempts);
+        assertEquals(-1, RetryPolicy.getRetryDelay(host, FailureClass.FATAL, 1, 0));
+        assertEquals(0, RetryPolicy.getRetryDelay(host, FailureClass.PARTIAL, 1, 0));
+        assertEquals(-1, RetryPolicy.getRetryDelay(host, FailureClass.PARTIAL, 2, 0));
+    }
+    
+    @Test
+    public void testRetryKeepsTheSuccessfulPreBackup() throws Exception
+    {
+        ConfHost host=createHost("host1");
+        host.retryAttempts=1;
+        host.retryDelayMinutes=0;
+        host.retryBudgetMinutes=60;
+        
+        final List<String> calls=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+                calls.add("PRE_BACKUP");
+                job.preBackupExitCode=0;
+                job.preBackupFinished=new LocalDateTime();
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                job.startAttempt(System.currentTimeMillis());
+                calls.add("backup"+(job.isPreBackupDone()?"":" without PRE_BACKUP"));
+                if (job.failedAttempts==0) job.scheduleRetry(FailureClass.NETWORK, System.currentTimeMillis());
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(1, 1, Arrays.asList(host), executor);
+        scheduler.executeBackups();
+        
+        assertEquals(Arrays.asList("PRE_BACKUP", "backup", "backup"), calls);
+        
+        // a failed or expired PRE_BACKUP is run again
+        BackupJob job=new BackupJob(host);
+        job.preBackupExitCode=1;
+        job.requeue();
+        assertFalse(job.isPreBackupDone());
+        host.preBackupMaxAge=60;
+        job.preBackupExitCode=0;
+        job.preBackupFinished=new LocalDateTime().minusMinutes(61);
+        job.requeue();
+        assertFalse(job.isPreBackupDone());
+    }
+    
+    @Test
+    public void testPriorityJobJumpsQueue() throws Exception
+    {
+        final ConfHost host1=createHost("host1");
+        final ConfHost host2=createHost("host2");
+        final ConfHost host3=createHost("host3");
+        final BackupScheduler[] scheduler=new BackupScheduler[1];
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                backups.add(job.host.host+(job.priority?"!":""));
+                if (job.host==host1)
+                {
+                    BackupJob urgent=new BackupJob(host3);
+                    urgent.priority=true;
+                    scheduler[0].submit(urgent);
+                }
+            }
+        };
+        
+        scheduler[0]=new BackupScheduler(1, 0, Arrays.asList(host1, host2, host3), executor); // PRE_BACKUP inline, in queue order
+        scheduler[0].executeBackups();
+        
+        // the queued job of host3 is replaced by the priority job
+        assertEquals(Arrays.asList("host1", "host3!", "host2"), backups);
+    }
+    
+    @Test
+    public void testPriorityJobIsNotSkippedForAnEarlierBackup() throws Exception
+    {
+        final ConfHost host1=createHost("host1");
+        final BackupScheduler[] scheduler=new BackupScheduler[1];
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                backups.add(job.host.host+(job.priority?"!":""));
+                if (job.priority) return;
+                
+                // submitted while the scheduled backup is running: this backup does not count for the priority job
+                Thread.sleep(1100); // after the start of the cluster's run
+                String backup=DateTimeFormat.forPattern("'backup-'yyyy-MM-dd-HH:mm:ss").print(new LocalDateTime());
+                new File(host1.hostStorageDir,backup).mkdir();
+                BackupJob urgent=new BackupJob(host1);
+                urgent.priority=true;
+                scheduler[0].submit(urgent);
+            }
+        };
+        
+        // in a cluster, every lock checks whether the host was backed up meanwhile
+        ClusterCoordinator cluster=new ClusterCoordinator(tmp.newFolder("cluster"), "a", 60000);
+        cluster.start();
+        scheduler[0]=new BackupScheduler(1, 0, Arrays.asList(host1), executor);
+        scheduler[0].setCluster(cluster);
+        scheduler[0].executeBackups();
+        cluster.close();
+        
+        assertEquals(Arrays.asList("host1", "host1!"), backups);
+    }
+    
+    @Test
+    public void testSmallerJobsFillTheMemoryBudget() throws Exception
+    {
+        ConfHost big1=createHost("big1", 800);
+        ConfHost big2=createHost("big2", 800);
+        ConfHost small1=createHost("small1", 100);
+        ConfHost small2=createHost("small2", 100);
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        final long[] memory=new long[2]; // in use, maximum
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                backups.add(job.host.host);
+                long size=job.host.host.startsWith("big")?800:100;
+                synchronized(memory)
+                {
+                    memory[0]+=size;
+                    memory[1]=Math.max(memory[1], memory[0]);
+                }
+                Thread.sleep(job.host.host.equals("big1")?2500:100);
+                synchronized(memory)
+                {
+                    memory[0]-=size;
+                }
+            }
+        };
+        
+        BackupScheduler scheduler=new BackupScheduler(2, 0, Arrays.asList(big1, big2, small1, small2), executor);
+        scheduler.setMemoryBudget(1200*MB);
+        scheduler.executeBackups();
+        
+        // big2 does not fit next to big1, the small hosts do
+        assertEquals("big2", backups.get(3));
+        assertEquals(900, memory[1]);
+    }
+    
+    protected static final long MB=1024*1024;
+    
+    protected ConfHost createHost(String name, long peakMemoryMB) throws Exception
+    {
+        ConfHost host=createHost(name);
+        host.volumes=new ConfVolume[] {new ConfVolume("ROOT")};
+        new MemoryHistory(new File(host.hostStorageDir)).record("ROOT", peakMemoryMB*MB);
+        return host;
+    }
+    
+    protected ConfHost createHost(String name) throws Exception
+    {
+        ConfHost host=new ConfHost();
+        host.host=name;
+        host.hostStorageDir=tmp.newFolder(name).getPath();
+        host.scheduleGroup=name;
+        host.scheduleEnabled=Boolean.TRUE;
+        return host;
+    }
+}
@@ -0,0 +1,492 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupJob;
+import org.github.rsyncbackup.impl.BackupScheduler;
+import org.github.rsyncbackup.impl.ClusterCoordinator;
+import org.github.rsyncbackup.impl.CommandTimeoutException;
+import org.github.rsyncbackup.impl.HostLock;
+import org.github.rsyncbackup.impl.IBackupExecutor;
+import org.github.rsyncbackup.impl.ProcessWatchdog;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestClusterCoordinator
+{
+    protected static final long CHILD_LEASE_MILLIS=2000;
+    
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    /**
+     * Entry point of the child processes, a node of the cluster:
+     * - lease {clusterDir} {node} {host}: leases the host, prints "leased" and keeps the lease until it is killed
+     * - schedule {clusterDir} {node} {log} {hostsDir}: backs up the hosts in hostsDir (scheduleGroup group{i%2}) and
+     *   appends "{host} {group} {start} {end}" to the log for each backup
+     */
+    public static void main(String[] args) throws Exception
+    {
+        ClusterCoordinator cluster=new ClusterCoordinator(new File(args[1]), args[2], CHILD_LEASE_MILLIS);
+        cluster.start();
+        if (args[0].equals("lease"))
+        {
+            if (!cluster.tryLeaseHost(args[3])) System.exit(1);
+            System.out.println("leased");
+            System.out.flush();
+            Thread.sleep(600000);
+            return;
+        }
+        
+        final File log=new File(args[3]);
+        File[] dirs=new File(args[4]).listFiles();
+        Arrays.sort(dirs);
+        List<ConfHost> hosts=new ArrayList<>();
+        for (int i=0;i<dirs.length;i++)
+        {
+            ConfHost host=new ConfHost();
+            host.host=dirs[i].getName();
+            host.hostStorageDir=dirs[i].getPath();
+            host.scheduleGroup="group"+(i%2);
+            host.scheduleEnabled=Boolean.TRUE;
+            hosts.add(host);
+        }
+        BackupScheduler scheduler=new BackupScheduler(2, hosts, new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                long start=System.currentTimeMillis();
+                Thread.sleep(300);
+                String backup=DateTimeFormat.forPattern("'backup-'yyyy-MM-dd-HH:mm:ss").print(new LocalDateTime().plusMinutes(1));
+                new File(job.host.hostStorageDir,backup).mkdir();
+                String line=job.host.host+" "+job.host.scheduleGroup+" "+start+" "+System.currentTimeMillis()+"\n";
+                Files.write(log.toPath(), line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        });
+        scheduler.setLockRetry(100, 60000);
+        scheduler.setCluster(cluster);
+        scheduler.executeBackups();
+        cluster.close();
+        System.exit(0);
+    }
+    
+    @Test
+    public void testNodesShareHostsAndScheduleGroups() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        final List<ConfHost> hosts=new ArrayList<>();
+        for (int i=1;i<=6;i++)
+        {
+            hosts.add(createHost("host"+i, "group"+(i%2)));
+        }
+        
+        final List<String> backups=Collections.synchronizedList(new ArrayList<String>());
+        final Map<String,AtomicInteger> groupsRunning=new ConcurrentHashMap<>();
+        final AtomicInteger maxGroupRunning=new AtomicInteger();
+        final IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                AtomicInteger running=groupsRunning.get(job.host.scheduleGroup);
+                int concurrent=running.incrementAndGet();
+                synchronized (maxGroupRunning)
+                {
+                    maxGroupRunning.set(Math.max(maxGroupRunning.get(), concurrent));
+                }
+                backups.add(job.host.host);
+                Thread.sleep(300);
+                String backup=DateTimeFormat.forPattern("'backup-'yyyy-MM-dd-HH:mm:ss").print(new LocalDateTime().plusMinutes(1));
+                new File(job.host.hostStorageDir,backup).mkdir();
+                running.decrementAndGet();
+            }
+        };
+        groupsRunning.put("group0", new AtomicInteger());
+        groupsRunning.put("group1", new AtomicInteger());
+        
+        // two nodes, as if they were separate processes
+        List<ClusterCoordinator> nodes=new ArrayList<>();
+        List<Thread> threads=new ArrayList<>();
+        for (String node: new String[] {"a","b"})
+        {
+            ClusterCoordinator cluster=new ClusterCoordinator(clusterDir, node, 60000);
+            cluster.start();
+            nodes.add(cluster);
+            final BackupScheduler scheduler=new BackupScheduler(2, hosts, executor);
+            scheduler.setLockRetry(100, 60000);
+            scheduler.setCluster(cluster);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    scheduler.executeBackups();
+                }
+            });
+        }
+        for (Thread thread: threads)
+        {
+            thread.start();
+        }
+        for (Thread thread: threads)
+        {
+            thread.join();
+        }
+        for (ClusterCoordinator cluster: nodes)
+        {
+            cluster.close();
+        }
+        
+        // each host once
+        assertEquals(6, backups.size());
+        assertEquals(6, new HashSet<>(backups).size());
+        assertEquals(1, maxGroupRunning.get());
+    }
+    
+    @Test
+    public void testExpiredLeasesAreTakenOver() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        final long[] clockOffset=new long[1];
+        
+        ClusterCoordinator nodeA=new ClusterCoordinator(clusterDir, "a", 60000);
+        nodeA.start();
+        ClusterCoordinator nodeB=new ClusterCoordinator(clusterDir, "b", 60000)
+        {
+            @Override
+            protected long now()
+            {
+                return super.now()+clockOffset[0];
+            }
+        };
+        nodeB.start();
+        
+        Map<String,Integer> group=new HashMap<>();
+        group.put("group:g", 1);
+        
+        assertTrue(nodeA.tryLeaseHost("host1"));
+        assertTrue(nodeA.tryAcquire(group));
+        assertFalse(nodeA.tryAcquire(group));
+        assertFalse(nodeB.tryLeaseHost("host1"));
+        assertFalse(nodeB.tryAcquire(group));
+        assertEquals("a", nodeB.getHostOwner("host1"));
+        
+        // each host has one home node, once the nodes see each other
+        nodeA.renew();
+        assertTrue(nodeA.isHome("host1")!=nodeB.isHome("host1"));
+        
+        // node a dies, its leases expire
+        clockOffset[0]=120000;
+        assertTrue(nodeB.tryLeaseHost("host1"));
+        assertTrue(nodeB.tryAcquire(group));
+        assertEquals("b", nodeA.getHostOwner("host1"));
+        
+        // a suspended node doesn't renew leases it has lost
+        nodeA.renew();
+        assertEquals("b", nodeA.getHostOwner("host1"));
+        nodeA.releaseHost("host1");
+        assertEquals("b", nodeA.getHostOwner("host1"));
+        
+        nodeB.releaseHost("host1");
+        assertNull(nodeA.getHostOwner("host1"));
+        nodeA.close();
+        nodeB.close();
+    }
+    
+    @Test
+    public void testLeaseIsOnlyLostIfItCannotBeRenewedSafely() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        final long[] clockOffset=new long[1];
+        final List<String> lost=Collections.synchronizedList(new ArrayList<String>());
+        
+        ClusterCoordinator nodeA=new ClusterCoordinator(clusterDir, "a", 60000)
+        {
+            @Override
+            protected long now()
+            {
+                return super.now()+clockOffset[0];
+            }
+        };
+        nodeA.setListener(new ClusterCoordinator.LeaseListener()
+        {
+            @Override
+            public void hostLost(String host)
+            {
+                lost.add(host);
+            }
+        });
+        nodeA.start();
+        assertTrue(nodeA.tryLeaseHost("host 1"));
+        
+        // missing for a moment, e.g. while another node checks whether it has expired
+        final File lease=new File(clusterDir,"leases/host-host+1"+ClusterCoordinator.LEASE_SUFFIX);
+        final File moved=new File(clusterDir,"leases/moved");
+        Files.move(lease.toPath(), moved.toPath());
+        Thread restore=new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(50);
+                    Files.move(moved.toPath(), lease.toPath());
+                }
+                catch (Exception ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        restore.start();
+        nodeA.renew();
+        restore.join();
+        assertTrue(lost.isEmpty());
+        assertEquals("a", nodeA.getHostOwner("host 1"));
+        
+        // too close to its expiry, another node may be taking it over
+        String content=new String(Files.readAllBytes(lease.toPath()), "UTF-8");
+        clockOffset[0]=50000;
+        nodeA.renew();
+        assertEquals(Collections.singletonList("host 1"), lost);
+        assertEquals(content, new String(Files.readAllBytes(lease.toPath()), "UTF-8"));
+        nodeA.close();
+    }
+    
+    @Test
+    public void testLostHostLeaseStopsTheBackup() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        final ConfHost host=createHost("host1", "group1");
+        final CountDownLatch started=new CountDownLatch(1);
+        final CountDownLatch stopped=new CountDownLatch(1);
+        final CountDownLatch resume=new CountDownLatch(1);
+        final List<Exception> failures=Collections.synchronizedList(new ArrayList<Exception>());
+        IBackupExecutor executor=new IBackupExecutor()
+        {
+            @Override
+            public void runPreBackupForHost(BackupJob job) throws Exception
+            {
+            }
+            
+            @Override
+            public void runBackupForHost(BackupJob job) throws Exception
+            {
+                ProcessWatchdog.setLimits(job.getProcessLimits(System.currentTimeMillis()));
+                try
+                {
+                    Process process=new ProcessBuilder("sleep", "30").start();
+                    ProcessWatchdog.Watch watch=ProcessWatchdog.watch("sleep", process, null);
+                    started.countDown();
+                    process.waitFor();
+                    watch.finish();
+                    watch.checkKilled();
+                }
+                catch (CommandTimeoutException ex)
+                {
+                    failures.add(ex);
+                }
+                finally
+                {
+                    ProcessWatchdog.setLimits(null);
+                }
+                // e.g. finalizing the backup, which checks job.getCancelReason()
+                stopped.countDown();
+                resume.await();
+            }
+        };
+        
+        ClusterCoordinator nodeA=new ClusterCoordinator(clusterDir, "a", 60000);
+        nodeA.start();
+        final BackupScheduler scheduler=new BackupScheduler(1, Collections.singletonList(host), executor);
+        scheduler.setCluster(nodeA);
+        Thread thread=new Thread()
+        {
+            @Override
+            public void run()
+            {
+                scheduler.executeBackups();
+            }
+        };
+        long start=System.currentTimeMillis();
+        thread.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertNull(HostLock.tryLock(new File(host.hostStorageDir)));
+        
+        // node a was suspended, node b took the host over
+        ClusterCoordinator nodeB=new ClusterCoordinator(clusterDir, "b", 60000)
+        {
+            @Override
+            protected long now()
+            {
+                return super.now()+120000;
+            }
+        };
+        nodeB.start();
+        assertTrue(nodeB.tryLeaseHost("host1"));
+        nodeA.renew();
+        
+        // the host stays locked until the job's thread has stopped
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        assertNull(HostLock.tryLock(new File(host.hostStorageDir)));
+        resume.countDown();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertTrue(System.currentTimeMillis()-start<10000);
+        assertEquals(1, failures.size());
+        HostLock lock=HostLock.tryLock(new File(host.hostStorageDir));
+        assertNotNull(lock);
+        lock.release();
+        assertEquals("b", nodeA.getHostOwner("host1"));
+        nodeA.close();
+        nodeB.close();
+    }
+    
+    @Test
+    public void testLeasesAcrossProcesses() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        ClusterCoordinator node=new ClusterCoordinator(clusterDir, "parent", CHILD_LEASE_MILLIS);
+        node.start();
+        
+        File output=new File(tmp.getRoot(),"child.out");
+        Process child=startChild(output, "lease", clusterDir.getAbsolutePath(), "child", "host1");
+        try
+        {
+            for (int i=0;i<300 && !Files.readAllLines(output.toPath(), StandardCharsets.UTF_8).contains("leased");i++)
+            {
+                Thread.sleep(100);
+            }
+            assertTrue(Files.readAllLines(output.toPath(), StandardCharsets.UTF_8).contains("leased"));
+            assertEquals("child", node.getHostOwner("host1"));
+            assertFalse(node.tryLeaseHost("host1"));
+            
+            // renewed by the child's heartbeat beyond the lease time
+            Thread.sleep(CHILD_LEASE_MILLIS*3/2);
+            assertFalse(node.tryLeaseHost("host1"));
+            assertEquals("child", node.getHostOwner("host1"));
+        }
+        finally
+        {
+            child.destroy();
+            child.waitFor();
+        }
+        
+        // the dead child's lease expires and is taken over
+        Thread.sleep(CHILD_LEASE_MILLIS*3/2);
+        assertTrue(node.tryLeaseHost("host1"));
+        assertEquals("parent", node.getHostOwner("host1"));
+        node.close();
+    }
+    
+    @Test
+    public void testScheduleGroupsAcrossProcesses() throws Exception
+    {
+        File clusterDir=tmp.newFolder("cluster");
+        File hostsDir=tmp.newFolder("hosts");
+        for (int i=1;i<=6;i++)
+        {
+            new File(hostsDir,"host"+i).mkdir();
+        }
+        File log=new File(tmp.getRoot(),"backups.log");
+        
+        List<Process> children=new ArrayList<>();
+        for (String node: new String[] {"p1","p2"})
+        {
+            children.add(startChild(new File(tmp.getRoot(),node+".out"), "schedule", clusterDir.getAbsolutePath(), node, log.getAbsolutePath(), hostsDir.getAbsolutePath()));
+        }
+        for (Process child: children)
+        {
+            assertTrue(child.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, child.exitValue());
+        }
+        
+        // each host once, the backups of a scheduleGroup don't overlap
+        List<String> backups=new ArrayList<>();
+        Map<String,List<long[]>> groups=new HashMap<>();
+        for (String line: Files.readAllLines(log.toPath(), StandardCharsets.UTF_8))
+        {
+            String[] fields=line.split(" ");
+            backups.add(fields[0]);
+            if (!groups.containsKey(fields[1])) groups.put(fields[1], new ArrayList<long[]>());
+            groups.get(fields[1]).add(new long[] {Long.parseLong(fields[2]), Long.parseLong(fields[3])});
+        }
+        assertEquals(6, backups.size());
+        assertEquals(6, new HashSet<>(backups).size());
+        for (List<long[]> intervals: groups.values())
+        {
+            Collections.sort(intervals, new Comparator<long[]>()
+            {
+                @Override
+                public int compare(long[] a, long[] b)
+                {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            for (int i=1;i<intervals.size();i++)
+            {
+                assertTrue(intervals.get(i)[0]>=intervals.get(i-1)[1]);
+            }
+        }
+    }
+    
+    /**
+     * Starts a node of the cluster in another JVM (see main)
+     * @param output file for the standard output of the child
+     */
+    protected static Process startChild(File output, String... args) throws Exception
+    {
+        File java=new File(new File(System.getProperty("java.home"),"bin"),"java");
+        List<String> cmd=new ArrayList<>(Arrays.asList(java.getAbsolutePath(), "-cp", System.getProperty("java.class.path"),
+                TestClusterCoordinator.class.getName()));
+        cmd.addAll(Arrays.asList(args));
+        return new ProcessBuilder(cmd).redirectOutput(output).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+    
+    protected ConfHost createHost(String name, String scheduleGroup) throws Exception
+    {
+        ConfHost host=new ConfHost();
+        host.host=name;
+        host.hostStorageDir=tmp.newFolder(name).getPath();
+        host.scheduleGroup=scheduleGroup;
+        host.scheduleEnabled=Boolean.TRUE;
+        return host;
+    }
+}
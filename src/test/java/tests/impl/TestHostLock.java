@@ -0,0 +1,61 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.github.rsyncbackup.impl.HostLock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestHostLock
+{
+    protected static final int EXIT_LOCKED=3;
+    protected static final int EXIT_ACQUIRED=4;
+    
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    /**
+     * Entry point of the child process: tries to lock the host dir given as argument
+     */
+    public static void main(String[] args) throws Exception
+    {
+        HostLock lock=HostLock.tryLock(new File(args[0]));
+        System.exit((lock==null)?EXIT_LOCKED:EXIT_ACQUIRED);
+    }
+    
+    @Test
+    public void testSecondLockInTheSameProcessKeepsTheLock() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        HostLock lock=HostLock.tryLock(hostDir);
+        assertNotNull(lock);
+        
+        // must neither succeed nor drop the lock of the first one
+        assertNull(HostLock.tryLock(hostDir));
+        assertNull(HostLock.tryLock(new File(hostDir,"../host")));
+        assertTrue(HostLock.readOwner(hostDir).startsWith(HostLock.getProcessName()));
+        assertEquals(EXIT_LOCKED, tryLockInChildProcess(hostDir));
+        
+        lock.release();
+        lock.release();
+        assertEquals(EXIT_ACQUIRED, tryLockInChildProcess(hostDir));
+        
+        lock=HostLock.tryLock(hostDir);
+        assertNotNull(lock);
+        lock.release();
+    }
+    
+    protected static int tryLockInChildProcess(File hostDir) throws Exception
+    {
+        File java=new File(new File(System.getProperty("java.home"),"bin"),"java");
+        Process process=new ProcessBuilder(java.getAbsolutePath(), "-cp", System.getProperty("java.class.path"),
+                TestHostLock.class.getName(), hostDir.getAbsolutePath()).inheritIO().start();
+        return process.waitFor();
+    }
+}
@@ -0,0 +1,54 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.github.rsyncbackup.impl.LinkDestPrewarmer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestLinkDestPrewarmer
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testPreviousBackupIsWalked() throws Exception
+    {
+        ConfHost host=new ConfHost();
+        host.host="host1";
+        host.hostStorageDir=tmp.newFolder("host1").getPath();
+        host.volumes=new ConfVolume[] {new ConfVolume("ROOT"), new ConfVolume("DATA")};
+        host.prewarmThreads=0;
+        assertNull(LinkDestPrewarmer.start(host));
+        
+        host.prewarmThreads=4;
+        assertNull(LinkDestPrewarmer.start(host)); // no previous backup
+        
+        // 10 dirs with 10 files each in ROOT, DATA was not backed up yet
+        File volume=new File(host.hostStorageDir,"backup-2014-03-03-22:55:59/ROOT");
+        for (int i=0;i<10;i++)
+        {
+            File dir=new File(volume,"dir"+i);
+            dir.mkdirs();
+            for (int j=0;j<10;j++)
+            {
+                Files.write(new File(dir,"file"+j).toPath(), new byte[1]);
+            }
+        }
+        
+        LinkDestPrewarmer prewarmer=LinkDestPrewarmer.start(host);
+        while (prewarmer.isRunning()) Thread.sleep(10);
+        prewarmer.stop();
+        
+        assertTrue(prewarmer.isComplete());
+        assertEquals(110, prewarmer.getEntries());
+    }
+}
@@ -0,0 +1,86 @@
+package tests.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.github.rsyncbackup.impl.CommandTimeoutException;
+import org.github.rsyncbackup.impl.ProcessWatchdog;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestProcessWatchdog
+{
+    @After
+    public void resetLimits()
+    {
+        ProcessWatchdog.setLimits(null);
+        ProcessWatchdog.setMemoryPeak(null);
+    }
+    
+    @Test
+    public void testStalledProcessTreeIsKilled() throws Exception
+    {
+        ProcessWatchdog.setLimits(new ProcessWatchdog.Limits(1000, 0));
+        
+        Process process=new ProcessBuilder("/bin/sh", "-c", "sleep 60 & wait").start();
+        ProcessWatchdog.Watch watch=ProcessWatchdog.watch("TEST", process, null);
+        try
+        {
+            long now=System.currentTimeMillis();
+            ProcessWatchdog.checkAll(now);
+            ProcessWatchdog.checkAll(now+2000);
+            
+            process.waitFor();
+            try
+            {
+                watch.checkKilled();
+                fail("Process was not killed");
+            }
+            catch (CommandTimeoutException ex)
+            {
+                assertTrue(ex.stalled);
+            }
+        }
+        finally
+        {
+            watch.finish();
+            process.destroy();
+        }
+    }
+    
+    @Test
+    public void testPeakMemoryIsSampled() throws Exception
+    {
+        ProcessWatchdog.MemoryPeak peak=new ProcessWatchdog.MemoryPeak();
+        ProcessWatchdog.setMemoryPeak(peak);
+        
+        Process process=new ProcessBuilder("/bin/sh", "-c", "sleep 60 & wait").start();
+        ProcessWatchdog.Watch watch=ProcessWatchdog.watch("TEST", process, null);
+        try
+        {
+            Thread.sleep(200);
+            ProcessWatchdog.checkAll(System.currentTimeMillis());
+            assertTrue(peak.getBytes()>0);
+        }
+        finally
+        {
+            watch.finish();
+            process.destroy();
+        }
+    }
+    
+    @Test
+    public void testCommandIsNotStartedAfterDeadline() throws Exception
+    {
+        ProcessWatchdog.setLimits(new ProcessWatchdog.Limits(0, System.currentTimeMillis()-1));
+        try
+        {
+            ProcessWatchdog.checkDeadline("TEST");
+            fail("Deadline was not detected");
+        }
+        catch (CommandTimeoutException ex)
+        {
+            assertTrue(!ex.stalled);
+        }
+    }
+}
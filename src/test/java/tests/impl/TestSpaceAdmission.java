@@ -0,0 +1,113 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.CapacityHistory;
+import org.github.rsyncbackup.impl.CapacityHistory.Estimate;
+import org.github.rsyncbackup.impl.SpaceAdmission;
+import org.github.rsyncbackup.impl.StorageForecast;
+import org.github.rsyncbackup.impl.StorageForecast.Forecast;
+import org.joda.time.LocalDateTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpaceAdmission
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testEstimateFromRecentBackups() throws Exception
+    {
+        CapacityHistory history=new CapacityHistory(tmp.getRoot());
+        assertNull(history.estimate());
+        
+        history.record(new LocalDateTime(2014,3,1,1,0), 1000, 10);
+        history.record(new LocalDateTime(2014,3,2,1,0), 4000, 20);
+        history.record(new LocalDateTime(2014,3,3,1,0), 2000, 40);
+        
+        Estimate estimate=history.estimate();
+        assertEquals(6000, estimate.bytes);
+        assertEquals(60, estimate.inodes);
+    }
+    
+    @Test
+    public void testParallelBackupsDoNotOvercommitTheStorage() throws Exception
+    {
+        SpaceAdmission space=new FixedUsageAdmission(10000, 2000, 1000, 500);
+        ConfHost host1=createHost("host1");
+        ConfHost host2=createHost("host2");
+        
+        assertTrue(space.reserve(host1, new Estimate(1000, 10)));
+        // 2000 free - 1000 reserved - 600 estimated < 5% of 10000
+        assertFalse(space.reserve(host2, new Estimate(600, 10)));
+        
+        space.release(host1);
+        assertTrue(space.reserve(host2, new Estimate(600, 10)));
+        
+        // inodes
+        space.release(host2);
+        assertFalse(space.reserve(host1, new Estimate(0, 460)));
+    }
+    
+    @Test
+    public void testForecastExtrapolatesTheTrend() throws Exception
+    {
+        StorageForecast forecast=new StorageForecast(tmp.getRoot());
+        long day=24*3600000L;
+        long now=System.currentTimeMillis();
+        
+        assertNull(forecast.forecast(now).daysUntilFull);
+        
+        // 100 bytes less per day, inodes constant
+        for (int i=0;i<5;i++)
+        {
+            SpaceAdmission.Usage usage=new SpaceAdmission.Usage();
+            usage.totalBytes=10000;
+            usage.freeBytes=1400-100*i;
+            usage.totalInodes=1000;
+            usage.freeInodes=500;
+            forecast.sample(usage, now-(4-i)*day);
+        }
+        
+        Forecast result=forecast.forecast(now);
+        assertEquals(10.0, result.daysUntilFull, 0.001);
+        assertNull(result.daysUntilInodesFull);
+    }
+    
+    protected ConfHost createHost(String name)
+    {
+        ConfHost host=new ConfHost();
+        host.host=name;
+        host.storageDir=tmp.getRoot().getAbsolutePath();
+        host.minFreeSpacePercent=5;
+        host.minFreeInodesPercent=5;
+        return host;
+    }
+    
+    protected static class FixedUsageAdmission extends SpaceAdmission
+    {
+        protected final Usage usage=new Usage();
+        
+        protected FixedUsageAdmission(long totalBytes, long freeBytes, long totalInodes, long freeInodes)
+        {
+            usage.totalBytes=totalBytes;
+            usage.freeBytes=freeBytes;
+            usage.totalInodes=totalInodes;
+            usage.freeInodes=freeInodes;
+        }
+        
+        @Override
+        protected Usage readUsage(File dir)
+        {
+            return usage;
+        }
+    }
+}
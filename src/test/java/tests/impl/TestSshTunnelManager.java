@@ -0,0 +1,103 @@
+package tests.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.SshTunnelManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSshTunnelManager
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testHostsBehindTheSameProxyShareOneMaster() throws Exception
+    {
+        File starts=tmp.newFile("starts");
+        SshTunnelManager manager=new SshTunnelManager(tmp.newFolder("tunnels"));
+        ConfHost proxy=createProxy("proxy");
+        List<String> cmdSsh=createSsh(starts, 0);
+        
+        manager.acquire(proxy, cmdSsh);
+        manager.acquire(proxy, cmdSsh);
+        assertTrue(manager.getControlSocket(proxy).exists());
+        assertEquals(1, Files.readAllLines(starts.toPath(), StandardCharsets.UTF_8).size());
+        
+        manager.release(proxy);
+        assertTrue(manager.getControlSocket(proxy).exists());
+        manager.release(proxy);
+        assertFalse(manager.getControlSocket(proxy).exists());
+        manager.closeAll();
+    }
+    
+    @Test
+    public void testSlowProxyDoesNotBlockOtherProxies() throws Exception
+    {
+        final SshTunnelManager manager=new SshTunnelManager(tmp.newFolder("tunnels"));
+        final ConfHost slowProxy=createProxy("slow");
+        final List<String> cmdSlowSsh=createSsh(tmp.newFile("slow-starts"), 3);
+        ConfHost fastProxy=createProxy("fast");
+        
+        final CountDownLatch slowOpened=new CountDownLatch(1);
+        Thread slowHost=new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    manager.acquire(slowProxy, cmdSlowSsh);
+                    slowOpened.countDown();
+                }
+                catch (Exception ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+        slowHost.start();
+        Thread.sleep(300);
+        
+        long start=System.currentTimeMillis();
+        manager.acquire(fastProxy, createSsh(tmp.newFile("fast-starts"), 0));
+        manager.release(fastProxy);
+        assertTrue("Fast proxy waited for the slow one", System.currentTimeMillis()-start<2000);
+        assertEquals(1, slowOpened.getCount());
+        
+        slowHost.join();
+        assertEquals(0, slowOpened.getCount());
+        assertTrue(manager.getControlSocket(slowProxy).exists());
+        manager.closeAll();
+    }
+    
+    protected static ConfHost createProxy(String name)
+    {
+        ConfHost proxy=new ConfHost();
+        proxy.host=name;
+        proxy.remoteAddress=name+".example.com";
+        return proxy;
+    }
+    
+    /**
+     * @return a stand-in for ssh that logs its start, creates the control socket (-S) after delaySeconds and runs
+     *         until it is killed
+     */
+    protected static List<String> createSsh(File starts, int delaySeconds)
+    {
+        String script="echo start >> "+starts.getAbsolutePath()+"; sleep "+delaySeconds+"; "
+                + "while [ $# -gt 0 ]; do if [ \"$1\" = -S ]; then touch \"$2\"; fi; shift; done; exec sleep 60";
+        return Arrays.asList("/bin/sh", "-c", script, "ssh");
+    }
+}
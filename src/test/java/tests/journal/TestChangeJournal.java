@@ -0,0 +1,251 @@
+package tests.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.github.rsyncbackup.ChangeJournal;
+import org.github.rsyncbackup.RSyncBackup;
+import org.github.rsyncbackup.impl.BackupConf;
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.impl.BackupConf.ConfVolume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestChangeJournal
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    protected File clientDir;
+    protected File volumeDir;
+    protected File rsyncLog;
+    
+    /**
+     * Installs the client scripts. The client's rsync is a stand-in that logs its arguments
+     */
+    @Before
+    public void installClient() throws Exception
+    {
+        clientDir=tmp.newFolder("client");
+        volumeDir=new File(clientDir,"volumes/ROOT");
+        volumeDir.mkdirs();
+        rsyncLog=new File(clientDir,"rsync.log");
+        for (String script: new String[] {"backup_shell.sh", "list_changes.sh"})
+        {
+            Files.copy(new File("client",script).toPath(), new File(clientDir,script).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setPosixFilePermissions(new File(clientDir,script).toPath(), PosixFilePermissions.fromString("rwx------"));
+        }
+        File rsync=writeScript("rsync.sh", "#!/bin/sh\necho \"$*\" >> "+rsyncLog.getAbsolutePath()+"\n");
+        Files.write(new File(clientDir,"backup.conf").toPath(), ("BACKUP_DIR="+clientDir.getAbsolutePath()+"\n"
+                +"VOLUMES_DIR="+new File(clientDir,"volumes").getAbsolutePath()+"\n"
+                +"CMD_RSYNC="+rsync.getAbsolutePath()+"\n"
+                +"CMD_NICE=\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void testChangeListTransferUsesFixedFlags() throws Exception
+    {
+        String volumes=new File(clientDir,"volumes").getAbsolutePath();
+        runClient("rsync --server --sender -vlogDtpRSe.iLsfx --numeric-ids --files-from=- --from0 --ignore-missing-args . /ROOT/");
+        runClient("rsync --server --sender -vlogDtprRSe.iLsfx --numeric-ids --files-from=- --from0 --ignore-missing-args . /ROOT/");
+        // flags that the server must not be able to pass to the client's rsync
+        runClient("rsync --server --sender -vlogDtpRSe.iLsf --files-from=- --from0 -M--remove-source-files --remove-source-files . /ROOT/");
+        
+        List<String> calls=Files.readAllLines(rsyncLog.toPath(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(
+                "--server --sender -vlogDtpRSe.iLsf --numeric-ids --files-from=- --from0 --ignore-missing-args . "+volumes+"/ROOT/",
+                "--server --sender -vlogDtprRSe.iLsf --numeric-ids --files-from=- --from0 --ignore-missing-args . "+volumes+"/ROOT/",
+                "--server --sender -vlogDtpRSe.iLsf --numeric-ids --files-from=- --from0 . "+volumes+"/ROOT/"), calls);
+    }
+    
+    @Test
+    public void testChangedEntriesAreListed() throws Exception
+    {
+        write(new File(volumeDir,"dir/a.txt"), "a");
+        write(new File(volumeDir,"dir/b.txt"), "b");
+        long since=System.currentTimeMillis()/1000-60;
+        
+        List<String> records=runClient("CHANGES_ROOT "+since+" 100");
+        assertTrue(records.get(0).startsWith("T"));
+        assertTrue(Long.parseLong(records.get(0).substring(1))>since);
+        assertEquals("E", records.get(records.size()-1));
+        assertTrue(records.contains("Fdir/a.txt"));
+        assertTrue(records.contains("Fdir/b.txt"));
+        int dir=records.indexOf("Ddir");
+        assertTrue(dir>0);
+        assertTrue(records.subList(dir+1, dir+3).containsAll(Arrays.asList("Ca.txt", "Cb.txt")));
+        
+        // too many changes
+        records=runClient("CHANGES_ROOT "+since+" 2");
+        assertTrue(records.contains("O"));
+        
+        // nothing changed since then
+        records=runClient("CHANGES_ROOT "+(since+3600)+" 100");
+        assertEquals(2, records.size());
+        
+        // only the client's time
+        records=runClient("CHANGES_ROOT -1 0");
+        assertEquals(2, records.size());
+        
+        // the volume name is sanitized
+        records=runClient("CHANGES_..%2F.. "+since+" 100");
+        assertFalse(records.contains("E"));
+    }
+    
+    @Test
+    public void testBackupFromChangeList() throws Exception
+    {
+        write(new File(volumeDir,"unchanged.txt"), "unchanged");
+        write(new File(volumeDir,"changed.txt"), "old");
+        write(new File(volumeDir,"dir/deleted.txt"), "deleted");
+        
+        File workDir=tmp.newFolder("server");
+        RSyncBackup backup=createServer(workDir);
+        ConfHost host=BackupConf.read(new File(workDir,"conf/backup.conf")).getForHost("client");
+        ConfVolume volume=new ConfVolume("ROOT");
+        volume.changeJournal=true;
+        ChangeJournal journal=new ChangeJournal(backup, host, new HashMap<String,String>());
+        
+        // the first backup is a full scan
+        File backup1=new File(workDir,"backup1");
+        backup1.mkdirs();
+        assertEquals(0, journal.backupVolume(volume, null, backup1));
+        assertEquals("old", read(new File(backup1,"ROOT/changed.txt")));
+        Properties state=readState(new File(backup1,".journal-ROOT"));
+        assertTrue(state.getProperty("since")!=null);
+        
+        write(new File(volumeDir,"changed.txt"), "new");
+        Files.delete(new File(volumeDir,"dir/deleted.txt").toPath());
+        write(new File(volumeDir,"new/file.txt"), "created");
+        
+        // the next one transfers the listed entries into a hardlinked clone of the previous backup
+        File backup2=new File(workDir,"backup2");
+        backup2.mkdirs();
+        assertEquals(0, journal.backupVolume(volume, backup1, backup2));
+        assertEquals("unchanged", read(new File(backup2,"ROOT/unchanged.txt")));
+        assertEquals("new", read(new File(backup2,"ROOT/changed.txt")));
+        assertEquals("old", read(new File(backup1,"ROOT/changed.txt")));
+        assertEquals("created", read(new File(backup2,"ROOT/new/file.txt")));
+        assertTrue(new File(backup2,"ROOT/dir").isDirectory());
+        assertFalse(new File(backup2,"ROOT/dir/deleted.txt").exists());
+        assertEquals(state.getProperty("fullScan"), readState(new File(backup2,".journal-ROOT")).getProperty("fullScan"));
+        
+        List<String> calls=Files.readAllLines(new File(workDir,"rsync.log").toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, calls.size());
+        assertFalse(calls.get(0).contains("--files-from"));
+        assertTrue(calls.get(1).contains("--files-from"));
+        assertTrue(calls.get(2).contains(" -r "));
+    }
+    
+    /**
+     * Configures a server whose ssh runs the client's backup_shell.sh. Its rsync is a stand-in that copies the
+     * listed entries (--files-from) or the whole volume with cp
+     */
+    protected RSyncBackup createServer(File workDir) throws Exception
+    {
+        File confDir=new File(workDir,"conf");
+        confDir.mkdirs();
+        Files.write(new File(confDir,"backup_ssh_private_key").toPath(), new byte[0]);
+        File ssh=writeScript("ssh.sh", "#!/bin/bash\n"
+                +"eval SSH_ORIGINAL_COMMAND=\\${$#}\n"
+                +"export SSH_ORIGINAL_COMMAND\n"
+                +"exec "+new File(clientDir,"backup_shell.sh").getAbsolutePath()+"\n");
+        File rsync=writeScript("server_rsync.sh", "#!/bin/bash\n"
+                +"echo \"$*\" >> "+new File(workDir,"rsync.log").getAbsolutePath()+"\n"
+                +"for ARG in \"$@\"; do\n"
+                +"  case \"$ARG\" in\n"
+                +"    --files-from=*) LIST=\"${ARG#--files-from=}\" ;;\n"
+                +"  esac\n"
+                +"  DEST=\"$ARG\"\n"
+                +"done\n"
+                +"mkdir -p \"$DEST\"\n"
+                +"cd "+volumeDir.getAbsolutePath()+" || exit 1\n"
+                +"if [ -n \"$LIST\" ]; then\n"
+                +"  xargs -0 -r cp -a --parents -t \"$DEST\" < \"$LIST\"\n"
+                +"else\n"
+                +"  cp -a . \"$DEST\"\n"
+                +"fi\n");
+        String yaml="defaults:\n"
+                +"  storageDir: "+tmp.newFolder("hosts").getAbsolutePath()+"\n"
+                +"  cmdSsh: "+ssh.getAbsolutePath()+"\n"
+                +"  cmdRsync: "+rsync.getAbsolutePath()+"\n"
+                +"  cmdNice: /usr/bin/nice -n 0\n"
+                +"hosts:\n"
+                +" - host: client\n";
+        Files.write(new File(confDir,"backup.conf").toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+        return new RSyncBackup(workDir);
+    }
+    
+    /**
+     * Runs backup_shell.sh for the given command
+     * @return the NUL separated records of its output
+     */
+    protected List<String> runClient(String command) throws Exception
+    {
+        ProcessBuilder pb=new ProcessBuilder(new File(clientDir,"backup_shell.sh").getAbsolutePath());
+        pb.environment().put("SSH_ORIGINAL_COMMAND", command);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process=pb.start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        try (InputStream in=process.getInputStream())
+        {
+            byte[] buffer=new byte[4096];
+            int read;
+            while ((read=in.read(buffer))>0) out.write(buffer, 0, read);
+        }
+        process.waitFor();
+        
+        List<String> records=new ArrayList<>();
+        for (String record: new String(out.toByteArray(),StandardCharsets.UTF_8).split("\0"))
+        {
+            if (!record.isEmpty()) records.add(record);
+        }
+        return records;
+    }
+    
+    protected File writeScript(String name, String content) throws Exception
+    {
+        File script=new File(tmp.getRoot(),name);
+        Files.write(script.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(script.toPath(), PosixFilePermissions.fromString("rwx------"));
+        return script;
+    }
+    
+    protected static Properties readState(File stateFile) throws Exception
+    {
+        Properties state=new Properties();
+        try (InputStream in=Files.newInputStream(stateFile.toPath()))
+        {
+            state.load(in);
+        }
+        return state;
+    }
+    
+    protected static void write(File file, String content) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    protected static String read(File file) throws Exception
+    {
+        return new String(Files.readAllBytes(file.toPath()),StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,197 @@
+package tests.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A client of the load test: a file tree in {dir}/volumes/ROOT and a copy of the client scripts, configured to serve
+ * this tree (see backup_shell.sh). The tree is generated and changed from a seeded Random, so runs are repeatable.
+ */
+public class SyntheticClient
+{
+    protected final String name;
+    protected final File dir;
+    protected final File volumeDir;
+    protected final Random random;
+    protected final List<File> files=new ArrayList<>();
+    protected int nextFileNumber;
+    
+    public SyntheticClient(File clientsDir, String name, long seed)
+    {
+        this.name=name;
+        this.dir=new File(clientsDir,name);
+        this.volumeDir=new File(dir,"volumes/ROOT");
+        this.random=new Random(seed);
+    }
+    
+    /**
+     * Installs the client scripts from the given directory
+     */
+    public void install(File clientScriptsDir) throws IOException
+    {
+        volumeDir.mkdirs();
+        for (String script: new String[] {"backup_shell.sh", "list_changes.sh"})
+        {
+            Files.copy(new File(clientScriptsDir,script).toPath(), new File(dir,script).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        writeScript(new File(dir,"pre_backup.sh"), "#!/bin/bash\nexit 0\n");
+        Files.write(new File(dir,"backup.conf").toPath(), ("BACKUP_DIR="+dir.getAbsolutePath()+"\n"
+                +"VOLUMES_DIR="+new File(dir,"volumes").getAbsolutePath()+"\n"
+                +"CMD_NICE=\n").getBytes(StandardCharsets.UTF_8));
+        for (String script: new String[] {"backup_shell.sh", "list_changes.sh"})
+        {
+            Files.setPosixFilePermissions(new File(dir,script).toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+        }
+    }
+    
+    /**
+     * Creates the initial tree
+     * @param fileCount number of files
+     * @param filesPerDir files per directory (directories are nested two levels deep)
+     * @param fileSizeKB average file size, the actual sizes are exponentially distributed
+     */
+    public void createTree(int fileCount, int filesPerDir, int fileSizeKB) throws IOException
+    {
+        for (int i=0;i<fileCount;i++)
+        {
+            int dirNumber=i/filesPerDir;
+            File fileDir=new File(volumeDir,"d"+(dirNumber/filesPerDir)+"/d"+dirNumber);
+            fileDir.mkdirs();
+            createFile(new File(fileDir,"f"+(nextFileNumber++)), fileSizeKB);
+        }
+    }
+    
+    /**
+     * Changes the tree like one day of usage
+     * @return the number of bytes written
+     */
+    public long churn(Churn churn, int fileSizeKB) throws IOException
+    {
+        long written=0;
+        int count=files.size();
+        
+        // modified in place (e.g. databases): one block at a random position
+        for (int i=0;i<count*churn.changePercent/100;i++)
+        {
+            File file=files.get(random.nextInt(files.size()));
+            try (RandomAccessFile raf=new RandomAccessFile(file,"rw"))
+            {
+                byte[] block=randomBytes(4096);
+                long position=(raf.length()>block.length)?(long) (random.nextDouble()*(raf.length()-block.length)):0;
+                raf.seek(position);
+                raf.write(block);
+                written+=block.length;
+            }
+        }
+        // appended (e.g. logs)
+        for (int i=0;i<count*churn.appendPercent/100;i++)
+        {
+            File file=files.get(random.nextInt(files.size()));
+            byte[] data=randomBytes((int) Math.max(1, file.length()/10));
+            Files.write(file.toPath(), data, StandardOpenOption.APPEND);
+            written+=data.length;
+        }
+        // new files next to existing ones
+        for (int i=0;i<count*churn.addPercent/100;i++)
+        {
+            File neighbour=files.get(random.nextInt(files.size()));
+            written+=createFile(new File(neighbour.getParentFile(),"f"+(nextFileNumber++)), fileSizeKB);
+        }
+        for (int i=0;i<count*churn.deletePercent/100 && files.size()>1;i++)
+        {
+            files.remove(random.nextInt(files.size())).delete();
+        }
+        return written;
+    }
+    
+    public String getName()
+    {
+        return name;
+    }
+    
+    public int getFileCount()
+    {
+        return files.size();
+    }
+    
+    public long getVolumeBytes()
+    {
+        long bytes=0;
+        for (File file: files)
+        {
+            bytes+=file.length();
+        }
+        return bytes;
+    }
+    
+    protected long createFile(File file, int averageSizeKB) throws IOException
+    {
+        int size=(int) Math.min(Integer.MAX_VALUE/2, -Math.log(1-random.nextDouble())*averageSizeKB*1024);
+        Files.write(file.toPath(), randomBytes(size));
+        files.add(file);
+        return size;
+    }
+    
+    protected byte[] randomBytes(int size)
+    {
+        byte[] data=new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+    
+    protected static void writeScript(File file, String content) throws IOException
+    {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+    
+    /**
+     * Daily changes, in percent of the files
+     */
+    public static class Churn
+    {
+        public int changePercent=5;
+        public int appendPercent=5;
+        public int addPercent=2;
+        public int deletePercent=1;
+        
+        /**
+         * @param spec e.g. "change=5,append=5,add=2,delete=1", missing values keep their default
+         */
+        public static Churn parse(String spec)
+        {
+            Churn churn=new Churn();
+            if (spec==null || spec.trim().isEmpty()) return churn;
+            for (String part: spec.split(","))
+            {
+                String[] keyValue=part.trim().split("=",2);
+                if (keyValue.length!=2) throw new IllegalArgumentException("Invalid churn: "+part);
+                int value=Integer.parseInt(keyValue[1].trim());
+                switch (keyValue[0].trim())
+                {
+                    case "change": churn.changePercent=value; break;
+                    case "append": churn.appendPercent=value; break;
+                    case "add": churn.addPercent=value; break;
+                    case "delete": churn.deletePercent=value; break;
+                    default: throw new IllegalArgumentException("Invalid churn: "+part);
+                }
+            }
+            return churn;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "change="+changePercent+",append="+appendPercent+",add="+addPercent+",delete="+deletePercent;
+        }
+    }
+}
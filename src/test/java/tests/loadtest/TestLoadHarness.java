@@ -0,0 +1,177 @@
+package tests.loadtest;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.github.rsyncbackup.RSyncBackup;
+import org.github.rsyncbackup.impl.BackupConf;
+import org.github.rsyncbackup.impl.BackupScheduler;
+import org.github.rsyncbackup.impl.HostDir;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * End-to-end load test: N synthetic clients on this machine are backed up over several simulated nights by the real
+ * BackupScheduler and RSyncBackup. ssh is replaced by a local stand-in that runs the client's backup_shell.sh, so
+ * rsync, PRE_BACKUP etc. run like in production but without network.
+ *
+ * Only runs with -Dloadtest=true, e.g.
+ *   mvn test -Dtest=TestLoadHarness -Dloadtest=true -Dloadtest.clients=20 -Dloadtest.parallel=8
+ *
+ * Properties (defaults in brackets): loadtest.clients [8], loadtest.nights [3], loadtest.parallel [4],
+ * loadtest.files per client [1000], loadtest.filesPerDir [50], loadtest.fileSizeKB average [32],
+ * loadtest.churn [change=5,append=5,add=2,delete=1], loadtest.dir work dir [temporary]
+ *
+ * The report (throughput, makespan and disk usage per night) is logged and written to target/loadtest-report.txt.
+ */
+public class TestLoadHarness
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testSimulatedNights() throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("loadtest"));
+        Assume.assumeTrue(new File("/usr/bin/rsync").canExecute());
+        
+        int clientCount=Integer.getInteger("loadtest.clients", 8);
+        int nights=Integer.getInteger("loadtest.nights", 3);
+        int parallel=Integer.getInteger("loadtest.parallel", 4);
+        int fileCount=Integer.getInteger("loadtest.files", 1000);
+        int filesPerDir=Integer.getInteger("loadtest.filesPerDir", 50);
+        int fileSizeKB=Integer.getInteger("loadtest.fileSizeKB", 32);
+        SyntheticClient.Churn churn=SyntheticClient.Churn.parse(System.getProperty("loadtest.churn"));
+        File workDir=(System.getProperty("loadtest.dir")!=null)?new File(System.getProperty("loadtest.dir")).getAbsoluteFile():tmp.getRoot();
+        
+        File clientsDir=new File(workDir,"clients");
+        File storageDir=new File(workDir,"hosts");
+        File confDir=new File(workDir,"conf");
+        confDir.mkdirs();
+        
+        List<SyntheticClient> clients=new ArrayList<>();
+        for (int i=1;i<=clientCount;i++)
+        {
+            SyntheticClient client=new SyntheticClient(clientsDir, "client"+i, i);
+            client.install(new File("client").getAbsoluteFile());
+            client.createTree(fileCount, filesPerDir, fileSizeKB);
+            new File(storageDir,client.getName()).mkdirs();
+            clients.add(client);
+        }
+        
+        writeServerConf(workDir, confDir, storageDir, clients);
+        RSyncBackup backup=new RSyncBackup(workDir);
+        BackupConf conf=BackupConf.read(new File(confDir,"backup.conf"));
+        
+        List<String> report=new ArrayList<>();
+        report.add(String.format("%d clients, %d files of %d KB each, %d parallel, churn %s", clientCount, fileCount, fileSizeKB, parallel, churn));
+        report.add("night  source MB  changed MB  makespan s  source MB/s  stored MB  growth MB  % of full copies");
+        
+        long changedBytes=0;
+        long storedBytes=0;
+        for (int night=1;night<=nights;night++)
+        {
+            if (night>1)
+            {
+                changedBytes=0;
+                for (SyntheticClient client: clients)
+                {
+                    changedBytes+=client.churn(churn, fileSizeKB);
+                }
+                Thread.sleep(1000); // backup dirs have a resolution of 1 second
+            }
+            long sourceBytes=0;
+            for (SyntheticClient client: clients)
+            {
+                sourceBytes+=client.getVolumeBytes();
+            }
+            
+            long start=System.currentTimeMillis();
+            new BackupScheduler(parallel, conf.getAllHosts(), backup).executeBackups();
+            long makespan=System.currentTimeMillis()-start;
+            
+            long usage=diskUsage(storageDir);
+            report.add(String.format("%5d  %9.1f  %10.1f  %10.1f  %11.1f  %9.1f  %9.1f  %12.1f", night, mb(sourceBytes), mb(changedBytes),
+                    makespan/1000.0, mb(sourceBytes)*1000/Math.max(1, makespan), mb(usage), mb(usage-storedBytes),
+                    usage*100.0/Math.max(1, sourceBytes*night)));
+            storedBytes=usage;
+            
+            for (SyntheticClient client: clients)
+            {
+                assertEquals("Backups of "+client.getName(), night, HostDir.listBackups(new File(storageDir,client.getName())).size());
+            }
+        }
+        
+        StringBuilder text=new StringBuilder();
+        for (String line: report)
+        {
+            RSyncBackup.LOG.info("LOADTEST {}",line);
+            text.append(line).append('\n');
+        }
+        new File("target").mkdirs();
+        Files.write(new File("target/loadtest-report.txt").toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Writes the server config and the ssh stand-in, which passes the remote command to the client's backup_shell.sh
+     */
+    protected void writeServerConf(File workDir, File confDir, File storageDir, List<SyntheticClient> clients) throws Exception
+    {
+        File localSsh=new File(workDir,"local_ssh.sh");
+        SyntheticClient.writeScript(localSsh, "#!/bin/bash\n"
+                +"while [ $# -gt 0 ]; do\n"
+                +"  case \"$1\" in\n"
+                +"    -[bcDEeFIiJLlmOoPpQRSWw]) shift 2 ;;\n"
+                +"    -*) shift ;;\n"
+                +"    *) break ;;\n"
+                +"  esac\n"
+                +"done\n"
+                +"HOST=\"${1#*@}\"\n"
+                +"shift\n"
+                +"export SSH_ORIGINAL_COMMAND=\"$*\"\n"
+                +"exec \""+new File(workDir,"clients").getAbsolutePath()+"/${HOST}/backup_shell.sh\"\n");
+        
+        Files.write(new File(confDir,"backup_ssh_private_key").toPath(), new byte[0]);
+        
+        StringBuilder yaml=new StringBuilder();
+        yaml.append("defaults:\n");
+        yaml.append("  storageDir: ").append(storageDir.getAbsolutePath()).append('\n');
+        yaml.append("  cmdSsh: ").append(localSsh.getAbsolutePath()).append('\n');
+        yaml.append("  cmdNice: /usr/bin/nice -n 0\n");
+        yaml.append("  retryAttempts: 0\n");
+        yaml.append("hosts:\n");
+        for (SyntheticClient client: clients)
+        {
+            yaml.append(" - host: ").append(client.getName()).append('\n');
+        }
+        Files.write(new File(confDir,"backup.conf").toPath(), yaml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * @return the bytes used by the dir, hard linked files are counted once
+     */
+    protected static long diskUsage(File dir) throws Exception
+    {
+        Process proc=new ProcessBuilder("/usr/bin/du", "-s", "-B1", dir.getAbsolutePath()).start();
+        try (BufferedReader in=new BufferedReader(new InputStreamReader(proc.getInputStream())))
+        {
+            String line=in.readLine();
+            proc.waitFor();
+            return Long.parseLong(line.split("\\s+")[0]);
+        }
+    }
+    
+    protected static double mb(long bytes)
+    {
+        return bytes/1024.0/1024;
+    }
+}
@@ -0,0 +1,71 @@
+package tests.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.github.rsyncbackup.logging.LogContext;
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusUtil;
+
+public class TestLogContext
+{
+    @After
+    public void clearContext()
+    {
+        LogContext.setHost(null);
+    }
+    
+    @Test
+    public void testContextIsPassedToThreadPool() throws Exception
+    {
+        Callable<String> getHost=new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                return LogContext.getHost();
+            }
+        };
+        
+        ExecutorService executor=Executors.newSingleThreadExecutor();
+        try
+        {
+            LogContext.setHost("host1");
+            assertEquals("host1", executor.submit(LogContext.wrap(getHost)).get());
+            
+            LogContext.setHost("host2");
+            assertEquals("host2", executor.submit(LogContext.wrap(getHost)).get());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testExampleConfigIsValid() throws Exception
+    {
+        LoggerContext context=new LoggerContext();
+        JoranConfigurator configurator=new JoranConfigurator();
+        configurator.setContext(context);
+        configurator.doConfigure(new File("conf.example/logback.xml"));
+        try
+        {
+            assertTrue(new StatusUtil(context).getHighestLevel(0)<Status.WARN);
+        }
+        finally
+        {
+            context.stop();
+        }
+    }
+}
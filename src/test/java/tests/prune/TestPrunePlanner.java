@@ -0,0 +1,143 @@
+package tests.prune;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.keep.IBackupKeepStrategy;
+import org.github.rsyncbackup.prune.InodeRefCounts;
+import org.github.rsyncbackup.prune.PrunePlanner;
+import org.github.rsyncbackup.prune.PrunePlanner.PrunePlan;
+import org.joda.time.LocalDateTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestPrunePlanner
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testRefCountsGrow() throws Exception
+    {
+        InodeRefCounts refCounts=new InodeRefCounts(16);
+        for (long inode=0;inode<100000;inode++)
+        {
+            refCounts.addLink(inode, 2, 4096);
+        }
+        for (long inode=0;inode<100000;inode+=2)
+        {
+            refCounts.addLink(inode, 2, 4096);
+        }
+        assertEquals(100000, refCounts.size());
+        assertEquals(2, refCounts.getLinks(0));
+        assertEquals(1, refCounts.getLinks(99999));
+        assertEquals(0, refCounts.getLinks(100000));
+        assertEquals(50000*4096L, refCounts.getReclaimableBytes());
+        assertEquals(100000*4096L, refCounts.getTotalBytes());
+    }
+    
+    @Test
+    public void testOnlyFilesWithoutLinksToKeptBackupsAreReclaimable() throws Exception
+    {
+        ConfHost host=new ConfHost();
+        host.host="host1";
+        host.hostStorageDir=tmp.newFolder("host1").getPath();
+        host.backupKeepStrategy=new IBackupKeepStrategy()
+        {
+            @Override
+            public List<LocalDateTime> getBackupsToKeep(LocalDateTime currentDate, List<LocalDateTime> availableBackups)
+            {
+                return Collections.singletonList(Collections.max(availableBackups));
+            }
+        };
+        
+        File old1=new File(host.hostStorageDir,"backup-2014-03-01-22:00:00/ROOT");
+        File old2=new File(host.hostStorageDir,"backup-2014-03-02-22:00:00/ROOT");
+        File latest=new File(host.hostStorageDir,"backup-2014-03-03-22:00:00/ROOT");
+        for (File dir: Arrays.asList(old1, old2, latest))
+        {
+            dir.mkdirs();
+        }
+        // only in the old backups, still in the latest one, only in old1
+        writeFile(new File(old1,"deleted"), 64*1024);
+        Files.createLink(new File(old2,"deleted").toPath(), new File(old1,"deleted").toPath());
+        writeFile(new File(old1,"unchanged"), 32*1024);
+        Files.createLink(new File(old2,"unchanged").toPath(), new File(old1,"unchanged").toPath());
+        Files.createLink(new File(latest,"unchanged").toPath(), new File(old1,"unchanged").toPath());
+        writeFile(new File(old1,"changed"), 16*1024);
+        
+        PrunePlan plan=new PrunePlanner(host).plan(new LocalDateTime());
+        assertEquals(2, plan.toDelete.size());
+        assertEquals(1, plan.keptCount);
+        assertEquals(3, plan.inodes);
+        assertTrue(plan.otherBytes>0); // directories
+        
+        // the allocated size depends on the file system, compare with the same files unlinked from the latest backup
+        long reclaimable=plan.reclaimableFileBytes;
+        long shared=plan.sharedFileBytes;
+        assertTrue(reclaimable>=80*1024);
+        assertTrue(shared>=32*1024);
+        
+        PrunePlan all=new PrunePlan(host);
+        PrunePlanner.computeReclaimable(Arrays.asList(old1, old2, latest), all);
+        assertEquals(reclaimable+shared, all.reclaimableFileBytes);
+        assertEquals(0, all.sharedFileBytes);
+    }
+    
+    @Test
+    public void testBackupOnlyKeptAsUnchangedRunIsRenamed() throws Exception
+    {
+        LocalDateTime backup1=new LocalDateTime(2014,3,1,22,0);
+        LocalDateTime run1=new LocalDateTime(2014,3,1,23,0);
+        LocalDateTime backup2=new LocalDateTime(2014,3,2,22,0);
+        LocalDateTime run2=new LocalDateTime(2014,3,2,23,0);
+        Map<LocalDateTime,LocalDateTime> runs=new TreeMap<>();
+        runs.put(run1, backup1);
+        runs.put(run2, backup2);
+        
+        // backup2 and its run are kept
+        PrunePlan plan=new PrunePlan(null);
+        PrunePlanner.applyKeepStrategy(keepNewest(2), Arrays.asList(backup1, backup2), runs, new LocalDateTime(), plan);
+        assertEquals(Arrays.asList(backup1), plan.toDelete);
+        assertTrue(plan.renames.isEmpty());
+        assertEquals(Collections.singletonMap(run2, backup2), plan.runs);
+        
+        // only the run is kept, the backup takes its time
+        plan=new PrunePlan(null);
+        PrunePlanner.applyKeepStrategy(keepNewest(1), Arrays.asList(backup1, backup2), runs, new LocalDateTime(), plan);
+        assertEquals(Arrays.asList(backup1), plan.toDelete);
+        assertEquals(Collections.singletonMap(backup2, run2), plan.renames);
+        assertTrue(plan.runs.isEmpty());
+        assertEquals(1, plan.keptCount);
+    }
+    
+    protected static IBackupKeepStrategy keepNewest(final int count)
+    {
+        return new IBackupKeepStrategy()
+        {
+            @Override
+            public List<LocalDateTime> getBackupsToKeep(LocalDateTime currentDate, List<LocalDateTime> availableBackups)
+            {
+                return availableBackups.subList(Math.max(0, availableBackups.size()-count), availableBackups.size());
+            }
+        };
+    }
+    
+    protected static void writeFile(File file, int size) throws Exception
+    {
+        byte[] data=new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(file.toPath(), data);
+    }
+}
@@ -0,0 +1,224 @@
+package tests.replicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Random;
+
+import org.github.rsyncbackup.chunks.ChunkStore;
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.impl.RunCatalog;
+import org.github.rsyncbackup.replicate.SnapshotReplicator;
+import org.github.rsyncbackup.replicate.SnapshotReplicator.ReplicationResult;
+import org.joda.time.LocalDateTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSnapshotReplicator
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testUnchangedFilesAreLinkedOnTheReplica() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File replicaDir=new File(tmp.getRoot(),"replica/host");
+        File backup1=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        File backup2=new File(hostDir,"backup-2014-03-02-01:00:00/ROOT");
+        backup1.mkdirs();
+        backup2.mkdirs();
+        
+        write(new File(backup1,"dir/shared.txt"), "unchanged content");
+        write(new File(backup1,"changed.txt"), "old content");
+        new File(backup2,"dir").mkdirs();
+        Files.createLink(new File(backup2,"dir/shared.txt").toPath(), new File(backup1,"dir/shared.txt").toPath());
+        write(new File(backup2,"changed.txt"), "new content");
+        
+        ReplicationResult result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertEquals(2, result.backups);
+        assertEquals(3, result.copiedFiles);
+        assertEquals(1, result.linkedFiles);
+        
+        File replica1=new File(replicaDir,"backup-2014-03-01-01:00:00/ROOT");
+        File replica2=new File(replicaDir,"backup-2014-03-02-01:00:00/ROOT");
+        assertEquals(inode(new File(replica1,"dir/shared.txt")), inode(new File(replica2,"dir/shared.txt")));
+        assertNotEquals(inode(new File(replica1,"changed.txt")), inode(new File(replica2,"changed.txt")));
+        assertEquals("new content", read(new File(replica2,"changed.txt")));
+        assertEquals(new File(backup2,"changed.txt").lastModified(), new File(replica2,"changed.txt").lastModified());
+        assertTrue(new File(replicaDir,SnapshotReplicator.STATE_FILE_NAME).isFile());
+        
+        // nothing new
+        result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertEquals(0, result.backups);
+        
+        // the next backup is based on the latest replica
+        File backup3=new File(hostDir,"backup-2014-03-03-01:00:00/ROOT");
+        new File(backup3,"dir").mkdirs();
+        Files.createLink(new File(backup3,"dir/shared.txt").toPath(), new File(backup1,"dir/shared.txt").toPath());
+        Files.createLink(new File(backup3,"changed.txt").toPath(), new File(backup2,"changed.txt").toPath());
+        
+        result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertEquals(1, result.backups);
+        assertEquals(0, result.copiedFiles);
+        assertEquals(2, result.linkedFiles);
+        assertEquals(inode(new File(replica2,"changed.txt")), inode(new File(replicaDir,"backup-2014-03-03-01:00:00/ROOT/changed.txt")));
+    }
+    
+    @Test
+    public void testInterruptedReplicationIsResumed() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File replicaDir=new File(tmp.getRoot(),"replica/host");
+        File backup=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        backup.mkdirs();
+        write(new File(backup,"a.txt"), "a");
+        write(new File(backup,"b.txt"), "b");
+        
+        // left over by an interrupted run: a.txt is complete, b.txt is truncated
+        File partial=new File(replicaDir,".partial-backup-2014-03-01-01:00:00/ROOT");
+        partial.mkdirs();
+        Files.copy(new File(backup,"a.txt").toPath(), new File(partial,"a.txt").toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        write(new File(partial,"b.txt"), "");
+        
+        ReplicationResult result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertEquals(1, result.backups);
+        assertEquals(1, result.copiedFiles);
+        assertEquals("b", read(new File(replicaDir,"backup-2014-03-01-01:00:00/ROOT/b.txt")));
+        assertFalse(new File(replicaDir,".partial-backup-2014-03-01-01:00:00").exists());
+    }
+    
+    @Test
+    public void testHardlinksWithinABackupAreKeptAcrossSortedRuns() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File replicaDir=new File(tmp.getRoot(),"replica/host");
+        File backup=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        write(new File(backup,"a/one.txt"), "one");
+        write(new File(backup,"b/two.txt"), "two");
+        new File(backup,"c").mkdirs();
+        Files.createLink(new File(backup,"c/one.txt").toPath(), new File(backup,"a/one.txt").toPath());
+        Files.createLink(new File(backup,"c/two.txt").toPath(), new File(backup,"b/two.txt").toPath());
+        Files.createLink(new File(backup,"d.txt").toPath(), new File(backup,"a/one.txt").toPath());
+        write(new File(backup,"single.txt"), "single");
+        
+        // two entries per run: the names of an inode are spread over several runs
+        ReplicationResult result=new SnapshotReplicator(new HostDir(hostDir), replicaDir, 2).replicate();
+        assertEquals(3, result.copiedFiles);
+        assertEquals(3, result.linkedFiles);
+        
+        File replica=new File(replicaDir,"backup-2014-03-01-01:00:00/ROOT");
+        assertEquals(inode(new File(replica,"a/one.txt")), inode(new File(replica,"c/one.txt")));
+        assertEquals(inode(new File(replica,"a/one.txt")), inode(new File(replica,"d.txt")));
+        assertEquals(inode(new File(replica,"b/two.txt")), inode(new File(replica,"c/two.txt")));
+        assertNotEquals(inode(new File(replica,"a/one.txt")), inode(new File(replica,"b/two.txt")));
+        assertEquals("two", read(new File(replica,"c/two.txt")));
+        for (String name: replicaDir.list()) assertFalse("Run file left: "+name, name.startsWith(".partial-"));
+    }
+    
+    @Test
+    public void testChunkStoreIsReplicated() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File replicaDir=new File(tmp.getRoot(),"replica/host");
+        File backup1=new File(hostDir,"backup-2014-03-01-01:00:00");
+        File backup2=new File(hostDir,"backup-2014-03-02-01:00:00");
+        byte[] image=new byte[300000];
+        new Random(1).nextBytes(image);
+        new File(backup1,"ROOT").mkdirs();
+        Files.write(new File(backup1,"ROOT/image.bin").toPath(), image);
+        write(new File(backup2,"ROOT/other.txt"), "other");
+        new ChunkStore(hostDir).chunkFiles(backup1, backup1, 1000);
+        assertTrue(new File(backup1,"ROOT/image.bin"+ChunkStore.MANIFEST_SUFFIX).isFile());
+        
+        ReplicationResult result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertTrue(result.copiedChunks>0);
+        
+        File manifest=new File(replicaDir,"backup-2014-03-01-01:00:00/ROOT/image.bin"+ChunkStore.MANIFEST_SUFFIX);
+        File restored=new File(tmp.getRoot(),"image.bin");
+        ChunkStore.forManifest(manifest).restore(manifest, restored);
+        assertArrayEquals(image, Files.readAllBytes(restored.toPath()));
+        
+        // chunks of pruned backups are removed from the replica
+        deleteRecursive(backup1);
+        assertEquals(1, new SnapshotReplicator(new HostDir(hostDir), replicaDir).prune());
+        assertEquals(0, countFiles(new File(replicaDir,ChunkStore.CHUNK_DIR_NAME)));
+    }
+    
+    @Test
+    public void testReplicasFollowTheRenamesOfThePrune() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File replicaDir=new File(tmp.getRoot(),"replica/host");
+        write(new File(hostDir,"backup-2014-03-01-01:00:00/ROOT/a.txt"), "a");
+        write(new File(hostDir,"backup-2014-03-02-01:00:00/ROOT/b.txt"), "b");
+        new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        long replicaInode=inode(new File(replicaDir,"backup-2014-03-01-01:00:00/ROOT/a.txt"));
+        
+        // the backup of 03-01 is renamed to a later run twice before the next replication
+        LocalDateTime backup=new LocalDateTime(2014,3,1,1,0,0);
+        LocalDateTime run1=new LocalDateTime(2014,3,1,9,0,0);
+        LocalDateTime run2=new LocalDateTime(2014,3,1,17,0,0);
+        HostDir source=new HostDir(hostDir);
+        RunCatalog catalog=new RunCatalog(hostDir);
+        assertTrue(source.getBackupDir(backup).renameTo(source.getBackupDir(run1)));
+        catalog.recordRenames(Collections.singletonMap(backup, run1), source.listBackups());
+        assertTrue(source.getBackupDir(run1).renameTo(source.getBackupDir(run2)));
+        catalog.recordRenames(Collections.singletonMap(run1, run2), source.listBackups());
+        catalog.record(new LocalDateTime(2014,3,2,9,0,0), new LocalDateTime(2014,3,2,1,0,0));
+        
+        ReplicationResult result=new SnapshotReplicator(new HostDir(hostDir), replicaDir).replicate();
+        assertEquals(1, result.renamedBackups);
+        assertEquals(0, result.backups);
+        File renamed=new File(replicaDir,"backup-2014-03-01-17:00:00/ROOT/a.txt");
+        assertEquals(replicaInode, inode(renamed));
+        assertFalse(new File(replicaDir,"backup-2014-03-01-01:00:00").exists());
+        assertEquals(read(new File(hostDir,RunCatalog.FILE_NAME)), read(new File(replicaDir,RunCatalog.FILE_NAME)));
+        
+        // the renamed replica is kept by the prune
+        assertEquals(0, new SnapshotReplicator(new HostDir(hostDir), replicaDir).prune());
+        assertTrue(renamed.isFile());
+    }
+    
+    protected static void deleteRecursive(File file)
+    {
+        File[] files=file.listFiles();
+        if (files!=null) for (File child: files) deleteRecursive(child);
+        file.delete();
+    }
+    
+    protected static int countFiles(File dir)
+    {
+        int count=0;
+        File[] files=dir.listFiles();
+        if (files!=null) for (File file: files) count+=file.isDirectory()?countFiles(file):1;
+        return count;
+    }
+    
+    protected static long inode(File file) throws Exception
+    {
+        return ((Number) Files.getAttribute(file.toPath(), "unix:ino", LinkOption.NOFOLLOW_LINKS)).longValue();
+    }
+    
+    protected static void write(File file, String content) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("utf-8"));
+    }
+    
+    protected static String read(File file) throws Exception
+    {
+        Path path=file.toPath();
+        return new String(Files.readAllBytes(path),"utf-8");
+    }
+}
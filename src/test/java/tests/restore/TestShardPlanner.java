@@ -0,0 +1,77 @@
+package tests.restore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.github.rsyncbackup.restore.ShardPlanner;
+import org.github.rsyncbackup.restore.ShardPlanner.Shard;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestShardPlanner
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testShardsAreBalancedAndComplete() throws Exception
+    {
+        File volume=tmp.newFolder("ROOT");
+        for (int i=0;i<20;i++)
+        {
+            createFile(new File(volume, "var/lib/images/disk"+i+".img"), 4*1024*1024);
+        }
+        for (int i=0;i<500;i++)
+        {
+            createFile(new File(volume, "home/user"+(i%10)+"/mail/"+i), 4096);
+        }
+        createFile(new File(volume, "etc/hostname"), 10);
+        
+        List<Shard> shards=new ShardPlanner(volume.toPath(), 4).plan();
+        assertEquals(4, shards.size());
+        
+        long total=0;
+        long max=0;
+        List<String> files=new ArrayList<>();
+        for (Shard shard: shards)
+        {
+            total+=shard.cost;
+            max=Math.max(max, shard.cost);
+            for (String path: shard.paths)
+            {
+                File file=new File(volume, path);
+                if (file.isDirectory())
+                {
+                    for (File child: FileUtils.listFiles(file, null, true)) files.add(volume.toPath().relativize(child.toPath()).toString());
+                }
+                else files.add(path);
+            }
+        }
+        
+        // every file exactly once
+        Collections.sort(files);
+        assertEquals(521, files.size());
+        assertEquals(521, new HashSet<>(files).size());
+        
+        // no shard is much larger than the average
+        assertTrue("max "+max+" total "+total, max<total/4*1.3);
+    }
+    
+    protected void createFile(File file, long size) throws Exception
+    {
+        file.getParentFile().mkdirs();
+        try (RandomAccessFile raf=new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(size);
+        }
+    }
+}
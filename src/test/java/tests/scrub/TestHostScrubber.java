@@ -0,0 +1,105 @@
+package tests.scrub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.github.rsyncbackup.impl.HostDir;
+import org.github.rsyncbackup.scrub.HostScrubber;
+import org.github.rsyncbackup.scrub.HostScrubber.ScrubResult;
+import org.github.rsyncbackup.scrub.IoBudget;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestHostScrubber
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+    
+    @Test
+    public void testHardlinkedFilesAreHashedOnceAndCorruptionIsReported() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File backup1=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        File backup2=new File(hostDir,"backup-2014-03-02-01:00:00/ROOT");
+        backup1.mkdirs();
+        backup2.mkdirs();
+        
+        File shared=new File(backup1,"shared.txt");
+        Files.write(shared.toPath(), "unchanged content".getBytes("utf-8"));
+        Files.createLink(new File(backup2,"shared.txt").toPath(), shared.toPath());
+        Files.write(new File(backup2,"new.txt").toPath(), "new content".getBytes("utf-8"));
+        
+        ScrubResult result=new HostScrubber(new HostDir(hostDir), 0, new IoBudget(0, 0)).scrub();
+        assertEquals(2, result.newInodes);
+        assertEquals(2, result.hashedInodes);
+        assertTrue(result.corruptInodes.isEmpty());
+        
+        // bit rot: same size and mtime, different content
+        FileTime mtime=Files.getLastModifiedTime(shared.toPath());
+        Files.write(shared.toPath(), "unchanged CONTENT".getBytes("utf-8"));
+        Files.setLastModifiedTime(shared.toPath(), mtime);
+        
+        result=new HostScrubber(new HostDir(hostDir), 0, new IoBudget(0, 0)).scrub();
+        assertEquals(0, result.newInodes);
+        assertEquals(1, result.verifiedInodes);
+        assertEquals(1, result.corruptInodes.size());
+        
+        List<String> paths=result.corruptInodes.values().iterator().next();
+        assertEquals(2, paths.size());
+        assertTrue(paths.contains("backup-2014-03-01-01:00:00/ROOT/shared.txt"));
+        assertTrue(paths.contains("backup-2014-03-02-01:00:00/ROOT/shared.txt"));
+    }
+    
+    @Test
+    public void testRecentlyVerifiedFilesAreSkipped() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File backup=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        backup.mkdirs();
+        Files.write(new File(backup,"file.txt").toPath(), "content".getBytes("utf-8"));
+        
+        new HostScrubber(new HostDir(hostDir), 30, new IoBudget(0, 0)).scrub();
+        ScrubResult result=new HostScrubber(new HostDir(hostDir), 30, new IoBudget(0, 0)).scrub();
+        assertEquals(0, result.hashedInodes);
+    }
+    
+    @Test
+    public void testUnreadableFilesDoNotAbortTheScrub() throws Exception
+    {
+        File hostDir=tmp.newFolder("host");
+        File backup=new File(hostDir,"backup-2014-03-01-01:00:00/ROOT");
+        backup.mkdirs();
+        Files.write(new File(backup,"good.txt").toPath(), "good".getBytes("utf-8"));
+        Files.write(new File(backup,"removed.txt").toPath(), "removed".getBytes("utf-8"));
+        Files.write(new File(backup,"unreadable.txt").toPath(), "unreadable".getBytes("utf-8"));
+        
+        // e.g. removed by a concurrent prune, or an I/O error
+        HostScrubber scrubber=new HostScrubber(new HostDir(hostDir), 30, new IoBudget(0, 0))
+        {
+            @Override
+            protected byte[] digest(Path file) throws IOException, InterruptedException
+            {
+                if (file.endsWith("removed.txt")) throw new NoSuchFileException(file.toString());
+                if (file.endsWith("unreadable.txt")) throw new IOException("Input/output error");
+                return super.digest(file);
+            }
+        };
+        ScrubResult result=scrubber.scrub();
+        assertEquals(1, result.newInodes);
+        assertEquals(1, result.unreadableFiles);
+        
+        // the progress was saved
+        result=new HostScrubber(new HostDir(hostDir), 30, new IoBudget(0, 0)).scrub();
+        assertEquals(2, result.newInodes);
+        assertEquals(2, result.hashedInodes);
+    }
+}
@@ -0,0 +1,88 @@
+package tests.scrub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.github.rsyncbackup.impl.BackupConf.ConfHost;
+import org.github.rsyncbackup.scrub.VerifySchedule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestVerifySchedule
+{
+    @Rule
+    public TemporaryFolder tmp=new TemporaryFolder();
+
+    protected static final long DAY=24*3600000L;
+
+    @Test
+    public void testEachVolumeIsVerifiedOncePerPeriod() throws Exception
+    {
+        List<ConfHost> hosts=new ArrayList<>();
+        for (int i=0;i<20;i++)
+        {
+            hosts.add(createHost("host"+i, 7));
+        }
+
+        VerifySchedule schedule=new VerifySchedule(0);
+        long start=1000*DAY+DAY/12; // 2am
+        int[] verified=new int[hosts.size()];
+        for (int night=0;night<14;night++)
+        {
+            long now=start+night*DAY;
+            for (int i=0;i<hosts.size();i++)
+            {
+                Long reserved=schedule.reserve(hosts.get(i), "ROOT", now);
+                if (reserved==null) continue;
+                schedule.finish(hosts.get(i), "ROOT", now, reserved, 1000, Collections.<String>emptyList(), true);
+                verified[i]++;
+            }
+        }
+        for (int count: verified)
+        {
+            assertEquals(2, count);
+        }
+    }
+
+    @Test
+    public void testBudgetDefersVolumesUntilTheyAreOverdue() throws Exception
+    {
+        ConfHost host=createHost("host", 1);
+        long now=1000*DAY;
+
+        VerifySchedule schedule=new VerifySchedule(0);
+        schedule.finish(host, "ROOT", now, 0, 5000, Collections.<String>emptyList(), true);
+
+        // the previous verification read 5000 bytes, which does not fit into a budget of 3000
+        now+=DAY;
+        schedule=new VerifySchedule(3000);
+        assertNull(schedule.reserve(host, "ROOT", now));
+
+        // a failed verification does not count
+        schedule=new VerifySchedule(0);
+        Long reserved=schedule.reserve(host, "ROOT", now);
+        assertNotNull(reserved);
+        schedule.finish(host, "ROOT", now, reserved, 100, Collections.singletonList("etc/passwd"), false);
+        assertTrue(schedule.isDue(host, "ROOT", now+DAY));
+
+        schedule.finish(host, "ROOT", now+DAY, 0, 100, Collections.<String>emptyList(), true);
+        assertFalse(schedule.isDue(host, "ROOT", now+DAY+3600000));
+    }
+
+    protected ConfHost createHost(String name, int verifyDays) throws Exception
+    {
+        ConfHost host=new ConfHost();
+        host.host=name;
+        host.hostStorageDir=tmp.newFolder(name).getPath();
+        host.verifyDays=verifyDays;
+        return host;
+    }
+}